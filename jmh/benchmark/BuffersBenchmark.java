@@ -0,0 +1,85 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import tech.avahe.filetransfer.util.Buffers;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Avahe
+ *
+ * Measures the <code>Buffers</code> conversions and copies, for a packet sized buffer and a large buffer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class BuffersBenchmark {
+
+    @Param({ "512", "65536" })
+    private int size;
+
+    private ByteBuffer heap;
+    private ByteBuffer direct;
+    private String string;
+
+    /**
+     * Fills a heap and a direct buffer with text of the benchmark's size.
+     */
+    @Setup
+    public void setUp() {
+        final StringBuilder text = new StringBuilder(this.size);
+        while (text.length() < this.size) {
+            text.append("ping,192.168.1.20,Alice;");
+        }
+        text.setLength(this.size);
+        this.string = text.toString();
+        this.heap = Buffers.toBuffer(this.string);
+        this.direct = ByteBuffer.allocateDirect(this.heap.remaining()).put(this.heap.duplicate()).flip();
+    }
+
+    @Benchmark
+    public void copy(final Blackhole blackhole) {
+        blackhole.consume(Buffers.copy(this.heap));
+    }
+
+    @Benchmark
+    public void copyFromDirect(final Blackhole blackhole) {
+        blackhole.consume(Buffers.copy(this.direct));
+    }
+
+    @Benchmark
+    public void copyDirect(final Blackhole blackhole) {
+        blackhole.consume(Buffers.copyDirect(this.heap));
+    }
+
+    @Benchmark
+    public void toStringFromHeap(final Blackhole blackhole) {
+        blackhole.consume(Buffers.toString(this.heap.duplicate()));
+    }
+
+    @Benchmark
+    public void toStringFromDirect(final Blackhole blackhole) {
+        blackhole.consume(Buffers.toString(this.direct.duplicate()));
+    }
+
+    @Benchmark
+    public void toBuffer(final Blackhole blackhole) {
+        blackhole.consume(Buffers.toBuffer(this.string));
+    }
+
+}
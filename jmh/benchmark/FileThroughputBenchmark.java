@@ -0,0 +1,148 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import tech.avahe.filetransfer.net.TCPServer;
+import tech.avahe.filetransfer.net.filetransfer.FileListener;
+import tech.avahe.filetransfer.net.filetransfer.FileReceiver;
+import tech.avahe.filetransfer.net.filetransfer.FileTransferClient;
+import tech.avahe.filetransfer.net.filetransfer.TransferListener;
+import tech.avahe.filetransfer.net.peerdiscovery.PeerInfo;
+import tech.avahe.filetransfer.threading.ThreadSignaller;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Avahe
+ *
+ * Measures the throughput of sending a file with <code>FileTransferClient</code> to a <code>FileReceiver</code>
+ * over a loopback connection, through the whole protocol: offers, chunk checksums and the receiver's disk writes.
+ *
+ * <p>Every operation sends one MiB of the file, so the score is in MiB/s. The received copy is deleted after every
+ * transfer, so the file is always sent in full.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 1, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class FileThroughputBenchmark {
+
+    private static final int PORT = 1341;
+    private static final int FILE_SIZE_MIB = 256;
+
+    @Param({ "1", "4" })
+    private int streams;
+
+    /**
+     * How the file is sent and received: "plain", "progress" to send with a progress listener,
+     * or "mapped" to receive through memory mapped windows.
+     */
+    @Param({ "plain", "progress", "mapped" })
+    private String variant;
+
+    private final ThreadSignaller signaller = new ThreadSignaller();
+    private final FileListener fileListener = received -> this.signaller.signal();
+    private File directory;
+    private File recordDirectory;
+    private File file;
+    private FileReceiver receiver;
+    private TCPServer server;
+    private FileTransferClient client;
+    private TransferListener progressListener;
+    private PeerInfo peerInfo;
+    private volatile Object lastProgress;
+
+    /**
+     * Writes the file to send, and starts a receiver on the loopback interface.
+     * @throws IOException Thrown if the file cannot be written, or if the receiver cannot be started.
+     */
+    @Setup
+    public void setUp() throws IOException {
+        this.directory = Files.createTempDirectory("received").toFile();
+        this.recordDirectory = Files.createTempDirectory("records").toFile();
+        this.file = File.createTempFile("throughput", ".bin");
+        FileThroughputBenchmark.writeRandomFile(this.file);
+        this.receiver = new FileReceiver(this.directory, this.recordDirectory);
+        if (this.variant.equals("mapped")) {
+            this.receiver.setMappedThreshold(0);
+        }
+        this.receiver.addFileListener(this.fileListener);
+        this.server = new TCPServer(PORT);
+        this.server.setConnectionHandlerFactory(this.receiver);
+        this.server.acceptIncomingConnections();
+        this.client = new FileTransferClient(this.streams);
+        // The progress is reported on the sampler thread, so it cannot be passed to the benchmark's blackhole.
+        this.progressListener = this.variant.equals("progress") ? (fileProgress, batchProgress) -> this.lastProgress = batchProgress : null;
+        this.peerInfo = new PeerInfo("receiver", "localhost", PORT);
+    }
+
+    /**
+     * Stops the receiver, and deletes the file and every received copy.
+     * @throws IOException Thrown if the receiver cannot be stopped.
+     */
+    @TearDown
+    public void tearDown() throws IOException {
+        this.server.close();
+        this.file.delete();
+        for (final File dir : new File[] { this.directory, this.recordDirectory }) {
+            for (final File received : dir.listFiles()) {
+                received.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    /**
+     * Deletes the received copy, so the next transfer sends the whole file.
+     */
+    @TearDown(Level.Invocation)
+    public void deleteReceivedCopy() {
+        new File(this.receiver.getDirectory(), this.file.getName()).delete();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FILE_SIZE_MIB)
+    public void send(final Blackhole blackhole) throws IOException, InterruptedException {
+        this.signaller.reset();
+        if (!this.client.send(this.peerInfo, this.progressListener, this.file) || !this.signaller.waitForTimeout(60000)) {
+            throw new IOException("The file could not be sent.");
+        }
+        blackhole.consume(this.lastProgress);
+    }
+
+    /**
+     * Fills a file with random contents, so it cannot be compressed by the file system.
+     * @param file The file to fill.
+     */
+    private static void writeRandomFile(final File file) throws IOException {
+        final byte[] block = new byte[1024 * 1024];
+        final Random random = new Random(FILE_SIZE_MIB);
+        try (final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            for (int written = 0; written < FILE_SIZE_MIB; written++) {
+                random.nextBytes(block);
+                randomAccessFile.write(block);
+            }
+        }
+    }
+
+}
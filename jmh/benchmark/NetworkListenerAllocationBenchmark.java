@@ -0,0 +1,116 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import tech.avahe.filetransfer.net.NetworkListener;
+import tech.avahe.filetransfer.util.Buffers;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * @author Avahe
+ *
+ * Compares the allocations of the pooled <code>NetworkListener</code> receive loop against copying every packet
+ * with <code>Buffers.copy</code> and handing every data listener a read-only wrapper of the copy, as the previous
+ * receive loop did. Packets are produced by the listener's own read method, so no socket limits the loop.
+ *
+ * <p>Every operation waits until one more packet has been delivered to both data listeners. The allocations are
+ * reported by JMH's GC profiler, which counts the listener's thread too, so <code>gc.alloc.rate.norm</code> is the
+ * number of bytes allocated per packet:</p>
+ *
+ * <pre>./gradlew jmh --args="NetworkListenerAllocation -prof gc"</pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class NetworkListenerAllocationBenchmark {
+
+    private static final int PACKET_SIZE = 512;
+    private static final int PACKETS_PER_OPERATION = 1024;
+
+    /**
+     * How received packets reach the data listeners: "pooled" hands them the listener's pooled buffer,
+     * and "copy" copies the buffer for every packet and wraps the copy for every data listener.
+     */
+    @Param({ "pooled", "copy" })
+    private String delivery;
+
+    private final byte[] packet = new byte[PACKET_SIZE];
+    private final SocketAddress remoteAddress = new InetSocketAddress("localhost", 7899);
+    private final AtomicLong delivered = new AtomicLong();
+    private volatile long checksum;
+    private NetworkListener networkListener;
+
+    /**
+     * Starts flooding a listener with packets.
+     * @throws InterruptedException Thrown if the thread is interrupted while the listener starts.
+     */
+    @Setup
+    public void setUp() throws InterruptedException {
+        this.networkListener = new NetworkListener() {
+            protected void prepare() {
+            }
+            protected SocketAddress read(final ByteBuffer buffer) {
+                buffer.put(NetworkListenerAllocationBenchmark.this.packet);
+                return NetworkListenerAllocationBenchmark.this.remoteAddress;
+            }
+        };
+        final BiConsumer<SocketAddress, ByteBuffer> first = (address, buffer) -> this.checksum += buffer.get(buffer.limit() - 1);
+        final BiConsumer<SocketAddress, ByteBuffer> second = (address, buffer) -> this.checksum ^= buffer.remaining();
+        if (this.delivery.equals("copy")) {
+            this.networkListener.addDataListener((address, buffer) -> {
+                final ByteBuffer copy = Buffers.copy(buffer);
+                first.accept(address, copy.asReadOnlyBuffer());
+                second.accept(address, copy.asReadOnlyBuffer());
+            });
+        } else {
+            this.networkListener.addDataListener(first);
+            this.networkListener.addDataListener(second);
+        }
+        // Packets are delivered by one thread at a time, so the count does not need an atomic increment.
+        this.networkListener.addDataListener((address, buffer) -> this.delivered.lazySet(this.delivered.get() + 1));
+        this.networkListener.startListening(1000);
+    }
+
+    /**
+     * Stops the listener.
+     * @throws InterruptedException Thrown if the thread is interrupted while the listener stops.
+     */
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        this.networkListener.stopListening(1000);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PACKETS_PER_OPERATION)
+    public void receiveLoop(final Blackhole blackhole) {
+        final long target = this.delivered.get() + PACKETS_PER_OPERATION;
+        long delivered;
+        while ((delivered = this.delivered.get()) < target) {
+            Thread.onSpinWait();
+        }
+        blackhole.consume(delivered);
+        blackhole.consume(this.checksum);
+    }
+
+}
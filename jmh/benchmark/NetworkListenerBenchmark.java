@@ -0,0 +1,107 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import tech.avahe.filetransfer.net.NetworkListener;
+import tech.avahe.filetransfer.net.OverflowPolicy;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author Avahe
+ *
+ * Measures how many packets per second the <code>NetworkListener</code> receive loop reads and hands to its
+ * data listeners, both on the receiving thread and through a dispatch executor.
+ * Packets are produced by the listener's own read method, so no socket limits the loop.
+ *
+ * <p>The listener floods its data listeners for the whole trial. Every operation waits until
+ * {@link #PACKETS_PER_OPERATION} more packets have been delivered, so the score is the rate of delivered packets.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class NetworkListenerBenchmark {
+
+    private static final int PACKET_SIZE = 512;
+    private static final int PACKETS_PER_OPERATION = 1024;
+
+    @Param({ "inline", "executor" })
+    private String dispatch;
+
+    private final byte[] packet = new byte[PACKET_SIZE];
+    private final SocketAddress remoteAddress = new InetSocketAddress("localhost", 7899);
+    private final AtomicLong delivered = new AtomicLong();
+    private volatile byte lastByte;
+    private NetworkListener networkListener;
+    private ExecutorService executor;
+
+    /**
+     * Starts flooding a listener with packets.
+     * @throws InterruptedException Thrown if the thread is interrupted while the listener starts.
+     */
+    @Setup
+    public void setUp() throws InterruptedException {
+        this.networkListener = new NetworkListener() {
+            protected void prepare() {
+            }
+            protected SocketAddress read(final ByteBuffer buffer) {
+                buffer.put(NetworkListenerBenchmark.this.packet);
+                return NetworkListenerBenchmark.this.remoteAddress;
+            }
+        };
+        this.networkListener.addDataListener((address, buffer) -> this.lastByte = buffer.get(buffer.limit() - 1));
+        // Packets are delivered by one thread at a time, so the count does not need an atomic increment.
+        this.networkListener.addDataListener((address, buffer) -> this.delivered.lazySet(this.delivered.get() + 1));
+        if (this.dispatch.equals("executor")) {
+            this.executor = Executors.newSingleThreadExecutor();
+            this.networkListener.setDispatchExecutor(this.executor, NetworkListener.DEFAULT_DISPATCH_CAPACITY, OverflowPolicy.BLOCK);
+        }
+        this.networkListener.startListening(1000);
+    }
+
+    /**
+     * Stops the listener.
+     * @throws InterruptedException Thrown if the thread is interrupted while the listener stops.
+     */
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        this.networkListener.stopListening(1000);
+        if (this.executor != null) {
+            this.executor.shutdown();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PACKETS_PER_OPERATION)
+    public void receiveLoop(final Blackhole blackhole) {
+        final long target = this.delivered.get() + PACKETS_PER_OPERATION;
+        long delivered;
+        while ((delivered = this.delivered.get()) < target) {
+            Thread.onSpinWait();
+        }
+        blackhole.consume(delivered);
+        blackhole.consume(this.lastByte);
+    }
+
+}
@@ -0,0 +1,75 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import tech.avahe.filetransfer.net.peerdiscovery.PeerMessage;
+import tech.avahe.filetransfer.net.peerdiscovery.PeerMessage.MessageType;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Avahe
+ *
+ * Measures encoding and decoding <code>PeerMessage</code> in the binary format and the legacy text format,
+ * which every peer discovery packet goes through.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class PeerMessageBenchmark {
+
+    private PeerMessage message;
+    private ByteBuffer encoded;
+    private ByteBuffer directEncoded;
+    private String formatted;
+
+    /**
+     * Encodes the message once in every format, to be decoded by the benchmarks.
+     */
+    @Setup
+    public void setUp() {
+        this.message = new PeerMessage(MessageType.PING, "192.168.1.20", "Alice", 7900);
+        this.encoded = this.message.encode();
+        this.directEncoded = ByteBuffer.allocateDirect(this.encoded.remaining()).put(this.encoded.duplicate()).flip();
+        this.formatted = PeerMessage.createFormattedMessage(this.message);
+    }
+
+    @Benchmark
+    public void encode(final Blackhole blackhole) {
+        blackhole.consume(this.message.encode());
+    }
+
+    @Benchmark
+    public void decodeHeap(final Blackhole blackhole) {
+        blackhole.consume(PeerMessage.decode(this.encoded.duplicate()));
+    }
+
+    @Benchmark
+    public void decodeDirect(final Blackhole blackhole) {
+        blackhole.consume(PeerMessage.decode(this.directEncoded.duplicate()));
+    }
+
+    @Benchmark
+    public void createFormattedMessage(final Blackhole blackhole) {
+        blackhole.consume(PeerMessage.createFormattedMessage(this.message));
+    }
+
+    @Benchmark
+    public void parseFormattedMessage(final Blackhole blackhole) {
+        blackhole.consume(PeerMessage.parseFormattedMessage(this.formatted));
+    }
+
+}
@@ -0,0 +1,234 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import tech.avahe.filetransfer.net.TCPServer;
+import tech.avahe.filetransfer.net.filetransfer.FileListener;
+import tech.avahe.filetransfer.net.filetransfer.FileReceiver;
+import tech.avahe.filetransfer.net.filetransfer.FileTransferClient;
+import tech.avahe.filetransfer.net.peerdiscovery.PeerInfo;
+import tech.avahe.filetransfer.threading.ThreadSignaller;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+/**
+ * @author Avahe
+ *
+ * Compares the strategies for writing a file received over a loopback connection.
+ *
+ * <p>The "mapped" and "direct" strategies are the receive paths of <code>FileReceiver</code>: memory mapped windows
+ * over the target file, and a pooled direct receive buffer. The file is sent to them by a
+ * <code>FileTransferClient</code> over a single stream, through the whole protocol. The "transferFrom" and "heap"
+ * strategies are baselines, which receive the raw bytes of the file, sent with <code>transferTo</code>, through
+ * <code>FileChannel.transferFrom</code> and through a heap buffer. Like the receiver, the heap baseline computes the
+ * CRC32C checksum of the received bytes, and both baselines force the file to disk once it has been received.</p>
+ *
+ * <p>Every operation receives one MiB of the file, so the score is in MiB/s.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 1, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class ReceiveStrategyBenchmark {
+
+    private static final int PORT = 1342;
+    private static final int FILE_SIZE_MIB = 256;
+    private static final long FILE_SIZE = FILE_SIZE_MIB * 1024L * 1024L;
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    @Param({ "mapped", "direct", "transferFrom", "heap" })
+    private String strategy;
+
+    private final ThreadSignaller signaller = new ThreadSignaller();
+    private final FileListener fileListener = received -> this.signaller.signal();
+    private File directory;
+    private File recordDirectory;
+    private File file;
+    private FileReceiver receiver;
+    private TCPServer server;
+    private FileTransferClient client;
+    private PeerInfo peerInfo;
+    private ServerSocketChannel baselineServer;
+    private File baselineFile;
+    private RandomAccessFile baselineTarget;
+    private ByteBuffer heapBuffer;
+
+    /**
+     * Writes the file to send, and starts the receiver of the strategy on the loopback interface.
+     * @throws IOException Thrown if the file cannot be written, or if the receiver cannot be started.
+     */
+    @Setup
+    public void setUp() throws IOException {
+        this.file = File.createTempFile("receive", ".bin");
+        ReceiveStrategyBenchmark.writeRandomFile(this.file);
+        if (this.strategy.equals("mapped") || this.strategy.equals("direct")) {
+            this.directory = Files.createTempDirectory("received").toFile();
+            this.recordDirectory = Files.createTempDirectory("records").toFile();
+            this.receiver = new FileReceiver(this.directory, this.recordDirectory);
+            this.receiver.setMappedThreshold(this.strategy.equals("mapped") ? 0 : -1);
+            this.receiver.addFileListener(this.fileListener);
+            this.server = new TCPServer(PORT);
+            this.server.setConnectionHandlerFactory(this.receiver);
+            this.server.acceptIncomingConnections();
+            this.client = new FileTransferClient(1, false, false);
+            this.peerInfo = new PeerInfo("receiver", "localhost", PORT);
+        } else {
+            this.baselineServer = ServerSocketChannel.open();
+            this.baselineServer.bind(new InetSocketAddress("localhost", PORT));
+            this.baselineFile = File.createTempFile("baseline", ".bin");
+            this.baselineTarget = new RandomAccessFile(this.baselineFile, "rw");
+            this.baselineTarget.setLength(FILE_SIZE);
+            this.heapBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+        }
+    }
+
+    /**
+     * Stops the receiver, and deletes the file and every received copy.
+     * @throws IOException Thrown if the receiver cannot be stopped.
+     */
+    @TearDown
+    public void tearDown() throws IOException {
+        if (this.server != null) {
+            this.server.close();
+            for (final File dir : new File[] { this.directory, this.recordDirectory }) {
+                for (final File received : dir.listFiles()) {
+                    received.delete();
+                }
+                dir.delete();
+            }
+        }
+        if (this.baselineServer != null) {
+            this.baselineServer.close();
+            this.baselineTarget.close();
+            this.baselineFile.delete();
+        }
+        this.file.delete();
+    }
+
+    /**
+     * Deletes the received copy, so the next transfer sends the whole file.
+     */
+    @TearDown(Level.Invocation)
+    public void deleteReceivedCopy() {
+        if (this.receiver != null) {
+            new File(this.receiver.getDirectory(), this.file.getName()).delete();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FILE_SIZE_MIB)
+    public void receive(final Blackhole blackhole) throws Exception {
+        if (this.receiver != null) {
+            this.signaller.reset();
+            if (!this.client.send(this.peerInfo, this.file) || !this.signaller.waitForTimeout(60000)) {
+                throw new IOException("The file could not be sent.");
+            }
+            return;
+        }
+        final Thread sender = new Thread(this::sendRaw, "benchmark-sender");
+        sender.start();
+        try (final SocketChannel channel = this.baselineServer.accept()) {
+            final FileChannel target = this.baselineTarget.getChannel();
+            if (this.strategy.equals("transferFrom")) {
+                ReceiveStrategyBenchmark.receiveTransferFrom(channel, target);
+            } else {
+                final CRC32C checksum = new CRC32C();
+                ReceiveStrategyBenchmark.receiveHeap(channel, target, checksum, this.heapBuffer);
+                blackhole.consume(checksum.getValue());
+            }
+            target.force(false);
+        } finally {
+            sender.join();
+        }
+    }
+
+    /**
+     * Sends the raw bytes of the file to the baseline server with <code>transferTo</code>.
+     */
+    private void sendRaw() {
+        try (final SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", PORT));
+             final FileChannel source = FileChannel.open(this.file.toPath(), StandardOpenOption.READ)) {
+            for (long position = 0; position < FILE_SIZE; ) {
+                position += source.transferTo(position, FILE_SIZE - position, channel);
+            }
+        } catch (IOException ex) {
+            // The receiving side fails the operation, as it does not receive the whole file.
+        }
+    }
+
+    /**
+     * Lets the file channel read from the connection, without computing a checksum.
+     */
+    private static void receiveTransferFrom(final SocketChannel channel, final FileChannel target) throws IOException {
+        for (long position = 0; position < FILE_SIZE; ) {
+            final long transferred = target.transferFrom(channel, position, FILE_SIZE - position);
+            if (transferred <= 0) {
+                throw new IOException("Connection closed early.");
+            }
+            position += transferred;
+        }
+    }
+
+    /**
+     * Reads into a heap buffer, computes the checksum of the bytes and writes them to the file.
+     */
+    private static void receiveHeap(final SocketChannel channel, final FileChannel target, final CRC32C checksum,
+                                    final ByteBuffer buffer) throws IOException {
+        for (long position = 0; position < FILE_SIZE; ) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), FILE_SIZE - position));
+            if (channel.read(buffer) < 0) {
+                throw new IOException("Connection closed early.");
+            }
+            buffer.flip();
+            checksum.update(buffer);
+            buffer.rewind();
+            while (buffer.hasRemaining()) {
+                position += target.write(buffer, position);
+            }
+        }
+    }
+
+    /**
+     * Fills a file with random contents, so it cannot be compressed by the file system.
+     * @param file The file to fill.
+     */
+    private static void writeRandomFile(final File file) throws IOException {
+        final byte[] block = new byte[1024 * 1024];
+        final Random random = new Random(FILE_SIZE_MIB);
+        try (final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            for (int written = 0; written < FILE_SIZE_MIB; written++) {
+                random.nextBytes(block);
+                randomAccessFile.write(block);
+            }
+        }
+    }
+
+}
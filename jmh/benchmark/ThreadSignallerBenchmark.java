@@ -0,0 +1,79 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import tech.avahe.filetransfer.threading.ThreadSignaller;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Avahe
+ *
+ * Measures the latency of waking a thread which waits on a <code>ThreadSignaller</code>,
+ * by passing a signal back and forth between the benchmark thread and a responder thread.
+ * Every operation is a round trip, which consists of two wakeups.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ThreadSignallerBenchmark {
+
+    private final ThreadSignaller ping = new ThreadSignaller();
+    private final ThreadSignaller pong = new ThreadSignaller();
+    private volatile boolean running;
+    private Thread responder;
+
+    /**
+     * Starts the thread which answers every ping with a pong.
+     */
+    @Setup
+    public void setUp() {
+        this.running = true;
+        this.responder = new Thread(() -> {
+            try {
+                while (this.running) {
+                    // Waits with a timeout, so the thread notices the end of the trial.
+                    if (this.ping.waitForTimeout(100)) {
+                        this.ping.reset();
+                        this.pong.signal();
+                    }
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }, "signaller-responder");
+        this.responder.start();
+    }
+
+    /**
+     * Stops the responder thread.
+     * @throws InterruptedException Thrown if the thread is interrupted while waiting for the responder.
+     */
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        this.running = false;
+        this.responder.join();
+    }
+
+    @Benchmark
+    public void roundTrip(final Blackhole blackhole) throws InterruptedException {
+        this.ping.signal();
+        this.pong.waitIndefinitely();
+        this.pong.reset();
+        blackhole.consume(this.pong);
+    }
+
+}
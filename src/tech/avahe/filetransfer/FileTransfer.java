@@ -1,14 +1,27 @@
 package tech.avahe.filetransfer;
 
+import tech.avahe.filetransfer.common.Environment;
 import tech.avahe.filetransfer.common.Settings;
 import tech.avahe.filetransfer.common.Settings.Entry;
+import tech.avahe.filetransfer.metrics.Metrics;
 import tech.avahe.filetransfer.net.MulticastClient;
+import tech.avahe.filetransfer.net.TCPServer;
+import tech.avahe.filetransfer.net.filetransfer.FileReceiver;
+import tech.avahe.filetransfer.net.filetransfer.FileTransferClient;
 import tech.avahe.filetransfer.net.peerdiscovery.PeerDiscoveryClient;
+import tech.avahe.filetransfer.threading.ThreadMode;
+import tech.avahe.filetransfer.threading.Threads;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
+import javax.management.JMException;
+
 /**
  *
  * @author Avahe
@@ -17,7 +30,21 @@ import java.util.Map;
 public abstract class FileTransfer {
 
 	private final PeerDiscoveryClient discoveryClient;
+	private final TCPServer transferServer;
+	private final FileReceiver fileReceiver;
+	private final FileTransferClient fileTransferClient;
 	private String nickName;
+	private int transferPort;
+	private int transferStreams;
+	private boolean deltaSync;
+	private boolean compression;
+	private ThreadMode threadMode;
+	private int peerTimeout;
+	private long rateLimit = -1;
+	private long peerRateLimit = -1;
+	private long metricsInterval = -1;
+	// Negative thresholds are valid (files are never mapped), so the default is set up front instead of in place of a marker.
+	private long mappedThreshold = Long.parseLong(Entry.MAPPED_RECEIVE_THRESHOLD.getDefaultValue());
 
 	/**
 	 * Creates the basic application needs for transferring files.
@@ -26,20 +53,78 @@ public abstract class FileTransfer {
 	 * control of loading settings to {@link FileTransfer#onSettingsLoaded(Map)} which all base classes must implement.</p>
 	 *
 	 * <p>An internal <code>MulticastClient</code> is used for Local Area Network peerdiscovery peerdiscovery,
-	 * and uses TCP for transferring files from one client to another.</p>
+	 * and uses TCP for transferring files from one client to another.
+	 * Incoming files are received on the configured transfer port, and written to the download directory.</p>
 	 *
 	 * @throws IOException Thrown if the underlying MulticastSocket cannot be created,
-	 * or if there is an exception when disabling its loopback mode.
+	 * if there is an exception when disabling its loopback mode,
+	 * or if the transfer port cannot be opened.
 	 *
 	 * @see PeerDiscoveryClient#PeerDiscoveryClient
 	 * @see MulticastClient#setLoopbackMode(boolean)
+	 * @see FileReceiver
 	 */
 	public FileTransfer() throws IOException, InterruptedException {
 		this.loadSettings();
 		if (this.nickName == null) {
 			this.nickName = Entry.NICK_NAME.getDefaultValue();
 		}
-		this.discoveryClient = new PeerDiscoveryClient(this.nickName);
+		if (this.transferPort <= 0) {
+			this.transferPort = Integer.parseInt(Entry.TRANSFER_PORT.getDefaultValue());
+		}
+		if (this.transferStreams <= 0) {
+			this.transferStreams = Integer.parseInt(Entry.TRANSFER_STREAMS.getDefaultValue());
+		}
+		if (this.peerTimeout <= 0) {
+			this.peerTimeout = Integer.parseInt(Entry.PEER_TIMEOUT.getDefaultValue());
+		}
+		if (this.rateLimit < 0) {
+			this.rateLimit = Long.parseLong(Entry.RATE_LIMIT.getDefaultValue());
+		}
+		if (this.peerRateLimit < 0) {
+			this.peerRateLimit = Long.parseLong(Entry.PEER_RATE_LIMIT.getDefaultValue());
+		}
+		if (this.metricsInterval < 0) {
+			this.metricsInterval = Long.parseLong(Entry.METRICS_INTERVAL.getDefaultValue());
+		}
+		if (this.threadMode == null) {
+			this.threadMode = ThreadMode.getByIdentifier(Entry.THREAD_MODE.getDefaultValue());
+		}
+		// The networking components create their threads in the configured mode.
+		Threads.setMode(this.threadMode);
+		this.fileTransferClient = new FileTransferClient(this.transferStreams, this.deltaSync, this.compression);
+		FileTransferClient.setRateLimit(this.rateLimit);
+		this.fileTransferClient.setPeerRateLimit(this.peerRateLimit);
+		this.discoveryClient = new PeerDiscoveryClient(this.nickName, this.transferPort);
+		this.discoveryClient.setPeerTimeout(this.peerTimeout);
+		this.fileReceiver = new FileReceiver();
+		this.fileReceiver.setMappedThreshold(this.mappedThreshold);
+		this.transferServer = new TCPServer(this.transferPort);
+		this.transferServer.setConnectionHandlerFactory(this.fileReceiver);
+		this.transferServer.acceptIncomingConnections();
+		try {
+			Metrics.registerMBean();
+		} catch (JMException | SecurityException ex) {
+			// The program runs without JMX, and still writes the metrics file if reporting is enabled.
+		}
+		if (this.metricsInterval > 0) {
+			Metrics.startReporting(this.metricsInterval * 1000, FileTransfer::appendMetricsReport);
+		}
+	}
+
+	/**
+	 * Appends a metrics report to the metrics file, under the time it was made.
+	 * @param report The report to append.
+	 */
+	private static void appendMetricsReport(final String report) {
+		try {
+			Environment.METRICS_FILE.getParentFile().mkdirs();
+			Files.write(Environment.METRICS_FILE.toPath(),
+					("[" + LocalDateTime.now() + "]" + System.lineSeparator() + report).getBytes(StandardCharsets.UTF_8),
+					StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+		} catch (IOException ex) {
+			// Silently ignore the exception, as the metrics are still available over JMX.
+		}
 	}
 
 	/**
@@ -52,6 +137,57 @@ public abstract class FileTransfer {
 			throw new IllegalArgumentException("Settings must not be null.");
 		}
 		this.nickName = settings.get(Entry.NICK_NAME.getKey());
+		this.transferPort = FileTransfer.parseInt(settings.get(Entry.TRANSFER_PORT.getKey()), Entry.TRANSFER_PORT);
+		this.transferStreams = FileTransfer.parseInt(settings.get(Entry.TRANSFER_STREAMS.getKey()), Entry.TRANSFER_STREAMS);
+		this.deltaSync = FileTransfer.parseBoolean(settings.get(Entry.DELTA_SYNC.getKey()), Entry.DELTA_SYNC);
+		this.compression = FileTransfer.parseBoolean(settings.get(Entry.COMPRESSION.getKey()), Entry.COMPRESSION);
+		this.threadMode = ThreadMode.getByIdentifier(settings.get(Entry.THREAD_MODE.getKey()));
+		this.peerTimeout = FileTransfer.parseInt(settings.get(Entry.PEER_TIMEOUT.getKey()), Entry.PEER_TIMEOUT);
+		this.rateLimit = FileTransfer.parseLong(settings.get(Entry.RATE_LIMIT.getKey()), Entry.RATE_LIMIT);
+		this.peerRateLimit = FileTransfer.parseLong(settings.get(Entry.PEER_RATE_LIMIT.getKey()), Entry.PEER_RATE_LIMIT);
+		this.metricsInterval = FileTransfer.parseLong(settings.get(Entry.METRICS_INTERVAL.getKey()), Entry.METRICS_INTERVAL);
+		this.mappedThreshold = FileTransfer.parseLong(settings.get(Entry.MAPPED_RECEIVE_THRESHOLD.getKey()), Entry.MAPPED_RECEIVE_THRESHOLD);
+	}
+
+	/**
+	 * Parses an integer setting, falling back to the entry's default value if the setting is missing or invalid.
+	 * @param value The value of the setting.
+	 * @param entry The entry the value belongs to.
+	 * @return The parsed value.
+	 */
+	protected static int parseInt(final String value, final Entry entry) {
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException ex) {
+			return Integer.parseInt(entry.getDefaultValue());
+		}
+	}
+
+	/**
+	 * Parses a long setting, falling back to the entry's default value if the setting is missing or invalid.
+	 * @param value The value of the setting.
+	 * @param entry The entry the value belongs to.
+	 * @return The parsed value.
+	 */
+	protected static long parseLong(final String value, final Entry entry) {
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException ex) {
+			return Long.parseLong(entry.getDefaultValue());
+		}
+	}
+
+	/**
+	 * Parses a boolean setting, falling back to the entry's default value if the setting is missing or invalid.
+	 * @param value The value of the setting.
+	 * @param entry The entry the value belongs to.
+	 * @return The parsed value.
+	 */
+	protected static boolean parseBoolean(final String value, final Entry entry) {
+		if ("true".equalsIgnoreCase(value) || "false".equalsIgnoreCase(value)) {
+			return Boolean.parseBoolean(value);
+		}
+		return Boolean.parseBoolean(entry.getDefaultValue());
 	}
 
 	/**
@@ -95,6 +231,27 @@ public abstract class FileTransfer {
 		}
 	}
 
+	/**
+	 * @return The receiver which writes incoming files to disk.
+	 */
+	public FileReceiver getFileReceiver() {
+		return this.fileReceiver;
+	}
+
+	/**
+	 * @return The client which sends files to peers.
+	 */
+	public FileTransferClient getFileTransferClient() {
+		return this.fileTransferClient;
+	}
+
+	/**
+	 * @return The kind of threads the program's background tasks run on.
+	 */
+	public ThreadMode getThreadMode() {
+		return this.threadMode;
+	}
+
 	/**
 	 * @return The client's nickName.
 	 */
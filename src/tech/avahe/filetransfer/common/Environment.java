@@ -59,5 +59,10 @@ public class Environment {
 	 * The file transfer history log file.
 	 */
 	public static final File HISTORY_FILE = new File(Environment.PROGRAM_DIR + "history.log");
+
+	/**
+	 * The file the periodic metrics reports are appended to.
+	 */
+	public static final File METRICS_FILE = new File(Environment.PROGRAM_DIR + "metrics.log");
 	
 }
\ No newline at end of file
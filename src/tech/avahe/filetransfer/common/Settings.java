@@ -21,6 +21,16 @@ import javax.swing.JFrame;
  * The settings are as follows:
  * 		username=The user's display name
  * 		gui-state=(A value from {JFrame#getExtendedState})
+ * 		transfer-port=The port on which files are received
+ * 		transfer-streams=The number of parallel connections a large file is sent over
+ * 		delta-sync=If files are sent as deltas against the copies peers already have (true or false)
+ * 		compression=If chunks of files are compressed when peers accept it (true or false)
+ * 		rate-limit=The maximum rate (in bytes per second) at which files are sent to all peers combined (0 for no limit)
+ * 		peer-rate-limit=The maximum rate (in bytes per second) at which files are sent to any single peer (0 for no limit)
+ * 		mapped-receive-threshold=The size (in bytes) from which received files are written through memory mapped windows (negative to never map)
+ * 		metrics-interval=The time (in seconds) between two reports appended to the metrics file (0 to never report)
+ * 		thread-mode=The kind of threads background tasks run on (platform or virtual)
+ * 		peer-timeout=The time (in milliseconds) after which a silent peer is considered disconnected
  */
 public class Settings {
 
@@ -30,7 +40,17 @@ public class Settings {
 	public enum Entry {
 		
 		NICK_NAME("nick-name", System.getProperty("user.name")),
-		GUI_STATE("gui-state", "" + JFrame.NORMAL);
+		GUI_STATE("gui-state", "" + JFrame.NORMAL),
+		TRANSFER_PORT("transfer-port", "7900"),
+		TRANSFER_STREAMS("transfer-streams", "4"),
+		DELTA_SYNC("delta-sync", "false"),
+		COMPRESSION("compression", "false"),
+		RATE_LIMIT("rate-limit", "0"),
+		PEER_RATE_LIMIT("peer-rate-limit", "0"),
+		MAPPED_RECEIVE_THRESHOLD("mapped-receive-threshold", "" + (256L * 1024 * 1024)),
+		METRICS_INTERVAL("metrics-interval", "0"),
+		THREAD_MODE("thread-mode", "platform"),
+		PEER_TIMEOUT("peer-timeout", "5000");
 
 		private static final String SEPARATOR = "=";
 
@@ -0,0 +1,78 @@
+package tech.avahe.filetransfer.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A monotonically increasing count, such as a number of bytes or packets.
+ *
+ * <p>The count is kept in a {@link LongAdder}, so threads which add to the same counter at once do not contend.
+ * The rate at which the count grows is sampled once a second by {@link Metrics}.</p>
+ *
+ * @author Avahe
+ */
+public final class Counter {
+
+    private final String name;
+    private final LongAdder count = new LongAdder();
+    private long sampledCount = 0;
+    private long sampledNanos = System.nanoTime();
+    private volatile double rate = 0;
+
+    /**
+     * Creates a counter.
+     * @param name The name of the counter.
+     */
+    Counter(final String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return The name of the counter.
+     */
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * Adds one to the count.
+     */
+    public void increment() {
+        this.count.increment();
+    }
+
+    /**
+     * Adds to the count.
+     * @param value The amount to add.
+     */
+    public void add(final long value) {
+        this.count.add(value);
+    }
+
+    /**
+     * @return The current count.
+     */
+    public long get() {
+        return this.count.sum();
+    }
+
+    /**
+     * @return The rate at which the count grew, per second, between the last two samples.
+     */
+    public double getRate() {
+        return this.rate;
+    }
+
+    /**
+     * Samples the count, and updates the rate. This is only called by the sampling thread of {@link Metrics}.
+     * @param now The current time, in nanoseconds.
+     */
+    void sample(final long now) {
+        final long count = this.count.sum();
+        if (now > this.sampledNanos) {
+            this.rate = (count - this.sampledCount) * 1e9 / (now - this.sampledNanos);
+        }
+        this.sampledCount = count;
+        this.sampledNanos = now;
+    }
+
+}
@@ -0,0 +1,42 @@
+package tech.avahe.filetransfer.metrics;
+
+import java.util.function.LongSupplier;
+
+/**
+ * A value which is read when it is reported, such as the depth of a queue.
+ *
+ * <p>Unlike a {@link Counter}, a gauge is not updated by the component it measures: the component supplies
+ * a function which reads the current value, so a gauge costs nothing until it is reported.</p>
+ *
+ * @author Avahe
+ */
+public final class Gauge {
+
+    private final String name;
+    private final LongSupplier value;
+
+    /**
+     * Creates a gauge.
+     * @param name The name of the gauge.
+     * @param value Reads the current value of the gauge.
+     */
+    Gauge(final String name, final LongSupplier value) {
+        this.name = name;
+        this.value = value;
+    }
+
+    /**
+     * @return The name of the gauge.
+     */
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * @return The current value of the gauge.
+     */
+    public long get() {
+        return this.value.getAsLong();
+    }
+
+}
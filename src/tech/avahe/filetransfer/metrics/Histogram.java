@@ -0,0 +1,195 @@
+package tech.avahe.filetransfer.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A distribution of values, such as latencies in nanoseconds, with a bounded relative error.
+ *
+ * <p>Like an HDR histogram, the buckets are log-linear: every power of two is split into {@link #SUB_BUCKETS}
+ * equally sized buckets, so any value is recorded with a relative error below 1 / {@link #SUB_BUCKETS},
+ * from zero to <code>Long.MAX_VALUE</code>, in a fixed number of buckets. Recording a value is a single atomic
+ * increment of its bucket, so recording never locks and never allocates.</p>
+ *
+ * @author Avahe
+ */
+public final class Histogram {
+
+    /**
+     * The number of bits of a value which select its bucket within its power of two.
+     */
+    private static final int SUB_BUCKET_BITS = 5;
+
+    /**
+     * The number of buckets every power of two is split into.
+     */
+    public static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * The total number of buckets, which cover every non-negative <code>long</code>.
+     */
+    private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final String name;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong max = new AtomicLong(0);
+
+    /**
+     * Creates a histogram.
+     * @param name The name of the histogram.
+     */
+    Histogram(final String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return The name of the histogram.
+     */
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * Records a value. Negative values are recorded as zero.
+     * @param value The value to record.
+     */
+    public void record(final long value) {
+        final long recorded = Math.max(0, value);
+        this.counts.incrementAndGet(Histogram.bucketOf(recorded));
+        long max = this.max.get();
+        while (recorded > max && !this.max.compareAndSet(max, recorded)) {
+            max = this.max.get();
+        }
+    }
+
+    /**
+     * Records the time elapsed since a start time.
+     * @param startNanos The start time, from {@link System#nanoTime()}.
+     */
+    public void recordSince(final long startNanos) {
+        this.record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Copies the current distribution. Values recorded while the copy is made may or may not be included.
+     * @return The copy of the distribution.
+     */
+    public Snapshot snapshot() {
+        final long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = this.counts.get(i);
+        }
+        return new Snapshot(counts, this.max.get());
+    }
+
+    /**
+     * Finds the bucket of a value.
+     * @param value The non-negative value.
+     * @return The index of the value's bucket.
+     */
+    private static int bucketOf(final long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        final int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        final int shift = exponent - SUB_BUCKET_BITS;
+        return ((shift + 1) << SUB_BUCKET_BITS) + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    /**
+     * Finds the smallest value of a bucket.
+     * @param bucket The index of the bucket.
+     * @return The smallest value which is recorded in the bucket.
+     */
+    private static long lowestValueOf(final int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        final int shift = (bucket >>> SUB_BUCKET_BITS) - 1;
+        return ((long) ((bucket & (SUB_BUCKETS - 1)) + SUB_BUCKETS)) << shift;
+    }
+
+    /**
+     * Finds the value which represents a bucket, halfway between its smallest and largest value.
+     * @param bucket The index of the bucket.
+     * @return The value representing the bucket.
+     */
+    private static long middleValueOf(final int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        final int shift = (bucket >>> SUB_BUCKET_BITS) - 1;
+        return Histogram.lowestValueOf(bucket) + ((1L << shift) >>> 1);
+    }
+
+    /**
+     * An immutable copy of a histogram's distribution.
+     */
+    public static final class Snapshot {
+
+        private final long[] counts;
+        private final long count;
+        private final long max;
+        private final double mean;
+
+        /**
+         * @param counts The count of every bucket.
+         * @param max The largest recorded value.
+         */
+        private Snapshot(final long[] counts, final long max) {
+            this.counts = counts;
+            long count = 0;
+            double total = 0;
+            for (int i = 0; i < counts.length; i++) {
+                count += counts[i];
+                total += (double) counts[i] * Histogram.middleValueOf(i);
+            }
+            this.count = count;
+            this.max = max;
+            this.mean = count == 0 ? 0 : total / count;
+        }
+
+        /**
+         * @return The number of recorded values.
+         */
+        public long getCount() {
+            return this.count;
+        }
+
+        /**
+         * @return The approximate mean of the recorded values.
+         */
+        public double getMean() {
+            return this.mean;
+        }
+
+        /**
+         * @return The largest recorded value.
+         */
+        public long getMax() {
+            return this.max;
+        }
+
+        /**
+         * Finds the value below which a fraction of the recorded values lie.
+         * @param percentile The fraction, between 0 and 1.
+         * @return The approximate value at the percentile, or 0 if no values have been recorded.
+         */
+        public long getValueAtPercentile(final double percentile) {
+            if (this.count == 0) {
+                return 0;
+            }
+            final long rank = Math.max(1, (long) Math.ceil(percentile * this.count));
+            long seen = 0;
+            for (int i = 0; i < this.counts.length; i++) {
+                seen += this.counts[i];
+                if (seen >= rank) {
+                    return Math.min(Histogram.middleValueOf(i), this.max);
+                }
+            }
+            return this.max;
+        }
+
+    }
+
+}
@@ -0,0 +1,197 @@
+package tech.avahe.filetransfer.metrics;
+
+import tech.avahe.filetransfer.threading.Threads;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * The program-wide registry of the counters, gauges and histograms which measure the networking components.
+ *
+ * <p>Components look their metrics up once, into static fields, and update them on their hot paths without
+ * locking. Gauges, such as queue depths, are only read when they are reported. The rates of all counters are
+ * sampled once a second on a daemon thread. The metrics can be read through {@link #report()}, written out
+ * periodically with {@link #startReporting(long, Consumer)}, or exported over JMX with {@link #registerMBean()}.</p>
+ *
+ * <p>Histograms whose names end with <code>-nanos</code> hold durations, and are reported in microseconds.</p>
+ *
+ * @author Avahe
+ */
+public final class Metrics {
+
+    /**
+     * The name the metrics are exported under over JMX.
+     */
+    public static final String OBJECT_NAME = "tech.avahe.filetransfer:type=Metrics";
+
+    private static final String NANOS_SUFFIX = "-nanos";
+    private static final Map<String, Counter> counters = new ConcurrentHashMap<>();
+    private static final Map<String, Gauge> gauges = new ConcurrentHashMap<>();
+    private static final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private static final ScheduledExecutorService scheduler;
+    private static ScheduledFuture<?> reporting;
+
+    static {
+        final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, Threads.newDaemonThreadFactory("metrics"));
+        executor.setRemoveOnCancelPolicy(true);
+        executor.scheduleAtFixedRate(Metrics::sampleRates, 1, 1, TimeUnit.SECONDS);
+        scheduler = executor;
+    }
+
+    /**
+     * Prevents instantiation.
+     */
+    private Metrics() {
+    }
+
+    /**
+     * Finds a counter, creating it if it does not exist yet.
+     * @param name The name of the counter.
+     * @return The counter with the name.
+     */
+    public static Counter counter(final String name) {
+        return Metrics.counters.computeIfAbsent(name, Counter::new);
+    }
+
+    /**
+     * Registers a gauge, replacing any gauge registered under the same name.
+     * @param name The name of the gauge.
+     * @param value Reads the current value of the gauge. It is called on the reporting thread.
+     * @return The registered gauge.
+     */
+    public static Gauge gauge(final String name, final LongSupplier value) {
+        final Gauge gauge = new Gauge(name, value);
+        Metrics.gauges.put(name, gauge);
+        return gauge;
+    }
+
+    /**
+     * Finds a histogram, creating it if it does not exist yet.
+     * @param name The name of the histogram.
+     * @return The histogram with the name.
+     */
+    public static Histogram histogram(final String name) {
+        return Metrics.histograms.computeIfAbsent(name, Histogram::new);
+    }
+
+    /**
+     * @return The counters, sorted by name.
+     */
+    public static SortedMap<String, Counter> getCounters() {
+        return new TreeMap<>(Metrics.counters);
+    }
+
+    /**
+     * @return The gauges, sorted by name.
+     */
+    public static SortedMap<String, Gauge> getGauges() {
+        return new TreeMap<>(Metrics.gauges);
+    }
+
+    /**
+     * @return The histograms, sorted by name.
+     */
+    public static SortedMap<String, Histogram> getHistograms() {
+        return new TreeMap<>(Metrics.histograms);
+    }
+
+    /**
+     * @param name The name of a histogram.
+     * @return If the histogram holds durations in nanoseconds.
+     */
+    static boolean isDuration(final String name) {
+        return name.endsWith(NANOS_SUFFIX);
+    }
+
+    /**
+     * Formats the current value of every metric, one metric per line.
+     * @return The formatted metrics.
+     */
+    public static String report() {
+        final StringBuilder builder = new StringBuilder();
+        for (final Counter counter : Metrics.getCounters().values()) {
+            builder.append(String.format(Locale.ROOT, "%-36s %16d %14.1f/s%n",
+                    counter.getName(), counter.get(), counter.getRate()));
+        }
+        for (final Gauge gauge : Metrics.getGauges().values()) {
+            builder.append(String.format(Locale.ROOT, "%-36s %16d%n", gauge.getName(), gauge.get()));
+        }
+        for (final Histogram histogram : Metrics.getHistograms().values()) {
+            final Histogram.Snapshot snapshot = histogram.snapshot();
+            final boolean duration = Metrics.isDuration(histogram.getName());
+            final double scale = duration ? 1e-3 : 1;
+            final String name = duration
+                    ? histogram.getName().substring(0, histogram.getName().length() - NANOS_SUFFIX.length()) + " (us)"
+                    : histogram.getName();
+            builder.append(String.format(Locale.ROOT, "%-36s count=%d mean=%.1f p50=%.1f p99=%.1f p999=%.1f max=%.1f%n",
+                    name, snapshot.getCount(), snapshot.getMean() * scale,
+                    snapshot.getValueAtPercentile(0.5) * scale, snapshot.getValueAtPercentile(0.99) * scale,
+                    snapshot.getValueAtPercentile(0.999) * scale, snapshot.getMax() * scale));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Periodically writes a report of the metrics, replacing any previous periodic report.
+     * @param intervalMillis The time between two reports, in milliseconds.
+     * @param output Receives every report.
+     * @see #report()
+     */
+    public static synchronized void startReporting(final long intervalMillis, final Consumer<String> output) {
+        if (intervalMillis <= 0) {
+            throw new IllegalArgumentException("The reporting interval must be positive.");
+        }
+        Metrics.stopReporting();
+        Metrics.reporting = Metrics.scheduler.scheduleAtFixedRate(() -> output.accept(Metrics.report()),
+                intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops writing periodic reports, if they are being written.
+     */
+    public static synchronized void stopReporting() {
+        if (Metrics.reporting != null) {
+            Metrics.reporting.cancel(false);
+            Metrics.reporting = null;
+        }
+    }
+
+    /**
+     * Exports the metrics over JMX, on the platform MBean server, under {@link #OBJECT_NAME}.
+     * Registering the metrics more than once has no effect.
+     * @throws JMException Thrown if the MBean server refuses the metrics.
+     * @throws SecurityException Thrown if the program is not permitted to register MBeans.
+     */
+    public static synchronized void registerMBean() throws JMException {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName name = new ObjectName(OBJECT_NAME);
+        if (!server.isRegistered(name)) {
+            server.registerMBean(new MetricsMBean(), name);
+        }
+    }
+
+    /**
+     * Samples the rate of every counter.
+     */
+    private static void sampleRates() {
+        final long now = System.nanoTime();
+        for (final Counter counter : Metrics.counters.values()) {
+            counter.sample(now);
+        }
+    }
+
+}
@@ -0,0 +1,125 @@
+package tech.avahe.filetransfer.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.ReflectionException;
+
+/**
+ * Exports the registered metrics over JMX, one read-only attribute per value.
+ *
+ * <p>Every counter <code>name</code> is exported as <code>name</code> and <code>name.rate</code>,
+ * every gauge as <code>name</code>, and every histogram as <code>name.count</code>, <code>name.mean</code>, <code>name.p50</code>,
+ * <code>name.p99</code>, <code>name.p999</code> and <code>name.max</code>, in the units it records.
+ * The attributes are listed again whenever the MBean is inspected, so metrics registered later are included.</p>
+ *
+ * @author Avahe
+ */
+final class MetricsMBean implements DynamicMBean {
+
+    private static final String[] HISTOGRAM_FIELDS = { "count", "mean", "p50", "p99", "p999", "max" };
+
+    @Override
+    public Object getAttribute(final String attribute) throws AttributeNotFoundException {
+        final Counter counter = Metrics.getCounters().get(attribute);
+        if (counter != null) {
+            return counter.get();
+        }
+        final Gauge gauge = Metrics.getGauges().get(attribute);
+        if (gauge != null) {
+            return gauge.get();
+        }
+        final int separator = attribute.lastIndexOf('.');
+        if (separator > 0) {
+            final String name = attribute.substring(0, separator);
+            final String field = attribute.substring(separator + 1);
+            final Counter rateCounter = Metrics.getCounters().get(name);
+            if (rateCounter != null && field.equals("rate")) {
+                return rateCounter.getRate();
+            }
+            final Histogram histogram = Metrics.getHistograms().get(name);
+            if (histogram != null) {
+                final Histogram.Snapshot snapshot = histogram.snapshot();
+                switch (field) {
+                    case "count":
+                        return snapshot.getCount();
+                    case "mean":
+                        return snapshot.getMean();
+                    case "p50":
+                        return (double) snapshot.getValueAtPercentile(0.5);
+                    case "p99":
+                        return (double) snapshot.getValueAtPercentile(0.99);
+                    case "p999":
+                        return (double) snapshot.getValueAtPercentile(0.999);
+                    case "max":
+                        return (double) snapshot.getMax();
+                    default:
+                        break;
+                }
+            }
+        }
+        throw new AttributeNotFoundException("Unknown metric: " + attribute);
+    }
+
+    @Override
+    public void setAttribute(final Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList getAttributes(final String[] attributes) {
+        final AttributeList list = new AttributeList();
+        for (final String attribute : attributes) {
+            try {
+                list.add(new Attribute(attribute, this.getAttribute(attribute)));
+            } catch (AttributeNotFoundException ignored) {
+                // Unknown attributes are left out of the list, as the DynamicMBean contract requires.
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public AttributeList setAttributes(final AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(final String actionName, final Object[] params, final String[] signature) throws ReflectionException {
+        if (actionName.equals("report") && (params == null || params.length == 0)) {
+            return Metrics.report();
+        }
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        final List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        for (final String name : Metrics.getCounters().keySet()) {
+            attributes.add(new MBeanAttributeInfo(name, "long", "The count of " + name, true, false, false));
+            attributes.add(new MBeanAttributeInfo(name + ".rate", "double", "The rate of " + name + " per second", true, false, false));
+        }
+        for (final String name : Metrics.getGauges().keySet()) {
+            attributes.add(new MBeanAttributeInfo(name, "long", "The current value of " + name, true, false, false));
+        }
+        for (final String name : Metrics.getHistograms().keySet()) {
+            for (final String field : HISTOGRAM_FIELDS) {
+                final String type = field.equals("count") ? "long" : "double";
+                attributes.add(new MBeanAttributeInfo(name + "." + field, type, "The " + field + " of " + name, true, false, false));
+            }
+        }
+        final MBeanOperationInfo report = new MBeanOperationInfo("report", "Formats every metric as text",
+                new MBeanParameterInfo[0], String.class.getName(), MBeanOperationInfo.INFO);
+        return new MBeanInfo(MetricsMBean.class.getName(), "File transfer metrics",
+                attributes.toArray(new MBeanAttributeInfo[0]), null, new MBeanOperationInfo[] { report }, null);
+    }
+
+}
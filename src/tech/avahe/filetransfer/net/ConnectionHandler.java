@@ -0,0 +1,57 @@
+package tech.avahe.filetransfer.net;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Handles the traffic of a single connection accepted by a {@link TCPServer}.
+ *
+ * <p>All methods are invoked on one of the server's I/O threads, which are shared by many connections,
+ * so implementations must never block. The connection's channel is in non-blocking mode.
+ * To wait for write readiness, add {@link SelectionKey#OP_WRITE} to the key's interest set.</p>
+ *
+ * @author Avahe
+ */
+public interface ConnectionHandler {
+
+    /**
+     * Creates a handler for every connection accepted by a {@link TCPServer}.
+     */
+    interface Factory {
+
+        /**
+         * Creates a handler for a newly accepted connection.
+         * @param channel The channel of the connection.
+         * @return The handler of the connection.
+         * @throws IOException Thrown if the handler cannot be created; the connection is then closed.
+         */
+        ConnectionHandler create(final SocketChannel channel) throws IOException;
+
+    }
+
+    /**
+     * Called when the connection has data to read.
+     * @param key The selection key of the connection.
+     * @throws IOException Thrown if the connection fails; the connection is then closed.
+     */
+    void onReadable(final SelectionKey key) throws IOException;
+
+    /**
+     * Called when the connection can be written to.
+     * By default, this stops waiting for write readiness.
+     * @param key The selection key of the connection.
+     * @throws IOException Thrown if the connection fails; the connection is then closed.
+     */
+    default void onWritable(final SelectionKey key) throws IOException {
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Called once the connection has been closed, either by the handler, the peer or the server.
+     * @param channel The closed channel.
+     */
+    default void onClosed(final SocketChannel channel) {
+    }
+
+}
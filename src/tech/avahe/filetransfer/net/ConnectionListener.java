@@ -9,7 +9,11 @@ public interface ConnectionListener {
 
     /**
      * Called when a new connection is established.
-     * @param socket The incoming socket.
+     *
+     * <p>If the server has a {@link ConnectionHandler.Factory}, the connection is already being served by its
+     * handler, and the socket is in non-blocking mode; it should then only be used to inspect the connection.</p>
+     *
+     * @param socket The incoming socket, which is backed by a <code>SocketChannel</code>.
      */
     void onConnectionEstablished(final Socket socket);
 
@@ -7,10 +7,13 @@ import java.io.IOException;
 import java.net.*;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectableChannel;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
 import java.util.function.BiConsumer;
 
 /**
@@ -42,6 +45,9 @@ public class MulticastClient {
 			protected SocketAddress read(ByteBuffer buffer) throws IOException {
 				return MulticastClient.this.datagramChannel.receive(buffer);
 			}
+			protected SelectableChannel getSelectableChannel() {
+				return MulticastClient.this.datagramChannel;
+			}
 		};
 		this.initChannel();
 	}
@@ -122,6 +128,44 @@ public class MulticastClient {
 
     //region NetworkListener Delegation
 
+	/**
+	 * Sets the event loop the client listens on, instead of a thread of its own.
+	 * Once the client has listened on the loop, its channel is in non-blocking mode.
+	 * @param eventLoop The event loop to listen on, or null to listen on a thread of the client's own.
+	 * @see NetworkListener#setEventLoop(SelectorLoop)
+	 * @see NetworkListener#sharedEventLoop()
+	 */
+	public void setEventLoop(final SelectorLoop eventLoop) {
+		this.networkListener.setEventLoop(eventLoop);
+	}
+
+	/**
+	 * Sets the factory of the thread the client listens on, when it does not listen on an event loop.
+	 * @param threadFactory The factory of listener threads.
+	 * @see NetworkListener#setThreadFactory(ThreadFactory)
+	 */
+	public void setThreadFactory(final ThreadFactory threadFactory) {
+		this.networkListener.setThreadFactory(threadFactory);
+	}
+
+	/**
+	 * Notifies the data listeners on an executor instead of the receiving thread.
+	 * @param executor The executor to notify the data listeners on, or null to notify them on the receiving thread.
+	 * @param capacity The maximum number of packets waiting to be dispatched.
+	 * @param overflowPolicy What to do with a received packet when the queue is full.
+	 * @see NetworkListener#setDispatchExecutor(Executor, int, OverflowPolicy)
+	 */
+	public void setDispatchExecutor(final Executor executor, final int capacity, final OverflowPolicy overflowPolicy) {
+		this.networkListener.setDispatchExecutor(executor, capacity, overflowPolicy);
+	}
+
+	/**
+	 * @return The number of received packets dropped because the dispatch queue was full.
+	 */
+	public long getDroppedPackets() {
+		return this.networkListener.getDroppedPackets();
+	}
+
 	/**
 	 * Tells the client to start listening for incoming packets.
 	 * @param timeout The time (in milliseconds) to wait for the client to start listening for messages.
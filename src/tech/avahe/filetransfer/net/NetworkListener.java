@@ -1,25 +1,242 @@
 package tech.avahe.filetransfer.net;
 
+import tech.avahe.filetransfer.metrics.Counter;
+import tech.avahe.filetransfer.metrics.Histogram;
+import tech.avahe.filetransfer.metrics.Metrics;
 import tech.avahe.filetransfer.threading.ThreadSignaller;
-import tech.avahe.filetransfer.util.Buffers;
+import tech.avahe.filetransfer.threading.Threads;
+import tech.avahe.filetransfer.util.BufferPool;
+import tech.avahe.filetransfer.util.BufferPool.PooledBuffer;
+import tech.avahe.filetransfer.util.RingBuffer;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.BiConsumer;
+import java.util.function.ToLongFunction;
 
 /**
+ * Receives data from a networked data source, and passes it on to data listeners.
+ *
+ * <p>By default, every listener reads on its own thread. If the listener is given a {@link SelectorLoop}
+ * through {@link #setEventLoop(SelectorLoop)}, its channel is instead registered with that loop,
+ * so many listeners can share a single thread; see {@link #sharedEventLoop()}.</p>
+ *
+ * <p>By default, data listeners are notified on the receiving thread. If the listener is given an executor through
+ * {@link #setDispatchExecutor(Executor, int, OverflowPolicy)}, received data is queued in a bounded ring instead,
+ * and the data listeners are notified in batches on the executor, so a slow data listener cannot stall receiving.</p>
+ *
  * @author Avahe
  */
 public abstract class NetworkListener {
 
+    /**
+     * The capacity of the buffers data is received into.
+     */
+    public static final int RECEIVE_BUFFER_SIZE = 4096;
+
+    /**
+     * The pool of receive buffers shared by all listeners which are not given their own pool.
+     */
+    private static final BufferPool SHARED_BUFFER_POOL = new BufferPool(RECEIVE_BUFFER_SIZE, 64);
+
+    /**
+     * The maximum number of reads per readiness event of a listener running on an event loop,
+     * so one busy channel cannot starve the other channels of the loop.
+     */
+    private static final int MAX_READS_PER_EVENT = 16;
+
+    /**
+     * The default number of received packets which may wait to be dispatched to the data listeners.
+     */
+    public static final int DEFAULT_DISPATCH_CAPACITY = 1024;
+
+    /**
+     * The maximum number of packets dispatched by a single task on the dispatch executor,
+     * so listeners sharing the executor take turns.
+     */
+    private static final int MAX_DISPATCH_BATCH = 64;
+
+    private static final Counter PACKETS_RECEIVED = Metrics.counter("network.packets-received");
+    private static final Counter BYTES_RECEIVED = Metrics.counter("network.bytes-received");
+    private static final Counter PACKETS_DROPPED = Metrics.counter("network.packets-dropped");
+    private static final Histogram DISPATCH_LATENCY = Metrics.histogram("network.dispatch-nanos");
+
+    // The listeners which dispatch off the receiving thread, read by the dispatch queue gauges.
+    // They are held weakly, so listeners which are no longer used are not kept alive by the metrics.
+    private static final Set<NetworkListener> DISPATCHING_LISTENERS = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+
+    static {
+        Metrics.gauge("network.dispatch-queue-depth", () -> NetworkListener.sumDispatching(listener -> listener.getQueuedPackets()));
+        Metrics.gauge("network.dispatch-queue-dropped", () -> NetworkListener.sumDispatching(NetworkListener::getDroppedPackets));
+    }
+
+    private static final Object SHARED_RESOURCES_LOCK = new Object();
+    private static SelectorLoop sharedEventLoop;
+    private static Executor sharedDispatchExecutor;
+
+    /**
+     * A received packet waiting to be dispatched. It holds a reference to its buffer until it is dispatched or dropped.
+     */
+    private static final class Packet {
+
+        private final SocketAddress remoteAddress;
+        private final PooledBuffer pooledBuffer;
+
+        /**
+         * @param remoteAddress The address the packet was received from.
+         * @param pooledBuffer The buffer holding the packet.
+         */
+        private Packet(final SocketAddress remoteAddress, final PooledBuffer pooledBuffer) {
+            this.remoteAddress = remoteAddress;
+            this.pooledBuffer = pooledBuffer;
+        }
+
+    }
+
+    /**
+     * Queues received packets, and dispatches them to the data listeners on an executor.
+     */
+    private final class Dispatcher {
+
+        private final Executor executor;
+        private final OverflowPolicy overflowPolicy;
+        private final RingBuffer<Packet> queue;
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+        /**
+         * @param executor The executor to dispatch on.
+         * @param capacity The maximum number of queued packets.
+         * @param overflowPolicy What to do with a packet when the queue is full.
+         */
+        private Dispatcher(final Executor executor, final int capacity, final OverflowPolicy overflowPolicy) {
+            this.executor = executor;
+            this.overflowPolicy = overflowPolicy;
+            this.queue = new RingBuffer<>(capacity);
+        }
+
+        /**
+         * Queues a packet, applying the overflow policy if the queue is full.
+         * @param remoteAddress The address the packet was received from.
+         * @param pooledBuffer The buffer holding the packet. The queue takes its own reference to the buffer.
+         */
+        private void enqueue(final SocketAddress remoteAddress, final PooledBuffer pooledBuffer) {
+            final Packet packet = new Packet(remoteAddress, pooledBuffer.retain());
+            while (!this.queue.offer(packet)) {
+                if (this.overflowPolicy == OverflowPolicy.DROP_NEWEST) {
+                    NetworkListener.this.onPacketDropped(packet);
+                    return;
+                }
+                if (this.overflowPolicy == OverflowPolicy.DROP_OLDEST) {
+                    final Packet oldest = this.queue.poll();
+                    if (oldest != null) {
+                        NetworkListener.this.onPacketDropped(oldest);
+                    }
+                } else {
+                    this.schedule();
+                    LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(50));
+                }
+            }
+            this.schedule();
+        }
+
+        /**
+         * Submits a dispatch task, unless one is already pending.
+         */
+        private void schedule() {
+            if (this.scheduled.compareAndSet(false, true)) {
+                try {
+                    this.executor.execute(this::dispatch);
+                } catch (RejectedExecutionException ex) {
+                    this.scheduled.set(false);
+                    this.dropQueuedPackets();
+                }
+            }
+        }
+
+        /**
+         * Dispatches a batch of queued packets to the data listeners,
+         * and submits another task if more packets were queued in the meantime.
+         */
+        private void dispatch() {
+            try {
+                Packet packet;
+                for (int i = 0; i < MAX_DISPATCH_BATCH && (packet = this.queue.poll()) != null; i++) {
+                    try {
+                        NetworkListener.this.notifyDataListenersSafely(packet.remoteAddress, packet.pooledBuffer);
+                    } finally {
+                        packet.pooledBuffer.release();
+                    }
+                }
+            } finally {
+                this.scheduled.set(false);
+            }
+            if (!this.queue.isEmpty()) {
+                this.schedule();
+            }
+        }
+
+        /**
+         * Drops every queued packet.
+         */
+        private void dropQueuedPackets() {
+            Packet packet;
+            while ((packet = this.queue.poll()) != null) {
+                NetworkListener.this.onPacketDropped(packet);
+            }
+        }
+
+    }
+
+    private final BufferPool bufferPool;
     private final CopyOnWriteArraySet<BiConsumer<SocketAddress, ByteBuffer>> dataListeners = new CopyOnWriteArraySet<>();
+    // A snapshot of the data listeners, which can be iterated without allocating an iterator for every packet.
+    private volatile BiConsumer<SocketAddress, ByteBuffer>[] dataListenerSnapshot = NetworkListener.snapshot(this.dataListeners);
     private final ThreadSignaller listenerThreadStartedSignaller = new ThreadSignaller();
     private final ThreadSignaller listenerThreadStoppedSignaller = new ThreadSignaller();
-    private final Object listenerThreadLock = new Object();
+    private final ReentrantLock listenerThreadLock = new ReentrantLock();
+    private ThreadFactory threadFactory = Threads.newThreadFactory("network-listener");
     private Thread listenerThread;
-    private boolean shouldBeListening = false;
+    private SelectorLoop eventLoop;
+    private volatile SelectionKey selectionKey;
+    private volatile boolean shouldBeListening = false;
+    private volatile Dispatcher dispatcher;
+    private final AtomicLong droppedPackets = new AtomicLong();
+
+    /**
+     * Creates a listener which receives data into buffers borrowed from a pool shared by all listeners.
+     */
+    protected NetworkListener() {
+        this(NetworkListener.SHARED_BUFFER_POOL);
+    }
+
+    /**
+     * Creates a listener which receives data into buffers borrowed from the given pool.
+     * @param bufferPool The pool of receive buffers.
+     */
+    protected NetworkListener(final BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
 
     /**
      * Prepares the networked data source for reading.
@@ -34,24 +251,132 @@ public abstract class NetworkListener {
      */
     protected abstract SocketAddress read(final ByteBuffer buffer) throws IOException;
 
+    /**
+     * Provides the channel to register with an event loop.
+     *
+     * <p>Listeners which run on an event loop read from a non-blocking channel, so {@link #read(ByteBuffer)}
+     * must return null, or leave the buffer empty, when no data is available.</p>
+     *
+     * @return The channel the listener reads from, or null if the listener can only read on its own thread.
+     */
+    protected SelectableChannel getSelectableChannel() {
+        return null;
+    }
+
+    /**
+     * @return An event loop shared by all listeners which do not need a loop of their own. It is created on first use.
+     * @throws UncheckedIOException Thrown if the loop's selector cannot be opened.
+     */
+    public static SelectorLoop sharedEventLoop() {
+        synchronized (NetworkListener.SHARED_RESOURCES_LOCK) {
+            if (NetworkListener.sharedEventLoop == null) {
+                try {
+                    NetworkListener.sharedEventLoop = new SelectorLoop("network-listener-loop");
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+                NetworkListener.sharedEventLoop.start();
+            }
+            return NetworkListener.sharedEventLoop;
+        }
+    }
+
+    /**
+     * Sets the event loop the listener reads on, instead of a thread of its own.
+     * This only takes effect the next time the listener starts listening.
+     *
+     * <p>Once the listener has been registered with a loop, its channel is in non-blocking mode,
+     * and the listener keeps reading on that loop.</p>
+     *
+     * @param eventLoop The event loop to read on, or null to read on a thread of the listener's own.
+     * @throws IllegalStateException Thrown if the listener's channel is already registered with an event loop.
+     */
+    public void setEventLoop(final SelectorLoop eventLoop) {
+        this.listenerThreadLock.lock();
+        try {
+            final SelectionKey key = this.selectionKey;
+            if (key != null && key.isValid()) {
+                throw new IllegalStateException("The listener is already registered with an event loop.");
+            }
+            this.eventLoop = eventLoop;
+        } finally {
+            this.listenerThreadLock.unlock();
+        }
+    }
+
+    /**
+     * Sets the factory of the thread the listener reads on, when it does not read on an event loop.
+     * This only takes effect the next time the listener starts listening.
+     * @param threadFactory The factory of listener threads.
+     * @see Threads#newThreadFactory(String)
+     */
+    public void setThreadFactory(final ThreadFactory threadFactory) {
+        if (threadFactory == null) {
+            throw new IllegalArgumentException("The thread factory must not be null.");
+        }
+        this.listenerThreadLock.lock();
+        try {
+            this.threadFactory = threadFactory;
+        } finally {
+            this.listenerThreadLock.unlock();
+        }
+    }
+
+    /**
+     * Reads all available data when the listener's channel is ready, on the event loop's thread.
+     */
+    private final SelectionHandler selectionHandler = new SelectionHandler() {
+        @Override
+        public void onSelected(final SelectionKey key) throws IOException {
+            for (int i = 0; i < MAX_READS_PER_EVENT && NetworkListener.this.shouldBeListening; i++) {
+                final PooledBuffer pooledBuffer = NetworkListener.this.bufferPool.acquire();
+                try {
+                    final ByteBuffer buffer = pooledBuffer.buffer();
+                    final SocketAddress remoteAddress = NetworkListener.this.read(buffer);
+                    if (remoteAddress == null || buffer.position() == 0) {
+                        return;
+                    }
+                    buffer.flip();
+                    NetworkListener.this.notifyDataListeners(remoteAddress, pooledBuffer);
+                } finally {
+                    pooledBuffer.release();
+                }
+            }
+        }
+
+        @Override
+        public void onClosed(final SelectionKey key) {
+            NetworkListener.this.shouldBeListening = false;
+            NetworkListener.this.selectionKey = null;
+            NetworkListener.this.listenerThreadStoppedSignaller.signal();
+        }
+    };
+
     /**
      * Receives data in a loop from the underlying ByteChannel.
+     *
+     * <p>Every read borrows a buffer from the listener's pool, and returns it once the listeners have been notified,
+     * so the loop does not allocate once the pool has warmed up.</p>
      */
     private void listen() {
         try {
-            final ByteBuffer buffer = ByteBuffer.allocateDirect(4096);
             this.prepare();
             this.listenerThreadStartedSignaller.signal();
             while (true) {
-                final SocketAddress remoteAddress = this.read(buffer);
-                buffer.flip();
-                if (!this.shouldBeListening) {
-                    break;
+                final PooledBuffer pooledBuffer = this.bufferPool.acquire();
+                try {
+                    final ByteBuffer buffer = pooledBuffer.buffer();
+                    final SocketAddress remoteAddress = this.read(buffer);
+                    buffer.flip();
+                    if (!this.shouldBeListening) {
+                        break;
+                    }
+                    // Ensures thread isn't interrupted (because we should be listening)
+                    Thread.interrupted();
+                    this.notifyDataListeners(remoteAddress, pooledBuffer);
+                } finally {
+                    pooledBuffer.release();
                 }
-                // Ensures thread isn't interrupted (because we should be listening)
-                Thread.interrupted();
-                this.notifyDataListeners(remoteAddress, Buffers.copy(buffer));
-                buffer.clear();
             }
         } catch (Exception ex) {
             // Silently ignore the exception, as the loop will exit if the connection drops.
@@ -61,11 +386,123 @@ public abstract class NetworkListener {
     }
 
     /**
-     * Notifies the listeners of incoming data.
-     * @param buffer The data buffer to send to all the listeners.
+     * Notifies the listeners of incoming data, or queues the data for the dispatch executor if there is one.
+     * @param remoteAddress The address the data was received from.
+     * @param pooledBuffer The buffer holding the received data.
+     */
+    private void notifyDataListeners(final SocketAddress remoteAddress, final PooledBuffer pooledBuffer) {
+        NetworkListener.PACKETS_RECEIVED.increment();
+        NetworkListener.BYTES_RECEIVED.add(pooledBuffer.buffer().remaining());
+        final Dispatcher dispatcher = this.dispatcher;
+        if (dispatcher != null) {
+            dispatcher.enqueue(remoteAddress, pooledBuffer);
+            return;
+        }
+        final long start = System.nanoTime();
+        for (final BiConsumer<SocketAddress, ByteBuffer> listener : this.dataListenerSnapshot) {
+            listener.accept(remoteAddress, pooledBuffer.readOnlyView());
+        }
+        NetworkListener.DISPATCH_LATENCY.recordSince(start);
+    }
+
+    /**
+     * Notifies the listeners of incoming data on the dispatch executor.
+     * Every listener is given the same read-only view of the data, reset to the start of the data.
+     * A listener which throws does not keep the others from being notified.
+     * @param remoteAddress The address the data was received from.
+     * @param pooledBuffer The buffer holding the received data.
+     */
+    private void notifyDataListenersSafely(final SocketAddress remoteAddress, final PooledBuffer pooledBuffer) {
+        final long start = System.nanoTime();
+        for (final BiConsumer<SocketAddress, ByteBuffer> listener : this.dataListenerSnapshot) {
+            try {
+                listener.accept(remoteAddress, pooledBuffer.readOnlyView());
+            } catch (RuntimeException ex) {
+                // Silently ignore the exception, as it must not stop the dispatch of other packets.
+            }
+        }
+        NetworkListener.DISPATCH_LATENCY.recordSince(start);
+    }
+
+    /**
+     * Releases a packet which will not be dispatched, and counts it as dropped.
+     * @param packet The dropped packet.
+     */
+    private void onPacketDropped(final Packet packet) {
+        packet.pooledBuffer.release();
+        this.droppedPackets.incrementAndGet();
+        NetworkListener.PACKETS_DROPPED.increment();
+    }
+
+    /**
+     * Notifies the data listeners on an executor instead of the receiving thread.
+     *
+     * <p>Received packets are queued in a lock-free ring, and dispatched to the data listeners in batches,
+     * in the order they were received. Queued packets keep their pooled buffers, so buffers remain valid
+     * until the listeners have been notified.</p>
+     *
+     * @param executor The executor to notify the data listeners on, or null to notify them on the receiving thread.
+     * @param capacity The maximum number of packets waiting to be dispatched.
+     * @param overflowPolicy What to do with a received packet when the queue is full.
+     * @see #sharedDispatchExecutor()
+     */
+    public void setDispatchExecutor(final Executor executor, final int capacity, final OverflowPolicy overflowPolicy) {
+        if (executor != null && overflowPolicy == null) {
+            throw new IllegalArgumentException("The overflow policy must not be null.");
+        }
+        this.dispatcher = executor == null ? null : new Dispatcher(executor, capacity, overflowPolicy);
+        if (executor == null) {
+            NetworkListener.DISPATCHING_LISTENERS.remove(this);
+        } else {
+            NetworkListener.DISPATCHING_LISTENERS.add(this);
+        }
+    }
+
+    /**
+     * Sums a value over the listeners which dispatch off the receiving thread.
+     * @param value Reads the value of a listener.
+     * @return The sum of the values of the dispatching listeners.
      */
-    private void notifyDataListeners(final SocketAddress remoteAddress, final ByteBuffer buffer) {
-        this.dataListeners.forEach(listener -> listener.accept(remoteAddress, buffer.asReadOnlyBuffer()));
+    private static long sumDispatching(final ToLongFunction<NetworkListener> value) {
+        synchronized (NetworkListener.DISPATCHING_LISTENERS) {
+            long sum = 0;
+            for (final NetworkListener listener : NetworkListener.DISPATCHING_LISTENERS) {
+                sum += value.applyAsLong(listener);
+            }
+            return sum;
+        }
+    }
+
+    /**
+     * @return An executor of daemon threads shared by all listeners which dispatch off the receiving thread.
+     * It is created on first use, and has one thread per processor.
+     */
+    public static Executor sharedDispatchExecutor() {
+        synchronized (NetworkListener.SHARED_RESOURCES_LOCK) {
+            if (NetworkListener.sharedDispatchExecutor == null) {
+                final int threads = Runtime.getRuntime().availableProcessors();
+                final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<>(), Threads.newDaemonThreadFactory("network-dispatch"));
+                executor.allowCoreThreadTimeOut(true);
+                NetworkListener.sharedDispatchExecutor = executor;
+            }
+            return NetworkListener.sharedDispatchExecutor;
+        }
+    }
+
+    /**
+     * @return The number of received packets dropped because the dispatch queue was full.
+     */
+    public long getDroppedPackets() {
+        return this.droppedPackets.get();
+    }
+
+    /**
+     * @return The number of received packets waiting to be dispatched to the data listeners.
+     */
+    public int getQueuedPackets() {
+        final Dispatcher dispatcher = this.dispatcher;
+        return dispatcher == null ? 0 : dispatcher.queue.size();
     }
 
     /**
@@ -73,8 +510,11 @@ public abstract class NetworkListener {
      */
     private void onListeningStopped() {
         this.listenerThreadStoppedSignaller.signal();
-        synchronized (this.listenerThreadLock) {
+        this.listenerThreadLock.lock();
+        try {
             this.listenerThread = null;
+        } finally {
+            this.listenerThreadLock.unlock();
         }
     }
 
@@ -90,12 +530,56 @@ public abstract class NetworkListener {
         if (this.isListening()) {
             return false;
         }
-        synchronized (this.listenerThreadLock) {
+        this.listenerThreadLock.lock();
+        try {
             this.shouldBeListening = true;
-            this.listenerThread = new Thread(this::listen);
+            if (this.eventLoop != null) {
+                return this.startListeningOnEventLoop(timeout);
+            }
+            this.listenerThread = this.threadFactory.newThread(this::listen);
             this.listenerThreadStartedSignaller.reset();
             this.listenerThread.start();
             return this.listenerThreadStartedSignaller.waitForTimeout(timeout);
+        } finally {
+            this.listenerThreadLock.unlock();
+        }
+    }
+
+    /**
+     * Registers the listener's channel with its event loop, or resumes reading from it if it is still registered
+     * since the listener was stopped.
+     * @param timeout The time (in milliseconds) to wait for the channel to be registered.
+     * @return If the channel was registered within the timeout.
+     * @throws InterruptedException Thrown if the current thread is interrupted while waiting for the registration.
+     */
+    private boolean startListeningOnEventLoop(final long timeout) throws InterruptedException {
+        try {
+            this.prepare();
+            final SelectableChannel channel = this.getSelectableChannel();
+            if (channel == null) {
+                throw new IllegalStateException("The listener's channel cannot be registered with an event loop.");
+            }
+            final SelectionKey key = this.selectionKey;
+            final CompletableFuture<SelectionKey> registration;
+            if (key != null && key.isValid() && key.channel() == channel) {
+                // The key is kept by stopListening(), so only its interest in reads has to be restored.
+                registration = new CompletableFuture<>();
+                this.eventLoop.execute(() -> {
+                    if (key.isValid()) {
+                        key.interestOps(SelectionKey.OP_READ);
+                        registration.complete(key);
+                    } else {
+                        registration.completeExceptionally(new IOException("The listener's channel was closed."));
+                    }
+                });
+            } else {
+                registration = this.eventLoop.register(channel, SelectionKey.OP_READ, this.selectionHandler);
+            }
+            this.selectionKey = registration.get(timeout, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (IOException | ExecutionException | TimeoutException ex) {
+            this.shouldBeListening = false;
+            return false;
         }
     }
 
@@ -103,9 +587,16 @@ public abstract class NetworkListener {
      * @return If the client is listening for incoming messages.
      */
     public boolean isListening() {
-        synchronized (this.listenerThreadLock) {
+        this.listenerThreadLock.lock();
+        try {
+            if (this.eventLoop != null) {
+                final SelectionKey key = this.selectionKey;
+                return key != null && key.isValid() && this.shouldBeListening;
+            }
             return this.listenerThread != null && this.listenerThread.isAlive() &&
                    !this.listenerThread.isInterrupted() && this.shouldBeListening;
+        } finally {
+            this.listenerThreadLock.unlock();
         }
     }
 
@@ -114,9 +605,23 @@ public abstract class NetworkListener {
      */
     public void stopListening() {
         if (this.isListening()) {
-            synchronized (this.listenerThreadLock) {
+            this.listenerThreadLock.lock();
+            try {
                 this.shouldBeListening = false;
-                this.listenerThread.interrupt();
+                if (this.eventLoop != null) {
+                    // The channel stays registered, so the listener can resume without registering again.
+                    final SelectionKey key = this.selectionKey;
+                    this.eventLoop.execute(() -> {
+                        if (key.isValid()) {
+                            key.interestOps(0);
+                        }
+                        this.listenerThreadStoppedSignaller.signal();
+                    });
+                } else {
+                    this.listenerThread.interrupt();
+                }
+            } finally {
+                this.listenerThreadLock.unlock();
             }
         }
     }
@@ -134,11 +639,19 @@ public abstract class NetworkListener {
 
     /**
      * Adds a listener to the client, which is notified when data is received.
+     *
+     * <p>The buffer passed to the listener is borrowed from a pool, and is only valid until the listener returns.
+     * Listeners which need the data afterwards must copy it, e.g. with {@link tech.avahe.filetransfer.util.Buffers#copy(ByteBuffer)}.</p>
+     *
      * @param listener The listener to add.
      * @return If the listener was added successfully.
      */
     public boolean addDataListener(final BiConsumer<SocketAddress, ByteBuffer> listener) {
-        return this.dataListeners.add(listener);
+        synchronized (this.dataListeners) {
+            final boolean added = this.dataListeners.add(listener);
+            this.dataListenerSnapshot = NetworkListener.snapshot(this.dataListeners);
+            return added;
+        }
     }
 
     /**
@@ -156,7 +669,21 @@ public abstract class NetworkListener {
      * @return If the listener was removed successfully.
      */
     public boolean removeDataListener(final BiConsumer<SocketAddress, ByteBuffer> listener) {
-        return this.dataListeners.remove(listener);
+        synchronized (this.dataListeners) {
+            final boolean removed = this.dataListeners.remove(listener);
+            this.dataListenerSnapshot = NetworkListener.snapshot(this.dataListeners);
+            return removed;
+        }
+    }
+
+    /**
+     * Copies the data listeners into an array.
+     * @param dataListeners The data listeners to copy.
+     * @return An array of the data listeners.
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static BiConsumer<SocketAddress, ByteBuffer>[] snapshot(final CopyOnWriteArraySet<BiConsumer<SocketAddress, ByteBuffer>> dataListeners) {
+        return dataListeners.toArray(new BiConsumer[0]);
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,25 @@
+package tech.avahe.filetransfer.net;
+
+/**
+ * What a receive loop does with received data when the queue of data waiting to be dispatched to listeners is full.
+ *
+ * @author Avahe
+ */
+public enum OverflowPolicy {
+
+    /**
+     * Drops the data just received, keeping the data already queued.
+     */
+    DROP_NEWEST,
+
+    /**
+     * Drops the oldest queued data to make room for the data just received.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Waits for the listeners to make room, which stalls the receive loop. No data is dropped.
+     */
+    BLOCK
+
+}
@@ -0,0 +1,125 @@
+package tech.avahe.filetransfer.net;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A token bucket which limits the rate at which bytes are sent, shared by any number of threads.
+ *
+ * <p>The bucket is kept as the time at which it will be full again, which is advanced atomically by every
+ * acquisition, so acquiring never locks. A bucket holds {@link #BURST_NANOS} worth of bytes, so a sender
+ * which was idle may send a short burst before it is slowed down to the rate.</p>
+ *
+ * <p>A limiter may have a parent, such as a limit for a single peer below a global limit.
+ * Bytes acquired from a limiter are also acquired from all of its ancestors,
+ * and the caller waits until every one of them allows the bytes to be sent.</p>
+ *
+ * @author Avahe
+ */
+public class RateLimiter {
+
+    /**
+     * The rate of a limiter which does not limit.
+     */
+    public static final long UNLIMITED = 0;
+
+    /**
+     * The time it takes to send the bytes a full bucket holds, at the limiter's rate.
+     */
+    private static final long BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final RateLimiter parent;
+    private final AtomicLong fullTime = new AtomicLong(System.nanoTime());
+    private volatile long bytesPerSecond;
+
+    /**
+     * Creates a limiter without a parent.
+     * @param bytesPerSecond The maximum rate, in bytes per second, or {@link #UNLIMITED}.
+     */
+    public RateLimiter(final long bytesPerSecond) {
+        this(bytesPerSecond, null);
+    }
+
+    /**
+     * Creates a limiter whose bytes also count against a parent limiter.
+     * @param bytesPerSecond The maximum rate, in bytes per second, or {@link #UNLIMITED}.
+     * @param parent The parent limiter, or null.
+     */
+    public RateLimiter(final long bytesPerSecond, final RateLimiter parent) {
+        this.setRate(bytesPerSecond);
+        this.parent = parent;
+    }
+
+    /**
+     * Sets the maximum rate of the limiter. The new rate applies to bytes acquired after it has been set.
+     * @param bytesPerSecond The maximum rate, in bytes per second, or {@link #UNLIMITED}.
+     */
+    public void setRate(final long bytesPerSecond) {
+        if (bytesPerSecond < 0) {
+            throw new IllegalArgumentException("The rate must not be negative.");
+        }
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * @return The maximum rate of the limiter, in bytes per second, or {@link #UNLIMITED}.
+     */
+    public long getRate() {
+        return this.bytesPerSecond;
+    }
+
+    /**
+     * @return The parent limiter, or null.
+     */
+    public RateLimiter getParent() {
+        return this.parent;
+    }
+
+    /**
+     * Acquires bytes from the limiter and all of its ancestors, waiting until they may be sent.
+     * @param bytes The number of bytes to send.
+     * @throws InterruptedIOException Thrown if the thread is interrupted while waiting.
+     */
+    public void acquire(final long bytes) throws InterruptedIOException {
+        final long now = System.nanoTime();
+        long waitNanos = 0;
+        for (RateLimiter limiter = this; limiter != null; limiter = limiter.parent) {
+            waitNanos = Math.max(waitNanos, limiter.reserve(bytes, now));
+        }
+        if (waitNanos <= 0) {
+            return;
+        }
+        final long deadline = now + waitNanos;
+        for (long remaining = waitNanos; remaining > 0; remaining = deadline - System.nanoTime()) {
+            LockSupport.parkNanos(this, remaining);
+            if (Thread.interrupted()) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the rate limit.");
+            }
+        }
+    }
+
+    /**
+     * Takes bytes from this limiter's bucket, borrowing against the future if the bucket does not hold enough.
+     * @param bytes The number of bytes to take.
+     * @param now The current time, in nanoseconds.
+     * @return The time to wait until the bytes may be sent, in nanoseconds.
+     */
+    private long reserve(final long bytes, final long now) {
+        final long bytesPerSecond = this.bytesPerSecond;
+        if (bytesPerSecond == UNLIMITED) {
+            return 0;
+        }
+        final long costNanos = (long) (bytes * 1e9 / bytesPerSecond);
+        while (true) {
+            final long fullTime = this.fullTime.get();
+            final long nextFullTime = Math.max(fullTime, now) + costNanos;
+            if (this.fullTime.compareAndSet(fullTime, nextFullTime)) {
+                return nextFullTime - BURST_NANOS - now;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,27 @@
+package tech.avahe.filetransfer.net;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+
+/**
+ * Handles readiness events of a channel registered with a {@link SelectorLoop}.
+ * @author Avahe
+ */
+public interface SelectionHandler {
+
+    /**
+     * Called on the loop's thread when the channel is ready for one or more of its interest operations.
+     * @param key The selection key of the channel, with its ready set updated.
+     * @throws IOException Thrown if the channel fails; the loop will then close the channel.
+     */
+    void onSelected(final SelectionKey key) throws IOException;
+
+    /**
+     * Called on the loop's thread once the loop has closed the channel,
+     * either because {@link #onSelected(SelectionKey)} threw an exception or because the loop was closed.
+     * @param key The cancelled selection key of the channel.
+     */
+    default void onClosed(final SelectionKey key) {
+    }
+
+}
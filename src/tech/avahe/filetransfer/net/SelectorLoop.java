@@ -0,0 +1,245 @@
+package tech.avahe.filetransfer.net;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A single thread which multiplexes the readiness events of many channels through one <code>Selector</code>.
+ *
+ * <p>Channels are registered with a {@link SelectionHandler}, which is invoked on the loop's thread
+ * whenever the channel is ready. Handlers must not block, as every channel of the loop shares its thread.</p>
+ *
+ * @author Avahe
+ */
+public class SelectorLoop {
+
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Object loopThreadLock = new Object();
+    private final ThreadFactory threadFactory;
+    private Thread loopThread;
+    private volatile boolean running = false;
+
+    /**
+     * Creates a new loop. The loop does not run until {@link #start()} is called.
+     * @param name The name of the loop's thread.
+     * @throws IOException Thrown if the selector cannot be opened.
+     */
+    public SelectorLoop(final String name) throws IOException {
+        this(task -> new Thread(task, name));
+    }
+
+    /**
+     * Creates a new loop. The loop does not run until {@link #start()} is called.
+     *
+     * <p>The loop blocks its thread in {@link Selector#select()}, so a platform thread is usually the better fit,
+     * even when the rest of the program runs on virtual threads.</p>
+     *
+     * @param threadFactory The factory of the loop's thread.
+     * @throws IOException Thrown if the selector cannot be opened.
+     */
+    public SelectorLoop(final ThreadFactory threadFactory) throws IOException {
+        this.threadFactory = threadFactory;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Starts the loop's thread.
+     * @return If the loop was not already running.
+     */
+    public boolean start() {
+        synchronized (this.loopThreadLock) {
+            if (this.running || !this.selector.isOpen()) {
+                return false;
+            }
+            this.running = true;
+            this.loopThread = this.threadFactory.newThread(this::loop);
+            this.loopThread.setDaemon(true);
+            this.loopThread.start();
+            return true;
+        }
+    }
+
+    /**
+     * @return If the loop is running.
+     */
+    public boolean isRunning() {
+        return this.running;
+    }
+
+    /**
+     * @return If the current thread is the loop's thread.
+     */
+    public boolean inLoop() {
+        return Thread.currentThread() == this.loopThread;
+    }
+
+    /**
+     * Runs a task on the loop's thread.
+     * @param task The task to run.
+     */
+    public void execute(final Runnable task) {
+        this.tasks.add(task);
+        this.selector.wakeup();
+    }
+
+    /**
+     * Registers a channel with the loop. The channel is switched to non-blocking mode.
+     * If the channel is already registered with the loop, its interest set and handler are replaced.
+     *
+     * <p>Registration happens on the loop's thread; if the channel cannot be registered it is closed.
+     * Once registered, the channel should only be closed from the loop's thread, so its handler is notified.</p>
+     *
+     * @param channel The channel to register.
+     * @param interestOps The initial interest set of the channel.
+     * @param handler The handler of the channel's readiness events.
+     * @return A future which completes with the channel's selection key once it has been registered.
+     */
+    public CompletableFuture<SelectionKey> register(final SelectableChannel channel, final int interestOps, final SelectionHandler handler) {
+        final CompletableFuture<SelectionKey> registration = new CompletableFuture<>();
+        this.execute(() -> {
+            try {
+                channel.configureBlocking(false);
+                registration.complete(channel.register(this.selector, interestOps, handler));
+            } catch (IOException | RuntimeException ex) {
+                SelectorLoop.closeQuietly(channel);
+                registration.completeExceptionally(ex);
+            }
+        });
+        return registration;
+    }
+
+    /**
+     * Replaces the interest set of a registered channel.
+     * The change happens on the loop's thread, and is ignored if the channel is not registered with the loop.
+     * @param channel The registered channel.
+     * @param interestOps The new interest set of the channel.
+     */
+    public void setInterestOps(final SelectableChannel channel, final int interestOps) {
+        this.execute(() -> {
+            final SelectionKey key = channel.keyFor(this.selector);
+            if (key != null && key.isValid()) {
+                key.interestOps(interestOps);
+            }
+        });
+    }
+
+    /**
+     * Selects ready channels and runs queued tasks until the loop is closed.
+     */
+    private void loop() {
+        try {
+            while (this.running) {
+                this.selector.select();
+                this.runTasks();
+                final Iterator<SelectionKey> iterator = this.selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    final SelectionKey key = iterator.next();
+                    iterator.remove();
+                    this.dispatch(key);
+                }
+            }
+        } catch (IOException | ClosedSelectorException ex) {
+            // Silently ignore the exception, as the loop exits when the selector is closed.
+        } finally {
+            this.running = false;
+            this.runTasks();
+            for (final SelectionKey key : this.selector.keys()) {
+                this.closeKey(key);
+            }
+            try {
+                this.selector.close();
+            } catch (IOException ex) {
+                // Silently ignore issues closing the selector.
+            }
+        }
+    }
+
+    /**
+     * Invokes the handler of a ready key, closing its channel if the handler fails.
+     * @param key The ready key.
+     */
+    private void dispatch(final SelectionKey key) {
+        if (!key.isValid()) {
+            this.closeKey(key);
+            return;
+        }
+        final SelectionHandler handler = (SelectionHandler) key.attachment();
+        try {
+            handler.onSelected(key);
+        } catch (IOException | RuntimeException ex) {
+            this.closeKey(key);
+            return;
+        }
+        // The handler closed its own channel.
+        if (!key.channel().isOpen()) {
+            key.cancel();
+            handler.onClosed(key);
+        }
+    }
+
+    /**
+     * Runs all queued tasks. A task which fails does not stop the others, nor the loop.
+     */
+    private void runTasks() {
+        Runnable task;
+        while ((task = this.tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException ex) {
+                // Silently ignore the failure, as it must not close the other channels of the loop.
+            }
+        }
+    }
+
+    /**
+     * Cancels a key, closes its channel and notifies its handler.
+     * @param key The key to close.
+     */
+    private void closeKey(final SelectionKey key) {
+        final boolean wasOpen = key.channel().isOpen();
+        key.cancel();
+        SelectorLoop.closeQuietly(key.channel());
+        if (wasOpen) {
+            ((SelectionHandler) key.attachment()).onClosed(key);
+        }
+    }
+
+    /**
+     * Stops the loop, closing every channel registered with it.
+     */
+    public void close() {
+        synchronized (this.loopThreadLock) {
+            if (this.running) {
+                this.running = false;
+                this.selector.wakeup();
+            } else {
+                try {
+                    this.selector.close();
+                } catch (IOException ex) {
+                    // Silently ignore issues closing the selector.
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes a channel, ignoring any exception.
+     * @param channel The channel to close.
+     */
+    private static void closeQuietly(final SelectableChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            // Silently ignore issues closing the channel.
+        }
+    }
+
+}
@@ -1,21 +1,82 @@
 package tech.avahe.filetransfer.net;
 
+import tech.avahe.filetransfer.metrics.Counter;
+import tech.avahe.filetransfer.metrics.Histogram;
+import tech.avahe.filetransfer.metrics.Metrics;
 import tech.avahe.filetransfer.net.peerdiscovery.PeerInfo;
 
+import java.io.EOFException;
 import java.io.IOException;
-import java.net.Socket;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectableChannel;
 import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
 import java.util.function.BiConsumer;
+import java.util.zip.Checksum;
 
 /**
  * @author Avahe
  */
 public class TCPClient {
 
-    private Socket socket;
+    /**
+     * The largest number of bytes written at once while the client is rate limited,
+     * so the bytes are spread evenly over time instead of being sent in bursts of whole buffers.
+     */
+    private static final int RATE_LIMITED_SLICE = 64 * 1024;
+
+    private static final Counter BYTES_SENT = Metrics.counter("tcp.client.bytes-sent");
+    private static final Histogram SEND_LATENCY = Metrics.histogram("tcp.client.send-nanos");
+
+    private volatile SocketChannel channel;
     private NetworkListener networkListener;
+    private volatile RateLimiter rateLimiter;
+    // Bytes already acquired from the rate limiter by reserve(long), which are only used by the sending thread.
+    private long reservedBytes;
+
+    /**
+     * Limits the rate at which the client sends data. This applies to all send methods.
+     * @param rateLimiter The limiter to acquire every byte sent from, or null to send without a limit.
+     */
+    public void setRateLimiter(final RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    /**
+     * @return The limiter every byte sent is acquired from, or null if the client sends without a limit.
+     */
+    public RateLimiter getRateLimiter() {
+        return this.rateLimiter;
+    }
+
+    /**
+     * Acquires bytes from the rate limiter ahead of sending them, so the wait for the limit happens now
+     * rather than in the middle of a send. Bytes sent afterwards are taken from the reserve before the limiter.
+     *
+     * <p>Only the bytes the reserve is short of are acquired, so bytes reserved but never sent, e.g. because a chunk
+     * compressed well, count towards the next reservation instead of being paid for twice. They are acquired in
+     * slices, like the bytes of a send, so senders which reserve at the same time share the rate evenly rather than
+     * queueing behind each other's whole reservations. The reserve must only be used by the thread which sends.</p>
+     *
+     * @param bytes The number of bytes the reserve should hold.
+     * @throws InterruptedIOException Thrown if the thread is interrupted while waiting.
+     */
+    public void reserve(final long bytes) throws InterruptedIOException {
+        final RateLimiter rateLimiter = this.rateLimiter;
+        if (rateLimiter == null) {
+            return;
+        }
+        while (this.reservedBytes < bytes) {
+            final long slice = Math.min(bytes - this.reservedBytes, RATE_LIMITED_SLICE);
+            rateLimiter.acquire(slice);
+            this.reservedBytes += slice;
+        }
+    }
 
     /**
      * Attempts to send a message to the host.
@@ -32,10 +93,156 @@ public class TCPClient {
      * @throws IOException Thrown if there is no connection.
      */
     public void send(final ByteBuffer buffer) throws IOException {
-        if (!this.isClosed()) {
+        if (this.isClosed()) {
             throw new IOException("Client is not connected.");
         }
-        this.socket.getChannel().write(buffer);
+        final long start = System.nanoTime();
+        final int bytes = buffer.remaining();
+        this.write(buffer);
+        TCPClient.recordSend(bytes, start);
+    }
+
+    /**
+     * Sends a region of a file to the connected server.
+     *
+     * <p>The data is transferred with {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)},
+     * which lets the operating system move the bytes directly from the file to the socket (e.g. sendfile on Linux)
+     * without copying them into the Java heap. Partial transfers are continued until the whole region is sent.</p>
+     *
+     * @param fileChannel The channel of the file to send.
+     * @param position The position within the file at which the region starts.
+     * @param count The number of bytes to send.
+     * @throws IOException Thrown if there is no connection, or if the file ends before the region was sent.
+     */
+    public void send(final FileChannel fileChannel, final long position, final long count) throws IOException {
+        if (this.isClosed()) {
+            throw new IOException("Client is not connected.");
+        }
+        final long start = System.nanoTime();
+        final RateLimiter rateLimiter = this.rateLimiter;
+        final long sliceSize = rateLimiter == null ? Long.MAX_VALUE : RATE_LIMITED_SLICE;
+        long transferred = 0;
+        while (transferred < count) {
+            final long sent = fileChannel.transferTo(position + transferred, Math.min(sliceSize, count - transferred), this.channel);
+            if (sent <= 0 && position + transferred >= fileChannel.size()) {
+                throw new EOFException("File ended before " + count + " bytes were sent.");
+            }
+            transferred += sent;
+            if (rateLimiter != null) {
+                // The number of bytes transferTo sends is only known afterwards, so they are paid for once sent.
+                this.acquire(rateLimiter, sent);
+            }
+        }
+        TCPClient.recordSend(count, start);
+    }
+
+    /**
+     * Sends a region of a file to the connected server through a buffer, updating a checksum with every byte sent.
+     *
+     * <p>Each slice of the region is read into the buffer once, added to the checksum and written to the socket,
+     * so the checksum is computed in the same pass that feeds the socket and the file is never read twice.
+     * A direct buffer avoids the temporary copy the channels would otherwise make, but the bytes are still copied
+     * into user space, so this is only meant for bytes which pass through a buffer anyway, e.g. when compression
+     * is abandoned for a chunk. Otherwise {@link #send(FileChannel, long, long)} is cheaper.</p>
+     *
+     * @param fileChannel The channel of the file to send.
+     * @param position The position within the file at which the region starts.
+     * @param count The number of bytes to send.
+     * @param checksum The checksum to update with the bytes of the region.
+     * @param buffer The buffer to send the region through. Its contents are overwritten.
+     * @throws IOException Thrown if there is no connection, or if the file ends before the region was sent.
+     */
+    public void send(final FileChannel fileChannel, final long position, final long count, final Checksum checksum,
+                     final ByteBuffer buffer) throws IOException {
+        if (this.isClosed()) {
+            throw new IOException("Client is not connected.");
+        }
+        final long start = System.nanoTime();
+        long transferred = 0;
+        while (transferred < count) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), count - transferred));
+            while (buffer.hasRemaining()) {
+                if (fileChannel.read(buffer, position + transferred + buffer.position()) < 0) {
+                    throw new EOFException("File ended before " + count + " bytes were sent.");
+                }
+            }
+            buffer.flip();
+            checksum.update(buffer);
+            buffer.rewind();
+            transferred += buffer.remaining();
+            this.write(buffer);
+        }
+        TCPClient.recordSend(count, start);
+    }
+
+    /**
+     * Records a completed send in the client metrics.
+     * @param bytes The number of bytes sent.
+     * @param startNanos The time the send started, from {@link System#nanoTime()}.
+     */
+    private static void recordSend(final long bytes, final long startNanos) {
+        TCPClient.SEND_LATENCY.recordSince(startNanos);
+        TCPClient.BYTES_SENT.add(bytes);
+    }
+
+    /**
+     * Writes the remaining bytes of a buffer to the channel, acquiring them from the rate limiter if there is one.
+     * @param buffer The buffer to write.
+     * @throws IOException Thrown if the channel cannot be written to, or if the thread is interrupted while waiting.
+     */
+    private void write(final ByteBuffer buffer) throws IOException {
+        final RateLimiter rateLimiter = this.rateLimiter;
+        if (rateLimiter == null) {
+            while (buffer.hasRemaining()) {
+                this.channel.write(buffer);
+            }
+            return;
+        }
+        final int limit = buffer.limit();
+        while (buffer.hasRemaining()) {
+            final int slice = Math.min(buffer.remaining(), RATE_LIMITED_SLICE);
+            this.acquire(rateLimiter, slice);
+            buffer.limit(buffer.position() + slice);
+            while (buffer.hasRemaining()) {
+                this.channel.write(buffer);
+            }
+            buffer.limit(limit);
+        }
+    }
+
+    /**
+     * Acquires bytes about to be sent, taking them from the reserve first and from the rate limiter otherwise.
+     * @param rateLimiter The rate limiter of the client.
+     * @param bytes The number of bytes about to be sent.
+     * @throws InterruptedIOException Thrown if the thread is interrupted while waiting.
+     */
+    private void acquire(final RateLimiter rateLimiter, final long bytes) throws InterruptedIOException {
+        final long reserved = Math.min(bytes, this.reservedBytes);
+        this.reservedBytes -= reserved;
+        if (bytes > reserved) {
+            rateLimiter.acquire(bytes - reserved);
+        }
+    }
+
+    /**
+     * Reads from the connected server until the buffer is full, and flips the buffer.
+     *
+     * <p>This must not be used while the client is listening for incoming data.</p>
+     *
+     * @param buffer The buffer to fill.
+     * @throws IOException Thrown if there is no connection, or if the connection ends before the buffer is filled.
+     */
+    public void read(final ByteBuffer buffer) throws IOException {
+        if (this.isClosed()) {
+            throw new IOException("Client is not connected.");
+        }
+        while (buffer.hasRemaining()) {
+            if (this.channel.read(buffer) < 0) {
+                throw new EOFException("Connection closed by the host.");
+            }
+        }
+        buffer.flip();
     }
 
     /**
@@ -46,25 +253,29 @@ public class TCPClient {
      * a preexisting connection, or if the host being connected to rejects the connection.
      */
     public void connect(final PeerInfo peerInfo) throws IOException {
-        this.socket = new Socket(peerInfo.ipAddress, peerInfo.port);
-        // TODO Channel is probably null because you need to use SocketChannel.open instead of Socket()
-        final SocketChannel channel = this.socket.getChannel();
+        final SocketChannel channel = SocketChannel.open(new InetSocketAddress(peerInfo.ipAddress, peerInfo.port));
+        this.channel = channel;
         this.networkListener = new NetworkListener() {
             protected void prepare() throws IOException {
                 // TODO
             }
             protected SocketAddress read(ByteBuffer buffer) throws IOException {
-                channel.read(buffer);
+                if (channel.read(buffer) < 0) {
+                    throw new EOFException("Connection closed by the host.");
+                }
                 return channel.getRemoteAddress();
             }
+            protected SelectableChannel getSelectableChannel() {
+                return channel;
+            }
         };
     }
 
     /**
-     * @return If the client is connected.
+     * @return If the client is not connected.
      */
     public boolean isClosed() {
-        return this.socket != null && this.socket.isClosed();
+        return this.channel == null || !this.channel.isOpen();
     }
 
     /**
@@ -72,13 +283,52 @@ public class TCPClient {
      * @throws IOException Thrown if the client is busy when closed.
      */
     public void close() throws IOException {
-        if (this.socket != null) {
-            this.socket.close();
+        if (this.channel != null) {
+            this.channel.close();
         }
     }
 
     //region NetworkListener Delegation
 
+    /**
+     * Sets the event loop the client listens on, instead of a thread of its own.
+     * Once the client has listened on the loop, its channel is in non-blocking mode,
+     * so {@link #read(ByteBuffer)} must no longer be used.
+     * @param eventLoop The event loop to listen on, or null to listen on a thread of the client's own.
+     * @see NetworkListener#setEventLoop(SelectorLoop)
+     * @see NetworkListener#sharedEventLoop()
+     */
+    public void setEventLoop(final SelectorLoop eventLoop) {
+        this.networkListener.setEventLoop(eventLoop);
+    }
+
+    /**
+     * Sets the factory of the thread the client listens on, when it does not listen on an event loop.
+     * @param threadFactory The factory of listener threads.
+     * @see NetworkListener#setThreadFactory(ThreadFactory)
+     */
+    public void setThreadFactory(final ThreadFactory threadFactory) {
+        this.networkListener.setThreadFactory(threadFactory);
+    }
+
+    /**
+     * Notifies the data listeners on an executor instead of the receiving thread.
+     * @param executor The executor to notify the data listeners on, or null to notify them on the receiving thread.
+     * @param capacity The maximum number of packets waiting to be dispatched.
+     * @param overflowPolicy What to do with a received packet when the queue is full.
+     * @see NetworkListener#setDispatchExecutor(Executor, int, OverflowPolicy)
+     */
+    public void setDispatchExecutor(final Executor executor, final int capacity, final OverflowPolicy overflowPolicy) {
+        this.networkListener.setDispatchExecutor(executor, capacity, overflowPolicy);
+    }
+
+    /**
+     * @return The number of received packets dropped because the dispatch queue was full.
+     */
+    public long getDroppedPackets() {
+        return this.networkListener.getDroppedPackets();
+    }
+
     /**
      * Tells the client to start listening for incoming packets.
      * @param timeout The time (in milliseconds) to wait for the client to start listening for messages.
@@ -1,21 +1,50 @@
 package tech.avahe.filetransfer.net;
 
+import tech.avahe.filetransfer.metrics.Counter;
+import tech.avahe.filetransfer.metrics.Histogram;
+import tech.avahe.filetransfer.metrics.Metrics;
+
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.HashSet;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * A non-blocking server which multiplexes all of its connections over a small, fixed number of threads.
+ *
+ * <p>One {@link SelectorLoop} accepts incoming connections, which are then spread over the server's I/O loops.
+ * If a {@link ConnectionHandler.Factory} is set, every accepted connection is read and written by its own
+ * {@link ConnectionHandler} on one of those loops, so hundreds of peers do not need hundreds of threads.</p>
+ */
 public class TCPServer {
 
-    private ServerSocket serverSocket;
-    private Thread connectionAccepterThread;
+    /**
+     * The default number of threads which serve accepted connections.
+     */
+    public static final int DEFAULT_IO_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+
+    private static final Counter CONNECTIONS_ACCEPTED = Metrics.counter("tcp.server.connections-accepted");
+    private static final Histogram ACCEPT_LATENCY = Metrics.histogram("tcp.server.accept-nanos");
+
+    private final ServerSocketChannel serverChannel;
+    private final SelectorLoop acceptLoop;
+    private final SelectorLoop[] ioLoops;
+    private final AtomicInteger nextIoLoop = new AtomicInteger();
     private final Object connectionAccepterLock = new Object();
-    private boolean isAcceptingConnections = false;
-    private final HashSet<Socket> connectedClients = new HashSet<>();
+    private volatile boolean isAcceptingConnections = false;
+    private final Set<Socket> connectedClients = ConcurrentHashMap.newKeySet();
 
     private final CopyOnWriteArraySet<ConnectionListener> connectionListeners = new CopyOnWriteArraySet<>();
+    private volatile ConnectionHandler.Factory connectionHandlerFactory;
 
     /**
      * Creates a new server which accepts incoming connections.
@@ -25,7 +54,47 @@ public class TCPServer {
      * @throws IOException Thrown if there is an error opening a socket on the given port.
      */
     public TCPServer(final int listeningPort) throws IOException {
-        this.serverSocket = new ServerSocket(listeningPort);
+        this(listeningPort, DEFAULT_IO_THREADS);
+    }
+
+    /**
+     * Creates a new server which accepts incoming connections.
+     * Once this server has been closed, it may not be reopened.
+     *
+     * @param listeningPort The port on which the server will be listening for incoming connections.
+     * @param ioThreads The number of threads which serve accepted connections.
+     * @throws IOException Thrown if there is an error opening a socket on the given port.
+     */
+    public TCPServer(final int listeningPort, final int ioThreads) throws IOException {
+        if (ioThreads < 1) {
+            throw new IllegalArgumentException("The server needs at least one I/O thread.");
+        }
+        this.serverChannel = ServerSocketChannel.open().bind(new InetSocketAddress(listeningPort));
+        this.acceptLoop = new SelectorLoop("tcp-server-accept-" + listeningPort);
+        this.ioLoops = new SelectorLoop[ioThreads];
+        try {
+            for (int i = 0; i < ioThreads; i++) {
+                this.ioLoops[i] = new SelectorLoop("tcp-server-io-" + listeningPort + "-" + i);
+                this.ioLoops[i].start();
+            }
+        } catch (IOException ex) {
+            this.close();
+            throw ex;
+        }
+        this.acceptLoop.start();
+        this.acceptLoop.register(this.serverChannel, 0, this::accept);
+    }
+
+    /**
+     * Sets the factory which creates a handler for every accepted connection.
+     *
+     * <p>If no factory is set, accepted connections are left in blocking mode
+     * and are only passed on to the <code>ConnectionListeners</code>.</p>
+     *
+     * @param factory The factory of connection handlers, or null to stop handling new connections.
+     */
+    public void setConnectionHandlerFactory(final ConnectionHandler.Factory factory) {
+        this.connectionHandlerFactory = factory;
     }
 
     /**
@@ -33,41 +102,93 @@ public class TCPServer {
      * @return If the client was not already accepting incoming connections.
      */
     public boolean acceptIncomingConnections() {
-        if (this.isAcceptingIncomingConnections()) {
-            return false;
-        }
-
         synchronized (this.connectionAccepterLock) {
-            this.connectionAccepterThread = new Thread(this::incomingConnectionAccepter);
-            this.connectionAccepterThread.start();
+            if (this.isAcceptingIncomingConnections()) {
+                return false;
+            }
             this.isAcceptingConnections = true;
+            this.acceptLoop.setInterestOps(this.serverChannel, SelectionKey.OP_ACCEPT);
         }
         return true;
     }
 
     /**
-     * Accept incoming client connections.
+     * Accepts all pending client connections.
+     * @param key The selection key of the server channel.
+     * @throws ClosedChannelException Thrown if the server has been closed.
+     */
+    private void accept(final SelectionKey key) throws ClosedChannelException {
+        while (this.isAcceptingConnections) {
+            final long start = System.nanoTime();
+            final SocketChannel channel;
+            try {
+                channel = this.serverChannel.accept();
+            } catch (ClosedChannelException ex) {
+                throw ex;
+            } catch (IOException ex) {
+                // Silently ignore the exception, as the connection will be retried by the peer.
+                return;
+            }
+            if (channel == null) {
+                return;
+            }
+            this.onConnectionAccepted(channel);
+            TCPServer.CONNECTIONS_ACCEPTED.increment();
+            TCPServer.ACCEPT_LATENCY.recordSince(start);
+        }
+    }
+
+    /**
+     * Registers a newly accepted connection with one of the I/O loops, and notifies the connection listeners.
+     * @param channel The channel of the accepted connection.
      */
-    private void incomingConnectionAccepter() {
+    private void onConnectionAccepted(final SocketChannel channel) {
+        final Socket socket = channel.socket();
+        final ConnectionHandler.Factory factory = this.connectionHandlerFactory;
+        if (factory == null) {
+            this.connectedClients.add(socket);
+            this.notifyConnectionListeners(socket);
+            return;
+        }
+
+        final ConnectionHandler handler;
         try {
-            do {
-                synchronized (this.connectionAccepterLock) {
-                    if (this.isAcceptingConnections && this.connectionAccepterThread.isInterrupted()) {
-                        Thread.interrupted();
-                    }
-                }
-                if (this.isAcceptingConnections) {
-                    final Socket socket = this.serverSocket.accept();
-                    this.connectedClients.add(socket);
-                    this.notifyConnectionListeners(socket);
-                }
-            } while (this.isAcceptingConnections);
+            channel.configureBlocking(false);
+            handler = factory.create(channel);
         } catch (IOException ex) {
-            // Silently ignore the exception, as the loop will exit if the connection drops.
-        } finally {
-            this.connectionAccepterThread = null;
-            this.isAcceptingConnections = false;
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // Silently ignore issues closing the rejected connection.
+            }
+            return;
         }
+        this.connectedClients.add(socket);
+        this.notifyConnectionListeners(socket);
+        this.nextIoLoop().register(channel, SelectionKey.OP_READ, new SelectionHandler() {
+            @Override
+            public void onSelected(final SelectionKey key) throws IOException {
+                if (key.isReadable()) {
+                    handler.onReadable(key);
+                }
+                if (key.isValid() && key.isWritable()) {
+                    handler.onWritable(key);
+                }
+            }
+
+            @Override
+            public void onClosed(final SelectionKey key) {
+                TCPServer.this.connectedClients.remove(socket);
+                handler.onClosed(channel);
+            }
+        });
+    }
+
+    /**
+     * @return The I/O loop to serve the next connection.
+     */
+    private SelectorLoop nextIoLoop() {
+        return this.ioLoops[Math.floorMod(this.nextIoLoop.getAndIncrement(), this.ioLoops.length)];
     }
 
     /**
@@ -82,27 +203,20 @@ public class TCPServer {
      * @return If the server is currently accepting incoming connections.
      */
     public boolean isAcceptingIncomingConnections() {
-        if (this.isClosed()) {
-            return false;
-        }
-        synchronized (this.connectionAccepterLock) {
-            return this.connectionAccepterThread != null &&
-                    this.connectionAccepterThread.isAlive() &&
-                    !this.connectionAccepterThread.isInterrupted() &&
-                    this.isAcceptingConnections;
-        }
+        return !this.isClosed() && this.isAcceptingConnections;
     }
 
     /**
      * Stops the server from accepting incoming connections.
+     * Connections which have already been accepted are still served.
      *
-     * @return If the server was not accepting incoming connections when the method was called.
+     * @return If the server was accepting incoming connections when the method was called.
      */
     public boolean stopAcceptingIncomingConnections() {
         synchronized (this.connectionAccepterLock) {
             if (this.isAcceptingIncomingConnections()) {
-                this.connectionAccepterThread.interrupt();
                 this.isAcceptingConnections = false;
+                this.acceptLoop.setInterestOps(this.serverChannel, 0);
                 return true;
             }
             return false;
@@ -113,7 +227,8 @@ public class TCPServer {
      * @return The clients which are currently connected to this client.
      */
     public Set<Socket> getConnectedClients() {
-        return this.connectedClients;
+        this.connectedClients.removeIf(Socket::isClosed);
+        return Collections.unmodifiableSet(this.connectedClients);
     }
 
     /**
@@ -121,21 +236,25 @@ public class TCPServer {
      * @see ServerSocket#isClosed()
      */
     public boolean isClosed() {
-        return this.serverSocket == null || this.serverSocket.isClosed();
+        return !this.serverChannel.isOpen();
     }
 
     /**
-     * Closes the server connection.
-     * @return If the server was closed prior to this method being called.
+     * Closes the server connection, along with every connection it has accepted.
+     * @return If the server was open prior to this method being called.
      * @throws IOException Thrown if the server is busy when closed.
      */
     public boolean close() throws IOException {
         this.stopAcceptingIncomingConnections();
-        if (!this.isClosed()) {
-            this.serverSocket.close();
-            return true;
+        final boolean wasOpen = !this.isClosed();
+        this.acceptLoop.close();
+        for (final SelectorLoop ioLoop : this.ioLoops) {
+            if (ioLoop != null) {
+                ioLoop.close();
+            }
         }
-        return false;
+        this.serverChannel.close();
+        return wasOpen;
     }
 
     /**
@@ -165,4 +284,4 @@ public class TCPServer {
         return this.connectionListeners.remove(listener);
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,267 @@
+package tech.avahe.filetransfer.net.filetransfer;
+
+import tech.avahe.filetransfer.net.ConnectionHandler;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+/**
+ * Receives a directory tree sent by an {@link ArchiveWriter}, and recreates it within the receiver's directory.
+ *
+ * <p>The entries are written as they arrive, so files are complete on disk as soon as their entry has been read.
+ * A file whose checksum does not match is deleted. Once the archive has ended, the session answers with a single
+ * status <code>byte</code>: {@link FileReceiver#STATUS_RECEIVED}, or {@link FileReceiver#STATUS_FAILED} if any
+ * file was corrupted, and the receiver's listeners are notified of the root directory.</p>
+ *
+ * @author Avahe
+ */
+final class ArchiveSession implements ConnectionHandler {
+
+    /**
+     * The stages of an archive session.
+     */
+    private enum Stage {
+        ENTRY_TYPE,
+        PATH_LENGTH,
+        PATH,
+        FILE_SIZE,
+        FILE_BODY,
+        FILE_CHECKSUM,
+        STATUS
+    }
+
+    private final FileReceiver receiver;
+    private final SocketChannel channel;
+    private final File root;
+    private final ByteBuffer buffer;
+    private final ByteBuffer typeBuffer = ByteBuffer.allocate(Byte.BYTES);
+    private final ByteBuffer pathLengthBuffer = ByteBuffer.allocate(Short.BYTES);
+    private final ByteBuffer sizeBuffer = ByteBuffer.allocate(Long.BYTES);
+    private final ByteBuffer checksumBuffer = ByteBuffer.allocate(Integer.BYTES);
+    private final CRC32C checksum = new CRC32C();
+    private Stage stage = Stage.ENTRY_TYPE;
+    private byte entryType;
+    private ByteBuffer pathBuffer;
+    private File file;
+    private FileChannel fileChannel;
+    private long position;
+    private long size;
+    private ByteBuffer status;
+    private boolean corrupted = false;
+
+    /**
+     * Creates a session for a connection whose archive header has been read.
+     * @param receiver The receiver the session belongs to.
+     * @param channel The channel of the connection.
+     * @param root The directory to recreate the tree in.
+     * @param buffer The buffer to stream the contents of files through.
+     * @throws IOException Thrown if the root directory cannot be created.
+     */
+    ArchiveSession(final FileReceiver receiver, final SocketChannel channel, final File root, final ByteBuffer buffer) throws IOException {
+        this.receiver = receiver;
+        this.channel = channel;
+        this.root = root;
+        this.buffer = buffer;
+        if (!root.isDirectory() && !root.mkdirs()) {
+            throw new IOException("Could not create directory: " + root);
+        }
+    }
+
+    @Override
+    public void onReadable(final SelectionKey key) throws IOException {
+        while (this.channel.isOpen()) {
+            switch (this.stage) {
+                case ENTRY_TYPE:
+                    if (!FileReceiver.read(this.channel, this.typeBuffer)) {
+                        return;
+                    }
+                    this.entryType = this.typeBuffer.get();
+                    this.typeBuffer.clear();
+                    if (this.entryType == ArchiveWriter.END) {
+                        this.finish(key);
+                        return;
+                    }
+                    if (this.entryType != ArchiveWriter.DIRECTORY && this.entryType != ArchiveWriter.FILE) {
+                        throw new IOException("Unknown archive entry: " + this.entryType);
+                    }
+                    this.stage = Stage.PATH_LENGTH;
+                    break;
+
+                case PATH_LENGTH:
+                    if (!FileReceiver.read(this.channel, this.pathLengthBuffer)) {
+                        return;
+                    }
+                    this.pathBuffer = ByteBuffer.allocate(this.pathLengthBuffer.getShort() & 0xFFFF);
+                    this.pathLengthBuffer.clear();
+                    this.stage = Stage.PATH;
+                    break;
+
+                case PATH:
+                    if (!FileReceiver.read(this.channel, this.pathBuffer)) {
+                        return;
+                    }
+                    this.file = this.resolve(StandardCharsets.UTF_8.decode(this.pathBuffer).toString());
+                    if (this.entryType == ArchiveWriter.DIRECTORY) {
+                        if (!this.file.isDirectory() && !this.file.mkdirs()) {
+                            throw new IOException("Could not create directory: " + this.file);
+                        }
+                        this.stage = Stage.ENTRY_TYPE;
+                    } else {
+                        this.stage = Stage.FILE_SIZE;
+                    }
+                    break;
+
+                case FILE_SIZE:
+                    if (!FileReceiver.read(this.channel, this.sizeBuffer)) {
+                        return;
+                    }
+                    this.startFile(this.sizeBuffer.getLong());
+                    this.sizeBuffer.clear();
+                    break;
+
+                case FILE_BODY:
+                    if (!this.readFile()) {
+                        return;
+                    }
+                    this.stage = Stage.FILE_CHECKSUM;
+                    break;
+
+                case FILE_CHECKSUM:
+                    if (!FileReceiver.read(this.channel, this.checksumBuffer)) {
+                        return;
+                    }
+                    this.finishFile(this.checksumBuffer.getInt());
+                    this.checksumBuffer.clear();
+                    this.stage = Stage.ENTRY_TYPE;
+                    break;
+
+                case STATUS:
+                    // Wait until the status has been written.
+                    return;
+            }
+        }
+    }
+
+    @Override
+    public void onWritable(final SelectionKey key) throws IOException {
+        if (this.stage != Stage.STATUS) {
+            key.interestOps(SelectionKey.OP_READ);
+            return;
+        }
+        this.channel.write(this.status);
+        if (!this.status.hasRemaining()) {
+            this.channel.close();
+        }
+    }
+
+    /**
+     * Resolves the path of an entry to a file within the root directory.
+     * @param path The path of the entry, relative to the root, with <code>/</code> separating its names.
+     * @return The file of the entry.
+     * @throws IOException Thrown if the path is empty, or if any of its names would leave the root directory.
+     */
+    private File resolve(final String path) throws IOException {
+        File file = this.root;
+        for (final String name : path.split("/", -1)) {
+            if (name.isEmpty() || name.equals(".") || name.equals("..") || !new File(name).getName().equals(name)) {
+                throw new IOException("Invalid path: " + path);
+            }
+            file = new File(file, name);
+        }
+        return file;
+    }
+
+    /**
+     * Creates the file of the current entry, and prepares to receive its contents.
+     * @param size The size of the file.
+     * @throws IOException Thrown if the size is invalid, or if the file cannot be created.
+     */
+    private void startFile(final long size) throws IOException {
+        if (size < 0) {
+            throw new IOException("Invalid file size: " + size);
+        }
+        this.fileChannel = FileChannel.open(this.file.toPath(),
+                StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        this.size = size;
+        this.position = 0;
+        this.checksum.reset();
+        this.stage = Stage.FILE_BODY;
+    }
+
+    /**
+     * Writes the contents of the current file as far as the available data allows.
+     * @return If the whole file has been written.
+     * @throws IOException Thrown if the connection was closed, or if the file cannot be written.
+     */
+    private boolean readFile() throws IOException {
+        while (this.position < this.size) {
+            this.buffer.clear();
+            this.buffer.limit((int) Math.min(this.buffer.capacity(), this.size - this.position));
+            final int read = this.channel.read(this.buffer);
+            if (read < 0) {
+                throw new EOFException("Connection closed " + (this.size - this.position) + " bytes before the end of " + this.file + ".");
+            }
+            if (read == 0) {
+                return false;
+            }
+            this.buffer.flip();
+            this.checksum.update(this.buffer);
+            this.buffer.rewind();
+            while (this.buffer.hasRemaining()) {
+                this.position += this.fileChannel.write(this.buffer, this.position);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Closes the current file, and deletes it if its checksum does not match.
+     * @param expectedChecksum The checksum of the file, as sent by the sender.
+     * @throws IOException Thrown if the file cannot be closed.
+     */
+    private void finishFile(final int expectedChecksum) throws IOException {
+        this.fileChannel.close();
+        this.fileChannel = null;
+        if (expectedChecksum != (int) this.checksum.getValue()) {
+            this.corrupted = true;
+            this.file.delete();
+        }
+    }
+
+    /**
+     * Finishes the archive, notifies the listeners if every file arrived intact, and sends the status.
+     * @param key The selection key of the connection.
+     */
+    private void finish(final SelectionKey key) {
+        if (!this.corrupted) {
+            this.receiver.notifyFileReceived(this.root);
+        }
+        this.status = ByteBuffer.allocate(Byte.BYTES);
+        this.status.put(this.corrupted ? FileReceiver.STATUS_FAILED : FileReceiver.STATUS_RECEIVED).flip();
+        this.stage = Stage.STATUS;
+        key.interestOps(SelectionKey.OP_WRITE);
+    }
+
+    @Override
+    public void onClosed(final SocketChannel channel) {
+        if (this.fileChannel == null) {
+            return;
+        }
+        // The entry which was being received is incomplete, so it is discarded.
+        try {
+            this.fileChannel.close();
+        } catch (IOException ex) {
+            // Silently ignore issues closing the incomplete file.
+        }
+        this.file.delete();
+    }
+
+}
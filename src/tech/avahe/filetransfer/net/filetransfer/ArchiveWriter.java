@@ -0,0 +1,241 @@
+package tech.avahe.filetransfer.net.filetransfer;
+
+import tech.avahe.filetransfer.net.TCPClient;
+import tech.avahe.filetransfer.threading.Threads;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Sends a whole directory tree over a single connection, as a stream of entries.
+ *
+ * <p>The tree is walked lazily, and its entries are written into batches of {@link #BATCH_SIZE} bytes,
+ * so the metadata and contents of many small files share a single write. The batches are filled on a reader thread
+ * while previously filled batches are sent, so reading the files overlaps with sending them.
+ * Every entry starts with its type (a <code>byte</code>):</p>
+ * <ul>
+ *     <li>{@link #DIRECTORY}: the length of the path (an unsigned <code>short</code>), followed by the UTF-8 encoded
+ *     path relative to the root, with <code>/</code> separating its names.</li>
+ *     <li>{@link #FILE}: the path, encoded like that of a directory, the size of the file (a <code>long</code>),
+ *     its contents, and the CRC32C checksum of its contents (an <code>int</code>).</li>
+ *     <li>{@link #END}: marks the end of the archive.</li>
+ * </ul>
+ * <p>Entries of a directory always follow the entry of the directory itself.
+ * Anything other than regular files and directories, such as symbolic links, is skipped.</p>
+ *
+ * @author Avahe
+ */
+final class ArchiveWriter {
+
+    /**
+     * The type of a directory entry.
+     */
+    static final byte DIRECTORY = 1;
+
+    /**
+     * The type of a file entry.
+     */
+    static final byte FILE = 2;
+
+    /**
+     * The type of the entry which ends an archive.
+     */
+    static final byte END = 3;
+
+    /**
+     * The capacity of every batch.
+     */
+    static final int BATCH_SIZE = 256 * 1024;
+
+    /**
+     * The number of batches which may be filled ahead of the one being sent.
+     */
+    private static final int BATCHES = 4;
+
+    /**
+     * The batch which tells the sending thread that the reader thread has finished.
+     */
+    private static final ByteBuffer LAST_BATCH = ByteBuffer.allocate(0);
+
+    private static final ThreadFactory READER_THREAD_FACTORY = Threads.newDaemonThreadFactory("archive-reader");
+
+    private final Path root;
+    private final ArrayBlockingQueue<ByteBuffer> freeBatches = new ArrayBlockingQueue<>(BATCHES);
+    private final ArrayBlockingQueue<ByteBuffer> filledBatches = new ArrayBlockingQueue<>(BATCHES + 1);
+    private final CRC32C checksum = new CRC32C();
+    private volatile IOException failure;
+    private ByteBuffer batch;
+
+    /**
+     * Creates a writer of a directory tree.
+     * @param root The root directory of the tree.
+     */
+    ArchiveWriter(final Path root) {
+        this.root = root;
+        for (int i = 0; i < BATCHES; i++) {
+            this.freeBatches.add(ByteBuffer.allocateDirect(BATCH_SIZE));
+        }
+    }
+
+    /**
+     * Sends the whole tree, including its {@link #END} entry.
+     * @param tcpClient The client connected to the receiver.
+     * @param flow The flow of the transfer, which every batch takes a turn in before it is sent.
+     * @param range The progress of the transfer, which every batch is counted in once it has been sent.
+     * @throws IOException Thrown if the tree cannot be read, or if the connection fails.
+     */
+    void send(final TCPClient tcpClient, final TransferScheduler.Flow flow, final ProgressTracker.Range range) throws IOException {
+        final Thread readerThread = READER_THREAD_FACTORY.newThread(this::read);
+        readerThread.start();
+        try {
+            while (true) {
+                final ByteBuffer batch = this.filledBatches.take();
+                if (batch == LAST_BATCH) {
+                    break;
+                }
+                // Waits for the rate limits before taking a slot, so a throttled peer holds no slot while it waits.
+                tcpClient.reserve(batch.remaining());
+                flow.acquire();
+                try {
+                    final int bytes = batch.remaining();
+                    tcpClient.send(batch);
+                    range.sent(bytes);
+                } finally {
+                    flow.release();
+                }
+                batch.clear();
+                this.freeBatches.add(batch);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while sending " + this.root + ".", ex);
+        } finally {
+            readerThread.interrupt();
+        }
+        if (this.failure != null) {
+            throw this.failure;
+        }
+    }
+
+    /**
+     * Walks the tree and fills batches with its entries, until the tree has been read or reading fails.
+     */
+    private void read() {
+        try (final Stream<Path> paths = Files.walk(this.root)) {
+            this.batch = this.freeBatches.take();
+            final Iterator<Path> iterator = paths.iterator();
+            // The root itself is the first path, and is created by the receiver from the header.
+            iterator.next();
+            while (iterator.hasNext()) {
+                final Path path = iterator.next();
+                if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                    this.writePath(DIRECTORY, path, 0);
+                } else if (Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS)) {
+                    this.writeFile(path);
+                }
+            }
+            this.reserve(Byte.BYTES);
+            this.batch.put(END);
+            this.batch.flip();
+            this.filledBatches.put(this.batch);
+        } catch (IOException ex) {
+            this.failure = ex;
+        } catch (UncheckedIOException ex) {
+            this.failure = ex.getCause();
+        } catch (InterruptedException ex) {
+            // The sending thread has stopped.
+        } catch (RuntimeException | Error ex) {
+            this.failure = new IOException("Could not read " + this.root + ".", ex);
+        } finally {
+            // The sending thread always learns that reading has ended. There is room for the last batch,
+            // as the queue holds one batch more than there are buffers to fill.
+            this.filledBatches.add(LAST_BATCH);
+        }
+    }
+
+    /**
+     * Writes the entry of a file, including its contents.
+     * @param path The path of the file.
+     * @throws IOException Thrown if the file cannot be read, or if it shrinks while it is read.
+     * @throws InterruptedException Thrown if the sending thread has stopped.
+     */
+    private void writeFile(final Path path) throws IOException, InterruptedException {
+        try (final FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final long size = fileChannel.size();
+            this.writePath(FILE, path, Long.BYTES);
+            this.batch.putLong(size);
+            this.checksum.reset();
+            for (long position = 0; position < size; ) {
+                this.reserve(1);
+                final int start = this.batch.position();
+                final int limit = this.batch.limit();
+                this.batch.limit((int) Math.min(limit, start + size - position));
+                final int read = fileChannel.read(this.batch, position);
+                if (read < 0) {
+                    throw new EOFException(path + " ended before " + size + " bytes were read.");
+                }
+                this.batch.limit(limit);
+                position += read;
+                final ByteBuffer readBytes = this.batch.duplicate();
+                readBytes.position(start).limit(start + read);
+                this.checksum.update(readBytes);
+            }
+            this.reserve(Integer.BYTES);
+            this.batch.putInt((int) this.checksum.getValue());
+        }
+    }
+
+    /**
+     * Writes the type and path of an entry.
+     * @param type The type of the entry.
+     * @param path The path of the entry.
+     * @param extraBytes The number of bytes which must fit into the same batch after the path.
+     * @throws IOException Thrown if the encoded path is too long.
+     * @throws InterruptedException Thrown if the sending thread has stopped.
+     */
+    private void writePath(final byte type, final Path path, final int extraBytes) throws IOException, InterruptedException {
+        final StringBuilder relativePath = new StringBuilder();
+        for (final Path name : this.root.relativize(path)) {
+            if (relativePath.length() > 0) {
+                relativePath.append('/');
+            }
+            relativePath.append(name);
+        }
+        final byte[] pathBytes = relativePath.toString().getBytes(StandardCharsets.UTF_8);
+        if (pathBytes.length > FileHeader.MAX_NAME_BYTES) {
+            throw new IOException("Path is too long: " + path);
+        }
+        this.reserve(Byte.BYTES + Short.BYTES + pathBytes.length + extraBytes);
+        this.batch.put(type);
+        this.batch.putShort((short) pathBytes.length);
+        this.batch.put(pathBytes);
+    }
+
+    /**
+     * Makes sure the current batch has room for a number of bytes, handing it to the sending thread if it does not.
+     * @param bytes The number of bytes.
+     * @throws InterruptedException Thrown if the sending thread has stopped.
+     */
+    private void reserve(final int bytes) throws InterruptedException {
+        if (this.batch.remaining() >= bytes) {
+            return;
+        }
+        this.batch.flip();
+        this.filledBatches.put(this.batch);
+        this.batch = this.freeBatches.take();
+    }
+
+}
@@ -0,0 +1,245 @@
+package tech.avahe.filetransfer.net.filetransfer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The signatures of the blocks of a file a receiver already has, which a sender uses to transfer only
+ * the parts of a file that changed.
+ *
+ * <p>The file is divided into blocks of equal size, and every whole block is described by its
+ * {@link RollingChecksum weak rolling checksum} and by the first eight bytes of its MD5 digest.
+ * A trailing partial block is not described, as it can never be matched.</p>
+ *
+ * <p>The encoded signature consists of the block size and the number of blocks (two <code>ints</code>),
+ * followed by the weak checksum (an <code>int</code>) and the strong hash (a <code>long</code>) of every block.</p>
+ *
+ * @author Avahe
+ */
+final class BlockSignature {
+
+    /**
+     * The smallest block size of a signature.
+     */
+    static final int MIN_BLOCK_SIZE = 2 * 1024;
+
+    /**
+     * The largest block size of a signature.
+     */
+    static final int MAX_BLOCK_SIZE = 128 * 1024;
+
+    /**
+     * The largest number of blocks a signature may describe.
+     */
+    static final int MAX_BLOCKS = 1 << 20;
+
+    /**
+     * The number of bytes used to encode the block size and the number of blocks.
+     */
+    static final int HEADER_BYTES = 2 * Integer.BYTES;
+
+    /**
+     * The number of bytes used to encode a single block.
+     */
+    static final int ENTRY_BYTES = Integer.BYTES + Long.BYTES;
+
+    private final int blockSize;
+    private final int[] weakChecksums;
+    private final long[] strongHashes;
+    private final int[] table;
+    private final int tableShift;
+
+    /**
+     * Creates a signature, and indexes its blocks by their weak checksums.
+     * @param blockSize The number of bytes in a block.
+     * @param weakChecksums The weak checksum of every block.
+     * @param strongHashes The strong hash of every block.
+     */
+    private BlockSignature(final int blockSize, final int[] weakChecksums, final long[] strongHashes) {
+        this.blockSize = blockSize;
+        this.weakChecksums = weakChecksums;
+        this.strongHashes = strongHashes;
+        // An open addressing table of block indices plus one, probed linearly from the block's weak checksum.
+        this.table = new int[Integer.highestOneBit(Math.max(1, weakChecksums.length)) << 2];
+        this.tableShift = Integer.SIZE - Integer.numberOfTrailingZeros(this.table.length);
+        for (int block = 0; block < weakChecksums.length; block++) {
+            int slot = this.slotOf(weakChecksums[block]);
+            while (this.table[slot] != 0) {
+                slot = (slot + 1) & (this.table.length - 1);
+            }
+            this.table[slot] = block + 1;
+        }
+    }
+
+    /**
+     * @return The number of bytes in a block.
+     */
+    int getBlockSize() {
+        return this.blockSize;
+    }
+
+    /**
+     * @return The number of blocks the signature describes.
+     */
+    int getBlockCount() {
+        return this.weakChecksums.length;
+    }
+
+    /**
+     * Checks if any block has a weak checksum, which is much cheaper than {@link #find(int, long, int)}.
+     * @param weakChecksum The weak checksum to look for.
+     * @return If a block may match.
+     */
+    boolean containsWeak(final int weakChecksum) {
+        for (int slot = this.slotOf(weakChecksum); this.table[slot] != 0; slot = (slot + 1) & (this.table.length - 1)) {
+            if (this.weakChecksums[this.table[slot] - 1] == weakChecksum) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Finds a block with the given checksums.
+     * @param weakChecksum The weak checksum of the block.
+     * @param strongHash The strong hash of the block.
+     * @param preferredBlock The block to return if several blocks match, so runs of blocks stay contiguous.
+     * @return The index of a matching block, or -1 if no block matches.
+     */
+    int find(final int weakChecksum, final long strongHash, final int preferredBlock) {
+        int found = -1;
+        for (int slot = this.slotOf(weakChecksum); this.table[slot] != 0; slot = (slot + 1) & (this.table.length - 1)) {
+            final int block = this.table[slot] - 1;
+            if (this.weakChecksums[block] == weakChecksum && this.strongHashes[block] == strongHash) {
+                if (block == preferredBlock) {
+                    return block;
+                }
+                if (found < 0) {
+                    found = block;
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @param weakChecksum A weak checksum.
+     * @return The first slot of the table to probe for the checksum.
+     */
+    private int slotOf(final int weakChecksum) {
+        return (weakChecksum * 0x9E3779B9) >>> this.tableShift;
+    }
+
+    /**
+     * Encodes the signature.
+     * @return A buffer containing the encoded signature, ready to be written to a channel.
+     */
+    ByteBuffer encode() {
+        final ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + this.weakChecksums.length * ENTRY_BYTES);
+        buffer.putInt(this.blockSize);
+        buffer.putInt(this.weakChecksums.length);
+        for (int block = 0; block < this.weakChecksums.length; block++) {
+            buffer.putInt(this.weakChecksums[block]);
+            buffer.putLong(this.strongHashes[block]);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Decodes the blocks of a signature.
+     * @param blockSize The block size, as encoded before the blocks.
+     * @param buffer The buffer containing the encoded blocks.
+     * @return The decoded signature.
+     * @throws IllegalArgumentException Thrown if the block size or the number of blocks is invalid.
+     */
+    static BlockSignature decode(final int blockSize, final ByteBuffer buffer) {
+        if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE || buffer.remaining() % ENTRY_BYTES != 0
+                || buffer.remaining() / ENTRY_BYTES > MAX_BLOCKS) {
+            throw new IllegalArgumentException("Invalid block signature.");
+        }
+        final int blockCount = buffer.remaining() / ENTRY_BYTES;
+        final int[] weakChecksums = new int[blockCount];
+        final long[] strongHashes = new long[blockCount];
+        for (int block = 0; block < blockCount; block++) {
+            weakChecksums[block] = buffer.getInt();
+            strongHashes[block] = buffer.getLong();
+        }
+        return new BlockSignature(blockSize, weakChecksums, strongHashes);
+    }
+
+    /**
+     * @return A signature which describes no blocks, for a receiver which has no copy of the file.
+     */
+    static BlockSignature empty() {
+        return new BlockSignature(MIN_BLOCK_SIZE, new int[0], new long[0]);
+    }
+
+    /**
+     * Computes the signature of a file.
+     * Blocks beyond {@link #MAX_BLOCKS} are not described.
+     * @param fileChannel The channel of the file.
+     * @return The signature of the file's blocks.
+     * @throws IOException Thrown if the file cannot be read.
+     */
+    static BlockSignature compute(final FileChannel fileChannel) throws IOException {
+        final long size = fileChannel.size();
+        final int blockSize = BlockSignature.blockSize(size);
+        final int blockCount = (int) Math.min(MAX_BLOCKS, size / blockSize);
+        final int[] weakChecksums = new int[blockCount];
+        final long[] strongHashes = new long[blockCount];
+        final MessageDigest digest = BlockSignature.newDigest();
+        final ByteBuffer buffer = ByteBuffer.allocate(blockSize);
+        for (int block = 0; block < blockCount; block++) {
+            buffer.clear();
+            while (buffer.hasRemaining()) {
+                if (fileChannel.read(buffer, (long) block * blockSize + buffer.position()) < 0) {
+                    throw new IOException("File ended while computing its signature.");
+                }
+            }
+            weakChecksums[block] = RollingChecksum.of(buffer.array(), 0, blockSize);
+            strongHashes[block] = BlockSignature.strongHash(digest, buffer.array(), 0, blockSize);
+        }
+        return new BlockSignature(blockSize, weakChecksums, strongHashes);
+    }
+
+    /**
+     * Chooses the block size for a file, growing with the square root of its size like rsync does,
+     * so large files are not described by an excessive number of blocks.
+     * @param size The size of the file.
+     * @return The block size.
+     */
+    static int blockSize(final long size) {
+        final long blockSize = Long.highestOneBit((long) Math.sqrt(size));
+        return (int) Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, blockSize));
+    }
+
+    /**
+     * Computes the strong hash of a block.
+     * @param digest The digest to compute the hash with.
+     * @param data The array containing the block.
+     * @param offset The offset of the block within the array.
+     * @param length The number of bytes in the block.
+     * @return The first eight bytes of the block's digest.
+     */
+    static long strongHash(final MessageDigest digest, final byte[] data, final int offset, final int length) {
+        digest.update(data, offset, length);
+        return ByteBuffer.wrap(digest.digest()).getLong();
+    }
+
+    /**
+     * @return A new digest to compute strong hashes with.
+     */
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException ex) {
+            // Every Java platform is required to support MD5.
+            throw new IllegalStateException(ex);
+        }
+    }
+
+}
@@ -0,0 +1,63 @@
+package tech.avahe.filetransfer.net.filetransfer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.Checksum;
+
+/**
+ * Computes the checksums of the chunks of a file over read-only memory mapped windows of the file,
+ * so the chunks themselves can be sent with <code>transferTo</code>, without being copied into user space.
+ *
+ * <p>A window spans {@link FileReceiver#MAPPED_WINDOW_SIZE} bytes and is aligned to its size, which is a multiple of
+ * the chunk size, so a chunk never spans two windows and the chunks of a range sent in order share a window.
+ * A file therefore has at most one mapping per window, rather than one per chunk. The previous window is unmapped
+ * once it has been garbage collected.</p>
+ *
+ * <p>The file is read from the page cache twice, once for the checksum and once by <code>transferTo</code>,
+ * which is cheaper than copying it through a buffer. If the file changes in between, the checksum no longer matches
+ * the bytes sent, and the receiver requests the chunk again.</p>
+ *
+ * @author Avahe
+ */
+final class ChecksumWindow {
+
+    private final FileChannel fileChannel;
+    private MappedByteBuffer window;
+    private long windowPosition;
+
+    /**
+     * Creates a window over a file. Nothing is mapped until the first checksum is computed.
+     * @param fileChannel The channel of the file.
+     */
+    ChecksumWindow(final FileChannel fileChannel) {
+        this.fileChannel = fileChannel;
+    }
+
+    /**
+     * Updates a checksum with the bytes of a chunk, mapping the window which contains the chunk if necessary.
+     * @param checksum The checksum to update.
+     * @param position The position of the chunk within the file.
+     * @param length The number of bytes in the chunk.
+     * @throws IOException Thrown if the file cannot be mapped, or if it ends before the end of the chunk.
+     */
+    void update(final Checksum checksum, final long position, final int length) throws IOException {
+        final long windowPosition = position / FileReceiver.MAPPED_WINDOW_SIZE * FileReceiver.MAPPED_WINDOW_SIZE;
+        final int offset = (int) (position - windowPosition);
+        if (this.window == null || this.windowPosition != windowPosition || offset + length > this.window.capacity()) {
+            final long size = this.fileChannel.size();
+            if (position + length > size) {
+                throw new EOFException("File ended before " + length + " bytes were sent.");
+            }
+            this.window = this.fileChannel.map(FileChannel.MapMode.READ_ONLY, windowPosition,
+                    Math.min(FileReceiver.MAPPED_WINDOW_SIZE, size - windowPosition));
+            this.windowPosition = windowPosition;
+        }
+        final ByteBuffer chunk = this.window.duplicate();
+        chunk.position(offset).limit(offset + length);
+        checksum.update(chunk);
+    }
+
+}
@@ -0,0 +1,165 @@
+package tech.avahe.filetransfer.net.filetransfer;
+
+import tech.avahe.filetransfer.net.TCPClient;
+import tech.avahe.filetransfer.threading.Threads;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Checksum;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses the chunks of a range before they are sent, if the receiver accepted compression.
+ *
+ * <p>Every chunk is split into blocks of {@link #BLOCK_SIZE} bytes, which are deflated independently and in
+ * parallel on a shared pool with one thread per processor, so compression keeps up with fast links.
+ * The body of every chunk starts with its encoding (a <code>byte</code>). A {@link #RAW} body is the chunk itself.
+ * A {@link #DEFLATE} body consists of every block's compressed length (an <code>int</code>) followed by the
+ * compressed block. The checksum that follows the body is always computed over the uncompressed chunk.</p>
+ *
+ * <p>Content which does not compress well, such as archives or media, is detected from the first chunk:
+ * once a chunk shrinks by less than {@link #MIN_SAVING}, the remaining chunks of the range are sent raw,
+ * without reading them through the compressor at all.</p>
+ *
+ * @author Avahe
+ */
+final class ChunkCompressor {
+
+    /**
+     * The encoding of a chunk which is sent as it is.
+     */
+    static final byte RAW = 0;
+
+    /**
+     * The encoding of a chunk which is sent as deflated blocks.
+     */
+    static final byte DEFLATE = 1;
+
+    /**
+     * The number of uncompressed bytes in every block of a chunk, except possibly the last one.
+     */
+    static final int BLOCK_SIZE = 512 * 1024;
+
+    /**
+     * The largest compressed block a receiver accepts, which leaves room for the overhead of incompressible data.
+     */
+    static final int MAX_COMPRESSED_BLOCK_SIZE = BLOCK_SIZE + 4 * 1024;
+
+    /**
+     * The smallest fraction of a chunk compression has to save for it to be worthwhile.
+     */
+    private static final double MIN_SAVING = 0.1;
+
+    /**
+     * The threads blocks are compressed on, shared by all compressors.
+     */
+    private static final ExecutorService COMPRESSION_EXECUTOR = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), Threads.newDaemonThreadFactory("chunk-compression"));
+
+    /**
+     * The deflater of every compression thread.
+     */
+    private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+
+    private final byte[] chunk = new byte[ChunkMap.CHUNK_SIZE];
+    private final byte[][] blocks;
+    private final int[] blockLengths;
+    private final ByteBuffer prefixBuffer = ByteBuffer.allocate(Integer.BYTES);
+    private final ByteBuffer encodingBuffer = ByteBuffer.allocate(Byte.BYTES);
+    private boolean enabled = true;
+
+    /**
+     * Creates a compressor for the chunks of a single range.
+     */
+    ChunkCompressor() {
+        final int blockCount = (ChunkMap.CHUNK_SIZE + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        this.blocks = new byte[blockCount][MAX_COMPRESSED_BLOCK_SIZE];
+        this.blockLengths = new int[blockCount];
+    }
+
+    /**
+     * Sends the body of a chunk, compressed if that is worthwhile, and updates the checksum with the uncompressed chunk.
+     * @param tcpClient The client connected to the receiver.
+     * @param fileChannel The channel of the file to send.
+     * @param position The position of the chunk within the file.
+     * @param length The number of bytes in the chunk.
+     * @param checksum The checksum to update with the bytes of the chunk.
+     * @param sendBuffer The buffer to send the chunk through once compression has been abandoned.
+     * @throws IOException Thrown if the file cannot be read, or if the connection fails.
+     */
+    void send(final TCPClient tcpClient, final FileChannel fileChannel, final long position, final int length,
+              final Checksum checksum, final ByteBuffer sendBuffer) throws IOException {
+        if (!this.enabled) {
+            this.sendEncoding(tcpClient, RAW);
+            tcpClient.send(fileChannel, position, length, checksum, sendBuffer);
+            return;
+        }
+        final ByteBuffer chunkBuffer = ByteBuffer.wrap(this.chunk, 0, length);
+        while (chunkBuffer.hasRemaining()) {
+            if (fileChannel.read(chunkBuffer, position + chunkBuffer.position()) < 0) {
+                throw new EOFException("File ended before " + length + " bytes were sent.");
+            }
+        }
+        checksum.update(this.chunk, 0, length);
+
+        final int blockCount = (length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        final CompletableFuture<?>[] compressions = new CompletableFuture<?>[blockCount];
+        for (int i = 0; i < blockCount; i++) {
+            final int block = i;
+            compressions[i] = CompletableFuture.runAsync(() -> this.compress(block, length), COMPRESSION_EXECUTOR);
+        }
+        CompletableFuture.allOf(compressions).join();
+
+        long compressedLength = 0;
+        for (int i = 0; i < blockCount; i++) {
+            compressedLength += this.blockLengths[i] < 0 ? MAX_COMPRESSED_BLOCK_SIZE : Integer.BYTES + this.blockLengths[i];
+        }
+        if (compressedLength > length * (1 - MIN_SAVING)) {
+            this.enabled = false;
+            this.sendEncoding(tcpClient, RAW);
+            tcpClient.send(ByteBuffer.wrap(this.chunk, 0, length));
+            return;
+        }
+        this.sendEncoding(tcpClient, DEFLATE);
+        for (int i = 0; i < blockCount; i++) {
+            this.prefixBuffer.clear();
+            this.prefixBuffer.putInt(this.blockLengths[i]).flip();
+            tcpClient.send(this.prefixBuffer);
+            tcpClient.send(ByteBuffer.wrap(this.blocks[i], 0, this.blockLengths[i]));
+        }
+    }
+
+    /**
+     * Deflates a block of the current chunk.
+     * @param block The index of the block within the chunk.
+     * @param length The number of bytes in the chunk.
+     */
+    private void compress(final int block, final int length) {
+        final int offset = block * BLOCK_SIZE;
+        final Deflater deflater = DEFLATERS.get();
+        deflater.reset();
+        deflater.setInput(this.chunk, offset, Math.min(BLOCK_SIZE, length - offset));
+        deflater.finish();
+        final int compressedLength = deflater.deflate(this.blocks[block]);
+        // A block which does not fit is marked as such, which rules out compressing the chunk.
+        this.blockLengths[block] = deflater.finished() ? compressedLength : -1;
+    }
+
+    /**
+     * Sends the encoding of a chunk's body.
+     * @param tcpClient The client connected to the receiver.
+     * @param encoding The encoding.
+     * @throws IOException Thrown if the connection fails.
+     */
+    private void sendEncoding(final TCPClient tcpClient, final byte encoding) throws IOException {
+        this.encodingBuffer.clear();
+        this.encodingBuffer.put(encoding).flip();
+        tcpClient.send(this.encodingBuffer);
+    }
+
+}
@@ -0,0 +1,236 @@
+package tech.avahe.filetransfer.net.filetransfer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+
+/**
+ * Keeps track of which fixed-size chunks of an incoming file have been received,
+ * and persists that record to disk, so an interrupted transfer can be resumed.
+ *
+ * <p>The record is rewritten once every {@link #PERSIST_INTERVAL} received chunks, and when a session is
+ * interrupted, rather than after every chunk, as every write waits for the disk. Chunks received since
+ * the last write are sent again if the program stops before the record is flushed. Receivers force the bytes of
+ * a chunk to disk before marking it as received, and the record is forced to disk before it replaces the previous
+ * one, so the record survives dropped connections, restarts of the program and power losses.</p>
+ *
+ * <p>The record holds the version of the file the chunks were received for, as sent in the {@link FileHeader}.
+ * A record of another version is discarded, since the sender's file has changed and its chunks may no longer
+ * match the ones already received, even if its size is the same.</p>
+ *
+ * @author Avahe
+ */
+public class ChunkMap {
+
+    /**
+     * The size of every chunk except possibly the last one of a file.
+     */
+    public static final int CHUNK_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * The number of chunks received between two writes of the record.
+     */
+    static final int PERSIST_INTERVAL = 16;
+
+    private final File recordFile;
+    private final long size;
+    private final long version;
+    private final int chunkCount;
+    private final BitSet received;
+    private int unpersistedChunks = 0;
+    private boolean completionClaimed = false;
+
+    /**
+     * Loads the record of a file's received chunks, or creates an empty one.
+     *
+     * <p>A persisted record is only trusted if it describes a file of the same size and version,
+     * and if the target file still exists with that size.</p>
+     *
+     * @param recordFile The file in which the record is persisted.
+     * @param targetFile The file being received.
+     * @param size The size of the file being received.
+     * @param version The version of the file being received.
+     */
+    ChunkMap(final File recordFile, final File targetFile, final long size, final long version) {
+        this.recordFile = recordFile;
+        this.size = size;
+        this.version = version;
+        this.chunkCount = ChunkMap.chunkCount(size);
+        this.received = ChunkMap.load(recordFile, targetFile, size, version);
+    }
+
+    /**
+     * @return The size of the file being received.
+     */
+    long getSize() {
+        return this.size;
+    }
+
+    /**
+     * @return The version of the file being received.
+     */
+    long getVersion() {
+        return this.version;
+    }
+
+    /**
+     * Finds the chunks which have not been received yet within a range of chunks.
+     * @param firstChunk The index of the first chunk of the range.
+     * @param endChunk The index after the last chunk of the range.
+     * @return The missing chunks, indexed relative to the first chunk of the range.
+     */
+    synchronized BitSet getMissing(final int firstChunk, final int endChunk) {
+        final BitSet missing = new BitSet(endChunk - firstChunk);
+        missing.set(0, endChunk - firstChunk);
+        missing.andNot(this.received.get(firstChunk, endChunk));
+        return missing;
+    }
+
+    /**
+     * Records a chunk as received, and persists the record once {@link #PERSIST_INTERVAL} chunks have been
+     * received since it was last persisted.
+     * @param chunk The index of the received chunk.
+     * @return If every chunk of the file has been received.
+     * @throws IOException Thrown if the record cannot be persisted.
+     */
+    synchronized boolean markReceived(final int chunk) throws IOException {
+        if (this.received.get(chunk)) {
+            return this.isComplete();
+        }
+        this.received.set(chunk);
+        if (this.isComplete()) {
+            return true;
+        }
+        if (++this.unpersistedChunks >= PERSIST_INTERVAL) {
+            this.persist();
+        }
+        return false;
+    }
+
+    /**
+     * Persists the record if chunks have been received since it was last persisted, and the file is not complete.
+     * @throws IOException Thrown if the record cannot be persisted.
+     */
+    synchronized void flush() throws IOException {
+        if (this.unpersistedChunks > 0 && !this.isComplete()) {
+            this.persist();
+        }
+    }
+
+    /**
+     * @return If every chunk of the file has been received.
+     */
+    synchronized boolean isComplete() {
+        return this.received.cardinality() == this.chunkCount;
+    }
+
+    /**
+     * Claims the completion of the file, deleting the persisted record.
+     * Only the first caller after every chunk has been received succeeds,
+     * so a file received over several connections is only reported once.
+     * @return If the file is complete and its completion had not been claimed yet.
+     */
+    synchronized boolean claimCompletion() {
+        if (this.completionClaimed || !this.isComplete()) {
+            return false;
+        }
+        this.completionClaimed = true;
+        this.recordFile.delete();
+        return true;
+    }
+
+    /**
+     * Writes the record to disk, replacing the previous record in a single step.
+     * The new record is forced to disk before it replaces the previous one, and the replacement is forced
+     * with the directory, so a power loss leaves either the previous or the new record behind.
+     * @throws IOException Thrown if the record cannot be written.
+     */
+    private void persist() throws IOException {
+        final File directory = this.recordFile.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create directory: " + directory);
+        }
+        final byte[] bits = this.received.toByteArray();
+        final ByteBuffer buffer = ByteBuffer.allocate(2 * Long.BYTES + bits.length);
+        buffer.putLong(this.size);
+        buffer.putLong(this.version);
+        buffer.put(bits);
+        final File temporaryFile = new File(directory, this.recordFile.getName() + ".tmp");
+        buffer.flip();
+        try (final FileChannel channel = FileChannel.open(temporaryFile.toPath(), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(temporaryFile.toPath(), this.recordFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        ChunkMap.forceDirectory(directory);
+        this.unpersistedChunks = 0;
+    }
+
+    /**
+     * Forces the entries of a directory to disk, so a file moved into it is not lost on a power loss.
+     * @param directory The directory to force.
+     */
+    private static void forceDirectory(final File directory) {
+        try (final FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException ex) {
+            // Silently ignore the failure, as some platforms cannot open directories. The record is still written.
+        }
+    }
+
+    /**
+     * Loads a persisted record.
+     * @param recordFile The file in which the record is persisted.
+     * @param targetFile The file being received.
+     * @param size The size of the file being received.
+     * @param version The version of the file being received.
+     * @return The received chunks, or an empty set if there is no usable record.
+     */
+    private static BitSet load(final File recordFile, final File targetFile, final long size, final long version) {
+        if (!recordFile.isFile() || targetFile.length() != size) {
+            return new BitSet();
+        }
+        try {
+            final ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(recordFile.toPath()));
+            if (buffer.remaining() < 2 * Long.BYTES || buffer.getLong() != size || buffer.getLong() != version) {
+                return new BitSet();
+            }
+            final BitSet received = BitSet.valueOf(buffer);
+            return received.length() <= ChunkMap.chunkCount(size) ? received : new BitSet();
+        } catch (IOException ex) {
+            return new BitSet();
+        }
+    }
+
+    /**
+     * @param size The size of a file.
+     * @return The number of chunks the file is divided into.
+     */
+    static int chunkCount(final long size) {
+        return Math.toIntExact((size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+    }
+
+    /**
+     * Encodes the chunks a receiver is missing, to be sent to the sender.
+     * The encoding is prefixed with its length (an <code>int</code>).
+     * @param missing The missing chunks, indexed relative to the first chunk of a range.
+     * @return A buffer containing the encoded chunks, ready to be written to a channel.
+     */
+    static ByteBuffer encodeMissing(final BitSet missing) {
+        final byte[] bits = missing.toByteArray();
+        final ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + bits.length);
+        buffer.putInt(bits.length);
+        buffer.put(bits);
+        buffer.flip();
+        return buffer;
+    }
+
+}
@@ -0,0 +1,212 @@
+package tech.avahe.filetransfer.net.filetransfer;
+
+import tech.avahe.filetransfer.net.TCPClient;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.zip.CRC32C;
+
+/**
+ * Sends a file as a delta against the {@link BlockSignature signature} of the copy the receiver already has.
+ *
+ * <p>The file is scanned once with a {@link RollingChecksum}. Wherever a block of the receiver's copy occurs,
+ * at any offset, a reference to it is sent instead of its bytes, and all other bytes are sent as literals.
+ * References to consecutive blocks are merged into runs. The delta is a sequence of records, each starting with
+ * its type (a <code>byte</code>):</p>
+ * <ul>
+ *     <li>{@link #COPY}: the index of the first block and the number of blocks to copy (two <code>ints</code>).</li>
+ *     <li>{@link #LITERAL}: the number of bytes (an <code>int</code>), followed by the bytes.</li>
+ *     <li>{@link #END}: the CRC32C checksum of the whole file (an <code>int</code>).</li>
+ * </ul>
+ *
+ * @author Avahe
+ */
+final class DeltaEncoder {
+
+    /**
+     * The type of a record which copies blocks from the receiver's copy.
+     */
+    static final byte COPY = 1;
+
+    /**
+     * The type of a record which carries literal bytes.
+     */
+    static final byte LITERAL = 2;
+
+    /**
+     * The type of the record which ends a delta.
+     */
+    static final byte END = 3;
+
+    /**
+     * The minimum number of bytes of the file held in memory while it is scanned.
+     */
+    private static final int MIN_WINDOW_SIZE = 1024 * 1024;
+
+    private final FileChannel fileChannel;
+    private final long size;
+    private final BlockSignature signature;
+    private final TCPClient tcpClient;
+    private final int blockSize;
+    private final byte[] data;
+    private final ByteBuffer recordBuffer = ByteBuffer.allocate(Byte.BYTES + 2 * Integer.BYTES);
+    private final RollingChecksum rollingChecksum;
+    private final MessageDigest digest = BlockSignature.newDigest();
+    private final CRC32C checksum = new CRC32C();
+    private long filePosition = 0;
+    private int dataEnd = 0;
+    private int copyBlock = -1;
+    private int copyCount = 0;
+
+    /**
+     * Creates an encoder of a file.
+     * @param fileChannel The channel of the file to send.
+     * @param size The size of the file.
+     * @param signature The signature of the receiver's copy of the file.
+     * @param tcpClient The client connected to the receiver.
+     */
+    DeltaEncoder(final FileChannel fileChannel, final long size, final BlockSignature signature, final TCPClient tcpClient) {
+        this.fileChannel = fileChannel;
+        this.size = size;
+        this.signature = signature;
+        this.tcpClient = tcpClient;
+        this.blockSize = signature.getBlockSize();
+        this.data = new byte[Math.max(MIN_WINDOW_SIZE, 4 * this.blockSize)];
+        this.rollingChecksum = new RollingChecksum(this.blockSize);
+    }
+
+    /**
+     * Scans the file and sends the delta, including its {@link #END} record.
+     * @throws IOException Thrown if the file cannot be read, or if the connection fails.
+     */
+    void encode() throws IOException {
+        if (this.signature.getBlockCount() > 0) {
+            this.scan();
+        } else {
+            // Without any blocks to match, there is no need to roll over every byte.
+            while (this.filePosition < this.size) {
+                this.fill();
+                this.sendLiteral(0, this.dataEnd);
+                this.dataEnd = 0;
+            }
+        }
+        this.recordBuffer.clear();
+        this.recordBuffer.put(END).putInt((int) this.checksum.getValue()).flip();
+        this.tcpClient.send(this.recordBuffer);
+    }
+
+    /**
+     * Scans the file for blocks of the signature, sending every other byte as a literal.
+     * @throws IOException Thrown if the file cannot be read, or if the connection fails.
+     */
+    private void scan() throws IOException {
+        int start = 0;
+        int literalStart = 0;
+        boolean rolling = false;
+        while (true) {
+            if (start + this.blockSize > this.dataEnd || (rolling && start + this.blockSize == this.dataEnd)) {
+                // The window, or the byte it rolls over next, lies beyond the loaded part of the file.
+                if (this.filePosition >= this.size) {
+                    break;
+                }
+                this.sendLiteral(literalStart, start);
+                this.dataEnd -= start;
+                System.arraycopy(this.data, start, this.data, 0, this.dataEnd);
+                start = 0;
+                literalStart = 0;
+                this.fill();
+                continue;
+            }
+            if (rolling) {
+                this.rollingChecksum.roll(this.data[start], this.data[start + this.blockSize]);
+                start++;
+            } else {
+                this.rollingChecksum.reset(this.data, start);
+                rolling = true;
+            }
+            final int weakChecksum = this.rollingChecksum.getValue();
+            if (!this.signature.containsWeak(weakChecksum)) {
+                continue;
+            }
+            final long strongHash = BlockSignature.strongHash(this.digest, this.data, start, this.blockSize);
+            final int block = this.signature.find(weakChecksum, strongHash, this.copyBlock + this.copyCount);
+            if (block < 0) {
+                continue;
+            }
+            this.sendLiteral(literalStart, start);
+            this.addCopy(block);
+            start += this.blockSize;
+            literalStart = start;
+            rolling = false;
+        }
+        this.sendLiteral(literalStart, this.dataEnd);
+        this.flushCopy();
+    }
+
+    /**
+     * Loads as much of the file as fits after the loaded bytes, adding them to the file's checksum.
+     * @throws IOException Thrown if the file cannot be read, or if it ends early.
+     */
+    private void fill() throws IOException {
+        final ByteBuffer buffer = ByteBuffer.wrap(this.data, this.dataEnd,
+                (int) Math.min(this.data.length - this.dataEnd, this.size - this.filePosition));
+        while (buffer.hasRemaining()) {
+            final int read = this.fileChannel.read(buffer, this.filePosition);
+            if (read < 0) {
+                throw new IOException("File ended before " + this.size + " bytes were sent.");
+            }
+            this.filePosition += read;
+        }
+        this.checksum.update(this.data, this.dataEnd, buffer.position() - this.dataEnd);
+        this.dataEnd = buffer.position();
+    }
+
+    /**
+     * Sends loaded bytes as a literal, if there are any.
+     * @param from The index of the first byte.
+     * @param to The index after the last byte.
+     * @throws IOException Thrown if the connection fails.
+     */
+    private void sendLiteral(final int from, final int to) throws IOException {
+        if (from >= to) {
+            return;
+        }
+        this.flushCopy();
+        this.recordBuffer.clear();
+        this.recordBuffer.put(LITERAL).putInt(to - from).flip();
+        this.tcpClient.send(this.recordBuffer);
+        this.tcpClient.send(ByteBuffer.wrap(this.data, from, to - from));
+    }
+
+    /**
+     * Adds a block to the current run of copied blocks, or starts a new run.
+     * @param block The index of the block.
+     * @throws IOException Thrown if the connection fails.
+     */
+    private void addCopy(final int block) throws IOException {
+        if (this.copyCount > 0 && block == this.copyBlock + this.copyCount) {
+            this.copyCount++;
+            return;
+        }
+        this.flushCopy();
+        this.copyBlock = block;
+        this.copyCount = 1;
+    }
+
+    /**
+     * Sends the current run of copied blocks, if there is one.
+     * @throws IOException Thrown if the connection fails.
+     */
+    private void flushCopy() throws IOException {
+        if (this.copyCount == 0) {
+            return;
+        }
+        this.recordBuffer.clear();
+        this.recordBuffer.put(COPY).putInt(this.copyBlock).putInt(this.copyCount).flip();
+        this.tcpClient.send(this.recordBuffer);
+        this.copyCount = 0;
+    }
+
+}
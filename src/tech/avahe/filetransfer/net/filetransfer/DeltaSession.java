@@ -0,0 +1,392 @@
+package tech.avahe.filetransfer.net.filetransfer;
+
+import tech.avahe.filetransfer.net.ConnectionHandler;
+import tech.avahe.filetransfer.threading.Threads;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32C;
+
+/**
+ * Receives a file sent as a delta by a {@link DeltaEncoder}, against the copy the receiver already has.
+ *
+ * <p>The session answers the delta header with the {@link BlockSignature} of the existing copy, which is computed
+ * on a background thread so the connection's I/O thread is not held up by reading the whole file. The file is then
+ * rebuilt in a temporary file next to the existing copy, from blocks of the copy and literals of the delta.
+ * Runs of blocks are copied a buffer at a time, each time the connection is writable, so that a long run does not hold
+ * up the other connections sharing the I/O thread.
+ * If the checksum of the rebuilt file matches the sender's, it replaces the existing copy in a single step.
+ * The session answers with a single status <code>byte</code>: {@link FileReceiver#STATUS_RECEIVED}, or
+ * {@link FileReceiver#STATUS_FAILED} if the sender must send the whole file instead.</p>
+ *
+ * @author Avahe
+ */
+final class DeltaSession implements ConnectionHandler {
+
+    /**
+     * The threads signatures are computed on.
+     */
+    private static final ExecutorService SIGNATURE_EXECUTOR = Executors.newCachedThreadPool(
+            Threads.newDaemonThreadFactory("delta-signature"));
+
+    /**
+     * The stages of a delta session.
+     */
+    private enum Stage {
+        SIGNATURE,
+        RECORD_TYPE,
+        COPY,
+        COPY_BODY,
+        LITERAL_LENGTH,
+        LITERAL_BODY,
+        END,
+        STATUS
+    }
+
+    private final FileReceiver receiver;
+    private final SocketChannel channel;
+    private final FileHeader header;
+    private final File file;
+    private final ByteBuffer buffer;
+    private final ByteBuffer typeBuffer = ByteBuffer.allocate(Byte.BYTES);
+    private final ByteBuffer argumentBuffer = ByteBuffer.allocate(2 * Integer.BYTES);
+    private final CRC32C checksum = new CRC32C();
+    private Stage stage = Stage.SIGNATURE;
+    private FileChannel basisChannel;
+    private BlockSignature signature;
+    private File temporaryFile;
+    private FileChannel outputChannel;
+    private volatile ByteBuffer outgoing;
+    private volatile IOException failure;
+    private long position = 0;
+    private long copySource;
+    private long copyRemaining;
+    private long literalRemaining;
+    private boolean started = false;
+    private boolean finished = false;
+
+    /**
+     * Creates a session for a connection whose delta header has been read.
+     * @param receiver The receiver the session belongs to.
+     * @param channel The channel of the connection.
+     * @param header The delta header.
+     * @param file The file being received, which may already exist.
+     * @param buffer The buffer to stream blocks and literals through.
+     */
+    DeltaSession(final FileReceiver receiver, final SocketChannel channel, final FileHeader header, final File file,
+                 final ByteBuffer buffer) {
+        this.receiver = receiver;
+        this.channel = channel;
+        this.header = header;
+        this.file = file;
+        this.buffer = buffer;
+    }
+
+    /**
+     * Starts computing the signature of the existing copy, and sends it once it is ready.
+     * @param key The selection key of the connection.
+     */
+    private void start(final SelectionKey key) {
+        this.started = true;
+        key.interestOps(0);
+        SIGNATURE_EXECUTOR.execute(() -> {
+            try {
+                this.prepare();
+                if (!this.channel.isOpen()) {
+                    this.onClosed(this.channel);
+                    return;
+                }
+            } catch (IOException ex) {
+                this.failure = ex;
+            } catch (RuntimeException ex) {
+                this.failure = new IOException("Cannot prepare the delta of " + this.file + ".", ex);
+            }
+            try {
+                key.interestOps(SelectionKey.OP_WRITE);
+                key.selector().wakeup();
+            } catch (CancelledKeyException ex) {
+                // The connection was closed in the meantime.
+            }
+        });
+    }
+
+    /**
+     * Opens the existing copy and the temporary file, and encodes the signature of the copy.
+     * @throws IOException Thrown if either file cannot be opened, or if the copy cannot be read.
+     */
+    private void prepare() throws IOException {
+        if (this.file.isFile()) {
+            this.basisChannel = FileChannel.open(this.file.toPath(), StandardOpenOption.READ);
+            this.signature = BlockSignature.compute(this.basisChannel);
+        } else {
+            this.signature = BlockSignature.empty();
+        }
+        // The name is wrapped, as File.createTempFile would reject names shorter than three characters.
+        this.temporaryFile = Files.createTempFile(this.file.getParentFile().toPath(), "." + this.file.getName() + ".", ".delta").toFile();
+        this.outputChannel = FileChannel.open(this.temporaryFile.toPath(), StandardOpenOption.WRITE);
+        this.outgoing = this.signature.encode();
+    }
+
+    @Override
+    public void onReadable(final SelectionKey key) throws IOException {
+        while (this.channel.isOpen()) {
+            switch (this.stage) {
+                case SIGNATURE:
+                    if (!this.started) {
+                        this.start(key);
+                    }
+                    // Wait until the signature has been written.
+                    return;
+
+                case COPY_BODY:
+                    // Wait until the run of blocks has been copied.
+                    return;
+
+                case STATUS:
+                    // Wait until the status has been written.
+                    return;
+
+                case RECORD_TYPE:
+                    if (!FileReceiver.read(this.channel, this.typeBuffer)) {
+                        return;
+                    }
+                    this.startRecord(this.typeBuffer.get());
+                    this.typeBuffer.clear();
+                    break;
+
+                case COPY:
+                    if (!FileReceiver.read(this.channel, this.argumentBuffer)) {
+                        return;
+                    }
+                    this.startCopy(this.argumentBuffer.getInt(), this.argumentBuffer.getInt());
+                    this.argumentBuffer.clear();
+                    this.stage = Stage.COPY_BODY;
+                    // The copy continues whenever the connection is writable, which does not depend on the peer.
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    return;
+
+                case LITERAL_LENGTH:
+                    if (!FileReceiver.read(this.channel, this.argumentBuffer)) {
+                        return;
+                    }
+                    this.literalRemaining = this.argumentBuffer.getInt();
+                    this.argumentBuffer.clear();
+                    if (this.literalRemaining <= 0 || this.literalRemaining > this.header.getSize() - this.position) {
+                        throw new IOException("Invalid literal length: " + this.literalRemaining);
+                    }
+                    this.stage = Stage.LITERAL_BODY;
+                    break;
+
+                case LITERAL_BODY:
+                    if (!this.readLiteral()) {
+                        return;
+                    }
+                    this.stage = Stage.RECORD_TYPE;
+                    break;
+
+                case END:
+                    if (!FileReceiver.read(this.channel, this.argumentBuffer)) {
+                        return;
+                    }
+                    this.finish(key, this.argumentBuffer.getInt());
+                    return;
+            }
+        }
+    }
+
+    @Override
+    public void onWritable(final SelectionKey key) throws IOException {
+        if (this.stage == Stage.COPY_BODY) {
+            if (this.copyBlocks()) {
+                this.stage = Stage.RECORD_TYPE;
+                key.interestOps(SelectionKey.OP_READ);
+            }
+            return;
+        }
+        if (this.stage != Stage.SIGNATURE && this.stage != Stage.STATUS) {
+            key.interestOps(SelectionKey.OP_READ);
+            return;
+        }
+        final ByteBuffer outgoing = this.outgoing;
+        if (outgoing == null) {
+            if (this.failure != null) {
+                throw this.failure;
+            }
+            // The signature is not ready yet.
+            return;
+        }
+        this.channel.write(outgoing);
+        if (outgoing.hasRemaining()) {
+            return;
+        }
+        this.outgoing = null;
+        if (this.stage == Stage.STATUS) {
+            this.channel.close();
+        } else {
+            this.stage = Stage.RECORD_TYPE;
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Prepares to read the arguments of a record.
+     * @param type The type of the record.
+     * @throws IOException Thrown if the type is unknown.
+     */
+    private void startRecord(final byte type) throws IOException {
+        switch (type) {
+            case DeltaEncoder.COPY:
+                this.argumentBuffer.limit(2 * Integer.BYTES);
+                this.stage = Stage.COPY;
+                break;
+            case DeltaEncoder.LITERAL:
+                this.argumentBuffer.limit(Integer.BYTES);
+                this.stage = Stage.LITERAL_LENGTH;
+                break;
+            case DeltaEncoder.END:
+                this.argumentBuffer.limit(Integer.BYTES);
+                this.stage = Stage.END;
+                break;
+            default:
+                throw new IOException("Unknown delta record: " + type);
+        }
+    }
+
+    /**
+     * Prepares to copy a run of blocks from the existing copy to the end of the rebuilt file.
+     * @param firstBlock The index of the first block.
+     * @param count The number of blocks.
+     * @throws IOException Thrown if the blocks are not part of the signature.
+     */
+    private void startCopy(final int firstBlock, final int count) throws IOException {
+        if (firstBlock < 0 || count <= 0 || count > this.signature.getBlockCount() - firstBlock) {
+            throw new IOException("Invalid blocks: " + firstBlock + "+" + count);
+        }
+        final long length = (long) count * this.signature.getBlockSize();
+        if (length > this.header.getSize() - this.position) {
+            throw new IOException("The delta is longer than the file.");
+        }
+        this.copySource = (long) firstBlock * this.signature.getBlockSize();
+        this.copyRemaining = length;
+    }
+
+    /**
+     * Copies the next buffer of the current run of blocks to the end of the rebuilt file.
+     * @return If the whole run has been copied.
+     * @throws IOException Thrown if the existing copy has changed, or if a file cannot be accessed.
+     */
+    private boolean copyBlocks() throws IOException {
+        this.buffer.clear();
+        this.buffer.limit((int) Math.min(this.buffer.capacity(), this.copyRemaining));
+        while (this.buffer.hasRemaining()) {
+            if (this.basisChannel.read(this.buffer, this.copySource + this.buffer.position()) < 0) {
+                throw new EOFException("The existing copy of " + this.file + " has changed.");
+            }
+        }
+        this.copySource += this.buffer.position();
+        this.copyRemaining -= this.buffer.position();
+        this.write();
+        return this.copyRemaining == 0;
+    }
+
+    /**
+     * Writes the current literal to the end of the rebuilt file as far as the available data allows.
+     * @return If the whole literal has been written.
+     * @throws IOException Thrown if the connection was closed, or if the file cannot be written.
+     */
+    private boolean readLiteral() throws IOException {
+        while (this.literalRemaining > 0) {
+            this.buffer.clear();
+            this.buffer.limit((int) Math.min(this.buffer.capacity(), this.literalRemaining));
+            final int read = this.channel.read(this.buffer);
+            if (read < 0) {
+                throw new EOFException("Connection closed " + this.literalRemaining + " bytes before the end of a literal.");
+            }
+            if (read == 0) {
+                return false;
+            }
+            this.literalRemaining -= read;
+            this.write();
+        }
+        return true;
+    }
+
+    /**
+     * Appends the contents of the buffer to the rebuilt file, adding them to the file's checksum.
+     * @throws IOException Thrown if the file cannot be written.
+     */
+    private void write() throws IOException {
+        this.buffer.flip();
+        this.checksum.update(this.buffer);
+        this.buffer.rewind();
+        while (this.buffer.hasRemaining()) {
+            this.position += this.outputChannel.write(this.buffer, this.position);
+        }
+    }
+
+    /**
+     * Verifies the rebuilt file, replaces the existing copy with it if it matches, and sends the status.
+     * @param key The selection key of the connection.
+     * @param expectedChecksum The checksum of the file, as sent by the sender.
+     * @throws IOException Thrown if the files cannot be closed, or if the existing copy cannot be replaced.
+     */
+    private void finish(final SelectionKey key, final int expectedChecksum) throws IOException {
+        this.finished = true;
+        this.closeFiles();
+        final boolean verified = this.position == this.header.getSize() && expectedChecksum == (int) this.checksum.getValue();
+        if (verified) {
+            Files.move(this.temporaryFile.toPath(), this.file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            this.receiver.onDeltaReceived(this.channel, this.file, this.header.getSize());
+        } else {
+            this.temporaryFile.delete();
+        }
+        this.outgoing = ByteBuffer.allocate(Byte.BYTES).put(verified ? FileReceiver.STATUS_RECEIVED : FileReceiver.STATUS_FAILED).flip();
+        this.stage = Stage.STATUS;
+        key.interestOps(SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Closes the existing copy and the rebuilt file.
+     * @throws IOException Thrown if a file cannot be closed.
+     */
+    private void closeFiles() throws IOException {
+        try {
+            if (this.basisChannel != null) {
+                this.basisChannel.close();
+            }
+        } finally {
+            if (this.outputChannel != null) {
+                this.outputChannel.close();
+            }
+        }
+    }
+
+    @Override
+    public void onClosed(final SocketChannel channel) {
+        if (this.finished) {
+            return;
+        }
+        // An incomplete delta cannot be resumed, so the rebuilt file is discarded.
+        try {
+            this.closeFiles();
+        } catch (IOException ex) {
+            // Silently ignore issues closing the files.
+        }
+        if (this.temporaryFile != null) {
+            this.temporaryFile.delete();
+        }
+    }
+
+}
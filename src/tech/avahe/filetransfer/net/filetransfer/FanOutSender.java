@@ -0,0 +1,448 @@
+package tech.avahe.filetransfer.net.filetransfer;
+
+import tech.avahe.filetransfer.metrics.Counter;
+import tech.avahe.filetransfer.metrics.Metrics;
+import tech.avahe.filetransfer.net.TCPClient;
+import tech.avahe.filetransfer.net.peerdiscovery.PeerInfo;
+import tech.avahe.filetransfer.threading.Threads;
+import tech.avahe.filetransfer.util.BufferPool;
+import tech.avahe.filetransfer.util.BufferPool.PooledBuffer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+/**
+ * Sends one file to several peers at once, reading every chunk from disk only once.
+ *
+ * <p>Every peer has already been sent the file's header, and has answered with the chunks it is missing.
+ * The calling thread reads every chunk any peer is missing into a pooled buffer, computes its checksum once,
+ * and queues the buffer for each peer missing the chunk. Every peer has a thread of its own, which writes
+ * read-only views of the queued buffers to its connection, so all peers are written to concurrently
+ * and a buffer returns to the pool once the last peer has sent it.</p>
+ *
+ * <p>Every peer may have at most {@link #WINDOW} chunks queued, so the reader is held back by slow peers instead
+ * of filling memory. If a peer holds back the reader while other peers are waiting for chunks, it is detached:
+ * it sends its remaining chunks by itself, reading them from disk, at its own pace, while the other peers
+ * carry on sharing the reader. Chunks a peer asks for again in a later offer are also read by the peer itself.</p>
+ *
+ * @author Avahe
+ */
+final class FanOutSender {
+
+    /**
+     * The maximum number of chunks queued for a single peer.
+     */
+    static final int WINDOW = 4;
+
+    /**
+     * The time the reader waits for a peer's window before checking whether the peer holds back other peers.
+     */
+    private static final long STALL_CHECK_MILLIS = 200;
+
+    private static final BufferPool CHUNK_POOL = new BufferPool(ChunkMap.CHUNK_SIZE, WINDOW + 1);
+    private static final ThreadFactory WRITER_THREAD_FACTORY = Threads.newThreadFactory("file-transfer-fan-out");
+    private static final Counter CHUNKS_READ = Metrics.counter("transfer.fan-out-chunks-read");
+    private static final Counter PEERS_DETACHED = Metrics.counter("transfer.fan-out-peers-detached");
+
+    /**
+     * Ends the queue of a peer which received every chunk from the reader.
+     */
+    private static final Chunk END = new Chunk(-1, null, 0, 0);
+
+    private final FileChannel fileChannel;
+    private final FileHeader header;
+    private final List<Target> targets;
+
+    /**
+     * Creates a sender of a file to several peers.
+     * @param fileChannel The channel of the file to send.
+     * @param header The header which was sent to every peer. It describes the whole file, without compression.
+     * @param targets The peers to send the file to.
+     */
+    FanOutSender(final FileChannel fileChannel, final FileHeader header, final List<Target> targets) {
+        this.fileChannel = fileChannel;
+        this.header = header;
+        this.targets = targets;
+    }
+
+    /**
+     * Sends the file to every peer, and waits until every peer has received it or failed.
+     * The outcome of every peer is kept in its {@link Target}.
+     */
+    void send() {
+        final List<Thread> writers = new ArrayList<>(this.targets.size());
+        final BitSet needed = new BitSet();
+        for (final Target target : this.targets) {
+            needed.or(target.missing);
+            final Thread writer = WRITER_THREAD_FACTORY.newThread(() -> this.write(target));
+            writers.add(writer);
+            writer.start();
+        }
+        try {
+            this.read(needed);
+        } catch (IOException | InterruptedException ex) {
+            // The peers still attached to the reader can no longer be sent the file.
+            // Detached peers read their chunks by themselves, so they carry on.
+            for (final Target target : this.targets) {
+                if (target.isAttached()) {
+                    target.fail(ex instanceof IOException ? (IOException) ex : new IOException("Interrupted while reading.", ex));
+                }
+            }
+            if (ex instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+        } finally {
+            for (final Target target : this.targets) {
+                target.queue.add(END);
+            }
+        }
+        for (final Thread writer : writers) {
+            try {
+                writer.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                this.targets.forEach(target -> target.fail(new IOException("Interrupted while sending.", ex)));
+                return;
+            }
+        }
+    }
+
+    /**
+     * Reads every needed chunk once, and queues it for every attached peer which is missing it.
+     * @param needed The chunks any peer is missing.
+     * @throws IOException Thrown if the file cannot be read.
+     * @throws InterruptedException Thrown if the thread is interrupted while waiting for a peer.
+     */
+    private void read(final BitSet needed) throws IOException, InterruptedException {
+        final CRC32C checksum = new CRC32C();
+        for (int chunk = needed.nextSetBit(0); chunk >= 0; chunk = needed.nextSetBit(chunk + 1)) {
+            if (!this.anyAttached(chunk)) {
+                continue;
+            }
+            final long position = (long) chunk * ChunkMap.CHUNK_SIZE;
+            final int length = (int) Math.min(ChunkMap.CHUNK_SIZE, this.header.getSize() - position);
+            final PooledBuffer pooledBuffer = CHUNK_POOL.acquire();
+            try {
+                final ByteBuffer buffer = pooledBuffer.buffer();
+                buffer.clear().limit(length);
+                while (buffer.hasRemaining()) {
+                    if (this.fileChannel.read(buffer, position + buffer.position()) < 0) {
+                        throw new EOFException("File ended before chunk " + chunk + " was read.");
+                    }
+                }
+                buffer.flip();
+                checksum.reset();
+                checksum.update(buffer);
+                buffer.rewind();
+                FanOutSender.CHUNKS_READ.increment();
+                for (final Target target : this.targets) {
+                    if (target.isAttached() && target.missing.get(chunk) && this.acquireWindow(target, chunk)) {
+                        target.enqueue(new Chunk(chunk, pooledBuffer, length, (int) checksum.getValue()));
+                    }
+                }
+            } finally {
+                pooledBuffer.release();
+            }
+        }
+    }
+
+    /**
+     * @param chunk The index of a chunk.
+     * @return If any peer still attached to the reader is missing the chunk.
+     */
+    private boolean anyAttached(final int chunk) {
+        for (final Target target : this.targets) {
+            if (target.isAttached() && target.missing.get(chunk)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Waits until a chunk may be queued for a peer, or detaches the peer if it holds back the other peers.
+     * @param target The peer to queue the chunk for.
+     * @param chunk The index of the chunk.
+     * @return If the chunk may be queued. If not, the peer has failed or been detached.
+     * @throws InterruptedException Thrown if the thread is interrupted while waiting.
+     */
+    private boolean acquireWindow(final Target target, final int chunk) throws InterruptedException {
+        while (!target.window.tryAcquire(STALL_CHECK_MILLIS, TimeUnit.MILLISECONDS)) {
+            if (!target.isAttached()) {
+                return false;
+            }
+            for (final Target other : this.targets) {
+                if (other != target && other.isAttached() && other.window.availablePermits() > 0) {
+                    target.detach(chunk);
+                    FanOutSender.PEERS_DETACHED.increment();
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sends the queued chunks to a peer, then the chunks it has to read by itself, until the peer has every chunk.
+     * @param target The peer to send to.
+     */
+    private void write(final Target target) {
+        final ByteBuffer indexBuffer = ByteBuffer.allocate(Integer.BYTES);
+        final ByteBuffer checksumBuffer = ByteBuffer.allocate(Integer.BYTES);
+        try {
+            if (target.missing.isEmpty()) {
+                // The peer already had the whole file, and has ended the transfer.
+                target.complete();
+                return;
+            }
+            BitSet missing = (BitSet) target.missing.clone();
+            while (true) {
+                final Chunk chunk = target.queue.take();
+                if (chunk == END) {
+                    break;
+                }
+                if (chunk.pooledBuffer == null) {
+                    // Detached: every chunk from here on is read by this peer itself.
+                    break;
+                }
+                try {
+                    final ByteBuffer body = chunk.pooledBuffer.buffer().asReadOnlyBuffer();
+                    body.limit(chunk.length);
+                    indexBuffer.clear();
+                    indexBuffer.putInt(chunk.index).flip();
+                    target.tcpClient.send(indexBuffer);
+                    target.tcpClient.send(body);
+                    checksumBuffer.clear();
+                    checksumBuffer.putInt(chunk.checksum).flip();
+                    target.tcpClient.send(checksumBuffer);
+                } finally {
+                    chunk.pooledBuffer.release();
+                    target.window.release();
+                }
+                missing.clear(chunk.index);
+            }
+            target.checkFailure();
+            // The chunks of the first offer which were not queued, and the chunks of every later offer, are read here.
+            final CRC32C checksum = new CRC32C();
+            final ChecksumWindow checksumWindow = new ChecksumWindow(this.fileChannel);
+            this.sendFromDisk(target, missing, checksum, checksumWindow, indexBuffer, checksumBuffer);
+            for (int offer = 1; offer < FileTransferClient.MAX_OFFERS; offer++) {
+                missing = FileTransferClient.readMissing(target.tcpClient, ChunkMap.chunkCount(this.header.getSize()));
+                if (missing.isEmpty()) {
+                    target.complete();
+                    return;
+                }
+                this.sendFromDisk(target, missing, checksum, checksumWindow, indexBuffer, checksumBuffer);
+            }
+            throw new IOException("The peer kept requesting chunks of " + this.header.getName() + ".");
+        } catch (IOException ex) {
+            target.fail(ex);
+        } catch (InterruptedException ex) {
+            target.fail(new IOException("Interrupted while sending.", ex));
+        }
+    }
+
+    /**
+     * Sends chunks to a single peer, reading them from disk.
+     * A peer on its own has nothing to share the chunks with, so they are sent without a copy into user space.
+     * @param target The peer to send to.
+     * @param chunks The chunks to send.
+     * @param checksum The checksum to compute the chunks' checksums with.
+     * @param checksumWindow The window of the file the checksums are computed over.
+     * @param indexBuffer The buffer to send the index of every chunk through.
+     * @param checksumBuffer The buffer to send the checksum of every chunk through.
+     * @throws IOException Thrown if the file cannot be read, or if the connection fails.
+     */
+    private void sendFromDisk(final Target target, final BitSet chunks, final CRC32C checksum, final ChecksumWindow checksumWindow,
+                              final ByteBuffer indexBuffer, final ByteBuffer checksumBuffer) throws IOException {
+        for (int chunk = chunks.nextSetBit(0); chunk >= 0; chunk = chunks.nextSetBit(chunk + 1)) {
+            final long position = (long) chunk * ChunkMap.CHUNK_SIZE;
+            final int length = (int) Math.min(ChunkMap.CHUNK_SIZE, this.header.getSize() - position);
+            indexBuffer.clear();
+            indexBuffer.putInt(chunk).flip();
+            target.tcpClient.send(indexBuffer);
+            checksum.reset();
+            checksumWindow.update(checksum, position, length);
+            target.tcpClient.send(this.fileChannel, position, length);
+            FanOutSender.CHUNKS_READ.increment();
+            checksumBuffer.clear();
+            checksumBuffer.putInt((int) checksum.getValue()).flip();
+            target.tcpClient.send(checksumBuffer);
+        }
+    }
+
+    /**
+     * A chunk read by the reader, queued for a peer. Every queued chunk holds a reference to its buffer.
+     */
+    private static final class Chunk {
+
+        private final int index;
+        private final PooledBuffer pooledBuffer;
+        private final int length;
+        private final int checksum;
+
+        /**
+         * @param index The index of the chunk within the file.
+         * @param pooledBuffer The buffer holding the chunk, or null for the end of a queue.
+         * @param length The number of bytes in the chunk.
+         * @param checksum The CRC32C checksum of the chunk.
+         */
+        private Chunk(final int index, final PooledBuffer pooledBuffer, final int length, final int checksum) {
+            this.index = index;
+            this.pooledBuffer = pooledBuffer;
+            this.length = length;
+            this.checksum = checksum;
+        }
+
+    }
+
+    /**
+     * A peer the file is sent to, over a connection which has already been sent the file's header.
+     */
+    static final class Target {
+
+        private final PeerInfo peerInfo;
+        private final TCPClient tcpClient;
+        private final BitSet missing;
+        private final LinkedBlockingQueue<Chunk> queue = new LinkedBlockingQueue<>();
+        private final Semaphore window = new Semaphore(WINDOW);
+        private final long startNanos;
+        private volatile boolean attached = true;
+        private boolean sent = false;
+        private IOException failure;
+        private long elapsedNanos;
+
+        /**
+         * Creates a peer to send the file to.
+         * @param peerInfo The information of the peer.
+         * @param tcpClient The client connected to the peer.
+         * @param missing The chunks the peer answered the header with.
+         * @param startNanos The time the transfer to the peer started, from {@link System#nanoTime()}.
+         */
+        Target(final PeerInfo peerInfo, final TCPClient tcpClient, final BitSet missing, final long startNanos) {
+            this.peerInfo = peerInfo;
+            this.tcpClient = tcpClient;
+            this.missing = missing;
+            this.startNanos = startNanos;
+        }
+
+        /**
+         * @return If the reader queues chunks for the peer.
+         */
+        private boolean isAttached() {
+            return this.attached;
+        }
+
+        /**
+         * Queues a chunk for the peer, unless the peer has failed.
+         * @param chunk The chunk to queue. A reference to its buffer is taken if it is queued.
+         */
+        private synchronized void enqueue(final Chunk chunk) {
+            if (this.failure == null) {
+                chunk.pooledBuffer.retain();
+                this.queue.add(chunk);
+            } else {
+                this.window.release();
+            }
+        }
+
+        /**
+         * Stops the reader from queueing chunks for the peer, which then sends its remaining chunks by itself.
+         * @param chunk The first chunk which was not queued.
+         */
+        private void detach(final int chunk) {
+            this.attached = false;
+            this.queue.add(new Chunk(chunk, null, 0, 0));
+        }
+
+        /**
+         * Marks the peer as having received the file.
+         */
+        private synchronized void complete() {
+            this.sent = true;
+            this.elapsedNanos = System.nanoTime() - this.startNanos;
+        }
+
+        /**
+         * Marks the peer as failed, closes its connection, and releases the chunks queued for it.
+         * @param failure The reason the peer failed.
+         */
+        private synchronized void fail(final IOException failure) {
+            if (this.sent || this.failure != null) {
+                return;
+            }
+            this.failure = failure;
+            this.attached = false;
+            this.elapsedNanos = System.nanoTime() - this.startNanos;
+            try {
+                this.tcpClient.close();
+            } catch (IOException ignored) {
+                // Silently ignore issues closing the failed connection.
+            }
+            for (Chunk chunk = this.queue.poll(); chunk != null; chunk = this.queue.poll()) {
+                if (chunk.pooledBuffer != null) {
+                    chunk.pooledBuffer.release();
+                    this.window.release();
+                }
+            }
+            // The queue ends here, as nothing is queued for a failed peer anymore.
+            this.queue.add(END);
+        }
+
+        /**
+         * @throws IOException Thrown if the peer has failed.
+         */
+        private synchronized void checkFailure() throws IOException {
+            if (this.failure != null) {
+                throw this.failure;
+            }
+        }
+
+        /**
+         * @return The information of the peer.
+         */
+        PeerInfo getPeerInfo() {
+            return this.peerInfo;
+        }
+
+        /**
+         * @return The client connected to the peer.
+         */
+        TCPClient getTcpClient() {
+            return this.tcpClient;
+        }
+
+        /**
+         * @return If the peer has received the file.
+         */
+        synchronized boolean isSent() {
+            return this.sent;
+        }
+
+        /**
+         * @return The reason the peer failed, or null if it has not failed.
+         */
+        synchronized IOException getFailure() {
+            return this.failure;
+        }
+
+        /**
+         * @return The time between the start of the transfer and the peer receiving the file or failing, in nanoseconds.
+         */
+        synchronized long getElapsedNanos() {
+            return this.elapsedNanos;
+        }
+
+    }
+
+}
@@ -0,0 +1,245 @@
+package tech.avahe.filetransfer.net.filetransfer;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The header which precedes the contents of every file sent over a transfer connection.
+ *
+ * <p>The encoded header is prefixed with its length (an <code>int</code>), followed by the
+ * length of the file name (an unsigned <code>short</code>), the UTF-8 encoded file name,
+ * the size of the file in bytes (a <code>long</code>), the version of the file's contents (a <code>long</code>),
+ * the offset and length of the range of the file which follows the header (two <code>longs</code>),
+ * and a <code>byte</code> of flags.</p>
+ *
+ * <p>A file may be split into several ranges, each of which is sent over its own connection.
+ * Alternatively, a whole file may be sent as a delta against the copy the receiver already has.
+ * The chunks of a range may be compressed, if the receiver accepts it. A header may also precede an archive of a
+ * whole directory, in which case its name is the name of the directory and its size is zero.</p>
+ *
+ * <p>The version is usually the last modification time of the sent file, and tells a receiver whether chunks it
+ * received during an interrupted transfer still belong to the file. A version of zero means the version is unknown.</p>
+ *
+ * @author Avahe
+ */
+public class FileHeader {
+
+    /**
+     * The number of bytes used to prefix the encoded header with its length.
+     */
+    public static final int LENGTH_PREFIX_BYTES = Integer.BYTES;
+
+    /**
+     * The maximum number of bytes an encoded file name may use.
+     */
+    public static final int MAX_NAME_BYTES = 0xFFFF;
+
+    /**
+     * The flag of a header which is followed by a delta instead of chunks.
+     */
+    private static final byte FLAG_DELTA = 1;
+
+    /**
+     * The flag of a header whose sender offers to compress the chunks of the range.
+     */
+    private static final byte FLAG_COMPRESSION = 2;
+
+    /**
+     * The flag of a header which is followed by an archive of a directory.
+     */
+    private static final byte FLAG_ARCHIVE = 4;
+
+    private final String name;
+    private final long size;
+    private final long version;
+    private final long offset;
+    private final long length;
+    private final byte flags;
+
+    /**
+     * Creates a header for a file which is transferred as a whole.
+     * @param name The name of the file.
+     * @param size The size of the file in bytes.
+     */
+    public FileHeader(final String name, final long size) {
+        this(name, size, false);
+    }
+
+    /**
+     * Creates a header for a file which is transferred as a whole.
+     * @param name The name of the file.
+     * @param size The size of the file in bytes.
+     * @param delta If the file is sent as a delta against the copy the receiver already has.
+     */
+    public FileHeader(final String name, final long size, final boolean delta) {
+        this(name, size, 0, 0, size, delta ? FLAG_DELTA : 0);
+    }
+
+    /**
+     * Creates a header for a range of a file being transferred.
+     * @param name The name of the file.
+     * @param size The size of the whole file in bytes.
+     * @param offset The position within the file at which the range starts.
+     * @param length The number of bytes in the range.
+     * @throws IllegalArgumentException Thrown if the range does not lie within the file.
+     */
+    public FileHeader(final String name, final long size, final long offset, final long length) {
+        this(name, size, 0, offset, length, (byte) 0);
+    }
+
+    /**
+     * Creates a header for a range of a file being transferred.
+     * @param name The name of the file.
+     * @param size The size of the whole file in bytes.
+     * @param version The version of the file's contents, or zero if it is unknown.
+     * @param offset The position within the file at which the range starts.
+     * @param length The number of bytes in the range.
+     * @param flags The flags of the header.
+     * @throws IllegalArgumentException Thrown if the range does not lie within the file,
+     * or if a delta is not of the whole file.
+     */
+    private FileHeader(final String name, final long size, final long version, final long offset, final long length,
+                       final byte flags) {
+        if (size < 0 || offset < 0 || length < 0 || offset > size - length) {
+            throw new IllegalArgumentException("Invalid range " + offset + "+" + length + " of a file of " + size + " bytes.");
+        }
+        this.name = name;
+        this.size = size;
+        this.version = version;
+        this.offset = offset;
+        this.length = length;
+        if ((flags & FLAG_DELTA) != 0 && (offset != 0 || length != size)) {
+            throw new IllegalArgumentException("A delta must cover the whole file.");
+        }
+        this.flags = flags;
+    }
+
+    /**
+     * Creates a header for a directory which is transferred as an archive.
+     * @param name The name of the directory.
+     * @return The header of the archive.
+     */
+    public static FileHeader archive(final String name) {
+        return new FileHeader(name, 0, 0, 0, 0, FLAG_ARCHIVE);
+    }
+
+    /**
+     * @return The name of the file.
+     */
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * @return The size of the whole file in bytes.
+     */
+    public long getSize() {
+        return this.size;
+    }
+
+    /**
+     * @return The version of the file's contents, or zero if it is unknown.
+     */
+    public long getVersion() {
+        return this.version;
+    }
+
+    /**
+     * @return The position within the file at which the transferred range starts.
+     */
+    public long getOffset() {
+        return this.offset;
+    }
+
+    /**
+     * @return The number of bytes in the transferred range.
+     */
+    public long getLength() {
+        return this.length;
+    }
+
+    /**
+     * @return If the file is sent as a delta against the copy the receiver already has.
+     */
+    public boolean isDelta() {
+        return (this.flags & FLAG_DELTA) != 0;
+    }
+
+    /**
+     * @return If the header is followed by an archive of a directory.
+     */
+    public boolean isArchive() {
+        return (this.flags & FLAG_ARCHIVE) != 0;
+    }
+
+    /**
+     * @return If the sender offers to compress the chunks of the range.
+     */
+    public boolean isCompressed() {
+        return (this.flags & FLAG_COMPRESSION) != 0;
+    }
+
+    /**
+     * @return A copy of this header, whose sender offers to compress the chunks of the range.
+     */
+    public FileHeader withCompression() {
+        return new FileHeader(this.name, this.size, this.version, this.offset, this.length, (byte) (this.flags | FLAG_COMPRESSION));
+    }
+
+    /**
+     * @param version The version of the file's contents, such as its last modification time.
+     * @return A copy of this header, which describes the given version of the file.
+     */
+    public FileHeader withVersion(final long version) {
+        return new FileHeader(this.name, this.size, version, this.offset, this.length, this.flags);
+    }
+
+    /**
+     * Encodes the header, including its length prefix.
+     * @return A buffer containing the encoded header, ready to be written to a channel.
+     * @throws IllegalArgumentException Thrown if the encoded file name is too long.
+     */
+    public ByteBuffer encode() {
+        final byte[] nameBytes = this.name.getBytes(StandardCharsets.UTF_8);
+        if (nameBytes.length > MAX_NAME_BYTES) {
+            throw new IllegalArgumentException("File name is too long: " + this.name);
+        }
+        final int length = Short.BYTES + nameBytes.length + 4 * Long.BYTES + Byte.BYTES;
+        final ByteBuffer buffer = ByteBuffer.allocate(LENGTH_PREFIX_BYTES + length);
+        buffer.putInt(length);
+        buffer.putShort((short) nameBytes.length);
+        buffer.put(nameBytes);
+        buffer.putLong(this.size);
+        buffer.putLong(this.version);
+        buffer.putLong(this.offset);
+        buffer.putLong(this.length);
+        buffer.put(this.flags);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Decodes a header from a buffer which contains the header without its length prefix.
+     * @param buffer The buffer to decode from.
+     * @return The decoded header.
+     * @throws IllegalArgumentException Thrown if the buffer does not contain a valid header.
+     */
+    public static FileHeader decode(final ByteBuffer buffer) {
+        if (buffer.remaining() < Short.BYTES) {
+            throw new IllegalArgumentException("Invalid file header.");
+        }
+        final int nameLength = buffer.getShort() & 0xFFFF;
+        if (buffer.remaining() != nameLength + 4 * Long.BYTES + Byte.BYTES) {
+            throw new IllegalArgumentException("Invalid file header.");
+        }
+        final byte[] nameBytes = new byte[nameLength];
+        buffer.get(nameBytes);
+        final long size = buffer.getLong();
+        final long version = buffer.getLong();
+        final long offset = buffer.getLong();
+        final long length = buffer.getLong();
+        final byte flags = buffer.get();
+        return new FileHeader(new String(nameBytes, StandardCharsets.UTF_8), size, version, offset, length, flags);
+    }
+
+}
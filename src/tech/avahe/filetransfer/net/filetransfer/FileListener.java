@@ -0,0 +1,16 @@
+package tech.avahe.filetransfer.net.filetransfer;
+
+import java.io.File;
+
+/**
+ * @author Avahe
+ */
+public interface FileListener {
+
+    /**
+     * Called when a file, or a whole directory, has been received completely.
+     * @param file The received file, or the root of the received directory.
+     */
+    void onFileReceived(final File file);
+
+}
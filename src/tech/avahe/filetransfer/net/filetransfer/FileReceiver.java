@@ -0,0 +1,951 @@
+package tech.avahe.filetransfer.net.filetransfer;
+
+import tech.avahe.filetransfer.common.Environment;
+import tech.avahe.filetransfer.common.Settings.Entry;
+import tech.avahe.filetransfer.net.ConnectionHandler;
+import tech.avahe.filetransfer.threading.Threads;
+import tech.avahe.filetransfer.util.BufferPool;
+import tech.avahe.filetransfer.util.BufferPool.PooledBuffer;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Receives files sent by a {@link FileTransferClient} and writes them to a directory.
+ *
+ * <p>Each connection carries a {@link FileHeader} describing a range of a file. The receiver answers with the
+ * chunks of that range it is still missing, and the sender then sends only those chunks, each prefixed with its
+ * index and followed by its CRC32C checksum. Once they have arrived, the receiver answers with the chunks it is
+ * still missing, until none are left.</p>
+ *
+ * <p>The target file is extended to its full size and its blocks are reserved before any data is written, and each
+ * chunk is streamed from the socket to its offset within the file through a pooled direct buffer, so it is never
+ * copied through the Java heap. The checksum is computed as the chunk lands, and a chunk whose checksum does not match is not
+ * recorded as received, so it is requested again in the next answer. Several ranges of the same file may be
+ * received at once, and the file's listeners are notified once all of its chunks have arrived and been verified.</p>
+ *
+ * <p>Files of at least {@link #getMappedThreshold()} bytes are instead written through memory mapped windows of
+ * {@link #MAPPED_WINDOW_SIZE} bytes over the extended file, and the socket reads straight into the mapped
+ * window, so not even the copy from the receive buffer into the page cache is made.</p>
+ *
+ * <p>Received chunks are forced to disk, through their mapped window or the file's channel, before they are
+ * recorded as received, so a resumed transfer never trusts chunks which were lost when the program or the system
+ * stopped. Chunks are forced in batches on a background thread, so a slow disk does not hold up the other connections
+ * sharing the receiver's I/O thread. A session only waits for its batches before it answers with the chunks it is
+ * still missing, and does not read from its connection in the meantime.</p>
+ *
+ * <p>If the sender offers to compress the chunks of a range, the receiver answers whether it accepts that before
+ * its first answer of missing chunks; see {@link #setCompressionAccepted(boolean)}. Compressed chunks are inflated
+ * block by block into the same buffer, and their checksum is computed over the inflated bytes.</p>
+ *
+ * <p>The received chunks of every incomplete file are recorded in a {@link ChunkMap}, which is persisted
+ * under {@link Environment#PROGRAM_DIR}. If a transfer is interrupted, the partial file is kept,
+ * and a later transfer of the same file from the same peer only needs to send the missing chunks.</p>
+ *
+ * <p>A file whose header is marked as a {@link FileHeader#isDelta() delta} is instead handed to a
+ * {@link DeltaSession}, which rebuilds it from the copy in the directory and the changes sent by the peer.
+ * A header marked as an {@link FileHeader#isArchive() archive} is handed to an {@link ArchiveSession},
+ * which recreates a whole directory tree sent over the connection.</p>
+ *
+ * <p>The receiver creates a non-blocking {@link ConnectionHandler} for every connection
+ * accepted by a {@link tech.avahe.filetransfer.net.TCPServer}.</p>
+ *
+ * @author Avahe
+ */
+public class FileReceiver implements ConnectionHandler.Factory {
+
+    /**
+     * The largest header the receiver will accept.
+     */
+    private static final int MAX_HEADER_BYTES = 64 * 1024;
+
+    /**
+     * The status a receiver answers with once it has received a delta or an archive.
+     */
+    static final byte STATUS_RECEIVED = 0;
+
+    /**
+     * The status a receiver answers with if a delta or an archive could not be received correctly.
+     */
+    static final byte STATUS_FAILED = 1;
+
+    /**
+     * The capacity of the buffers chunks are received into.
+     */
+    private static final int RECEIVE_BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * The pool of receive buffers shared by all receivers.
+     */
+    private static final BufferPool RECEIVE_BUFFER_POOL = new BufferPool(RECEIVE_BUFFER_SIZE, 16);
+
+    /**
+     * The number of bytes of a file mapped at once, when the file is received through memory mapped windows.
+     * Windows are aligned to their size, which is a multiple of the chunk size, so a chunk never spans two windows.
+     */
+    public static final int MAPPED_WINDOW_SIZE = 16 * ChunkMap.CHUNK_SIZE;
+
+    /**
+     * The block size assumed if the file system of a received file does not report its own.
+     */
+    private static final long DEFAULT_BLOCK_SIZE = 4096;
+
+    /**
+     * The threads received chunks are forced to disk and recorded on.
+     */
+    private static final ExecutorService FORCE_EXECUTOR = Executors.newCachedThreadPool(
+            Threads.newDaemonThreadFactory("file-receiver-force"));
+
+    private final File directory;
+    private final File recordDirectory;
+    private final CopyOnWriteArraySet<FileListener> fileListeners = new CopyOnWriteArraySet<>();
+    private final ConcurrentHashMap<File, ChunkMap> chunkMaps = new ConcurrentHashMap<>();
+    // The blocks of received files being reserved, keyed by file.
+    private final ConcurrentHashMap<File, CompletableFuture<Void>> reservations = new ConcurrentHashMap<>();
+    private volatile boolean compressionAccepted = true;
+    private volatile long mappedThreshold = Long.parseLong(Entry.MAPPED_RECEIVE_THRESHOLD.getDefaultValue());
+
+    /**
+     * Creates a receiver which writes files to {@link Environment#DOWNLOAD_DEFAULT_DIR}.
+     */
+    public FileReceiver() {
+        this(new File(Environment.DOWNLOAD_DEFAULT_DIR));
+    }
+
+    /**
+     * Creates a receiver which writes files to the given directory.
+     * @param directory The directory in which received files are stored.
+     */
+    public FileReceiver(final File directory) {
+        this(directory, new File(Environment.PROGRAM_DIR, "transfers"));
+    }
+
+    /**
+     * Creates a receiver which writes files to the given directory.
+     * @param directory The directory in which received files are stored.
+     * @param recordDirectory The directory in which the progress of incomplete files is recorded.
+     */
+    public FileReceiver(final File directory, final File recordDirectory) {
+        this.directory = directory;
+        this.recordDirectory = recordDirectory;
+    }
+
+    /**
+     * @return The directory in which received files are stored.
+     */
+    public File getDirectory() {
+        return this.directory;
+    }
+
+    /**
+     * Sets whether the receiver accepts compressed chunks from senders which offer them.
+     * Declining saves processor time on the receiving side, at the cost of transferring more bytes.
+     * @param compressionAccepted If compressed chunks are accepted.
+     */
+    public void setCompressionAccepted(final boolean compressionAccepted) {
+        this.compressionAccepted = compressionAccepted;
+    }
+
+    /**
+     * @return If the receiver accepts compressed chunks from senders which offer them.
+     */
+    public boolean isCompressionAccepted() {
+        return this.compressionAccepted;
+    }
+
+    /**
+     * Sets the size from which files are received through memory mapped windows rather than a receive buffer.
+     * Mapping pays off for very large files, while the cost of mapping and unmapping outweighs it for small ones.
+     * The threshold applies to transfers which start after it has been set.
+     * @param mappedThreshold The size in bytes from which files are mapped, or a negative number to never map files.
+     * @see Entry#MAPPED_RECEIVE_THRESHOLD
+     */
+    public void setMappedThreshold(final long mappedThreshold) {
+        this.mappedThreshold = mappedThreshold;
+    }
+
+    /**
+     * @return The size in bytes from which files are received through memory mapped windows,
+     * or a negative number if files are never mapped.
+     */
+    public long getMappedThreshold() {
+        return this.mappedThreshold;
+    }
+
+    @Override
+    public ConnectionHandler create(final SocketChannel channel) {
+        return new Session(channel);
+    }
+
+    /**
+     * Finds the record of a file's received chunks.
+     *
+     * <p>Records are identified by the sending peer, the name of the file and its size,
+     * so a file is only resumed from the same peer. A record also holds the version of the file it describes,
+     * and is discarded if the sender's version differs, so a file whose contents changed is received in full.</p>
+     *
+     * @param channel The channel of the connection the file is received from.
+     * @param file The file being received.
+     * @param size The size of the file.
+     * @param version The version of the file's contents, as sent by the sender.
+     * @return The record of the file's received chunks.
+     * @throws IOException Thrown if the address of the peer cannot be determined.
+     */
+    private ChunkMap getChunkMap(final SocketChannel channel, final File file, final long size, final long version) throws IOException {
+        final File recordFile = this.getRecordFile(channel, file, size);
+        return this.chunkMaps.compute(recordFile, (key, chunkMap) -> chunkMap == null || chunkMap.isComplete()
+                || chunkMap.getVersion() != version ? new ChunkMap(recordFile, file, size, version) : chunkMap);
+    }
+
+    /**
+     * Extends a file to its full size, and reserves the disk blocks of the part it was extended by on the force executor.
+     *
+     * <p>The full length is set up front, so ranges received in parallel, which all set the same length, cannot
+     * truncate each other's data. Setting the length only creates a sparse file, so every block beyond the previous
+     * end of the file is then allocated by writing its last byte, in order, before any chunk is received. The file
+     * is laid out as contiguously as the file system allows, and the disk filling up fails the transfer before its
+     * body is sent rather than halfway through it. The bytes written are zeros, like the rest of the extended part.</p>
+     *
+     * <p>Every range of the file received while the blocks are reserved waits for the same reservation.</p>
+     *
+     * @param file The file being received.
+     * @param randomAccessFile The file, opened for writing.
+     * @param size The size of the file.
+     * @return The reservation of the file's blocks, which completes once no block of the file is being written,
+     * and completes exceptionally with an {@link UncheckedIOException} if the blocks cannot be written.
+     * @throws IOException Thrown if the length of the file cannot be set.
+     */
+    private CompletableFuture<Void> extend(final File file, final RandomAccessFile randomAccessFile, final long size) throws IOException {
+        synchronized (this.reservations) {
+            final CompletableFuture<Void> pending = this.reservations.get(file);
+            if (pending != null) {
+                return pending;
+            }
+            final long length = randomAccessFile.length();
+            if (length == size) {
+                return CompletableFuture.completedFuture(null);
+            }
+            randomAccessFile.setLength(size);
+            if (length > size) {
+                return CompletableFuture.completedFuture(null);
+            }
+            final CompletableFuture<Void> reservation = CompletableFuture.runAsync(
+                    () -> FileReceiver.reserveBlocks(file, length, size), FORCE_EXECUTOR);
+            this.reservations.put(file, reservation);
+            // Attached after the reservation is published, so it is removed even if it has already completed.
+            reservation.whenComplete((result, ex) -> this.reservations.remove(file, reservation));
+            return reservation;
+        }
+    }
+
+    /**
+     * Allocates the blocks of a part of a file which holds no data yet, by writing a zero to the last byte of each block.
+     * @param file The file.
+     * @param from The position at which the part starts.
+     * @param to The position at which the part ends.
+     * @throws UncheckedIOException Thrown if the file cannot be written to.
+     */
+    private static void reserveBlocks(final File file, final long from, final long to) {
+        // The file is opened again, as the session's own channel is closed if its connection drops.
+        try (final FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            final long blockSize = FileReceiver.blockSize(file);
+            final ByteBuffer zero = ByteBuffer.allocate(1);
+            for (long blockEnd = from / blockSize * blockSize + blockSize - 1; ; blockEnd += blockSize) {
+                zero.clear();
+                fileChannel.write(zero, Math.min(blockEnd, to - 1));
+                if (blockEnd >= to - 1) {
+                    break;
+                }
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * @param file A file.
+     * @return The block size of the file system holding the file, or {@link #DEFAULT_BLOCK_SIZE} if it is unknown.
+     */
+    private static long blockSize(final File file) {
+        try {
+            final long blockSize = Files.getFileStore(file.toPath()).getBlockSize();
+            return blockSize > 0 ? blockSize : DEFAULT_BLOCK_SIZE;
+        } catch (IOException | UnsupportedOperationException ex) {
+            return DEFAULT_BLOCK_SIZE;
+        }
+    }
+
+    /**
+     * Finds the file in which the received chunks of a file are recorded.
+     * @param channel The channel of the connection the file is received from.
+     * @param file The file being received.
+     * @param size The size of the file.
+     * @return The record file, which may not exist.
+     * @throws IOException Thrown if the address of the peer cannot be determined.
+     */
+    private File getRecordFile(final SocketChannel channel, final File file, final long size) throws IOException {
+        final String peerAddress = ((InetSocketAddress) channel.getRemoteAddress()).getAddress().getHostAddress();
+        final String identity = peerAddress + "/" + file.getAbsolutePath() + "/" + size;
+        return new File(this.recordDirectory, UUID.nameUUIDFromBytes(identity.getBytes(StandardCharsets.UTF_8)) + ".chunks");
+    }
+
+    /**
+     * Called by a {@link DeltaSession} once it has replaced a file.
+     * Any record of an interrupted transfer of the file is discarded, as it describes the replaced contents.
+     * @param channel The channel of the connection the file was received from.
+     * @param file The received file.
+     * @param size The size of the file.
+     * @throws IOException Thrown if the address of the peer cannot be determined.
+     */
+    void onDeltaReceived(final SocketChannel channel, final File file, final long size) throws IOException {
+        final File recordFile = this.getRecordFile(channel, file, size);
+        this.chunkMaps.remove(recordFile);
+        recordFile.delete();
+        this.notifyFileReceived(file);
+    }
+
+    /**
+     * Notifies the listeners that a file has been received.
+     * @param file The received file, or the root of a received directory.
+     */
+    void notifyFileReceived(final File file) {
+        this.fileListeners.forEach(listener -> listener.onFileReceived(file));
+    }
+
+    /**
+     * The stages of a session.
+     */
+    private enum Stage {
+        HEADER,
+        OFFER,
+        CHUNK_INDEX,
+        CHUNK_ENCODING,
+        CHUNK_BODY,
+        BLOCK_LENGTH,
+        BLOCK_BODY,
+        CHUNK_CHECKSUM
+    }
+
+    /**
+     * Receives a single range of a file from a connection, one readiness event at a time.
+     */
+    private class Session implements ConnectionHandler {
+
+        private final SocketChannel channel;
+        private final ByteBuffer lengthBuffer = ByteBuffer.allocate(FileHeader.LENGTH_PREFIX_BYTES);
+        private final ByteBuffer indexBuffer = ByteBuffer.allocate(Integer.BYTES);
+        private final ByteBuffer checksumBuffer = ByteBuffer.allocate(Integer.BYTES);
+        private final ByteBuffer encodingBuffer = ByteBuffer.allocate(Byte.BYTES);
+        private final ByteBuffer blockLengthBuffer = ByteBuffer.allocate(Integer.BYTES);
+        private final CRC32C checksum = new CRC32C();
+        private PooledBuffer receiveBuffer;
+        private ByteBuffer compressedBlock;
+        private Inflater inflater;
+        private boolean compressed = false;
+        private boolean compressionAnswered = false;
+        private boolean mapped = false;
+        private MappedByteBuffer window;
+        private long windowPosition;
+        private ConnectionHandler delegate;
+        private Stage stage = Stage.HEADER;
+        private ByteBuffer headerBuffer;
+        private FileHeader header;
+        private File file;
+        private ChunkMap chunkMap;
+        private RandomAccessFile randomAccessFile;
+        private FileChannel fileChannel;
+        private int firstChunk;
+        private int endChunk;
+        private BitSet pendingChunks;
+        private final BitSet unforcedChunks = new BitSet();
+        // The batches of chunks being forced, one after the other, on the force executor.
+        private CompletableFuture<Void> forcing = CompletableFuture.completedFuture(null);
+        private volatile IOException forceFailure;
+        private ByteBuffer offer;
+        private int chunk;
+        private long position;
+        private long end;
+        private boolean received = false;
+
+        /**
+         * Creates a session for a newly accepted connection.
+         * @param channel The channel of the connection.
+         */
+        private Session(final SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void onReadable(final SelectionKey key) throws IOException {
+            if (this.delegate != null) {
+                this.delegate.onReadable(key);
+                return;
+            }
+            while (this.channel.isOpen()) {
+                switch (this.stage) {
+                    case HEADER:
+                        if (!this.readHeader()) {
+                            return;
+                        }
+                        if (this.delegate != null) {
+                            this.delegate.onReadable(key);
+                            return;
+                        }
+                        this.sendOffer(key);
+                        break;
+
+                    case OFFER:
+                        // Wait until the offer has been written.
+                        return;
+
+                    case CHUNK_INDEX:
+                        if (!FileReceiver.read(this.channel, this.indexBuffer)) {
+                            return;
+                        }
+                        this.startChunk(this.indexBuffer.getInt());
+                        this.indexBuffer.clear();
+                        break;
+
+                    case CHUNK_ENCODING:
+                        if (!FileReceiver.read(this.channel, this.encodingBuffer)) {
+                            return;
+                        }
+                        final byte encoding = this.encodingBuffer.get();
+                        this.encodingBuffer.clear();
+                        if (encoding == ChunkCompressor.RAW) {
+                            this.stage = Stage.CHUNK_BODY;
+                        } else if (encoding == ChunkCompressor.DEFLATE) {
+                            this.stage = Stage.BLOCK_LENGTH;
+                        } else {
+                            throw new IOException("Unknown chunk encoding: " + encoding);
+                        }
+                        break;
+
+                    case CHUNK_BODY:
+                        if (!this.readChunk()) {
+                            return;
+                        }
+                        this.stage = Stage.CHUNK_CHECKSUM;
+                        break;
+
+                    case BLOCK_LENGTH:
+                        if (!FileReceiver.read(this.channel, this.blockLengthBuffer)) {
+                            return;
+                        }
+                        this.startBlock(this.blockLengthBuffer.getInt());
+                        this.blockLengthBuffer.clear();
+                        break;
+
+                    case BLOCK_BODY:
+                        if (!FileReceiver.read(this.channel, this.compressedBlock)) {
+                            return;
+                        }
+                        this.inflateBlock();
+                        this.stage = this.position < this.end ? Stage.BLOCK_LENGTH : Stage.CHUNK_CHECKSUM;
+                        break;
+
+                    case CHUNK_CHECKSUM:
+                        if (!FileReceiver.read(this.channel, this.checksumBuffer)) {
+                            return;
+                        }
+                        final boolean verified = this.checksumBuffer.getInt() == (int) this.checksum.getValue();
+                        this.checksumBuffer.clear();
+                        this.pendingChunks.clear(this.chunk - this.firstChunk);
+                        if (verified) {
+                            this.unforcedChunks.set(this.chunk - this.firstChunk);
+                            if (this.unforcedChunks.cardinality() >= ChunkMap.PERSIST_INTERVAL) {
+                                this.forceChunks();
+                            }
+                        }
+                        // A corrupted chunk is still missing, so the next offer requests it again.
+                        if (this.pendingChunks.isEmpty()) {
+                            this.sendOffer(key);
+                        } else {
+                            this.stage = Stage.CHUNK_INDEX;
+                        }
+                        break;
+                }
+            }
+        }
+
+        @Override
+        public void onWritable(final SelectionKey key) throws IOException {
+            if (this.delegate != null) {
+                this.delegate.onWritable(key);
+            } else if (this.stage == Stage.OFFER) {
+                if (this.offer == null) {
+                    this.prepareOffer();
+                }
+                this.flushOffer(key);
+            } else {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        /**
+         * Reads the file header as far as the available data allows, and opens the target file once it is complete.
+         * If the file is sent as a delta or an archive, a {@link DeltaSession} or an {@link ArchiveSession} is created instead.
+         * @return If the header has been read completely.
+         * @throws IOException Thrown if the header is invalid, or if the target file cannot be created.
+         */
+        private boolean readHeader() throws IOException {
+            if (this.headerBuffer == null) {
+                if (!FileReceiver.read(this.channel, this.lengthBuffer)) {
+                    return false;
+                }
+                final int headerLength = this.lengthBuffer.getInt();
+                if (headerLength <= 0 || headerLength > MAX_HEADER_BYTES) {
+                    throw new IOException("Invalid header length: " + headerLength);
+                }
+                this.headerBuffer = ByteBuffer.allocate(headerLength);
+            }
+            if (!FileReceiver.read(this.channel, this.headerBuffer)) {
+                return false;
+            }
+            try {
+                this.header = FileHeader.decode(this.headerBuffer);
+            } catch (IllegalArgumentException ex) {
+                throw new IOException(ex.getMessage(), ex);
+            }
+            final long rangeEnd = this.header.getOffset() + this.header.getLength();
+            if (this.header.getOffset() % ChunkMap.CHUNK_SIZE != 0 || (rangeEnd % ChunkMap.CHUNK_SIZE != 0 && rangeEnd != this.header.getSize())) {
+                throw new IOException("Range is not aligned to chunks.");
+            }
+            this.firstChunk = (int) (this.header.getOffset() / ChunkMap.CHUNK_SIZE);
+            this.endChunk = ChunkMap.chunkCount(rangeEnd);
+
+            this.file = FileReceiver.this.resolve(this.header.getName());
+            if (this.header.isArchive()) {
+                this.receiveBuffer = RECEIVE_BUFFER_POOL.acquire();
+                this.delegate = new ArchiveSession(FileReceiver.this, this.channel, this.file, this.receiveBuffer.buffer());
+                return true;
+            }
+            if (this.header.isDelta()) {
+                this.receiveBuffer = RECEIVE_BUFFER_POOL.acquire();
+                this.delegate = new DeltaSession(FileReceiver.this, this.channel, this.header, this.file, this.receiveBuffer.buffer());
+                return true;
+            }
+            this.compressed = this.header.isCompressed() && FileReceiver.this.compressionAccepted;
+            final long mappedThreshold = FileReceiver.this.mappedThreshold;
+            this.mapped = mappedThreshold >= 0 && this.header.getSize() >= mappedThreshold;
+            this.chunkMap = FileReceiver.this.getChunkMap(this.channel, this.file, this.header.getSize(), this.header.getVersion());
+            this.randomAccessFile = new RandomAccessFile(this.file, "rw");
+            // The first offer waits for the file's blocks to be reserved, so no chunk arrives while they are written.
+            this.forcing = FileReceiver.this.extend(this.file, this.randomAccessFile, this.header.getSize())
+                    .exceptionally(ex -> {
+                        this.forceFailure = ex.getCause() instanceof UncheckedIOException
+                                ? ((UncheckedIOException) ex.getCause()).getCause()
+                                : new IOException("Cannot reserve the blocks of " + this.file + ".", ex);
+                        return null;
+                    });
+            this.fileChannel = this.randomAccessFile.getChannel();
+            return true;
+        }
+
+        /**
+         * Starts sending the chunks of the range which are still missing to the sender.
+         * If received chunks are still being forced, the connection is left idle until they have been recorded,
+         * and the offer is sent once the connection is writable again.
+         * @param key The selection key of the connection.
+         * @throws IOException Thrown if the offer cannot be written.
+         */
+        private void sendOffer(final SelectionKey key) throws IOException {
+            this.forceChunks();
+            this.stage = Stage.OFFER;
+            if (!this.forcing.isDone()) {
+                key.interestOps(0);
+                this.forcing.whenComplete((result, ex) -> {
+                    try {
+                        key.interestOps(SelectionKey.OP_WRITE);
+                        key.selector().wakeup();
+                    } catch (CancelledKeyException cancelled) {
+                        // The connection was closed in the meantime.
+                    }
+                });
+                return;
+            }
+            this.prepareOffer();
+            this.flushOffer(key);
+        }
+
+        /**
+         * Encodes the chunks of the range which are still missing, once every received chunk has been recorded.
+         * @throws IOException Thrown if received chunks could not be forced or recorded.
+         */
+        private void prepareOffer() throws IOException {
+            if (this.forceFailure != null) {
+                throw this.forceFailure;
+            }
+            this.pendingChunks = this.chunkMap.getMissing(this.firstChunk, this.endChunk);
+            final ByteBuffer missing = ChunkMap.encodeMissing(this.pendingChunks);
+            if (this.header.isCompressed() && !this.compressionAnswered) {
+                // The first offer is preceded by the answer to the sender's offer of compression.
+                this.offer = ByteBuffer.allocate(Byte.BYTES + missing.remaining());
+                this.offer.put((byte) (this.compressed ? 1 : 0)).put(missing).flip();
+                this.compressionAnswered = true;
+            } else {
+                this.offer = missing;
+            }
+        }
+
+        /**
+         * Writes as much of the offer as the connection accepts.
+         * Once the offer has been written, the session either waits for the offered chunks,
+         * or finishes if no chunks were missing.
+         * @param key The selection key of the connection.
+         * @throws IOException Thrown if the offer cannot be written.
+         */
+        private void flushOffer(final SelectionKey key) throws IOException {
+            this.channel.write(this.offer);
+            if (this.offer.hasRemaining()) {
+                key.interestOps(SelectionKey.OP_WRITE);
+                return;
+            }
+            this.offer = null;
+            if (this.pendingChunks.isEmpty()) {
+                this.complete();
+            } else {
+                this.stage = Stage.CHUNK_INDEX;
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        /**
+         * Prepares to receive the body of a chunk.
+         * @param chunk The index of the chunk.
+         * @throws IOException Thrown if the chunk was not offered to the sender.
+         */
+        private void startChunk(final int chunk) throws IOException {
+            if (chunk < this.firstChunk || chunk >= this.endChunk || !this.pendingChunks.get(chunk - this.firstChunk)) {
+                throw new IOException("Unexpected chunk: " + chunk);
+            }
+            this.chunk = chunk;
+            this.position = (long) chunk * ChunkMap.CHUNK_SIZE;
+            this.end = Math.min(this.position + ChunkMap.CHUNK_SIZE, this.header.getSize());
+            this.checksum.reset();
+            // Mapped chunks are read straight into the window, so only compressed chunks need a receive buffer.
+            if (this.receiveBuffer == null && (!this.mapped || this.compressed)) {
+                this.receiveBuffer = RECEIVE_BUFFER_POOL.acquire();
+            }
+            this.stage = this.compressed ? Stage.CHUNK_ENCODING : Stage.CHUNK_BODY;
+        }
+
+        /**
+         * Writes the body of the current chunk to the file as far as the available data allows,
+         * adding every byte to the chunk's checksum.
+         * @return If the whole chunk has been written.
+         * @throws IOException Thrown if the connection was closed, or if the file cannot be written.
+         */
+        private boolean readChunk() throws IOException {
+            if (this.mapped) {
+                return this.readMappedChunk();
+            }
+            final ByteBuffer buffer = this.receiveBuffer.buffer();
+            while (this.position < this.end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), this.end - this.position));
+                final int read = this.channel.read(buffer);
+                if (read < 0) {
+                    throw new EOFException("Connection closed " + (this.end - this.position) + " bytes before the end of chunk " + this.chunk + ".");
+                }
+                if (read == 0) {
+                    // No more data is available until the next readiness event.
+                    return false;
+                }
+                buffer.flip();
+                this.write(buffer);
+            }
+            return true;
+        }
+
+        /**
+         * Reads the body of the current chunk straight into the mapped window of the file as far as the
+         * available data allows, adding every byte to the chunk's checksum.
+         * @return If the whole chunk has been written.
+         * @throws IOException Thrown if the connection was closed, or if the file cannot be mapped.
+         */
+        private boolean readMappedChunk() throws IOException {
+            final ByteBuffer window = this.mapWindow();
+            while (this.position < this.end) {
+                final int start = (int) (this.position - this.windowPosition);
+                window.limit((int) (this.end - this.windowPosition)).position(start);
+                final int read = this.channel.read(window);
+                if (read < 0) {
+                    throw new EOFException("Connection closed " + (this.end - this.position) + " bytes before the end of chunk " + this.chunk + ".");
+                }
+                if (read == 0) {
+                    // No more data is available until the next readiness event.
+                    return false;
+                }
+                window.flip().position(start);
+                this.checksum.update(window);
+                this.position += read;
+            }
+            return true;
+        }
+
+        /**
+         * Maps the window of the file containing the current chunk, unless it is already mapped.
+         * @return The window containing the current chunk.
+         * @throws IOException Thrown if the file cannot be mapped.
+         */
+        private MappedByteBuffer mapWindow() throws IOException {
+            final long windowPosition = this.position / MAPPED_WINDOW_SIZE * MAPPED_WINDOW_SIZE;
+            if (this.window == null || this.windowPosition != windowPosition) {
+                if (this.window != null) {
+                    // The chunks of the previous window are recorded before it is dropped.
+                    this.forceChunks();
+                }
+                final long length = Math.min(MAPPED_WINDOW_SIZE, this.header.getSize() - windowPosition);
+                // The previous window is unmapped once it has been garbage collected.
+                this.window = this.fileChannel.map(FileChannel.MapMode.READ_WRITE, windowPosition, length);
+                this.windowPosition = windowPosition;
+            }
+            return this.window;
+        }
+
+        /**
+         * Prepares to receive a compressed block of the current chunk.
+         * @param length The compressed length of the block.
+         * @throws IOException Thrown if the length is invalid.
+         */
+        private void startBlock(final int length) throws IOException {
+            if (length <= 0 || length > ChunkCompressor.MAX_COMPRESSED_BLOCK_SIZE) {
+                throw new IOException("Invalid compressed block length: " + length);
+            }
+            if (this.compressedBlock == null) {
+                this.compressedBlock = ByteBuffer.allocate(ChunkCompressor.MAX_COMPRESSED_BLOCK_SIZE);
+            }
+            this.compressedBlock.clear();
+            this.compressedBlock.limit(length);
+            this.stage = Stage.BLOCK_BODY;
+        }
+
+        /**
+         * Inflates the received compressed block, and writes it to the file.
+         * @throws IOException Thrown if the block is not a valid compressed block of the expected length,
+         * or if the file cannot be written.
+         */
+        private void inflateBlock() throws IOException {
+            final int blockLength = (int) Math.min(ChunkCompressor.BLOCK_SIZE, this.end - this.position);
+            if (this.inflater == null) {
+                this.inflater = new Inflater();
+            }
+            this.inflater.reset();
+            this.inflater.setInput(this.compressedBlock);
+            final ByteBuffer buffer = this.receiveBuffer.buffer();
+            try {
+                for (int inflated = 0; inflated < blockLength; ) {
+                    buffer.clear();
+                    buffer.limit(Math.min(buffer.capacity(), blockLength - inflated));
+                    final int length = this.inflater.inflate(buffer);
+                    if (length == 0) {
+                        throw new IOException("Compressed block of chunk " + this.chunk + " is too short.");
+                    }
+                    inflated += length;
+                    buffer.flip();
+                    this.write(buffer);
+                }
+                buffer.clear();
+                if (this.inflater.inflate(buffer) != 0 || !this.inflater.finished()) {
+                    throw new IOException("Compressed block of chunk " + this.chunk + " is too long.");
+                }
+            } catch (DataFormatException ex) {
+                throw new IOException("Invalid compressed block in chunk " + this.chunk + ".", ex);
+            }
+        }
+
+        /**
+         * Writes received bytes of the current chunk to the file, adding them to the chunk's checksum.
+         * @param buffer The flipped buffer containing the bytes, which is emptied.
+         * @throws IOException Thrown if the file cannot be written.
+         */
+        private void write(final ByteBuffer buffer) throws IOException {
+            this.checksum.update(buffer);
+            buffer.rewind();
+            while (buffer.hasRemaining()) {
+                this.position += this.fileChannel.write(buffer, this.position);
+            }
+        }
+
+        /**
+         * Starts forcing the verified chunks which have not been recorded yet to disk on the force executor,
+         * and then records them as received, so the persisted record never holds a chunk whose bytes could still
+         * be lost if the program or the system stops. Chunks are forced in batches, at the latest once every
+         * {@link ChunkMap#PERSIST_INTERVAL} chunks, before the window they were received into is dropped,
+         * and before every offer. A failure is kept, and fails the session at its next offer.
+         */
+        private void forceChunks() {
+            if (this.unforcedChunks.isEmpty()) {
+                return;
+            }
+            final BitSet chunks = (BitSet) this.unforcedChunks.clone();
+            this.unforcedChunks.clear();
+            // The batch keeps its own references, as the session moves on to other windows while it is forced.
+            final MappedByteBuffer window = this.window;
+            final FileChannel fileChannel = this.fileChannel;
+            final ChunkMap chunkMap = this.chunkMap;
+            final int firstChunk = this.firstChunk;
+            this.forcing = this.forcing.thenRunAsync(() -> {
+                try {
+                    if (window != null) {
+                        window.force();
+                    } else {
+                        fileChannel.force(false);
+                    }
+                    for (int i = chunks.nextSetBit(0); i >= 0; i = chunks.nextSetBit(i + 1)) {
+                        chunkMap.markReceived(firstChunk + i);
+                    }
+                } catch (IOException ex) {
+                    this.forceFailure = ex;
+                } catch (UncheckedIOException ex) {
+                    this.forceFailure = ex.getCause();
+                }
+            }, FORCE_EXECUTOR);
+        }
+
+        /**
+         * Finishes the session once its range has been written,
+         * and notifies the listeners if that was the last missing range of the file.
+         * Every chunk of the range was recorded before the last offer, which found none missing.
+         * @throws IOException Thrown if the file cannot be closed.
+         */
+        private void complete() throws IOException {
+            this.window = null;
+            this.randomAccessFile.close();
+            this.received = true;
+            this.channel.close();
+            if (this.chunkMap.claimCompletion()) {
+                FileReceiver.this.chunkMaps.values().remove(this.chunkMap);
+                FileReceiver.this.notifyFileReceived(this.file);
+            }
+        }
+
+        @Override
+        public void onClosed(final SocketChannel channel) {
+            if (this.delegate != null) {
+                this.delegate.onClosed(channel);
+            }
+            if (this.receiveBuffer != null) {
+                this.receiveBuffer.release();
+                this.receiveBuffer = null;
+            }
+            if (this.inflater != null) {
+                this.inflater.end();
+            }
+            if (this.received || this.randomAccessFile == null) {
+                this.window = null;
+                return;
+            }
+            // The partial file and the record of its chunks are kept, so the transfer can be resumed.
+            // They are flushed and closed once the last chunks have been forced, off the I/O thread.
+            this.forceChunks();
+            this.window = null;
+            final ChunkMap chunkMap = this.chunkMap;
+            final RandomAccessFile randomAccessFile = this.randomAccessFile;
+            this.forcing.whenCompleteAsync((result, failure) -> {
+                try {
+                    chunkMap.flush();
+                } catch (IOException ex) {
+                    // Silently ignore the failure, as the chunks received since the last record are simply sent again.
+                }
+                try {
+                    randomAccessFile.close();
+                } catch (IOException ex) {
+                    // Silently ignore issues closing the partial file.
+                }
+            }, FORCE_EXECUTOR);
+        }
+
+    }
+
+    /**
+     * Resolves the name of a received file to a file within the receiver's directory.
+     * @param name The name of the file, as sent by the peer.
+     * @return The file to write to.
+     * @throws IOException Thrown if the name is not a plain file name, or if the directory cannot be created.
+     */
+    private File resolve(final String name) throws IOException {
+        final String fileName = new File(name).getName();
+        if (fileName.isEmpty() || !fileName.equals(name) || fileName.equals(".") || fileName.equals("..")) {
+            throw new IOException("Invalid file name: " + name);
+        }
+        if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+            throw new IOException("Could not create directory: " + this.directory);
+        }
+        return new File(this.directory, fileName);
+    }
+
+    /**
+     * Reads as much from the channel as is available, until the buffer is full.
+     * The buffer is flipped once it has been filled.
+     * @param channel The channel to read from.
+     * @param buffer The buffer to fill.
+     * @return If the buffer has been filled.
+     * @throws IOException Thrown if the channel ends before the buffer is filled.
+     */
+    static boolean read(final SocketChannel channel, final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer);
+            if (read < 0) {
+                throw new EOFException("Connection closed while reading.");
+            }
+            if (read == 0) {
+                return false;
+            }
+        }
+        buffer.flip();
+        return true;
+    }
+
+    /**
+     * Adds a listener to the receiver, which is notified when a file has been received.
+     * @param listener The listener to add.
+     * @return If the listener was added successfully.
+     */
+    public boolean addFileListener(final FileListener listener) {
+        return this.fileListeners.add(listener);
+    }
+
+    /**
+     * Checks if a listener has been added to the receiver.
+     * @param listener The listener to check for.
+     * @return If the receiver contains the listener.
+     */
+    public boolean containsFileListener(final FileListener listener) {
+        return this.fileListeners.contains(listener);
+    }
+
+    /**
+     * Removes a listener from the receiver.
+     * @param listener The listener to remove.
+     * @return If the listener was removed successfully.
+     */
+    public boolean removeFileListener(final FileListener listener) {
+        return this.fileListeners.remove(listener);
+    }
+
+}
@@ -1,40 +1,954 @@
 package tech.avahe.filetransfer.net.filetransfer;
 
+import tech.avahe.filetransfer.common.Settings.Entry;
+import tech.avahe.filetransfer.metrics.Counter;
+import tech.avahe.filetransfer.metrics.Histogram;
+import tech.avahe.filetransfer.metrics.Metrics;
+import tech.avahe.filetransfer.net.RateLimiter;
 import tech.avahe.filetransfer.net.TCPClient;
+import tech.avahe.filetransfer.net.peerdiscovery.PeerDiscoveryClient;
 import tech.avahe.filetransfer.net.peerdiscovery.PeerInfo;
+import tech.avahe.filetransfer.net.peerdiscovery.PeerMessage;
+import tech.avahe.filetransfer.net.peerdiscovery.PeerRegistry;
+import tech.avahe.filetransfer.threading.Threads;
+import tech.avahe.filetransfer.util.BufferPool;
+import tech.avahe.filetransfer.util.BufferPool.PooledBuffer;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32C;
 
 /**
  * @author Avahe
  */
 public class FileTransferClient {
 
-    private final TCPClient tcpClient = new TCPClient();
+    /**
+     * The smallest range a file is split into when it is sent over several streams.
+     * Files smaller than this are always sent over a single stream.
+     */
+    public static final long MIN_RANGE_SIZE = 8L * 1024 * 1024;
+
+    /**
+     * The number of times a range is sent before its transfer is considered failed.
+     * Every attempt after the first resumes the transfer, only sending the chunks the peer is missing.
+     */
+    public static final int MAX_ATTEMPTS = 3;
+
+    /**
+     * The number of times the peer may request chunks over a single connection.
+     */
+    static final int MAX_OFFERS = 4;
+
+    /**
+     * The capacity of the buffers chunks are read into while they are compressed.
+     */
+    private static final int SEND_BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * The pool of send buffers shared by all clients.
+     */
+    private static final BufferPool SEND_BUFFER_POOL = new BufferPool(SEND_BUFFER_SIZE, 16);
+
+    /**
+     * The limit shared by everything sent by all clients.
+     */
+    private static final RateLimiter GLOBAL_RATE_LIMITER = new RateLimiter(Long.parseLong(Entry.RATE_LIMIT.getDefaultValue()));
+
+    /**
+     * The default time between two samples of the progress reported to a {@link TransferListener}, in milliseconds.
+     */
+    public static final long DEFAULT_PROGRESS_INTERVAL = 250;
+
+    /**
+     * The default maximum number of batches sent at once by {@link #sendAsync(PeerInfo, TransferListener, File...)}.
+     */
+    public static final int DEFAULT_CONCURRENT_TRANSFERS = 16;
+
+    /**
+     * The maximum number of asynchronous batches which may wait for a free transfer thread.
+     * Batches beyond this are rejected.
+     */
+    public static final int MAX_QUEUED_TRANSFERS = 1024;
+
+    /**
+     * The time an idle transfer thread is kept alive, in seconds.
+     */
+    private static final long TRANSFER_THREAD_KEEP_ALIVE = 30;
+
+    private static final Counter CHUNK_BYTES_SENT = Metrics.counter("transfer.chunk-bytes-sent");
+    private static final Histogram CHUNK_LATENCY = Metrics.histogram("transfer.chunk-nanos");
+
+    private final int streams;
+    private final boolean deltaSync;
+    private final boolean compression;
+    private final ThreadFactory rangeThreadFactory = Threads.newThreadFactory("file-transfer-range");
+    private final ConcurrentHashMap<String, TransferScheduler> peerSchedulers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, RateLimiter> peerRateLimiters = new ConcurrentHashMap<>();
+    private volatile long peerRateLimit = Long.parseLong(Entry.PEER_RATE_LIMIT.getDefaultValue());
+    private volatile long progressInterval = DEFAULT_PROGRESS_INTERVAL;
+    private final ThreadPoolExecutor transferExecutor;
+
+    /**
+     * Creates a client which sends large files over the default number of parallel streams.
+     * @see Entry#TRANSFER_STREAMS
+     * @see Entry#DELTA_SYNC
+     * @see Entry#COMPRESSION
+     */
+    public FileTransferClient() {
+        this(Integer.parseInt(Entry.TRANSFER_STREAMS.getDefaultValue()));
+    }
+
+    /**
+     * Creates a client which sends large files over several parallel streams.
+     * @param streams The maximum number of connections a single file is sent over.
+     * @see Entry#DELTA_SYNC
+     * @see Entry#COMPRESSION
+     */
+    public FileTransferClient(final int streams) {
+        this(streams, Boolean.parseBoolean(Entry.DELTA_SYNC.getDefaultValue()));
+    }
+
+    /**
+     * Creates a client which sends large files over several parallel streams.
+     * @param streams The maximum number of connections a single file is sent over.
+     * @param deltaSync If files are sent as deltas against the copies the peer already has.
+     * @see Entry#COMPRESSION
+     */
+    public FileTransferClient(final int streams, final boolean deltaSync) {
+        this(streams, deltaSync, Boolean.parseBoolean(Entry.COMPRESSION.getDefaultValue()));
+    }
+
+    /**
+     * Creates a client which sends large files over several parallel streams.
+     * @param streams The maximum number of connections a single file is sent over.
+     * @param deltaSync If files are sent as deltas against the copies the peer already has.
+     * @param compression If chunks are compressed when the peer accepts it and the content compresses well.
+     */
+    public FileTransferClient(final int streams, final boolean deltaSync, final boolean compression) {
+        if (streams < 1) {
+            throw new IllegalArgumentException("A file must be sent over at least one stream.");
+        }
+        this.streams = streams;
+        this.deltaSync = deltaSync;
+        this.compression = compression;
+        this.transferExecutor = new ThreadPoolExecutor(DEFAULT_CONCURRENT_TRANSFERS, DEFAULT_CONCURRENT_TRANSFERS,
+                TRANSFER_THREAD_KEEP_ALIVE, TimeUnit.SECONDS, new LinkedBlockingQueue<>(MAX_QUEUED_TRANSFERS),
+                Threads.newDaemonThreadFactory("file-transfer"));
+        // Idle transfer threads exit, so an idle client holds no threads.
+        this.transferExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Sets the maximum rate at which all clients send, combined.
+     * @param bytesPerSecond The maximum rate, in bytes per second, or {@link RateLimiter#UNLIMITED}.
+     * @see Entry#RATE_LIMIT
+     */
+    public static void setRateLimit(final long bytesPerSecond) {
+        GLOBAL_RATE_LIMITER.setRate(bytesPerSecond);
+    }
+
+    /**
+     * @return The maximum rate at which all clients send combined, in bytes per second, or {@link RateLimiter#UNLIMITED}.
+     */
+    public static long getRateLimit() {
+        return GLOBAL_RATE_LIMITER.getRate();
+    }
+
+    /**
+     * Sets the maximum rate at which this client sends to any single peer. This also applies to transfers in progress.
+     * @param bytesPerSecond The maximum rate, in bytes per second, or {@link RateLimiter#UNLIMITED}.
+     * @see Entry#PEER_RATE_LIMIT
+     */
+    public void setPeerRateLimit(final long bytesPerSecond) {
+        if (bytesPerSecond < 0) {
+            throw new IllegalArgumentException("The rate must not be negative.");
+        }
+        this.peerRateLimit = bytesPerSecond;
+        this.peerRateLimiters.values().forEach(rateLimiter -> rateLimiter.setRate(bytesPerSecond));
+    }
+
+    /**
+     * Sets the maximum rate at which this client sends to one peer, until the rate of every peer is set again.
+     * This also applies to transfers in progress.
+     * @param peerInfo The information of the peer.
+     * @param bytesPerSecond The maximum rate, in bytes per second, or {@link RateLimiter#UNLIMITED}.
+     * @see #setPeerRateLimit(long)
+     */
+    public void setPeerRateLimit(final PeerInfo peerInfo, final long bytesPerSecond) {
+        if (bytesPerSecond < 0) {
+            throw new IllegalArgumentException("The rate must not be negative.");
+        }
+        this.peerRateLimiter(peerInfo).setRate(bytesPerSecond);
+    }
+
+    /**
+     * @return The maximum rate at which this client sends to any single peer, in bytes per second,
+     * or {@link RateLimiter#UNLIMITED}.
+     */
+    public long getPeerRateLimit() {
+        return this.peerRateLimit;
+    }
+
+    /**
+     * Sets the time between two samples of the progress reported to a {@link TransferListener}.
+     * This applies to batches sent from now on.
+     * @param intervalMillis The time between two samples, in milliseconds.
+     */
+    public void setProgressInterval(final long intervalMillis) {
+        if (intervalMillis <= 0) {
+            throw new IllegalArgumentException("The progress interval must be positive.");
+        }
+        this.progressInterval = intervalMillis;
+    }
+
+    /**
+     * @return The time between two samples of the progress reported to a {@link TransferListener}, in milliseconds.
+     */
+    public long getProgressInterval() {
+        return this.progressInterval;
+    }
+
+    /**
+     * Sets the maximum number of batches sent at once by {@link #sendAsync(PeerInfo, TransferListener, File...)}.
+     * Further batches wait for a running batch to complete.
+     * @param transfers The maximum number of batches sent at once.
+     */
+    public void setMaxConcurrentTransfers(final int transfers) {
+        if (transfers < 1) {
+            throw new IllegalArgumentException("At least one transfer must be able to run.");
+        }
+        // The pool never shrinks below its core size, so the core size is always set while it is at most the maximum.
+        if (transfers > this.transferExecutor.getMaximumPoolSize()) {
+            this.transferExecutor.setMaximumPoolSize(transfers);
+            this.transferExecutor.setCorePoolSize(transfers);
+        } else {
+            this.transferExecutor.setCorePoolSize(transfers);
+            this.transferExecutor.setMaximumPoolSize(transfers);
+        }
+    }
+
+    /**
+     * @return The maximum number of batches sent at once by {@link #sendAsync(PeerInfo, TransferListener, File...)}.
+     */
+    public int getMaxConcurrentTransfers() {
+        return this.transferExecutor.getMaximumPoolSize();
+    }
+
+    /**
+     * @return The maximum number of connections a single file is sent over,
+     * which is also the number of chunks that may be written to any single peer at once.
+     */
+    public int getStreams() {
+        return this.streams;
+    }
+
+    /**
+     * @return If files are sent as deltas against the copies the peer already has.
+     */
+    public boolean isDeltaSync() {
+        return this.deltaSync;
+    }
 
     /**
-     * Sends all files to the peer.
+     * @return If chunks are compressed when the peer accepts it and the content compresses well.
+     * @see ChunkCompressor
+     */
+    public boolean isCompression() {
+        return this.compression;
+    }
+
+    /**
+     * Sends all files to the peer. Directories are sent with their whole tree, as a single archive.
      * @param peerInfo The information of the peer to communicate with.
-     * @param files The files to send.
+     * @param files The files and directories to send.
      * @return If all files were sent successfully.
      */
     public boolean send(final PeerInfo peerInfo, final File... files) {
+        return this.send(peerInfo, null, files);
+    }
+
+    /**
+     * Sends all files to the peer, reporting the progress of every file and of the whole batch.
+     * Directories are sent with their whole tree, as a single archive.
+     *
+     * <p>The sending threads only count the bytes of every chunk sent. The listener is notified from samples
+     * of those counts, taken every {@link #getProgressInterval()} milliseconds, so the listener does not slow
+     * down the transfer however fast it is.</p>
+     *
+     * @param peerInfo The information of the peer to communicate with.
+     * @param listener The listener to report the progress to, or null to send without reporting progress.
+     * @param files The files and directories to send.
+     * @return If all files were sent successfully. The batch stops at the first file which cannot be sent.
+     */
+    public boolean send(final PeerInfo peerInfo, final TransferListener listener, final File... files) {
+        return this.transfer(peerInfo, listener, files, new TransferCancellation()).isSent();
+    }
+
+    /**
+     * Sends all files to the peer in the background. Directories are sent with their whole tree, as a single archive.
+     * @param peerInfo The information of the peer to communicate with.
+     * @param files The files and directories to send.
+     * @return The future outcome of the batch.
+     * @see #sendAsync(PeerInfo, TransferListener, File...)
+     */
+    public CompletableFuture<TransferResult> sendAsync(final PeerInfo peerInfo, final File... files) {
+        return this.sendAsync(peerInfo, null, files);
+    }
+
+    /**
+     * Sends all files to the peer in the background, reporting the progress of every file and of the whole batch.
+     * Directories are sent with their whole tree, as a single archive.
+     *
+     * <p>Batches are sent on a pool of up to {@link #getMaxConcurrentTransfers()} threads, and wait in a queue of
+     * up to {@link #MAX_QUEUED_TRANSFERS} batches while all threads are busy. The chunks of all batches sent to the
+     * same peer take turns through that peer's {@link TransferScheduler}, so at most {@link #getStreams()} chunks
+     * are written to a peer at once, however many batches are sent to it. Batches sent to different peers do not
+     * share slots, so a slow or throttled peer only holds back the batches sent to it.</p>
+     *
+     * <p>Cancelling the returned future stops the batch: its connections are closed, which aborts any read or write
+     * in progress, and the threads sending it are interrupted. A batch cancelled while waiting is never started.
+     * Only the returned future cancels the batch, not futures derived from it.</p>
+     *
+     * <p>Like the default executor of {@link CompletableFuture}, the pool runs daemon threads,
+     * so the program has to wait for the futures of batches which must complete before it exits.</p>
+     *
+     * @param peerInfo The information of the peer to communicate with.
+     * @param listener The listener to report the progress to, or null to send without reporting progress.
+     * @param files The files and directories to send.
+     * @return The future outcome of the batch. It completes normally even if a file cannot be sent,
+     * and exceptionally with a {@link RejectedExecutionException} if too many batches are waiting to be sent.
+     */
+    public CompletableFuture<TransferResult> sendAsync(final PeerInfo peerInfo, final TransferListener listener, final File... files) {
+        final TransferCancellation cancellation = new TransferCancellation();
+        final CompletableFuture<TransferResult> future = new CompletableFuture<TransferResult>() {
+            @Override
+            public boolean cancel(final boolean mayInterruptIfRunning) {
+                final boolean cancelled = super.cancel(mayInterruptIfRunning);
+                if (cancelled) {
+                    cancellation.cancel();
+                }
+                return cancelled;
+            }
+        };
+        try {
+            this.transferExecutor.execute(() -> {
+                if (future.isDone()) {
+                    return;
+                }
+                try {
+                    // Errors complete the future too, so callers waiting on it are never left hanging.
+                    future.complete(this.transfer(peerInfo, listener, files, cancellation));
+                } catch (Throwable ex) {
+                    future.completeExceptionally(ex);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            future.completeExceptionally(ex);
+        }
+        return future;
+    }
+
+    /**
+     * Sends all files to the peer on the current thread, stopping at the first file which cannot be sent.
+     * @param peerInfo The information of the peer to communicate with.
+     * @param listener The listener to report the progress to, or null to send without reporting progress.
+     * @param files The files and directories to send.
+     * @param cancellation The cancellation of the batch.
+     * @return The outcome of the batch.
+     */
+    private TransferResult transfer(final PeerInfo peerInfo, final TransferListener listener, final File[] files,
+                                    final TransferCancellation cancellation) {
+        final long start = System.nanoTime();
+        final ProgressTracker tracker = new ProgressTracker(files, listener, this.progressInterval);
+        int sentCount = 0;
+        IOException failure = null;
+        cancellation.enter();
+        try {
+            for (int i = 0; i < files.length; i++) {
+                tracker.startFile(i);
+                boolean sent;
+                try {
+                    sent = files[i].isDirectory()
+                            ? this.sendDirectory(peerInfo, files[i], tracker, cancellation)
+                            : this.sendFile(peerInfo, files[i], tracker, cancellation);
+                } catch (IOException ex) {
+                    sent = false;
+                    failure = ex;
+                }
+                tracker.completeFile(sent);
+                if (!sent) {
+                    break;
+                }
+                sentCount++;
+            }
+        } finally {
+            cancellation.exit();
+            tracker.close(sentCount == files.length);
+        }
+        return new TransferResult(peerInfo, files, sentCount, failure, System.nanoTime() - start);
+    }
 
-        return false;
+    /**
+     * Sends a file to every peer currently discovered on the network.
+     * @param discoveryClient The client which discovered the peers.
+     * @param file The file or directory to send.
+     * @return The outcome for every peer, in the order the peers were discovered.
+     * @see #sendToAll(Collection, File)
+     */
+    public Map<PeerInfo, TransferResult> sendToAll(final PeerDiscoveryClient discoveryClient, final File file) {
+        final PeerRegistry registry = discoveryClient.getPeerRegistry();
+        final List<PeerInfo> peers = new ArrayList<>();
+        for (final String ipAddress : discoveryClient.getPeersOnNetwork().keySet()) {
+            final PeerInfo peerInfo = registry.get(ipAddress);
+            // The peer may have left since the peers were listed.
+            if (peerInfo != null) {
+                peers.add(peerInfo);
+            }
+        }
+        return this.sendToAll(peers, file);
     }
 
     /**
-     * @param peerInfo
-     * @param file
-     * @return
-     * @throws IOException
+     * Sends a file to several peers at once.
+     *
+     * <p>A regular file is read from disk only once, however many peers it is sent to: every chunk any peer
+     * is missing is read into a shared buffer and written to all peers missing it concurrently, through a
+     * {@link FanOutSender}. A peer which is slower than the others is detached from the shared reads once it
+     * holds them back, and continues by itself, so it neither slows down the other peers nor fills memory.
+     * Every peer is sent the file over a single connection, without compression, so all peers are sent the same
+     * bytes. The connections are held to the peer and global rate limits, but do not take turns in the
+     * {@link TransferScheduler}, so that all peers are written to at once.</p>
+     *
+     * <p>Directories are sent to every peer separately, as archives, through {@link #sendAsync(PeerInfo, File...)}.</p>
+     *
+     * <p>Peers which have not announced a transfer port, such as peers announced in the legacy text format,
+     * cannot be sent files, so they fail right away without being connected to.</p>
+     *
+     * @param peers The information of the peers to send the file to.
+     * @param file The file or directory to send.
+     * @return The outcome for every peer, in the order of the peers.
      */
-    private boolean sendFile(final PeerInfo peerInfo, final File file) throws IOException {
+    public Map<PeerInfo, TransferResult> sendToAll(final Collection<PeerInfo> peers, final File file) {
+        final File[] files = { file };
+        final long start = System.nanoTime();
+        final Map<PeerInfo, TransferResult> results = new LinkedHashMap<>();
+        final Map<PeerInfo, IOException> failures = new LinkedHashMap<>();
+        final List<PeerInfo> reachablePeers = new ArrayList<>();
+        for (final PeerInfo peerInfo : peers) {
+            if (peerInfo.port <= PeerMessage.UNKNOWN_PORT) {
+                failures.put(peerInfo, new IOException(peerInfo.nickName + " has not announced a transfer port."));
+            } else {
+                reachablePeers.add(peerInfo);
+            }
+        }
+        if (file.isDirectory()) {
+            final Map<PeerInfo, CompletableFuture<TransferResult>> futures = new LinkedHashMap<>();
+            for (final PeerInfo peerInfo : reachablePeers) {
+                futures.put(peerInfo, this.sendAsync(peerInfo, file).exceptionally(ex ->
+                        new TransferResult(peerInfo, files, 0, new IOException(ex.getMessage(), ex), System.nanoTime() - start)));
+            }
+            futures.forEach((peerInfo, future) -> results.put(peerInfo, future.join()));
+            return FileTransferClient.orderResults(peers, files, results, failures, start);
+        }
 
+        final List<FanOutSender.Target> targets = new ArrayList<>();
+        try (final FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final long size = fileChannel.size();
+            final FileHeader header = new FileHeader(file.getName(), size, 0, size).withVersion(file.lastModified());
+            for (final PeerInfo peerInfo : reachablePeers) {
+                final TCPClient tcpClient = new TCPClient();
+                try {
+                    this.connect(tcpClient, peerInfo);
+                    tcpClient.send(header.encode());
+                    final BitSet missing = FileTransferClient.readMissing(tcpClient, ChunkMap.chunkCount(size));
+                    targets.add(new FanOutSender.Target(peerInfo, tcpClient, missing, start));
+                } catch (IOException ex) {
+                    failures.put(peerInfo, ex);
+                    try {
+                        tcpClient.close();
+                    } catch (IOException closeEx) {
+                        // Silently ignore issues closing the connection.
+                    }
+                }
+            }
+            new FanOutSender(fileChannel, header, targets).send();
+        } catch (IOException ex) {
+            // The file cannot be read, so no peer which has not failed yet can be sent it.
+            for (final PeerInfo peerInfo : peers) {
+                failures.putIfAbsent(peerInfo, ex);
+            }
+        } finally {
+            for (final FanOutSender.Target target : targets) {
+                try {
+                    target.getTcpClient().close();
+                } catch (IOException ex) {
+                    // Silently ignore issues closing the connection.
+                }
+            }
+        }
+        for (final FanOutSender.Target target : targets) {
+            if (!failures.containsKey(target.getPeerInfo())) {
+                results.put(target.getPeerInfo(), new TransferResult(target.getPeerInfo(), files, target.isSent() ? 1 : 0,
+                        target.getFailure(), target.getElapsedNanos()));
+            }
+        }
+        return FileTransferClient.orderResults(peers, files, results, failures, start);
+    }
 
-        return false;
+    /**
+     * Collects the outcome for every peer a file was sent to, in the order of the peers.
+     * @param peers The information of the peers the file was sent to.
+     * @param files The file, as the batch of every peer.
+     * @param results The outcome for every peer which was sent the file.
+     * @param failures The failure of every peer which failed before it could be sent the file.
+     * @param start The time the file started being sent, from {@link System#nanoTime()}.
+     * @return The outcome for every peer.
+     */
+    private static Map<PeerInfo, TransferResult> orderResults(final Collection<PeerInfo> peers, final File[] files,
+                                                              final Map<PeerInfo, TransferResult> results,
+                                                              final Map<PeerInfo, IOException> failures, final long start) {
+        final Map<PeerInfo, TransferResult> orderedResults = new LinkedHashMap<>();
+        for (final PeerInfo peerInfo : peers) {
+            final TransferResult result = results.get(peerInfo);
+            orderedResults.put(peerInfo, result != null ? result
+                    : new TransferResult(peerInfo, files, 0, failures.get(peerInfo), System.nanoTime() - start));
+        }
+        return orderedResults;
     }
 
+    /**
+     * Sends a single file to the peer.
+     *
+     * <p>The file is split into up to {@link #getStreams()} byte ranges, which are sent over parallel connections,
+     * while keeping every range at least {@link #MIN_RANGE_SIZE} bytes long.
+     * Ranges are aligned to the chunks the peer uses to keep track of its progress.</p>
+     *
+     * <p>If {@link #isDeltaSync()} is set, the file is first sent as a delta over a single connection,
+     * and only sent in ranges if the peer could not rebuild it from the delta.</p>
+     *
+     * <p>The chunks of the file take turns with the chunks of all other transfers of the client to the same peer,
+     * through the peer's {@link TransferScheduler}, so concurrent transfers share the connection equally.</p>
+     *
+     * @param peerInfo The information of the peer to communicate with.
+     * @param file The file to send.
+     * @param tracker The tracker of the batch the file is sent in.
+     * @param cancellation The cancellation of the batch the file is sent in.
+     * @return If the file was sent successfully.
+     * This will return false if the file does not exist or is not a regular file.
+     * @throws IOException Thrown if the file cannot be read, if a connection fails, if any range cannot be sent,
+     * or if the batch is cancelled.
+     */
+    private boolean sendFile(final PeerInfo peerInfo, final File file, final ProgressTracker tracker,
+                             final TransferCancellation cancellation) throws IOException {
+        if (!file.isFile()) {
+            return false;
+        }
+        try (final FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final long size = fileChannel.size();
+            // Read once, so every range carries the same version, which the peer checks before resuming any chunks.
+            final long version = file.lastModified();
+            if (this.deltaSync && this.sendDelta(peerInfo, fileChannel, new FileHeader(file.getName(), size, true).withVersion(version), cancellation)) {
+                return true;
+            }
+            final TransferScheduler.Flow flow = this.peerScheduler(peerInfo).newFlow();
+            final int rangeCount = (int) Math.max(1, Math.min(this.streams, size / MIN_RANGE_SIZE));
+            if (rangeCount == 1) {
+                this.sendRange(peerInfo, fileChannel, this.newRangeHeader(file.getName(), size, version, 0, size), flow, tracker, cancellation);
+                return true;
+            }
+
+            final long rangeSize = size / rangeCount / ChunkMap.CHUNK_SIZE * ChunkMap.CHUNK_SIZE;
+            // The first failure of any range thread, which is thrown once every range thread has stopped.
+            final AtomicReference<Throwable> failure = new AtomicReference<>();
+            final Thread[] rangeThreads = new Thread[rangeCount - 1];
+            for (int i = 1; i < rangeCount; i++) {
+                final long offset = i * rangeSize;
+                final long length = i == rangeCount - 1 ? size - offset : rangeSize;
+                final FileHeader header = this.newRangeHeader(file.getName(), size, version, offset, length);
+                rangeThreads[i - 1] = this.rangeThreadFactory.newThread(() -> {
+                    cancellation.enter();
+                    try {
+                        this.sendRange(peerInfo, fileChannel, header, flow, tracker, cancellation);
+                    } catch (Throwable ex) {
+                        // Anything thrown here would only end the thread, and the range would count as sent.
+                        failure.compareAndSet(null, ex);
+                    } finally {
+                        cancellation.exit();
+                    }
+                });
+                rangeThreads[i - 1].start();
+            }
+            try {
+                this.sendRange(peerInfo, fileChannel, this.newRangeHeader(file.getName(), size, version, 0, rangeSize), flow, tracker, cancellation);
+            } finally {
+                for (final Thread rangeThread : rangeThreads) {
+                    try {
+                        rangeThread.join();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        failure.compareAndSet(null, new InterruptedIOException("Interrupted while sending " + file + "."));
+                    }
+                }
+            }
+            cancellation.check();
+            final Throwable rangeFailure = failure.get();
+            if (rangeFailure instanceof IOException) {
+                throw (IOException) rangeFailure;
+            }
+            if (rangeFailure != null) {
+                throw new IOException("A range of " + file + " could not be sent.", rangeFailure);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Sends a directory and its whole tree to the peer as an archive over a single connection,
+     * reconnecting up to {@link #MAX_ATTEMPTS} times if the connection fails.
+     *
+     * <p>The archive header is followed by the entries written by an {@link ArchiveWriter},
+     * so the tree is never sent one handshake per file. The peer answers with a status once it has
+     * recreated the tree. Every attempt sends the whole tree again. Every batch of the archive takes turns
+     * with the chunks of all other transfers of the client to the same peer.</p>
+     *
+     * @param peerInfo The information of the peer to communicate with.
+     * @param directory The directory to send.
+     * @param tracker The tracker of the batch the directory is sent in.
+     * @param cancellation The cancellation of the batch the directory is sent in.
+     * @return If the peer has recreated the tree, and every file in it was verified.
+     * @throws IOException Thrown if the tree cannot be read, if the last attempt failed, or if the batch is cancelled.
+     */
+    private boolean sendDirectory(final PeerInfo peerInfo, final File directory, final ProgressTracker tracker,
+                                  final TransferCancellation cancellation) throws IOException {
+        final FileHeader header = FileHeader.archive(directory.getName());
+        final TransferScheduler.Flow flow = this.peerScheduler(peerInfo).newFlow();
+        final ProgressTracker.Range range = tracker.newRange(tracker.getFileSize());
+        for (int attempt = 1; ; attempt++) {
+            final TCPClient tcpClient = new TCPClient();
+            try {
+                // Every attempt sends the whole tree again.
+                range.acknowledge(tracker.getFileSize());
+                this.connect(tcpClient, peerInfo, cancellation);
+                tcpClient.send(header.encode());
+                new ArchiveWriter(directory.toPath()).send(tcpClient, flow, range);
+                final ByteBuffer statusBuffer = ByteBuffer.allocate(Byte.BYTES);
+                tcpClient.read(statusBuffer);
+                final boolean received = statusBuffer.get() == FileReceiver.STATUS_RECEIVED;
+                if (received || attempt >= MAX_ATTEMPTS) {
+                    return received;
+                }
+            } catch (IOException ex) {
+                if (attempt >= MAX_ATTEMPTS) {
+                    throw ex;
+                }
+            } finally {
+                tcpClient.close();
+            }
+        }
+    }
+
+    /**
+     * Creates the header of a range of a file, offering compression if the client compresses chunks.
+     * @param name The name of the file.
+     * @param size The size of the whole file in bytes.
+     * @param version The version of the file's contents.
+     * @param offset The position within the file at which the range starts.
+     * @param length The number of bytes in the range.
+     * @return The header of the range.
+     */
+    private FileHeader newRangeHeader(final String name, final long size, final long version, final long offset,
+                                      final long length) {
+        final FileHeader header = new FileHeader(name, size, offset, length).withVersion(version);
+        return this.compression ? header.withCompression() : header;
+    }
+
+    /**
+     * Sends a file to the peer as a delta against the copy the peer already has.
+     *
+     * <p>The peer answers the delta header with the {@link BlockSignature} of its copy, which may be empty,
+     * and the file is then sent by a {@link DeltaEncoder}, so only the parts of the file which changed
+     * are transferred. The peer answers with a status once it has rebuilt and verified the file.</p>
+     *
+     * @param peerInfo The information of the peer to communicate with.
+     * @param fileChannel The channel of the file to send.
+     * @param header The delta header of the file.
+     * @param cancellation The cancellation of the batch the file is sent in.
+     * @return If the peer has rebuilt the file. If not, the file has to be sent in full.
+     */
+    private boolean sendDelta(final PeerInfo peerInfo, final FileChannel fileChannel, final FileHeader header,
+                              final TransferCancellation cancellation) {
+        final TCPClient tcpClient = new TCPClient();
+        try {
+            this.connect(tcpClient, peerInfo, cancellation);
+            tcpClient.send(header.encode());
+            new DeltaEncoder(fileChannel, header.getSize(), FileTransferClient.readSignature(tcpClient), tcpClient).encode();
+            final ByteBuffer statusBuffer = ByteBuffer.allocate(Byte.BYTES);
+            tcpClient.read(statusBuffer);
+            return statusBuffer.get() == FileReceiver.STATUS_RECEIVED;
+        } catch (IOException ex) {
+            return false;
+        } finally {
+            try {
+                tcpClient.close();
+            } catch (IOException ex) {
+                // Silently ignore issues closing the connection.
+            }
+        }
+    }
+
+    /**
+     * Connects a client to the peer, limiting its rate by the peer's limit and the global limit.
+     * @param tcpClient The client to connect.
+     * @param peerInfo The information of the peer to connect to.
+     * @throws IOException Thrown if the connection fails.
+     * @see #setPeerRateLimit(long)
+     * @see #setRateLimit(long)
+     */
+    private void connect(final TCPClient tcpClient, final PeerInfo peerInfo) throws IOException {
+        tcpClient.setRateLimiter(this.peerRateLimiter(peerInfo));
+        tcpClient.connect(peerInfo);
+    }
+
+    /**
+     * Connects a client to the peer, limiting its rate by the peer's limit and the global limit.
+     * The connection is closed if the batch it belongs to is cancelled.
+     * @param tcpClient The client to connect.
+     * @param peerInfo The information of the peer to connect to.
+     * @param cancellation The cancellation of the batch the connection belongs to.
+     * @throws IOException Thrown if the connection fails, or if the batch has been cancelled.
+     * @see #setPeerRateLimit(long)
+     * @see #setRateLimit(long)
+     */
+    private void connect(final TCPClient tcpClient, final PeerInfo peerInfo, final TransferCancellation cancellation) throws IOException {
+        tcpClient.setRateLimiter(this.peerRateLimiter(peerInfo));
+        cancellation.register(tcpClient);
+        tcpClient.connect(peerInfo);
+        if (cancellation.isCancelled()) {
+            // The batch was cancelled while connecting, before the channel could be closed.
+            tcpClient.close();
+            cancellation.check();
+        }
+    }
+
+    /**
+     * @param peerInfo The information of the peer.
+     * @return The limiter of everything sent to the peer, which is created at the peer rate limit if necessary.
+     */
+    private RateLimiter peerRateLimiter(final PeerInfo peerInfo) {
+        return this.peerRateLimiters.computeIfAbsent(peerInfo.ipAddress,
+                address -> new RateLimiter(this.peerRateLimit, GLOBAL_RATE_LIMITER));
+    }
+
+    /**
+     * @param peerInfo The information of the peer.
+     * @return The scheduler of the chunks sent to the peer, which is created with {@link #getStreams()} slots if necessary.
+     */
+    private TransferScheduler peerScheduler(final PeerInfo peerInfo) {
+        return this.peerSchedulers.computeIfAbsent(peerInfo.ipAddress, address -> new TransferScheduler(this.streams));
+    }
+
+    /**
+     * Reads the signature of the copy of a file the peer already has.
+     * @param tcpClient The client connected to the peer.
+     * @return The signature of the peer's copy.
+     * @throws IOException Thrown if the connection fails, or if the signature is invalid.
+     */
+    private static BlockSignature readSignature(final TCPClient tcpClient) throws IOException {
+        final ByteBuffer headerBuffer = ByteBuffer.allocate(BlockSignature.HEADER_BYTES);
+        tcpClient.read(headerBuffer);
+        final int blockSize = headerBuffer.getInt();
+        final int blockCount = headerBuffer.getInt();
+        if (blockCount < 0 || blockCount > BlockSignature.MAX_BLOCKS) {
+            throw new IOException("Invalid number of blocks: " + blockCount);
+        }
+        final ByteBuffer blocksBuffer = ByteBuffer.allocate(blockCount * BlockSignature.ENTRY_BYTES);
+        tcpClient.read(blocksBuffer);
+        try {
+            return BlockSignature.decode(blockSize, blocksBuffer);
+        } catch (IllegalArgumentException ex) {
+            throw new IOException(ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Sends a range of a file to the peer, reconnecting up to {@link #MAX_ATTEMPTS} times if the connection fails.
+     * @param peerInfo The information of the peer to communicate with.
+     * @param fileChannel The channel of the file to send. Its position is not used, so it may be shared between streams.
+     * @param header The header describing the range to send.
+     * @param flow The flow of the file's transfer, which the range's chunks are scheduled in.
+     * @param tracker The tracker of the batch the file is sent in.
+     * @param cancellation The cancellation of the batch the file is sent in.
+     * @throws IOException Thrown if the file cannot be read, if the last attempt failed, or if the batch is cancelled.
+     */
+    private void sendRange(final PeerInfo peerInfo, final FileChannel fileChannel, final FileHeader header,
+                           final TransferScheduler.Flow flow, final ProgressTracker tracker,
+                           final TransferCancellation cancellation) throws IOException {
+        final ProgressTracker.Range range = tracker.newRange(header.getLength());
+        for (int attempt = 1; ; attempt++) {
+            try {
+                this.sendRangeOnce(peerInfo, fileChannel, header, flow, range, cancellation);
+                return;
+            } catch (IOException ex) {
+                if (attempt >= MAX_ATTEMPTS) {
+                    throw ex;
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends a range of a file to the peer over a new connection.
+     *
+     * <p>The range's {@link FileHeader} is sent first. The peer answers with the chunks of the range it is missing,
+     * which are then sent, each prefixed with its index and followed by its CRC32C checksum.
+     * This repeats until the peer is no longer missing any chunks, so a chunk which fails the peer's verification
+     * is simply requested again. The checksums of uncompressed chunks are computed over a {@link ChecksumWindow},
+     * and the chunks are sent with {@link TCPClient#send(FileChannel, long, long)}, so they are never copied into
+     * user space.</p>
+     *
+     * <p>If the header offers compression, the peer first answers whether it accepts it.
+     * If it does, every chunk is read into a pooled buffer and sent through a {@link ChunkCompressor}.</p>
+     *
+     * @param peerInfo The information of the peer to communicate with.
+     * @param fileChannel The channel of the file to send.
+     * @param header The header describing the range to send.
+     * @param flow The flow of the file's transfer, which every chunk takes a turn in before it is sent.
+     * @param range The progress of the range, which every chunk is counted in once it has been sent.
+     * @param cancellation The cancellation of the batch the file is sent in, which closes the connection.
+     * @throws IOException Thrown if the file cannot be read, or if the connection fails.
+     */
+    private void sendRangeOnce(final PeerInfo peerInfo, final FileChannel fileChannel, final FileHeader header,
+                               final TransferScheduler.Flow flow, final ProgressTracker.Range range,
+                               final TransferCancellation cancellation) throws IOException {
+        final int firstChunk = (int) (header.getOffset() / ChunkMap.CHUNK_SIZE);
+        final int chunkCount = ChunkMap.chunkCount(header.getOffset() + header.getLength()) - firstChunk;
+        final ByteBuffer indexBuffer = ByteBuffer.allocate(Integer.BYTES);
+        final ByteBuffer checksumBuffer = ByteBuffer.allocate(Integer.BYTES);
+        final CRC32C checksum = new CRC32C();
+        final ChecksumWindow checksumWindow = new ChecksumWindow(fileChannel);
+        final TCPClient tcpClient = new TCPClient();
+        this.connect(tcpClient, peerInfo, cancellation);
+        PooledBuffer sendBuffer = null;
+        try {
+            tcpClient.send(header.encode());
+            final ChunkCompressor compressor = header.isCompressed() && FileTransferClient.readAcceptance(tcpClient)
+                    ? new ChunkCompressor() : null;
+            if (compressor != null) {
+                sendBuffer = SEND_BUFFER_POOL.acquire();
+            }
+            for (int offer = 0; offer < MAX_OFFERS; offer++) {
+                final BitSet missing = FileTransferClient.readMissing(tcpClient, chunkCount);
+                range.acknowledge(FileTransferClient.missingBytes(missing, chunkCount, header.getLength()));
+                if (missing.isEmpty()) {
+                    return;
+                }
+                for (int i = missing.nextSetBit(0); i >= 0; i = missing.nextSetBit(i + 1)) {
+                    final int chunk = firstChunk + i;
+                    final long position = (long) chunk * ChunkMap.CHUNK_SIZE;
+                    final int length = (int) Math.min(ChunkMap.CHUNK_SIZE, header.getSize() - position);
+                    // Waits for the rate limits before taking a slot, so a throttled peer holds no slot while it waits.
+                    tcpClient.reserve(Integer.BYTES + length + Integer.BYTES);
+                    flow.acquire();
+                    final long start = System.nanoTime();
+                    try {
+                        indexBuffer.clear();
+                        indexBuffer.putInt(chunk).flip();
+                        tcpClient.send(indexBuffer);
+                        checksum.reset();
+                        if (compressor != null) {
+                            compressor.send(tcpClient, fileChannel, position, length, checksum, sendBuffer.buffer());
+                        } else {
+                            checksumWindow.update(checksum, position, length);
+                            tcpClient.send(fileChannel, position, length);
+                        }
+                        checksumBuffer.clear();
+                        checksumBuffer.putInt((int) checksum.getValue()).flip();
+                        tcpClient.send(checksumBuffer);
+                        FileTransferClient.CHUNK_LATENCY.recordSince(start);
+                        FileTransferClient.CHUNK_BYTES_SENT.add(length);
+                        range.sent(length);
+                    } finally {
+                        flow.release();
+                    }
+                }
+            }
+            throw new IOException("The peer kept requesting chunks of " + header.getName() + ".");
+        } finally {
+            if (sendBuffer != null) {
+                sendBuffer.release();
+            }
+            tcpClient.close();
+        }
+    }
+
+    /**
+     * Reads the peer's answer to an offer of compression.
+     * @param tcpClient The client connected to the peer.
+     * @return If the peer accepts compressed chunks.
+     * @throws IOException Thrown if the connection fails.
+     */
+    private static boolean readAcceptance(final TCPClient tcpClient) throws IOException {
+        final ByteBuffer acceptanceBuffer = ByteBuffer.allocate(Byte.BYTES);
+        tcpClient.read(acceptanceBuffer);
+        return acceptanceBuffer.get() != 0;
+    }
+
+    /**
+     * Computes the number of bytes in the chunks of a range the peer is missing.
+     * @param missing The missing chunks, indexed relative to the first chunk of the range.
+     * @param chunkCount The number of chunks in the range.
+     * @param length The number of bytes in the range.
+     * @return The number of missing bytes.
+     */
+    private static long missingBytes(final BitSet missing, final int chunkCount, final long length) {
+        long bytes = (long) missing.cardinality() * ChunkMap.CHUNK_SIZE;
+        if (chunkCount > 0 && missing.get(chunkCount - 1)) {
+            // The last chunk of the range is shorter if the range does not end on a chunk boundary.
+            bytes -= (long) chunkCount * ChunkMap.CHUNK_SIZE - length;
+        }
+        return bytes;
+    }
+
+    /**
+     * Reads the chunks of a range the peer is missing.
+     * @param tcpClient The client connected to the peer.
+     * @param chunkCount The number of chunks in the range.
+     * @return The missing chunks, indexed relative to the first chunk of the range.
+     * @throws IOException Thrown if the connection fails, or if the peer requests chunks outside of the range.
+     */
+    static BitSet readMissing(final TCPClient tcpClient, final int chunkCount) throws IOException {
+        final ByteBuffer lengthBuffer = ByteBuffer.allocate(Integer.BYTES);
+        tcpClient.read(lengthBuffer);
+        final int length = lengthBuffer.getInt();
+        if (length < 0 || length > (chunkCount + Byte.SIZE - 1) / Byte.SIZE) {
+            throw new IOException("Invalid chunk request length: " + length);
+        }
+        final ByteBuffer bitsBuffer = ByteBuffer.allocate(length);
+        tcpClient.read(bitsBuffer);
+        final BitSet missing = BitSet.valueOf(bitsBuffer);
+        if (missing.length() > chunkCount) {
+            throw new IOException("The peer requested chunks outside of the range.");
+        }
+        return missing;
+    }
 
-}
\ No newline at end of file
+}
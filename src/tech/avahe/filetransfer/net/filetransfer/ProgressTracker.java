@@ -0,0 +1,254 @@
+package tech.avahe.filetransfer.net.filetransfer;
+
+import tech.avahe.filetransfer.threading.Threads;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Tracks the progress of a batch of files sent by a {@link FileTransferClient}, and reports it to a {@link TransferListener}.
+ *
+ * <p>The sending threads only add the bytes of every chunk they have sent to a counter. The counter is sampled
+ * at a fixed interval on a thread shared by all trackers, which smooths the rate and only notifies the listener
+ * if bytes were sent since the last sample. Without a listener, the tracker is never sampled.</p>
+ *
+ * @author Avahe
+ */
+final class ProgressTracker {
+
+    /**
+     * The weight of the latest sample in the smoothed rate.
+     */
+    private static final double RATE_SMOOTHING = 0.3;
+
+    private static final ScheduledExecutorService SAMPLER;
+
+    static {
+        final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, Threads.newDaemonThreadFactory("transfer-progress"));
+        executor.setRemoveOnCancelPolicy(true);
+        SAMPLER = executor;
+    }
+
+    private final TransferListener listener;
+    private final File[] files;
+    private final long[] sizes;
+    private final long totalBytes;
+    private final ScheduledFuture<?> sampling;
+    private final AtomicLong fileBytes = new AtomicLong();
+    private volatile int fileIndex = -1;
+
+    // The state below is only accessed while holding the tracker's monitor.
+    private long completedBytes = 0;
+    private long lastSampleNanos = System.nanoTime();
+    private long lastFileBytes = 0;
+    private long lastBatchBytes = 0;
+    private double fileRate = 0;
+    private double batchRate = 0;
+
+    /**
+     * Creates a tracker of a batch of files.
+     * @param files The files and directories of the batch, in the order they are sent.
+     * @param listener The listener to report the progress to, or null to only count the bytes sent.
+     * @param intervalMillis The time between two samples of the progress, in milliseconds.
+     */
+    ProgressTracker(final File[] files, final TransferListener listener, final long intervalMillis) {
+        this.listener = listener;
+        this.files = files;
+        this.sizes = new long[files.length];
+        long totalBytes = 0;
+        if (listener != null) {
+            for (int i = 0; i < files.length; i++) {
+                this.sizes[i] = ProgressTracker.sizeOf(files[i]);
+                totalBytes += this.sizes[i];
+            }
+        }
+        this.totalBytes = totalBytes;
+        this.sampling = listener == null ? null
+                : SAMPLER.scheduleAtFixedRate(this::sample, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Computes the number of bytes of a file, or of all files in the tree of a directory.
+     * @param file The file or directory.
+     * @return The number of bytes, or 0 if the file cannot be read.
+     */
+    private static long sizeOf(final File file) {
+        if (!file.isDirectory()) {
+            return file.length();
+        }
+        try (final Stream<Path> tree = Files.walk(file.toPath())) {
+            return tree.filter(Files::isRegularFile).mapToLong(path -> {
+                try {
+                    return Files.size(path);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            }).sum();
+        } catch (IOException | UncheckedIOException ex) {
+            return 0;
+        }
+    }
+
+    /**
+     * Starts tracking the next file of the batch.
+     * @param index The index of the file within the batch.
+     */
+    synchronized void startFile(final int index) {
+        this.fileIndex = index;
+        this.fileBytes.set(0);
+        this.lastFileBytes = 0;
+        // A new file starts at the rate of the batch, so its first estimate is not empty.
+        this.fileRate = this.batchRate;
+    }
+
+    /**
+     * Counts bytes of the current file as sent. This is called by the sending threads.
+     * @param bytes The number of bytes. This is negative if bytes counted before have to be sent again.
+     */
+    void add(final long bytes) {
+        this.fileBytes.addAndGet(bytes);
+    }
+
+    /**
+     * Creates the progress of a range of the current file, which is sent over a single stream.
+     * @param length The number of bytes in the range.
+     * @return The progress of the range.
+     */
+    Range newRange(final long length) {
+        return new Range(length);
+    }
+
+    /**
+     * @return The total number of bytes of the current file, or 0 if the tracker has no listener.
+     */
+    long getFileSize() {
+        final int index = this.fileIndex;
+        return index < 0 ? 0 : this.sizes[index];
+    }
+
+    /**
+     * Stops tracking the current file, and notifies the listener.
+     * @param sent If the file was sent successfully.
+     */
+    synchronized void completeFile(final boolean sent) {
+        final int index = this.fileIndex;
+        final long size = this.sizes[index];
+        final long bytes = sent ? size : Math.max(0, Math.min(this.fileBytes.get(), size));
+        this.completedBytes += bytes;
+        this.fileBytes.set(0);
+        this.lastFileBytes = 0;
+        this.lastBatchBytes = this.completedBytes;
+        this.fileIndex = -1;
+        if (this.listener != null) {
+            try {
+                this.listener.onFileCompleted(new TransferProgress(this.files[index].getName(), bytes, size, this.fileRate), sent);
+            } catch (RuntimeException ex) {
+                // Silently ignore the exception, as the listener must not fail the transfer.
+            }
+        }
+    }
+
+    /**
+     * Stops tracking the batch, and notifies the listener.
+     * @param sent If every file of the batch was sent successfully.
+     */
+    synchronized void close(final boolean sent) {
+        if (this.sampling == null) {
+            return;
+        }
+        this.sampling.cancel(false);
+        try {
+            this.listener.onBatchCompleted(new TransferProgress(null, this.completedBytes, this.totalBytes, this.batchRate), sent);
+        } catch (RuntimeException ex) {
+            // Silently ignore the exception, as the listener must not fail the transfer.
+        }
+    }
+
+    /**
+     * Samples the bytes sent since the last sample, updates the smoothed rates,
+     * and notifies the listener if any bytes were sent.
+     */
+    private synchronized void sample() {
+        final int index = this.fileIndex;
+        if (index < 0 || this.sampling.isCancelled()) {
+            return;
+        }
+        final long now = System.nanoTime();
+        final double seconds = (now - this.lastSampleNanos) / 1e9;
+        final long fileBytes = this.fileBytes.get();
+        final long batchBytes = this.completedBytes + fileBytes;
+        this.fileRate = ProgressTracker.smooth(this.fileRate, Math.max(0, fileBytes - this.lastFileBytes) / seconds);
+        this.batchRate = ProgressTracker.smooth(this.batchRate, Math.max(0, batchBytes - this.lastBatchBytes) / seconds);
+        final boolean changed = batchBytes != this.lastBatchBytes;
+        this.lastSampleNanos = now;
+        this.lastFileBytes = fileBytes;
+        this.lastBatchBytes = batchBytes;
+        if (!changed) {
+            return;
+        }
+        try {
+            this.listener.onProgress(new TransferProgress(this.files[index].getName(), fileBytes, this.sizes[index], this.fileRate),
+                    new TransferProgress(null, batchBytes, this.totalBytes, this.batchRate));
+        } catch (RuntimeException ex) {
+            // Silently ignore the exception, as it must not stop the sampling.
+        }
+    }
+
+    /**
+     * @param rate The smoothed rate.
+     * @param sample The latest sample of the rate.
+     * @return The smoothed rate including the sample.
+     */
+    private static double smooth(final double rate, final double sample) {
+        return rate == 0 ? sample : rate + RATE_SMOOTHING * (sample - rate);
+    }
+
+    /**
+     * The progress of a range of a file, which is sent by one thread at a time, and may be sent more than once.
+     *
+     * <p>The peer acknowledges the chunks it already has whenever it requests the chunks it is missing,
+     * so chunks the peer had before are counted as sent, and chunks it has to receive again are no longer counted.</p>
+     */
+    final class Range {
+
+        private final long length;
+        private long reported = 0;
+
+        /**
+         * @param length The number of bytes in the range.
+         */
+        private Range(final long length) {
+            this.length = length;
+        }
+
+        /**
+         * Counts the bytes the peer has acknowledged as received, replacing the bytes counted so far.
+         * @param missingBytes The number of bytes of the range the peer is missing.
+         */
+        void acknowledge(final long missingBytes) {
+            final long acknowledged = this.length - missingBytes;
+            ProgressTracker.this.add(acknowledged - this.reported);
+            this.reported = acknowledged;
+        }
+
+        /**
+         * Counts bytes of the range as sent.
+         * @param bytes The number of bytes.
+         */
+        void sent(final long bytes) {
+            ProgressTracker.this.add(bytes);
+            this.reported += bytes;
+        }
+
+    }
+
+}
@@ -0,0 +1,72 @@
+package tech.avahe.filetransfer.net.filetransfer;
+
+/**
+ * The weak rolling checksum of a fixed-size block of bytes, as used by rsync.
+ *
+ * <p>Once the checksum of a block has been computed, the checksum of the block starting one byte later
+ * is derived from it in constant time, so every offset of a file can be checked against a set of
+ * {@link BlockSignature block signatures} in a single pass.</p>
+ *
+ * @author Avahe
+ */
+final class RollingChecksum {
+
+    private final int blockSize;
+    private int a;
+    private int b;
+
+    /**
+     * Creates a checksum of blocks of the given size.
+     * @param blockSize The number of bytes in a block.
+     */
+    RollingChecksum(final int blockSize) {
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Computes the checksum of a whole block.
+     * @param data The array containing the block.
+     * @param offset The offset of the block within the array.
+     */
+    void reset(final byte[] data, final int offset) {
+        this.a = 0;
+        this.b = 0;
+        for (int i = 0; i < this.blockSize; i++) {
+            final int x = data[offset + i] & 0xFF;
+            this.a += x;
+            this.b += (this.blockSize - i) * x;
+        }
+    }
+
+    /**
+     * Moves the block forward by one byte.
+     * @param out The first byte of the current block, which leaves the block.
+     * @param in The byte after the current block, which enters the block.
+     */
+    void roll(final byte out, final byte in) {
+        final int x = out & 0xFF;
+        this.a += (in & 0xFF) - x;
+        this.b += this.a - this.blockSize * x;
+    }
+
+    /**
+     * @return The checksum of the current block.
+     */
+    int getValue() {
+        return (this.a & 0xFFFF) | (this.b << 16);
+    }
+
+    /**
+     * Computes the checksum of a single block.
+     * @param data The array containing the block.
+     * @param offset The offset of the block within the array.
+     * @param blockSize The number of bytes in the block.
+     * @return The checksum of the block.
+     */
+    static int of(final byte[] data, final int offset, final int blockSize) {
+        final RollingChecksum checksum = new RollingChecksum(blockSize);
+        checksum.reset(data, offset);
+        return checksum.getValue();
+    }
+
+}
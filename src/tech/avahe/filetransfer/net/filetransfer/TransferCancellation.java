@@ -0,0 +1,91 @@
+package tech.avahe.filetransfer.net.filetransfer;
+
+import tech.avahe.filetransfer.net.TCPClient;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Stops the socket I/O of a batch of files sent by a {@link FileTransferClient} once the batch is cancelled.
+ *
+ * <p>Every connection of the batch is registered when it is opened, and every thread sending the batch
+ * while it sends. Cancelling closes the connections, which fails any blocked read or write, and interrupts
+ * the threads, which stops them waiting for a rate limit or their turn in the {@link TransferScheduler}.
+ * Connections opened after the batch was cancelled fail right away, so nothing is retried.</p>
+ *
+ * @author Avahe
+ */
+final class TransferCancellation {
+
+    private final Set<TCPClient> clients = ConcurrentHashMap.newKeySet();
+    private final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+    private volatile boolean cancelled = false;
+
+    /**
+     * Registers a connection of the batch, so it is closed if the batch is cancelled.
+     * @param tcpClient The client of the connection.
+     * @throws IOException Thrown if the batch has been cancelled.
+     */
+    void register(final TCPClient tcpClient) throws IOException {
+        this.clients.add(tcpClient);
+        // Checked after adding the client, so a concurrent cancel either closes the client or is seen here.
+        this.check();
+    }
+
+    /**
+     * @throws IOException Thrown if the batch has been cancelled.
+     */
+    void check() throws IOException {
+        if (this.cancelled) {
+            throw new InterruptedIOException("The transfer was cancelled.");
+        }
+    }
+
+    /**
+     * Registers the current thread as sending the batch, until {@link #exit()} is called.
+     */
+    void enter() {
+        this.threads.add(Thread.currentThread());
+    }
+
+    /**
+     * Stops treating the current thread as sending the batch, and clears an interrupt the cancellation caused,
+     * so it does not leak into the next task of a pooled thread.
+     */
+    void exit() {
+        synchronized (this) {
+            this.threads.remove(Thread.currentThread());
+        }
+        if (this.cancelled) {
+            Thread.interrupted();
+        }
+    }
+
+    /**
+     * Cancels the batch, closing its connections and interrupting the threads sending it.
+     */
+    void cancel() {
+        this.cancelled = true;
+        synchronized (this) {
+            // Holding the monitor keeps threads from being interrupted after they have exited.
+            this.threads.forEach(Thread::interrupt);
+        }
+        for (final TCPClient tcpClient : this.clients) {
+            try {
+                tcpClient.close();
+            } catch (IOException ex) {
+                // Silently ignore issues closing the connection, as it is abandoned either way.
+            }
+        }
+    }
+
+    /**
+     * @return If the batch has been cancelled.
+     */
+    boolean isCancelled() {
+        return this.cancelled;
+    }
+
+}
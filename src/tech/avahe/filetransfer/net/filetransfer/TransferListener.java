@@ -0,0 +1,39 @@
+package tech.avahe.filetransfer.net.filetransfer;
+
+/**
+ * Observes the progress of a batch of files sent by a {@link FileTransferClient}.
+ *
+ * <p>Progress is sampled on a shared background thread, at most once every progress interval
+ * of the client, and only while bytes are being sent, so a listener costs the transfer nothing but a counter.
+ * Completions are reported on the sending thread, as soon as they happen.
+ * A listener is never called by two threads at once.</p>
+ *
+ * @author Avahe
+ * @see FileTransferClient#send(tech.avahe.filetransfer.net.peerdiscovery.PeerInfo, TransferListener, java.io.File...)
+ */
+public interface TransferListener {
+
+    /**
+     * Called with the latest sample of the progress of the batch.
+     * @param file The progress of the file or directory being sent.
+     * @param batch The progress of the whole batch.
+     */
+    void onProgress(final TransferProgress file, final TransferProgress batch);
+
+    /**
+     * Called once a file or directory of the batch has been sent, or could not be sent.
+     * @param file The final progress of the file or directory.
+     * @param sent If the file or directory was sent successfully.
+     */
+    default void onFileCompleted(final TransferProgress file, final boolean sent) {
+    }
+
+    /**
+     * Called once the whole batch has been sent, or once a file of it could not be sent.
+     * @param batch The final progress of the batch.
+     * @param sent If every file of the batch was sent successfully.
+     */
+    default void onBatchCompleted(final TransferProgress batch, final boolean sent) {
+    }
+
+}
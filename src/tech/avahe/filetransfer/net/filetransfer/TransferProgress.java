@@ -0,0 +1,83 @@
+package tech.avahe.filetransfer.net.filetransfer;
+
+/**
+ * The progress of a file, or of a whole batch of files, at the time it was sampled.
+ *
+ * @author Avahe
+ * @see TransferListener
+ */
+public final class TransferProgress {
+
+    private final String name;
+    private final long bytesTransferred;
+    private final long totalBytes;
+    private final double bytesPerSecond;
+
+    /**
+     * Creates a sample of the progress of a transfer.
+     * @param name The name of the file, or null for a whole batch.
+     * @param bytesTransferred The number of bytes transferred. This is kept between 0 and the total number of bytes.
+     * @param totalBytes The total number of bytes to transfer.
+     * @param bytesPerSecond The smoothed rate of the transfer, in bytes per second.
+     */
+    TransferProgress(final String name, final long bytesTransferred, final long totalBytes, final double bytesPerSecond) {
+        this.name = name;
+        this.bytesTransferred = Math.max(0, Math.min(bytesTransferred, totalBytes));
+        this.totalBytes = totalBytes;
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * @return The name of the file or directory, or null if this is the progress of a whole batch.
+     */
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * @return The number of bytes which have been transferred.
+     */
+    public long getBytesTransferred() {
+        return this.bytesTransferred;
+    }
+
+    /**
+     * @return The total number of bytes to transfer. For a directory, this is the size of all files in its tree.
+     */
+    public long getTotalBytes() {
+        return this.totalBytes;
+    }
+
+    /**
+     * @return The fraction of the bytes which have been transferred, between 0 and 1.
+     */
+    public double getFraction() {
+        return this.totalBytes == 0 ? 1 : (double) this.bytesTransferred / this.totalBytes;
+    }
+
+    /**
+     * @return The rate of the transfer in bytes per second, smoothed over the last few samples.
+     */
+    public double getBytesPerSecond() {
+        return this.bytesPerSecond;
+    }
+
+    /**
+     * @return The estimated time until the transfer completes at the current rate, in milliseconds,
+     * or -1 if nothing has been transferred for a while.
+     */
+    public long getRemainingMillis() {
+        final long remainingBytes = this.totalBytes - this.bytesTransferred;
+        if (remainingBytes == 0) {
+            return 0;
+        }
+        return this.bytesPerSecond <= 0 ? -1 : (long) (remainingBytes * 1000 / this.bytesPerSecond);
+    }
+
+    @Override
+    public String toString() {
+        return (this.name == null ? "batch" : this.name) + ": " + this.bytesTransferred + "/" + this.totalBytes
+                + " bytes, " + (long) this.bytesPerSecond + " B/s, " + this.getRemainingMillis() + " ms remaining";
+    }
+
+}
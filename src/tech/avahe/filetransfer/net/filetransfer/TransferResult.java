@@ -0,0 +1,98 @@
+package tech.avahe.filetransfer.net.filetransfer;
+
+import tech.avahe.filetransfer.net.peerdiscovery.PeerInfo;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of sending a file, or a batch of files, to a peer.
+ *
+ * @author Avahe
+ * @see FileTransferClient#sendAsync(PeerInfo, TransferListener, File...)
+ */
+public final class TransferResult {
+
+    private final PeerInfo peerInfo;
+    private final List<File> files;
+    private final int sentCount;
+    private final IOException failure;
+    private final long elapsedNanos;
+
+    /**
+     * Creates the outcome of a transfer.
+     * @param peerInfo The peer the files were sent to.
+     * @param files The files and directories of the batch, in the order they were sent.
+     * @param sentCount The number of files which were sent before the batch stopped.
+     * @param failure The exception which stopped the batch, or null if there was none.
+     * @param elapsedNanos The time the transfer took, in nanoseconds.
+     */
+    TransferResult(final PeerInfo peerInfo, final File[] files, final int sentCount, final IOException failure,
+                   final long elapsedNanos) {
+        this.peerInfo = peerInfo;
+        this.files = Collections.unmodifiableList(Arrays.asList(files.clone()));
+        this.sentCount = sentCount;
+        this.failure = failure;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * @return The information of the peer the files were sent to.
+     */
+    public PeerInfo getPeerInfo() {
+        return this.peerInfo;
+    }
+
+    /**
+     * @return If every file of the batch was sent successfully.
+     */
+    public boolean isSent() {
+        return this.sentCount == this.files.size();
+    }
+
+    /**
+     * @return The files and directories of the batch, in the order they were sent.
+     */
+    public List<File> getFiles() {
+        return this.files;
+    }
+
+    /**
+     * @return The files and directories which were sent successfully.
+     */
+    public List<File> getSentFiles() {
+        return this.files.subList(0, this.sentCount);
+    }
+
+    /**
+     * @return The file or directory which could not be sent, which stopped the batch, or null if all files were sent.
+     */
+    public File getFailedFile() {
+        return this.isSent() ? null : this.files.get(this.sentCount);
+    }
+
+    /**
+     * @return The exception which stopped the batch, or null if all files were sent,
+     * or if the failed file does not exist or was rejected by the peer.
+     */
+    public IOException getFailure() {
+        return this.failure;
+    }
+
+    /**
+     * @return The time the transfer took, in milliseconds.
+     */
+    public long getElapsedMillis() {
+        return this.elapsedNanos / 1000000;
+    }
+
+    @Override
+    public String toString() {
+        return "Sent " + this.sentCount + "/" + this.files.size() + " files to " + this.peerInfo.nickName
+                + " in " + this.getElapsedMillis() + " ms" + (this.failure == null ? "" : " (" + this.failure.getMessage() + ")");
+    }
+
+}
@@ -0,0 +1,116 @@
+package tech.avahe.filetransfer.net.filetransfer;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Interleaves the chunks of concurrent transfers, so every transfer gets an equal share of the connection.
+ *
+ * <p>Every transfer is a {@link Flow}, which takes a slot before sending a chunk and returns it once the chunk has
+ * been sent. A fixed number of slots is shared by all flows, and free slots are handed to the waiting flows in
+ * turn, regardless of how many streams each of them sends over. A small file therefore waits for at most one
+ * chunk of every other transfer, instead of queueing behind all streams of a huge one, while a transfer that is
+ * sent on its own can still use every slot.</p>
+ *
+ * <p>A slot should only be held while the chunk's bytes can actually be sent. Senders therefore wait for their rate
+ * limits with {@link tech.avahe.filetransfer.net.TCPClient#reserve(long)} before taking a slot, so a throttled
+ * transfer does not keep the slots from the transfers which are free to send.</p>
+ *
+ * @author Avahe
+ */
+final class TransferScheduler {
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition turnChanged = this.lock.newCondition();
+    private final ArrayDeque<Flow> waitingFlows = new ArrayDeque<>();
+    private int freeSlots;
+
+    /**
+     * Creates a scheduler.
+     * @param slots The number of chunks which may be sent at once, across all flows.
+     */
+    TransferScheduler(final int slots) {
+        if (slots < 1) {
+            throw new IllegalArgumentException("A scheduler needs at least one slot.");
+        }
+        this.freeSlots = slots;
+    }
+
+    /**
+     * Creates a flow for a new transfer.
+     * @return The flow, which may be used by any number of threads.
+     */
+    Flow newFlow() {
+        return new Flow();
+    }
+
+    /**
+     * The chunks of a single transfer, which take turns with the chunks of all other flows of the scheduler.
+     */
+    final class Flow {
+
+        /**
+         * The number of threads of this flow waiting for a slot, which is guarded by the scheduler's lock.
+         */
+        private int waitingThreads = 0;
+
+        /**
+         * Creates a flow.
+         */
+        private Flow() {
+        }
+
+        /**
+         * Waits until it is this flow's turn and a slot is free, and takes the slot.
+         * @throws InterruptedIOException Thrown if the thread is interrupted while waiting.
+         */
+        void acquire() throws InterruptedIOException {
+            final TransferScheduler scheduler = TransferScheduler.this;
+            scheduler.lock.lock();
+            try {
+                if (this.waitingThreads++ == 0) {
+                    scheduler.waitingFlows.addLast(this);
+                }
+                while (scheduler.freeSlots == 0 || scheduler.waitingFlows.peekFirst() != this) {
+                    try {
+                        scheduler.turnChanged.await();
+                    } catch (InterruptedException ex) {
+                        if (--this.waitingThreads == 0) {
+                            scheduler.waitingFlows.remove(this);
+                        }
+                        scheduler.turnChanged.signalAll();
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting to send a chunk.");
+                    }
+                }
+                scheduler.freeSlots--;
+                scheduler.waitingFlows.removeFirst();
+                // A flow with more waiting threads goes to the back, after every other waiting flow.
+                if (--this.waitingThreads > 0) {
+                    scheduler.waitingFlows.addLast(this);
+                }
+                scheduler.turnChanged.signalAll();
+            } finally {
+                scheduler.lock.unlock();
+            }
+        }
+
+        /**
+         * Returns a slot taken by {@link #acquire()}.
+         */
+        void release() {
+            final TransferScheduler scheduler = TransferScheduler.this;
+            scheduler.lock.lock();
+            try {
+                scheduler.freeSlots++;
+                scheduler.turnChanged.signalAll();
+            } finally {
+                scheduler.lock.unlock();
+            }
+        }
+
+    }
+
+}
@@ -1,17 +1,32 @@
 package tech.avahe.filetransfer.net.peerdiscovery;
 
 import tech.avahe.filetransfer.common.Environment;
+import tech.avahe.filetransfer.metrics.Counter;
+import tech.avahe.filetransfer.metrics.Histogram;
+import tech.avahe.filetransfer.metrics.Metrics;
 import tech.avahe.filetransfer.net.MulticastClient;
+import tech.avahe.filetransfer.net.NetworkListener;
+import tech.avahe.filetransfer.net.OverflowPolicy;
 import tech.avahe.filetransfer.threading.ThreadSignaller;
+import tech.avahe.filetransfer.threading.Threads;
 import tech.avahe.filetransfer.util.Buffers;
+import tech.avahe.filetransfer.util.TimerWheel;
 
 import java.io.IOException;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * @author Avahe
@@ -21,13 +36,62 @@ public class PeerDiscoveryClient {
     private static final String GROUP_ADDRESS = "224.0.0.17";
     private static final int PORT = 7899;
 
+    /**
+     * The default time (in milliseconds) after which a peer which has not sent a message is considered disconnected.
+     */
+    public static final long DEFAULT_PEER_TIMEOUT = 5000;
+
+    /**
+     * The interval (in milliseconds) between pings while the group is small.
+     */
+    public static final long MIN_PING_INTERVAL = 1000;
+
+    /**
+     * The longest interval (in milliseconds) between pings, however large the group grows.
+     */
+    public static final long MAX_PING_INTERVAL = 30000;
+
+    /**
+     * The number of pings per second the whole group aims to send.
+     * Every client backs its ping interval off as the number of known peers grows, to stay close to this rate.
+     */
+    public static final int TARGET_GROUP_PING_RATE = 50;
+
+    // Every ping is delayed or advanced by up to this fraction of the interval, so clients do not ping in bursts.
+    private static final double PING_JITTER = 0.25;
+    // The number of pings a peer may miss before it is considered disconnected, however long its interval.
+    private static final int MISSED_PINGS_BEFORE_TIMEOUT = 3;
+    // The weight of the latest interval between pings in the measured send rate.
+    private static final double SEND_RATE_SMOOTHING = 0.2;
+    private static final long EXPIRY_TICK = 250;
+    private static final int EXPIRY_SLOTS = 64;
+
+    private static final Counter MESSAGES_RECEIVED = Metrics.counter("discovery.messages-received");
+    private static final Counter MALFORMED_MESSAGES = Metrics.counter("discovery.malformed-messages");
+    private static final Histogram HANDLING_LATENCY = Metrics.histogram("discovery.handling-nanos");
+
     private final MulticastClient client;
+    private final ThreadFactory pingThreadFactory = Threads.newThreadFactory("peer-discovery-ping");
+    private final ReentrantLock pingThreadLock = new ReentrantLock();
     private Thread pingThread;
     private final ThreadSignaller pingThreadSignaller = new ThreadSignaller();
 
-    private String nickName;
+    private volatile String nickName;
+    private final AtomicBoolean announceRequested = new AtomicBoolean(false);
+    private final AtomicLong pingsSent = new AtomicLong();
+    private volatile double sendRate = 0;
+    private final int transferPort;
+    private volatile boolean legacyFormat = false;
+    // The encoded ping, shared read-only between sends. It is only rebuilt when the advertised state changes.
+    private final AtomicReference<ByteBuffer> pingMessage = new AtomicReference<>();
+    private final ReentrantLock advertisedStateLock = new ReentrantLock();
+    private volatile long peerTimeout = DEFAULT_PEER_TIMEOUT;
 
-    private final Map<String, String> peers;
+    private final PeerRegistry peers = new PeerRegistry();
+    // Expires peers which stop sending messages, keyed by IP address.
+    private final TimerWheel<String> peerExpiry = new TimerWheel<>(EXPIRY_TICK, EXPIRY_SLOTS, System.nanoTime());
+    // Makes adding a peer and scheduling its expiry atomic, so an expiry never removes a peer which was just seen.
+    private final ReentrantLock peerExpiryLock = new ReentrantLock();
     private final CopyOnWriteArraySet<PeerListener> peerListeners;
 
 
@@ -39,11 +103,27 @@ public class PeerDiscoveryClient {
      * @see MulticastClient#MulticastClient(String, int)
      */
     public PeerDiscoveryClient(final String nickName) throws IOException, InterruptedException {
+        this(nickName, PeerMessage.UNKNOWN_PORT);
+    }
+
+    /**
+     * Creates a new client which communicates with peers about their statuses.
+     * This client keeps track of peers on the network, and broadcasts its own connection status.
+     * @param nickName The client's nick name, to be used for messaging.
+     * @param transferPort The port on which the client receives files, which is announced to peers.
+     * @throws IOException Thrown if the connection cannot be established.
+     * @see MulticastClient#MulticastClient(String, int)
+     */
+    public PeerDiscoveryClient(final String nickName, final int transferPort) throws IOException, InterruptedException {
         this.nickName = nickName;
-        this.peers = new HashMap<>();
+        this.transferPort = transferPort;
         this.peerListeners = new CopyOnWriteArraySet<>();
+        this.rebuildPingMessage();
 
         this.client = new MulticastClient(GROUP_ADDRESS, PORT);
+        // Peer listeners are notified off the receive thread, so a slow listener cannot make the client miss pings.
+        // When the queue is full, the oldest messages are dropped, as newer pings carry the latest state.
+        this.client.setDispatchExecutor(NetworkListener.sharedDispatchExecutor(), NetworkListener.DEFAULT_DISPATCH_CAPACITY, OverflowPolicy.DROP_OLDEST);
         // Disable the loopback mode so the program will not receive its own messages.
         this.client.setLoopbackMode(true);
         this.client.addDataListener(this::dataHandler);
@@ -58,13 +138,130 @@ public class PeerDiscoveryClient {
      * @param nickName The client's new nick name.
      * @return If the nick name was changed.
      * This will return false if the parameterized name was the same as the current nick name.
+     * @throws IllegalArgumentException Thrown if the nick name is longer than {@link PeerMessage#MAX_NICK_NAME_BYTES}
+     * bytes in UTF-8, in which case the current nick name is kept.
      */
     public boolean setNickName(final String nickName) {
-        if (!this.nickName.equals(nickName)) {
+        // Checked before anything changes, so the nick name always matches the cached ping.
+        if (nickName.getBytes(StandardCharsets.UTF_8).length > PeerMessage.MAX_NICK_NAME_BYTES) {
+            throw new IllegalArgumentException("Nick name is too long: " + nickName);
+        }
+        this.advertisedStateLock.lock();
+        try {
+            if (this.nickName.equals(nickName)) {
+                return false;
+            }
             this.nickName = nickName;
-            return true;
+            this.rebuildPingMessage();
+        } finally {
+            this.advertisedStateLock.unlock();
+        }
+        this.announce();
+        return true;
+    }
+
+    /**
+     * Sends a ping to the group as soon as possible, instead of waiting for the next scheduled ping.
+     */
+    private void announce() {
+        this.announceRequested.set(true);
+        this.pingThreadSignaller.signal();
+    }
+
+    /**
+     * Computes the interval between pings for the current size of the group.
+     * The interval grows linearly with the number of known peers, so the group as a whole pings at about
+     * {@link #TARGET_GROUP_PING_RATE} times a second, between {@link #MIN_PING_INTERVAL} and {@link #MAX_PING_INTERVAL}.
+     * @return The interval between pings, in milliseconds, before jitter is applied.
+     */
+    public long getPingInterval() {
+        final long groupSize = this.peers.size() + 1L;
+        return Math.max(MIN_PING_INTERVAL, Math.min(MAX_PING_INTERVAL, groupSize * 1000 / TARGET_GROUP_PING_RATE));
+    }
+
+    /**
+     * @return The number of pings sent since the client was created.
+     */
+    public long getPingsSent() {
+        return this.pingsSent.get();
+    }
+
+    /**
+     * @return The number of received messages dropped because the peer listeners could not keep up.
+     */
+    public long getDroppedMessages() {
+        return this.client.getDroppedPackets();
+    }
+
+    /**
+     * @return The smoothed number of pings this client sends per second.
+     */
+    public double getSendRate() {
+        return this.sendRate;
+    }
+
+    /**
+     * Peers back off their ping interval as the group grows,
+     * so a peer is given at least a few of its intervals before it is considered disconnected.
+     * @return The time (in milliseconds) after which a silent peer is considered disconnected.
+     */
+    private long getEffectivePeerTimeout() {
+        return Math.max(this.peerTimeout, MISSED_PINGS_BEFORE_TIMEOUT * this.getPingInterval());
+    }
+
+    /**
+     * Sets the time after which a peer which has not sent a message is considered disconnected.
+     * Peers seen before the change keep their previous deadline until they send their next message.
+     * @param peerTimeout The timeout, in milliseconds.
+     */
+    public void setPeerTimeout(final long peerTimeout) {
+        if (peerTimeout <= 0) {
+            throw new IllegalArgumentException("The peer timeout must be positive.");
         }
-        return false;
+        this.peerTimeout = peerTimeout;
+    }
+
+    /**
+     * @return The time (in milliseconds) after which a peer which has not sent a message is considered disconnected.
+     */
+    public long getPeerTimeout() {
+        return this.peerTimeout;
+    }
+
+    /**
+     * Sets whether messages are sent in the legacy text format, for groups with peers running older versions.
+     * Messages in either format are always received.
+     * @param legacyFormat If messages should be sent in the legacy text format.
+     */
+    public void setLegacyFormat(final boolean legacyFormat) {
+        this.advertisedStateLock.lock();
+        try {
+            this.legacyFormat = legacyFormat;
+            this.rebuildPingMessage();
+        } finally {
+            this.advertisedStateLock.unlock();
+        }
+    }
+
+    /**
+     * Encodes the ping once into a read-only direct buffer, which every send duplicates,
+     * so pinging neither encodes nor copies the message.
+     * Must be called while holding the advertised state lock, or from the constructor.
+     */
+    private void rebuildPingMessage() {
+        this.pingMessage.set(Buffers.copyDirect(this.encodeMessage(PeerMessage.MessageType.PING)).asReadOnlyBuffer());
+    }
+
+    /**
+     * Encodes a message from this client in the current format.
+     * @param messageType The type of message.
+     * @return A buffer containing the encoded message, ready to be sent.
+     */
+    private ByteBuffer encodeMessage(final PeerMessage.MessageType messageType) {
+        if (this.legacyFormat) {
+            return Buffers.toBuffer(PeerMessage.createFormattedMessage(messageType, Environment.LOCAL_ADDRESS, this.nickName));
+        }
+        return new PeerMessage(messageType, Environment.LOCAL_ADDRESS, this.nickName, this.transferPort).encode();
     }
 
     /**
@@ -73,28 +270,75 @@ public class PeerDiscoveryClient {
      * @param data The received data.
      */
     private void dataHandler(final SocketAddress remoteAddress, final ByteBuffer data) {
-        final PeerMessage peerMessage = PeerMessage.parseFormattedMessage(Buffers.toString(data));
+        final long start = System.nanoTime();
+        PeerDiscoveryClient.MESSAGES_RECEIVED.increment();
+        final PeerMessage peerMessage;
+        try {
+            peerMessage = PeerMessage.decode(data);
+        } catch (IllegalArgumentException ex) {
+            // Silently ignore malformed messages, as anyone on the network can send to the group.
+            PeerDiscoveryClient.MALFORMED_MESSAGES.increment();
+            return;
+        }
         final String ipAddress = peerMessage.getIpAddress();
         final String receivedNickName = peerMessage.getNickName();
-        final String cachedNickName = this.peers.get(ipAddress);
 
         switch (peerMessage.getMessageType()) {
             case PING:
-                if (cachedNickName == null) {
+                final PeerInfo cachedPeer;
+                this.peerExpiryLock.lock();
+                try {
+                    cachedPeer = this.peers.put(new PeerInfo(receivedNickName, ipAddress, peerMessage.getPort()));
+                    this.peerExpiry.schedule(ipAddress, this.getEffectivePeerTimeout());
+                } finally {
+                    this.peerExpiryLock.unlock();
+                }
+                if (cachedPeer == null) {
                     this.peerListeners.forEach(listener -> listener.onPeerConnected(ipAddress, receivedNickName));
-                } else if (!cachedNickName.equals(receivedNickName)) {
-                    this.peerListeners.forEach(listener -> listener.onPeerNickNameChange(ipAddress, receivedNickName, cachedNickName));
+                } else if (!cachedPeer.nickName.equals(receivedNickName)) {
+                    this.peerListeners.forEach(listener -> listener.onPeerNickNameChange(ipAddress, receivedNickName, cachedPeer.nickName));
                 }
-                this.peers.put(ipAddress, receivedNickName);
                 break;
 
             case DISCONNECT:
-                if (cachedNickName != null) {
+                final PeerInfo removedPeer;
+                this.peerExpiryLock.lock();
+                try {
+                    this.peerExpiry.cancel(ipAddress);
+                    removedPeer = this.peers.remove(ipAddress);
+                } finally {
+                    this.peerExpiryLock.unlock();
+                }
+                if (removedPeer != null) {
                     this.peerListeners.forEach(listener -> listener.onPeerDisconnected(ipAddress, receivedNickName));
-                    this.peers.remove(ipAddress);
                 }
                 break;
         }
+        PeerDiscoveryClient.HANDLING_LATENCY.recordSince(start);
+    }
+
+    /**
+     * Removes a peer which has not sent a message within the peer timeout, and notifies all <code>PeerListeners</code>.
+     *
+     * <p>The wheel fires on the ping thread, while pings are handled on the dispatch thread. A ping which arrives
+     * after the wheel let the peer expire schedules it again, so the peer is only removed if it has no new deadline.</p>
+     *
+     * @param ipAddress The IP address of the peer.
+     */
+    private void expirePeer(final String ipAddress) {
+        final PeerInfo peer;
+        this.peerExpiryLock.lock();
+        try {
+            if (this.peerExpiry.contains(ipAddress)) {
+                return;
+            }
+            peer = this.peers.remove(ipAddress);
+        } finally {
+            this.peerExpiryLock.unlock();
+        }
+        if (peer != null) {
+            this.peerListeners.forEach(listener -> listener.onPeerDisconnected(ipAddress, peer.nickName));
+        }
     }
 
     /**
@@ -106,9 +350,12 @@ public class PeerDiscoveryClient {
         if (this.isPinging()) {
             return false;
         }
-        synchronized (this.pingThreadSignaller) {
-            this.pingThread = new Thread(this::pingContinuously);
+        this.pingThreadLock.lock();
+        try {
+            this.pingThread = this.pingThreadFactory.newThread(this::pingContinuously);
             this.pingThread.start();
+        } finally {
+            this.pingThreadLock.unlock();
         }
         return true;
     }
@@ -117,36 +364,79 @@ public class PeerDiscoveryClient {
      * @return If the client is actively pinging.
      */
     private boolean isPinging() {
-        synchronized (this.pingThreadSignaller) {
+        this.pingThreadLock.lock();
+        try {
             return this.pingThread != null && this.pingThread.isAlive() && !this.pingThread.isInterrupted();
+        } finally {
+            this.pingThreadLock.unlock();
         }
     }
 
     /**
-     * Continuously sends ping messages.
+     * Continuously sends ping messages, and expires peers which have gone silent in between.
+     *
+     * <p>The first ping is sent immediately, so the group learns of the client as soon as it joins.
+     * Every following ping is scheduled after a jittered {@link #getPingInterval()},
+     * unless an announcement is requested earlier.</p>
      */
     private void pingContinuously() {
         try {
-            final String pingMessage = PeerMessage.createFormattedMessage(PeerMessage.MessageType.PING, Environment.LOCAL_ADDRESS, this.nickName);
+            long nextPingNanos = System.nanoTime();
+            long lastPingNanos = 0;
             while (this.isPinging()) {
-                this.client.send(pingMessage);
-                this.pingThreadSignaller.waitForTimeout(1000);
+                this.pingThreadSignaller.reset();
+                long nowNanos = System.nanoTime();
+                if (this.announceRequested.getAndSet(false) || nowNanos - nextPingNanos >= 0) {
+                    this.client.send(this.pingMessage.get().duplicate());
+                    this.onPingSent(nowNanos, lastPingNanos);
+                    lastPingNanos = nowNanos;
+                    nextPingNanos = nowNanos + PeerDiscoveryClient.jitter(TimeUnit.MILLISECONDS.toNanos(this.getPingInterval()));
+                }
+                this.peerExpiry.advance(nowNanos, this::expirePeer);
+                nowNanos = System.nanoTime();
+                final long untilNextPing = TimeUnit.NANOSECONDS.toMillis(nextPingNanos - nowNanos);
+                this.pingThreadSignaller.waitForTimeout(Math.max(1, Math.min(untilNextPing, this.peerExpiry.millisUntilNextTick(nowNanos))));
             }
         } catch (Exception ex) {
             // Silently ignore the exception, as the loop will exit if the connection drops.
         } finally {
-            synchronized (this.pingThreadSignaller) {
+            this.pingThreadLock.lock();
+            try {
                 this.pingThread = null;
+            } finally {
+                this.pingThreadLock.unlock();
             }
         }
     }
 
+    /**
+     * Records a sent ping in the client's statistics.
+     * @param nowNanos The time the ping was sent.
+     * @param lastPingNanos The time the previous ping was sent, or 0 if this was the first ping.
+     */
+    private void onPingSent(final long nowNanos, final long lastPingNanos) {
+        this.pingsSent.incrementAndGet();
+        if (lastPingNanos != 0 && nowNanos > lastPingNanos) {
+            final double rate = (double) TimeUnit.SECONDS.toNanos(1) / (nowNanos - lastPingNanos);
+            this.sendRate = this.sendRate == 0 ? rate : this.sendRate + SEND_RATE_SMOOTHING * (rate - this.sendRate);
+        }
+    }
+
+    /**
+     * @param intervalNanos An interval, in nanoseconds.
+     * @return The interval, randomly shortened or lengthened by up to {@link #PING_JITTER} of its length.
+     */
+    private static long jitter(final long intervalNanos) {
+        return (long) (intervalNanos * (1 + PING_JITTER * (2 * ThreadLocalRandom.current().nextDouble() - 1)));
+    }
+
     /**
      * Stops the client from pinging the group.
      * @return If the client was pinging at the time of the method call.
      */
     private boolean stopPinging() {
-        synchronized (this.pingThreadSignaller) {
+        this.pingThreadLock.lock();
+        try {
             if (this.isPinging()) {
                 this.pingThread.interrupt();
                 this.pingThreadSignaller.signal();
@@ -154,6 +444,8 @@ public class PeerDiscoveryClient {
                 return true;
             }
             return false;
+        } finally {
+            this.pingThreadLock.unlock();
         }
     }
 
@@ -166,9 +458,10 @@ public class PeerDiscoveryClient {
         if (!this.client.isClosed()) {
             this.stopPinging();
             // Notify the group that the client is disconnecting.
-            final String disconnectMessage = PeerMessage.createFormattedMessage(PeerMessage.MessageType.DISCONNECT, Environment.LOCAL_ADDRESS, this.nickName);
+            final ByteBuffer disconnectMessage = this.encodeMessage(PeerMessage.MessageType.DISCONNECT);
             for (int i = 0; i < 3; i++) {
                 try {
+                    disconnectMessage.rewind();
                     this.client.send(disconnectMessage);
                 } catch (IOException ex) {
                     // Silently ignore issues sending close messages.
@@ -219,16 +512,28 @@ public class PeerDiscoveryClient {
         return  this.peerListeners.remove(listener);
     }
 
+    /**
+     * Returns the registry of the peers on the network.
+     * It can be polled through snapshots or deltas without interfering with the receipt of messages.
+     * @return The registry of peers.
+     */
+    public PeerRegistry getPeerRegistry() {
+        return this.peers;
+    }
+
     /**
      * Retrieves the currently active peers on the network as an unmodifiable map.
      *
      * <p>This map has the peer's IP address as the keys, and nick names as the values.
+     * It is a copy of the current snapshot of the peer registry, so it does not change as peers come and go.
      * Note that this will always be empty if the <code>PeerDiscoveryListener</code> is null or has been closed.</p>
      *
      * @return The peers currently on the local network.
      */
     public Map<String, String> getPeersOnNetwork() {
-        return Collections.unmodifiableMap(this.peers);
+        final Map<String, String> peers = new LinkedHashMap<>();
+        this.peers.snapshot().getPeers().forEach((ipAddress, peer) -> peers.put(ipAddress, peer.nickName));
+        return Collections.unmodifiableMap(peers);
     }
 
 }
\ No newline at end of file
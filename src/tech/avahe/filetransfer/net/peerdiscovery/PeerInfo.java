@@ -1,5 +1,7 @@
 package tech.avahe.filetransfer.net.peerdiscovery;
 
+import java.util.Objects;
+
 /**
  * @author Avahe
  */
@@ -21,4 +23,26 @@ public class PeerInfo {
        this.port = port;
     }
 
-}
\ No newline at end of file
+    @Override
+    public boolean equals(final Object object) {
+        if (this == object) {
+            return true;
+        }
+        if (!(object instanceof PeerInfo)) {
+            return false;
+        }
+        final PeerInfo other = (PeerInfo) object;
+        return this.port == other.port && Objects.equals(this.nickName, other.nickName) && Objects.equals(this.ipAddress, other.ipAddress);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(this.nickName, this.ipAddress, this.port);
+    }
+
+    @Override
+    public String toString() {
+        return this.nickName + "@" + this.ipAddress + ":" + this.port;
+    }
+
+}
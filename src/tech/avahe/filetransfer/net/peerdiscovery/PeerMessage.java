@@ -1,6 +1,26 @@
 package tech.avahe.filetransfer.net.peerdiscovery;
 
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
 /**
+ * A message exchanged between peers over the discovery group.
+ *
+ * <p>Messages are sent in a compact binary format, which is read directly from the received buffer:</p>
+ * <pre>
+ *     [magic: 1 byte][version: 1 byte][type: 1 byte]
+ *     [address length: 1 byte (4 or 16)][address: raw IPv4/IPv6 bytes]
+ *     [nick name length: 1 byte][nick name: UTF-8 bytes][port: 2 bytes, unsigned]
+ * </pre>
+ * <p>Peers running older versions send the legacy text format (<code>type,address,nickname</code>),
+ * which is still understood by {@link #decode(ByteBuffer)}. The magic byte tells the formats apart,
+ * as it is not a valid first byte of a UTF-8 string.</p>
+ *
  * @author Avahe
  */
 public class PeerMessage {
@@ -9,19 +29,44 @@ public class PeerMessage {
      * @author Avahe
      */
     public enum MessageType {
-        PING("ping"),
-        DISCONNECT("dc");
+        PING(0, "ping"),
+        DISCONNECT(1, "dc");
+
+        private static final MessageType[] BY_ID;
+        private static final Map<String, MessageType> BY_IDENTIFIER = new HashMap<>();
+
+        static {
+            int maxId = 0;
+            for (final MessageType type : MessageType.values()) {
+                maxId = Math.max(maxId, type.id);
+                MessageType.BY_IDENTIFIER.put(type.identifier, type);
+            }
+            BY_ID = new MessageType[maxId + 1];
+            for (final MessageType type : MessageType.values()) {
+                MessageType.BY_ID[type.id] = type;
+            }
+        }
 
+        private final int id;
         private final String identifier;
 
         /**
          * Creates a new message type to be used for messaging peers.
-         * @param identifier The identifier of the message.
+         * @param id The identifier of the message in the binary format. Identifiers must never be reused.
+         * @param identifier The identifier of the message in the legacy text format.
          */
-        MessageType(final String identifier) {
+        MessageType(final int id, final String identifier) {
+            this.id = id;
             this.identifier = identifier;
         }
 
+        /**
+         * @return The identifier of the <code>MessageType</code> in the binary format.
+         */
+        public int getId() {
+            return this.id;
+        }
+
         /**
          * @return The string representation of the <code>MessageType</code>.
          */
@@ -36,32 +81,79 @@ public class PeerMessage {
          * @see MessageType#getIdentifier()
          */
         protected static MessageType getByIdentifier(final String identifier) {
-            for (final MessageType type : MessageType.values()) {
-                if (type.getIdentifier().equals(identifier)) {
-                    return type;
-                }
-            }
-            return null;
+            return MessageType.BY_IDENTIFIER.get(identifier);
+        }
+
+        /**
+         * Finds the <code>MessageType</code> with the given binary identifier.
+         * @param id The binary identifier of the message type.
+         * @return the <code>MessageType</code> with the given identifier, or null if there is none.
+         * @see MessageType#getId()
+         */
+        protected static MessageType getById(final int id) {
+            return id >= 0 && id < MessageType.BY_ID.length ? MessageType.BY_ID[id] : null;
         }
 
     }
 
     private static final String DELIMITER = ",";
 
+    /**
+     * The first byte of every binary message.
+     */
+    public static final byte MAGIC = (byte) 0xFA;
+
+    /**
+     * The version of the binary format written by this client.
+     */
+    public static final byte VERSION = 1;
+
+    /**
+     * The maximum length of an encoded nick name, in bytes.
+     */
+    public static final int MAX_NICK_NAME_BYTES = 255;
+
+    /**
+     * The maximum length of a binary message, in bytes.
+     */
+    public static final int MAX_ENCODED_LENGTH = 3 + 1 + 16 + 1 + MAX_NICK_NAME_BYTES + Short.BYTES;
+
+    /**
+     * The port of a message which does not carry one, such as a legacy text message.
+     */
+    public static final int UNKNOWN_PORT = 0;
+
     private final MessageType messageType;
     private final String ipAddress;
     private final String nickName;
+    private final int port;
 
     /**
-     * Creates a standardized message with the given information.
+     * Creates a standardized message with the given information, which does not carry a port.
      * @param messageType The type of message.
      * @param ipAddress The ip address of the client sending the message.
      * @param nickName The nick name of the client sending the message.
      */
     public PeerMessage(final MessageType messageType, final String ipAddress, final String nickName) {
+        this(messageType, ipAddress, nickName, UNKNOWN_PORT);
+    }
+
+    /**
+     * Creates a standardized message with the given information.
+     * @param messageType The type of message.
+     * @param ipAddress The ip address of the client sending the message.
+     * @param nickName The nick name of the client sending the message.
+     * @param port The port on which the client sending the message receives files,
+     * or {@link #UNKNOWN_PORT} if it is not known.
+     */
+    public PeerMessage(final MessageType messageType, final String ipAddress, final String nickName, final int port) {
+        if (port < 0 || port > 0xFFFF) {
+            throw new IllegalArgumentException("Invalid port: " + port);
+        }
         this.messageType = messageType;
         this.ipAddress = ipAddress;
         this.nickName = nickName;
+        this.port = port;
     }
 
     /**
@@ -85,6 +177,130 @@ public class PeerMessage {
         return this.nickName;
     }
 
+    /**
+     * @return The port on which the client sending the message receives files,
+     * or {@link #UNKNOWN_PORT} if the message did not carry one.
+     */
+    public int getPort() {
+        return this.port;
+    }
+
+    /**
+     * Encodes the message in the binary format.
+     * @return A buffer containing the encoded message, ready to be sent.
+     * @throws IllegalArgumentException Thrown if the IP address is invalid, or if the nick name is too long.
+     */
+    public ByteBuffer encode() {
+        final byte[] address = PeerMessage.toAddressBytes(this.ipAddress);
+        final byte[] nickNameBytes = this.nickName.getBytes(StandardCharsets.UTF_8);
+        if (nickNameBytes.length > MAX_NICK_NAME_BYTES) {
+            throw new IllegalArgumentException("Nick name is too long: " + this.nickName);
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(3 + 1 + address.length + 1 + nickNameBytes.length + Short.BYTES);
+        buffer.put(MAGIC);
+        buffer.put(VERSION);
+        buffer.put((byte) this.messageType.getId());
+        buffer.put((byte) address.length);
+        buffer.put(address);
+        buffer.put((byte) nickNameBytes.length);
+        buffer.put(nickNameBytes);
+        buffer.putShort((short) this.port);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Decodes a received message, in either the binary or the legacy text format.
+     * The buffer's position is advanced past the message.
+     * @param buffer The received data.
+     * @return The decoded message.
+     * @throws IllegalArgumentException Thrown if the data is not a valid message.
+     */
+    public static PeerMessage decode(final ByteBuffer buffer) {
+        if (!buffer.hasRemaining()) {
+            throw new IllegalArgumentException("Empty message.");
+        }
+        if (buffer.get(buffer.position()) != MAGIC) {
+            return PeerMessage.parseFormattedMessage(StandardCharsets.UTF_8.decode(buffer).toString());
+        }
+        try {
+            buffer.get();
+            final byte version = buffer.get();
+            if (version != VERSION) {
+                throw new IllegalArgumentException("Unsupported message version: " + version);
+            }
+            final MessageType messageType = MessageType.getById(buffer.get() & 0xFF);
+            if (messageType == null) {
+                throw new IllegalArgumentException("Unknown message type.");
+            }
+            final String ipAddress = PeerMessage.readAddress(buffer, buffer.get() & 0xFF);
+            final int nickNameLength = buffer.get() & 0xFF;
+            final String nickName = PeerMessage.readString(buffer, nickNameLength);
+            final int port = buffer.getShort() & 0xFFFF;
+            return new PeerMessage(messageType, ipAddress, nickName, port);
+        } catch (BufferUnderflowException ex) {
+            throw new IllegalArgumentException("Truncated message.", ex);
+        }
+    }
+
+    /**
+     * Reads a raw IPv4 or IPv6 address.
+     * @param buffer The buffer to read from.
+     * @param length The length of the address, in bytes.
+     * @return The textual representation of the address.
+     */
+    private static String readAddress(final ByteBuffer buffer, final int length) {
+        if (length == 4) {
+            // Formatted by hand, as this is the common case and InetAddress allocates several objects.
+            return (buffer.get() & 0xFF) + "." + (buffer.get() & 0xFF) + "." + (buffer.get() & 0xFF) + "." + (buffer.get() & 0xFF);
+        }
+        if (length != 16) {
+            throw new IllegalArgumentException("Invalid address length: " + length);
+        }
+        final byte[] address = new byte[length];
+        buffer.get(address);
+        try {
+            return InetAddress.getByAddress(address).getHostAddress();
+        } catch (UnknownHostException ex) {
+            throw new IllegalArgumentException("Invalid address.", ex);
+        }
+    }
+
+    /**
+     * Reads a UTF-8 string, without an intermediate copy if the buffer is backed by an array.
+     * @param buffer The buffer to read from.
+     * @param length The length of the string, in bytes.
+     * @return The string.
+     */
+    private static String readString(final ByteBuffer buffer, final int length) {
+        if (length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        final String string;
+        if (buffer.hasArray()) {
+            string = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+        } else {
+            final byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            string = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return string;
+    }
+
+    /**
+     * @param ipAddress A literal IPv4 or IPv6 address. InetAddress parses literals without a lookup.
+     * @return The raw bytes of the address.
+     * @throws IllegalArgumentException Thrown if the address cannot be resolved.
+     */
+    private static byte[] toAddressBytes(final String ipAddress) {
+        try {
+            return InetAddress.getByName(ipAddress).getAddress();
+        } catch (UnknownHostException ex) {
+            throw new IllegalArgumentException("Invalid IP address: " + ipAddress, ex);
+        }
+    }
+
     /**
      * Creates a standardized message with the given information.
      * @param messageType The type of message.
@@ -115,7 +331,11 @@ public class PeerMessage {
         if (parameters.length != 3) {
             throw new IllegalArgumentException("Invalid message format.");
         }
-        return new PeerMessage(MessageType.getByIdentifier(parameters[0]), parameters[1], parameters[2]);
+        final MessageType messageType = MessageType.getByIdentifier(parameters[0]);
+        if (messageType == null) {
+            throw new IllegalArgumentException("Unknown message type.");
+        }
+        return new PeerMessage(messageType, parameters[1], parameters[2]);
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,359 @@
+package tech.avahe.filetransfer.net.peerdiscovery;
+
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The peers currently on the network, keyed by IP address.
+ *
+ * <p>Every change to the registry increments its version. Readers get immutable {@link Snapshot snapshots}
+ * of the whole registry, or {@link Delta deltas} of the changes since a version they have already seen.
+ * Readers never block, and writers are serialized with each other but never wait for readers. A new snapshot is
+ * copied without the writers' lock, and copied again if a change was made meanwhile, so it holds exactly the peers of
+ * its version. It is only built once per version.</p>
+ *
+ * @author Avahe
+ */
+public class PeerRegistry {
+
+    /**
+     * An immutable view of the registry at a version.
+     */
+    public static final class Snapshot {
+
+        private final long version;
+        private final Map<String, PeerInfo> peers;
+
+        /**
+         * @param version The version of the registry.
+         * @param peers The peers, keyed by IP address.
+         */
+        private Snapshot(final long version, final Map<String, PeerInfo> peers) {
+            this.version = version;
+            this.peers = Collections.unmodifiableMap(peers);
+        }
+
+        /**
+         * @return The version of the registry the snapshot was taken at.
+         */
+        public long getVersion() {
+            return this.version;
+        }
+
+        /**
+         * @return The peers on the network, keyed by IP address.
+         */
+        public Map<String, PeerInfo> getPeers() {
+            return this.peers;
+        }
+
+    }
+
+    /**
+     * The changes to the registry between two versions.
+     *
+     * <p>A delta may contain changes made after its version. Applying those again with the next delta
+     * yields the same result, as every change carries the peer's latest state.</p>
+     */
+    public static final class Delta {
+
+        private final long fromVersion;
+        private final long version;
+        private final boolean full;
+        private final List<PeerInfo> updated;
+        private final Set<String> removed;
+
+        /**
+         * @param fromVersion The version the changes were requested since.
+         * @param version The version of the registry the delta brings its reader up to.
+         * @param full If the delta contains every peer, instead of only the changed peers.
+         * @param updated The peers which were added or changed.
+         * @param removed The IP addresses of the peers which were removed.
+         */
+        private Delta(final long fromVersion, final long version, final boolean full, final List<PeerInfo> updated, final Set<String> removed) {
+            this.fromVersion = fromVersion;
+            this.version = version;
+            this.full = full;
+            this.updated = Collections.unmodifiableList(updated);
+            this.removed = Collections.unmodifiableSet(removed);
+        }
+
+        /**
+         * @return The version the changes were requested since.
+         */
+        public long getFromVersion() {
+            return this.fromVersion;
+        }
+
+        /**
+         * @return The version to request the next delta since.
+         */
+        public long getVersion() {
+            return this.version;
+        }
+
+        /**
+         * The registry only remembers removals for a while. If the requested version is too old,
+         * the delta contains every peer, and the reader must discard all peers it knew of before applying it.
+         * @return If the delta contains every peer.
+         */
+        public boolean isFull() {
+            return this.full;
+        }
+
+        /**
+         * @return The peers which were added or changed.
+         */
+        public List<PeerInfo> getUpdated() {
+            return this.updated;
+        }
+
+        /**
+         * @return The IP addresses of the peers which were removed.
+         */
+        public Set<String> getRemoved() {
+            return this.removed;
+        }
+
+        /**
+         * @return If nothing changed.
+         */
+        public boolean isEmpty() {
+            return !this.full && this.updated.isEmpty() && this.removed.isEmpty();
+        }
+
+    }
+
+    /**
+     * The state of a peer at the version it last changed. A removed peer is kept as a tombstone with no info.
+     */
+    private static final class Entry {
+
+        private final PeerInfo info;
+        private final long version;
+
+        /**
+         * @param info The peer, or null if it was removed.
+         * @param version The version of the change.
+         */
+        private Entry(final PeerInfo info, final long version) {
+            this.info = info;
+            this.version = version;
+        }
+
+    }
+
+    /**
+     * The number of removed peers remembered for deltas, before they are forgotten all at once.
+     */
+    private static final int MAX_TOMBSTONES = 1024;
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final ReentrantLock writeLock = new ReentrantLock();
+    // Only published after the change of that version is in the map, so readers never miss a change.
+    private volatile long version = 0;
+    // Odd while a change is being made, so snapshots can tell that the map changed while they copied it.
+    private volatile long sequence = 0;
+    private volatile long forgottenVersion = 0;
+    private volatile int size = 0;
+    private int tombstones = 0;
+    private volatile Snapshot cachedSnapshot = new Snapshot(0, Collections.emptyMap());
+
+    /**
+     * @return The current version of the registry.
+     */
+    public long getVersion() {
+        return this.version;
+    }
+
+    /**
+     * @return The number of peers on the network.
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * @param ipAddress The IP address of the peer.
+     * @return The peer, or null if it is not on the network.
+     */
+    public PeerInfo get(final String ipAddress) {
+        final Entry entry = this.entries.get(ipAddress);
+        return entry == null ? null : entry.info;
+    }
+
+    /**
+     * Returns an immutable snapshot of the registry.
+     * Snapshots are cached, so polling an unchanged registry neither allocates nor blocks.
+     * @return The snapshot.
+     */
+    public Snapshot snapshot() {
+        final Snapshot cachedSnapshot = this.cachedSnapshot;
+        if (cachedSnapshot.version == this.version) {
+            return cachedSnapshot;
+        }
+        // Copied again if a change was made meanwhile, so no change of a later version can slip into a snapshot
+        // labelled with this one, without making writers wait for the copy.
+        while (true) {
+            final long sequence = this.sequence;
+            if ((sequence & 1) != 0) {
+                Thread.onSpinWait();
+                continue;
+            }
+            final long version = this.version;
+            final Map<String, PeerInfo> peers = new LinkedHashMap<>();
+            this.entries.forEach((ipAddress, entry) -> {
+                if (entry.info != null) {
+                    peers.put(ipAddress, entry.info);
+                }
+            });
+            // Keeps the reads of the map from moving past the check of the sequence.
+            VarHandle.loadLoadFence();
+            if (this.sequence == sequence) {
+                final Snapshot snapshot = new Snapshot(version, peers);
+                this.cachedSnapshot = snapshot;
+                return snapshot;
+            }
+        }
+    }
+
+    /**
+     * Returns the changes made to the registry since a version.
+     * @param sinceVersion The version the reader last saw, e.g. from {@link Delta#getVersion()} or {@link Snapshot#getVersion()}.
+     * Pass 0 to get every peer.
+     * @return The changes since the version.
+     */
+    public Delta changesSince(final long sinceVersion) {
+        final Delta delta = this.collectChanges(sinceVersion, false);
+        // Removals forgotten while collecting may have been missed, in which case the reader needs every peer.
+        if (!delta.full && sinceVersion < this.forgottenVersion) {
+            return this.collectChanges(sinceVersion, true);
+        }
+        return delta;
+    }
+
+    /**
+     * Collects the changes made to the registry since a version.
+     * @param sinceVersion The version the reader last saw.
+     * @param forceFull If every peer should be collected, regardless of the version.
+     * @return The changes since the version.
+     */
+    private Delta collectChanges(final long sinceVersion, final boolean forceFull) {
+        final long version = this.version;
+        final boolean full = forceFull || sinceVersion < this.forgottenVersion || sinceVersion > version;
+        final List<PeerInfo> updated = new ArrayList<>();
+        final Set<String> removed = new HashSet<>();
+        this.entries.forEach((ipAddress, entry) -> {
+            if (full) {
+                if (entry.info != null) {
+                    updated.add(entry.info);
+                }
+            } else if (entry.version > sinceVersion) {
+                if (entry.info != null) {
+                    updated.add(entry.info);
+                } else {
+                    removed.add(ipAddress);
+                }
+            }
+        });
+        return new Delta(sinceVersion, version, full, updated, removed);
+    }
+
+    /**
+     * Adds or updates a peer.
+     * The version is only incremented if the peer was not on the network, or if its information changed.
+     * @param peerInfo The peer.
+     * @return The previous information of the peer, or null if it was not on the network.
+     */
+    PeerInfo put(final PeerInfo peerInfo) {
+        this.writeLock.lock();
+        try {
+            final Entry previous = this.entries.get(peerInfo.ipAddress);
+            if (previous != null && peerInfo.equals(previous.info)) {
+                return previous.info;
+            }
+            final long nextVersion = this.version + 1;
+            this.sequence++;
+            try {
+                this.entries.put(peerInfo.ipAddress, new Entry(peerInfo, nextVersion));
+                if (previous == null || previous.info == null) {
+                    this.size++;
+                }
+                if (previous != null && previous.info == null) {
+                    this.tombstones--;
+                }
+                this.version = nextVersion;
+            } finally {
+                this.sequence++;
+            }
+            return previous == null ? null : previous.info;
+        } finally {
+            this.writeLock.unlock();
+        }
+    }
+
+    /**
+     * Removes a peer.
+     * @param ipAddress The IP address of the peer.
+     * @return The removed peer, or null if it was not on the network.
+     */
+    PeerInfo remove(final String ipAddress) {
+        this.writeLock.lock();
+        try {
+            final Entry previous = this.entries.get(ipAddress);
+            if (previous == null || previous.info == null) {
+                return null;
+            }
+            final long nextVersion = this.version + 1;
+            this.sequence++;
+            try {
+                if (this.tombstones >= MAX_TOMBSTONES) {
+                    this.forgetTombstones(nextVersion);
+                }
+                this.entries.put(ipAddress, new Entry(null, nextVersion));
+                this.tombstones++;
+                this.size--;
+                this.version = nextVersion;
+            } finally {
+                this.sequence++;
+            }
+            return previous.info;
+        } finally {
+            this.writeLock.unlock();
+        }
+    }
+
+    /**
+     * Removes every peer.
+     */
+    void clear() {
+        this.writeLock.lock();
+        try {
+            for (final String ipAddress : this.entries.keySet()) {
+                this.remove(ipAddress);
+            }
+        } finally {
+            this.writeLock.unlock();
+        }
+    }
+
+    /**
+     * Forgets every removed peer. Readers which have not seen the given version receive full deltas from now on.
+     * @param nextVersion The version of the change about to be made.
+     */
+    private void forgetTombstones(final long nextVersion) {
+        // Published before the tombstones disappear, so no reader misses a removal.
+        this.forgottenVersion = nextVersion - 1;
+        this.entries.values().removeIf(entry -> entry.info == null);
+        this.tombstones = 0;
+    }
+
+}
@@ -0,0 +1,124 @@
+package tech.avahe.filetransfer.threading;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The kinds of threads the program runs its listeners, pingers and transfers on.
+ *
+ * <p>Virtual threads are only available on Java 21 and newer. They are looked up reflectively,
+ * so the program still runs on older versions, where {@link #VIRTUAL} falls back to platform threads.</p>
+ *
+ * @author Avahe
+ */
+public enum ThreadMode {
+
+	/**
+	 * Every task runs on its own operating system thread.
+	 */
+	PLATFORM("platform"),
+
+	/**
+	 * Every task runs on its own virtual thread, scheduled by the JVM onto a small pool of carrier threads.
+	 */
+	VIRTUAL("virtual");
+
+	private final String identifier;
+
+	/**
+	 * Creates a thread mode.
+	 * @param identifier The name of the mode in the settings.
+	 */
+	ThreadMode(final String identifier) {
+		this.identifier = identifier;
+	}
+
+	/**
+	 * @return The name of the mode in the settings.
+	 */
+	public String getIdentifier() {
+		return this.identifier;
+	}
+
+	/**
+	 * @return If threads of this mode can be created by the running JVM.
+	 */
+	public boolean isSupported() {
+		return this == PLATFORM || VirtualThreads.BUILDER != null;
+	}
+
+	/**
+	 * Creates a factory of threads of this mode.
+	 * If this mode is not supported, the factory creates platform threads.
+	 *
+	 * @param name The prefix of the names of the created threads, which are numbered in order of creation.
+	 * @return The thread factory.
+	 */
+	public ThreadFactory newThreadFactory(final String name) {
+		if (this == VIRTUAL && this.isSupported()) {
+			return VirtualThreads.newThreadFactory(name);
+		}
+		final AtomicLong threadCount = new AtomicLong();
+		return task -> new Thread(task, name + "-" + threadCount.getAndIncrement());
+	}
+
+	/**
+	 * Finds the <code>ThreadMode</code> with the given identifier.
+	 * @param identifier The identifier of the mode, as stored in the settings.
+	 * @return The mode with the given identifier, or null if there is none.
+	 * @see ThreadMode#getIdentifier()
+	 */
+	public static ThreadMode getByIdentifier(final String identifier) {
+		for (final ThreadMode mode : ThreadMode.values()) {
+			if (mode.getIdentifier().equalsIgnoreCase(identifier)) {
+				return mode;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Reflective access to <code>Thread.ofVirtual()</code>, which is resolved once.
+	 */
+	private static final class VirtualThreads {
+
+		private static final Method BUILDER;
+		private static final Method NAME;
+		private static final Method FACTORY;
+
+		static {
+			Method builder = null;
+			Method name = null;
+			Method factory = null;
+			try {
+				final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+				builder = Thread.class.getMethod("ofVirtual");
+				name = builderClass.getMethod("name", String.class, long.class);
+				factory = builderClass.getMethod("factory");
+				// Virtual threads are a preview feature on some versions, and are unusable unless it is enabled.
+				factory.invoke(builder.invoke(null));
+			} catch (ReflectiveOperationException | RuntimeException ex) {
+				builder = null;
+			}
+			BUILDER = builder;
+			NAME = name;
+			FACTORY = factory;
+		}
+
+		/**
+		 * @param name The prefix of the names of the created threads.
+		 * @return A factory of virtual threads.
+		 */
+		private static ThreadFactory newThreadFactory(final String name) {
+			try {
+				final Object builder = NAME.invoke(BUILDER.invoke(null), name + "-", 0L);
+				return (ThreadFactory) FACTORY.invoke(builder);
+			} catch (ReflectiveOperationException ex) {
+				throw new IllegalStateException("Virtual threads are not available.", ex);
+			}
+		}
+
+	}
+
+}
@@ -1,60 +1,87 @@
 package tech.avahe.filetransfer.threading;
 
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
 /**
+ * A resettable flag which threads can wait on until it is set.
+ *
+ * <p>Waiting threads park on a <code>ReentrantLock</code> condition rather than an object monitor,
+ * so a waiting virtual thread releases its carrier thread.</p>
  *
  * @author Avahe
  *
  */
 public class ThreadSignaller {
 	
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition signalledCondition = this.lock.newCondition();
 	private boolean signalled = false;
 	
 	/**
 	 * Signals any threads to wake up that are waiting on this signaller.
 	 */
-	public synchronized void signal() {
-		this.signalled = true;
-        this.notifyAll();
-    }
+	public void signal() {
+		this.lock.lock();
+		try {
+			this.signalled = true;
+			this.signalledCondition.signalAll();
+		} finally {
+			this.lock.unlock();
+		}
+	}
 
 	/**
 	 * Resets the signaller so no threads that are waiting on this signaller wake up anymore.
 	 */
-	public synchronized void reset() {
-		this.signalled = false;
+	public void reset() {
+		this.lock.lock();
+		try {
+			this.signalled = false;
+		} finally {
+			this.lock.unlock();
+		}
 	}
 
 	/**
 	 * Blocks the current thread until signalled.
-	 * @throws InterruptedException See {@link Object#wait()}.
+	 * @throws InterruptedException See {@link Condition#await()}.
 	 */
-	public synchronized void waitIndefinitely() throws InterruptedException {
-		while (!this.signalled) {
-			this.wait();
+	public void waitIndefinitely() throws InterruptedException {
+		this.lock.lock();
+		try {
+			while (!this.signalled) {
+				this.signalledCondition.await();
+			}
+		} finally {
+			this.lock.unlock();
 		}
 	}
 
 	/**
 	 * Blocks the current thread until signalled or the timeout is exceeded.
 	 * @param timeout The time in milliseconds.
-	 * @throws InterruptedException See {@link Object#wait()}.
+	 * @throws InterruptedException See {@link Condition#awaitNanos(long)}.
 	 * @return If the signaller was set, otherwise false.
 	 */
-	public synchronized boolean waitForTimeout(final long timeout) throws InterruptedException {
+	public boolean waitForTimeout(final long timeout) throws InterruptedException {
 		if (timeout <= 0) {
 			return false;
 		}
-		final long startNanos = System.nanoTime();
-		final long timeoutNanos = timeout * 1000000;
-		while (!this.signalled) {
-			final long elapsedNanos = System.nanoTime() - startNanos;
-			if (elapsedNanos >= timeoutNanos) {
-				return false;
+		long remainingNanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+		this.lock.lock();
+		try {
+			while (!this.signalled) {
+				if (remainingNanos <= 0) {
+					return false;
+				}
+				remainingNanos = this.signalledCondition.awaitNanos(remainingNanos);
 			}
-			final long remainingTimeout = timeout - (elapsedNanos / 1000000);
-			this.wait(remainingTimeout);
+			return true;
+		} finally {
+			this.lock.unlock();
 		}
-		return true;
 	}
 	
-}
\ No newline at end of file
+}
@@ -0,0 +1,67 @@
+package tech.avahe.filetransfer.threading;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates the threads the program runs its background tasks on, in the program-wide {@link ThreadMode}.
+ *
+ * <p>Components create their threads through {@link #newThreadFactory(String)} when they are constructed,
+ * so the mode should be set before the networking components are created.</p>
+ *
+ * @author Avahe
+ */
+public final class Threads {
+
+	private static volatile ThreadMode mode = ThreadMode.PLATFORM;
+
+	/**
+	 * Prevents instantiation.
+	 */
+	private Threads() {
+	}
+
+	/**
+	 * @return The mode of the threads created from now on.
+	 */
+	public static ThreadMode getMode() {
+		return Threads.mode;
+	}
+
+	/**
+	 * Sets the mode of the threads created from now on.
+	 * @param mode The new thread mode.
+	 * @return If the mode is supported by the running JVM.
+	 * If it is not, threads are still created, but as platform threads.
+	 */
+	public static boolean setMode(final ThreadMode mode) {
+		if (mode == null) {
+			throw new IllegalArgumentException("The thread mode must not be null.");
+		}
+		Threads.mode = mode;
+		return mode.isSupported();
+	}
+
+	/**
+	 * @param name The prefix of the names of the created threads.
+	 * @return A factory of threads of the current mode.
+	 * @see ThreadMode#newThreadFactory(String)
+	 */
+	public static ThreadFactory newThreadFactory(final String name) {
+		return Threads.mode.newThreadFactory(name);
+	}
+
+	/**
+	 * @param name The prefix of the names of the created threads.
+	 * @return A factory of daemon threads of the current mode, which do not keep the program running.
+	 * @see ThreadMode#newThreadFactory(String)
+	 */
+	public static ThreadFactory newDaemonThreadFactory(final String name) {
+		final ThreadFactory threadFactory = Threads.mode.newThreadFactory(name);
+		return task -> {
+			final Thread thread = threadFactory.newThread(task);
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+
+}
@@ -0,0 +1,165 @@
+package tech.avahe.filetransfer.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of equally sized direct <code>ByteBuffers</code>, which are borrowed and returned through reference counting.
+ *
+ * <p>Borrowing a buffer from a pool which has a free buffer does not allocate, so a loop which borrows and releases
+ * buffers runs without garbage once the pool has warmed up. If the pool is empty, a new buffer is allocated,
+ * and if the pool is full when a buffer is returned, the buffer is left to the garbage collector.</p>
+ *
+ * @author Avahe
+ */
+public class BufferPool {
+
+    /**
+     * A buffer borrowed from a pool.
+     *
+     * <p>A borrowed buffer starts with a reference count of one. Every holder which needs the buffer beyond the
+     * lifetime of the holder which passed it on must {@link #retain()} it, and every holder must {@link #release()}
+     * it once it is done. The buffer returns to its pool once its reference count drops to zero,
+     * after which it must no longer be used.</p>
+     */
+    public static final class PooledBuffer {
+
+        private final BufferPool pool;
+        private final ByteBuffer buffer;
+        private final ByteBuffer readOnlyView;
+        private final AtomicInteger referenceCount = new AtomicInteger();
+
+        /**
+         * Creates a buffer belonging to a pool.
+         * @param pool The pool the buffer belongs to.
+         */
+        private PooledBuffer(final BufferPool pool) {
+            this.pool = pool;
+            this.buffer = ByteBuffer.allocateDirect(pool.bufferSize);
+            this.readOnlyView = this.buffer.asReadOnlyBuffer();
+        }
+
+        /**
+         * @return The underlying buffer.
+         */
+        public ByteBuffer buffer() {
+            return this.buffer;
+        }
+
+        /**
+         * Resets the buffer's read-only view to the readable bytes of the underlying buffer, from its position to its limit.
+         *
+         * <p>The view is created once per pooled buffer, so handing it out does not allocate.
+         * It shares the underlying buffer's content, but has its own position and limit.</p>
+         *
+         * @return The read-only view of the buffer.
+         */
+        public ByteBuffer readOnlyView() {
+            this.readOnlyView.limit(this.buffer.limit());
+            this.readOnlyView.position(this.buffer.position());
+            return this.readOnlyView;
+        }
+
+        /**
+         * Increments the reference count of the buffer.
+         * @return This buffer.
+         * @throws IllegalStateException Thrown if the buffer has already been released.
+         */
+        public PooledBuffer retain() {
+            if (this.referenceCount.getAndIncrement() <= 0) {
+                this.referenceCount.getAndDecrement();
+                throw new IllegalStateException("Buffer has already been released.");
+            }
+            return this;
+        }
+
+        /**
+         * Decrements the reference count of the buffer, returning it to its pool once the count drops to zero.
+         * @return If the buffer was returned to its pool.
+         * @throws IllegalStateException Thrown if the buffer has already been released.
+         */
+        public boolean release() {
+            final int count = this.referenceCount.decrementAndGet();
+            if (count < 0) {
+                this.referenceCount.incrementAndGet();
+                throw new IllegalStateException("Buffer has already been released.");
+            }
+            if (count == 0) {
+                this.pool.recycle(this);
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * @return The current reference count of the buffer.
+         */
+        public int referenceCount() {
+            return this.referenceCount.get();
+        }
+
+    }
+
+    private final int bufferSize;
+    private final ArrayBlockingQueue<PooledBuffer> freeBuffers;
+    private final AtomicInteger allocatedBuffers = new AtomicInteger();
+
+    /**
+     * Creates a new pool.
+     * @param bufferSize The capacity of every buffer in the pool.
+     * @param maxFreeBuffers The maximum number of unused buffers the pool keeps.
+     */
+    public BufferPool(final int bufferSize, final int maxFreeBuffers) {
+        if (bufferSize <= 0 || maxFreeBuffers <= 0) {
+            throw new IllegalArgumentException("Buffer size and pool size must be positive.");
+        }
+        this.bufferSize = bufferSize;
+        this.freeBuffers = new ArrayBlockingQueue<>(maxFreeBuffers);
+    }
+
+    /**
+     * Borrows a cleared buffer from the pool, with a reference count of one.
+     * @return The borrowed buffer.
+     */
+    public PooledBuffer acquire() {
+        PooledBuffer pooledBuffer = this.freeBuffers.poll();
+        if (pooledBuffer == null) {
+            pooledBuffer = new PooledBuffer(this);
+            this.allocatedBuffers.incrementAndGet();
+        }
+        pooledBuffer.buffer.clear();
+        pooledBuffer.referenceCount.set(1);
+        return pooledBuffer;
+    }
+
+    /**
+     * Returns a released buffer to the pool.
+     * @param pooledBuffer The released buffer.
+     */
+    private void recycle(final PooledBuffer pooledBuffer) {
+        this.freeBuffers.offer(pooledBuffer);
+    }
+
+    /**
+     * @return The capacity of every buffer in the pool.
+     */
+    public int getBufferSize() {
+        return this.bufferSize;
+    }
+
+    /**
+     * @return The number of buffers the pool has allocated since it was created.
+     */
+    public int getAllocatedBuffers() {
+        return this.allocatedBuffers.get();
+    }
+
+    /**
+     * @return The number of unused buffers currently held by the pool.
+     */
+    public int getFreeBuffers() {
+        return this.freeBuffers.size();
+    }
+
+}
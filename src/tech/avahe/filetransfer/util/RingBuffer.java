@@ -0,0 +1,120 @@
+package tech.avahe.filetransfer.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free queue backed by a ring of slots, which any number of threads may offer to and poll from.
+ *
+ * <p>Every slot carries a sequence number which tells producers and consumers whether it is free or filled,
+ * so a thread claims a slot with a single compare-and-set, and never waits for another thread.
+ * Neither offering nor polling allocates.</p>
+ *
+ * @param <E> The type of the elements.
+ * @author Avahe
+ */
+public class RingBuffer<E> {
+
+    private final int mask;
+    private final AtomicReferenceArray<E> elements;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * Creates a new ring.
+     * @param capacity The maximum number of elements, rounded up to a power of two of at least two.
+     *                 A ring of one slot cannot tell a filled slot from a freed one, as both carry the same sequence.
+     */
+    public RingBuffer(final int capacity) {
+        if (capacity <= 0 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        final int size = capacity <= 2 ? 2 : Integer.highestOneBit(capacity - 1) << 1;
+        this.mask = size - 1;
+        this.elements = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            this.sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Adds an element to the tail of the ring.
+     * @param element The element to add.
+     * @return If the element was added. This will return false if the ring is full.
+     */
+    public boolean offer(final E element) {
+        if (element == null) {
+            throw new NullPointerException("The element must not be null.");
+        }
+        long position = this.tail.get();
+        while (true) {
+            final int index = (int) (position & this.mask);
+            final long difference = this.sequences.get(index) - position;
+            if (difference == 0) {
+                if (this.tail.compareAndSet(position, position + 1)) {
+                    this.elements.lazySet(index, element);
+                    // Publishes the element to consumers.
+                    this.sequences.set(index, position + 1);
+                    return true;
+                }
+                position = this.tail.get();
+            } else if (difference < 0) {
+                return false;
+            } else {
+                position = this.tail.get();
+            }
+        }
+    }
+
+    /**
+     * Removes the element at the head of the ring.
+     * @return The removed element, or null if the ring is empty.
+     */
+    public E poll() {
+        long position = this.head.get();
+        while (true) {
+            final int index = (int) (position & this.mask);
+            final long difference = this.sequences.get(index) - (position + 1);
+            if (difference == 0) {
+                if (this.head.compareAndSet(position, position + 1)) {
+                    final E element = this.elements.get(index);
+                    this.elements.lazySet(index, null);
+                    // Frees the slot for the producer one lap ahead.
+                    this.sequences.set(index, position + this.mask + 1);
+                    return element;
+                }
+                position = this.head.get();
+            } else if (difference < 0) {
+                return null;
+            } else {
+                position = this.head.get();
+            }
+        }
+    }
+
+    /**
+     * @return The number of elements in the ring. This is an estimate while other threads use the ring.
+     */
+    public int size() {
+        final long size = this.tail.get() - this.head.get();
+        return (int) Math.max(0, Math.min(size, this.capacity()));
+    }
+
+    /**
+     * @return If the ring holds no elements. This is an estimate while other threads use the ring.
+     */
+    public boolean isEmpty() {
+        return this.size() == 0;
+    }
+
+    /**
+     * @return The maximum number of elements.
+     */
+    public int capacity() {
+        return this.mask + 1;
+    }
+
+}
@@ -0,0 +1,225 @@
+package tech.avahe.filetransfer.util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * A hashed timer wheel, which expires keys after a delay.
+ *
+ * <p>Time is divided into ticks of a fixed duration, and every key is stored in the slot of the tick it expires on.
+ * Scheduling, rescheduling and cancelling a key are constant time, and every tick only visits the keys of a
+ * single slot, so the cost of keeping many keys alive does not grow with the number of keys.
+ * Delays longer than one revolution of the wheel wait for the required number of extra revolutions.</p>
+ *
+ * <p>Keys expire on the first tick at or after their deadline, so they may expire up to one tick late.
+ * The wheel does not run on its own; its owner calls {@link #advance(long, Consumer)} periodically.</p>
+ *
+ * @param <K> The type of the keys.
+ * @author Avahe
+ */
+public class TimerWheel<K> {
+
+    /**
+     * A scheduled key, linked into the slot it expires in.
+     */
+    private static final class Timeout<K> {
+
+        private final K key;
+        private long remainingRounds;
+        private int slot;
+        private Timeout<K> previous;
+        private Timeout<K> next;
+
+        /**
+         * @param key The scheduled key.
+         */
+        private Timeout(final K key) {
+            this.key = key;
+        }
+
+    }
+
+    private final long tickNanos;
+    private final Timeout<K>[] slots;
+    private final Map<K, Timeout<K>> timeouts = new HashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private long currentTick;
+    private long currentTickNanos;
+
+    /**
+     * Creates a new wheel.
+     * @param tickDuration The duration of a tick, in milliseconds.
+     * @param slotCount The number of slots of the wheel. One revolution lasts this many ticks.
+     * @param nowNanos The current time, as given by {@link System#nanoTime()}.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TimerWheel(final long tickDuration, final int slotCount, final long nowNanos) {
+        if (tickDuration <= 0 || slotCount <= 0) {
+            throw new IllegalArgumentException("Tick duration and slot count must be positive.");
+        }
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickDuration);
+        this.slots = (Timeout<K>[]) new Timeout[slotCount];
+        this.currentTickNanos = nowNanos;
+    }
+
+    /**
+     * Schedules a key to expire after a delay, replacing its previous deadline if it was already scheduled.
+     * @param key The key to schedule.
+     * @param delay The delay after which the key expires, in milliseconds.
+     */
+    public void schedule(final K key, final long delay) {
+        final long ticks = Math.max(1, (TimeUnit.MILLISECONDS.toNanos(delay) + this.tickNanos - 1) / this.tickNanos);
+        this.lock.lock();
+        try {
+            Timeout<K> timeout = this.timeouts.get(key);
+            if (timeout == null) {
+                timeout = new Timeout<>(key);
+                this.timeouts.put(key, timeout);
+            } else {
+                this.unlink(timeout);
+            }
+            final long deadlineTick = this.currentTick + ticks;
+            timeout.remainingRounds = (ticks - 1) / this.slots.length;
+            timeout.slot = (int) (deadlineTick % this.slots.length);
+            this.link(timeout);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Cancels a scheduled key.
+     * @param key The key to cancel.
+     * @return If the key was scheduled.
+     */
+    public boolean cancel(final K key) {
+        this.lock.lock();
+        try {
+            final Timeout<K> timeout = this.timeouts.remove(key);
+            if (timeout == null) {
+                return false;
+            }
+            this.unlink(timeout);
+            return true;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @param key The key being checked for.
+     * @return If the key is scheduled.
+     */
+    public boolean contains(final K key) {
+        this.lock.lock();
+        try {
+            return this.timeouts.containsKey(key);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @return The number of scheduled keys.
+     */
+    public int size() {
+        this.lock.lock();
+        try {
+            return this.timeouts.size();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Processes every tick which has elapsed up to the given time, and expires the keys whose deadline has passed.
+     *
+     * <p>The expired keys are passed to the consumer after the wheel's lock is released,
+     * so the consumer may schedule keys again.</p>
+     *
+     * @param nowNanos The current time, as given by {@link System#nanoTime()}.
+     * @param onExpired Notified of every expired key.
+     * @return The number of expired keys.
+     */
+    public int advance(final long nowNanos, final Consumer<K> onExpired) {
+        Timeout<K> expired = null;
+        int expiredCount = 0;
+        this.lock.lock();
+        try {
+            while (nowNanos - this.currentTickNanos >= this.tickNanos) {
+                this.currentTickNanos += this.tickNanos;
+                this.currentTick++;
+                Timeout<K> timeout = this.slots[(int) (this.currentTick % this.slots.length)];
+                while (timeout != null) {
+                    final Timeout<K> next = timeout.next;
+                    if (timeout.remainingRounds > 0) {
+                        timeout.remainingRounds--;
+                    } else {
+                        this.unlink(timeout);
+                        this.timeouts.remove(timeout.key);
+                        // Reuse the links to collect the expired keys.
+                        timeout.next = expired;
+                        expired = timeout;
+                        expiredCount++;
+                    }
+                    timeout = next;
+                }
+            }
+        } finally {
+            this.lock.unlock();
+        }
+        for (Timeout<K> timeout = expired; timeout != null; timeout = timeout.next) {
+            onExpired.accept(timeout.key);
+        }
+        return expiredCount;
+    }
+
+    /**
+     * @param nowNanos The current time, as given by {@link System#nanoTime()}.
+     * @return The time until the next tick, in milliseconds.
+     */
+    public long millisUntilNextTick(final long nowNanos) {
+        this.lock.lock();
+        try {
+            final long remainingNanos = this.currentTickNanos + this.tickNanos - nowNanos;
+            return Math.max(0, TimeUnit.NANOSECONDS.toMillis(remainingNanos + TimeUnit.MILLISECONDS.toNanos(1) - 1));
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Links a timeout into the head of its slot.
+     * @param timeout The timeout to link.
+     */
+    private void link(final Timeout<K> timeout) {
+        final Timeout<K> head = this.slots[timeout.slot];
+        timeout.previous = null;
+        timeout.next = head;
+        if (head != null) {
+            head.previous = timeout;
+        }
+        this.slots[timeout.slot] = timeout;
+    }
+
+    /**
+     * Unlinks a timeout from its slot.
+     * @param timeout The timeout to unlink.
+     */
+    private void unlink(final Timeout<K> timeout) {
+        if (timeout.previous != null) {
+            timeout.previous.next = timeout.next;
+        } else {
+            this.slots[timeout.slot] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.previous = timeout.previous;
+        }
+        timeout.previous = null;
+        timeout.next = null;
+    }
+
+}
@@ -1,13 +1,27 @@
+import metrics.MetricsTest;
 import net.MulticastClientTest;
+import net.NetworkListenerDispatchTest;
+import net.RateLimiterTest;
 import net.TCPConnectivityTest;
+import net.filetransfer.FileTransferTest;
 import net.peerdiscovery.PeerDiscoveryClientTest;
+import net.peerdiscovery.PeerMessageTest;
+import threading.ThreadSignallerTest;
+import util.TimerWheelTest;
 
 public class TestSuite {
 
     public static void main(String[] args) throws Exception {
         new TCPConnectivityTest();
+        new FileTransferTest();
         new MulticastClientTest();
+        new NetworkListenerDispatchTest();
+        new RateLimiterTest();
+        new MetricsTest();
+        new PeerMessageTest();
         new PeerDiscoveryClientTest();
+        new ThreadSignallerTest();
+        new TimerWheelTest();
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,138 @@
+package metrics;
+
+import tech.avahe.filetransfer.metrics.Counter;
+import tech.avahe.filetransfer.metrics.Histogram;
+import tech.avahe.filetransfer.metrics.Metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * @author Avahe
+ *
+ * Tests that counters, gauges and histograms record values correctly, from several threads at once,
+ * and that the metrics are reported as text and over JMX.
+ */
+public class MetricsTest {
+
+    /**
+     * Creates the test class.
+     */
+    public static void main(String[] args) {
+        try {
+            new MetricsTest();
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    private static final int THREADS = 4;
+    private static final int INCREMENTS = 100000;
+
+    /**
+     * Runs the test suite.
+     * @throws Exception Thrown if the conditions to test the class cannot be met.
+     */
+    public MetricsTest() throws Exception {
+        System.out.println("MetricsTest: ");
+
+        final Counter counter = Metrics.counter("test.increments");
+        System.out.print("Registry returns the same counter for a name: ");
+        log(counter == Metrics.counter("test.increments"));
+
+        final Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < INCREMENTS; j++) {
+                    counter.increment();
+                }
+            });
+            threads[i].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        System.out.print("Counter sums concurrent increments: ");
+        log(counter.get() == (long) THREADS * INCREMENTS);
+
+        Thread.sleep(2100);
+        System.out.print("Counter rate falls to zero once the count stops growing: ");
+        log(counter.getRate() == 0);
+
+        final Histogram histogram = Metrics.histogram("test.values");
+        for (int i = 1; i <= 10000; i++) {
+            histogram.record(i);
+        }
+        final Histogram.Snapshot snapshot = histogram.snapshot();
+        System.out.print("Histogram counts every value: ");
+        log(snapshot.getCount() == 10000 && snapshot.getMax() == 10000);
+        System.out.print("Histogram percentiles are within the relative error: ");
+        log(withinError(snapshot.getValueAtPercentile(0.5), 5000)
+                && withinError(snapshot.getValueAtPercentile(0.99), 9900)
+                && withinError((long) snapshot.getMean(), 5000));
+
+        final Histogram small = Metrics.histogram("test.small");
+        small.record(0);
+        small.record(3);
+        small.record(-5);
+        System.out.print("Histogram records small values exactly: ");
+        log(small.snapshot().getValueAtPercentile(1) == 3 && small.snapshot().getValueAtPercentile(0.5) == 0);
+
+        final Histogram large = Metrics.histogram("test.large");
+        large.record(Long.MAX_VALUE);
+        System.out.print("Histogram records the largest value: ");
+        log(large.snapshot().getMax() == Long.MAX_VALUE
+                && withinError(large.snapshot().getValueAtPercentile(1), Long.MAX_VALUE));
+
+        final AtomicInteger depth = new AtomicInteger(42);
+        Metrics.gauge("test.depth", depth::get);
+        System.out.print("Gauge reads its current value: ");
+        final boolean initial = Metrics.getGauges().get("test.depth").get() == 42;
+        depth.set(7);
+        log(initial && Metrics.getGauges().get("test.depth").get() == 7);
+
+        System.out.print("Report lists every metric: ");
+        final String report = Metrics.report();
+        log(report.contains("test.increments") && report.contains("test.depth") && report.contains("test.values"));
+
+        final AtomicInteger reports = new AtomicInteger();
+        Metrics.startReporting(100, text -> reports.incrementAndGet());
+        Thread.sleep(350);
+        Metrics.stopReporting();
+        final int reported = reports.get();
+        Thread.sleep(200);
+        System.out.print("Periodic reports are written until stopped: ");
+        log(reported >= 2 && reports.get() == reported);
+
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName name = new ObjectName(Metrics.OBJECT_NAME);
+        System.out.print("Metrics are exported over JMX: ");
+        Metrics.registerMBean();
+        Metrics.registerMBean();
+        log(server.getAttribute(name, "test.increments").equals((long) THREADS * INCREMENTS)
+                && server.getAttribute(name, "test.depth").equals(7L)
+                && server.getAttribute(name, "test.values.count").equals(10000L)
+                && server.getMBeanInfo(name).getAttributes().length > 0);
+    }
+
+    /**
+     * @param value The measured value.
+     * @param expected The exact value.
+     * @return If the measured value is within the histogram's relative error of the exact value.
+     */
+    private static boolean withinError(final long value, final long expected) {
+        return Math.abs(value - expected) <= expected / Histogram.SUB_BUCKETS;
+    }
+
+    private static void log(boolean success) {
+        if (success) {
+            System.out.println("success");
+        } else {
+            System.out.println("error");
+        }
+    }
+
+}
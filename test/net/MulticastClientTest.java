@@ -1,6 +1,7 @@
 package net;
 
 import tech.avahe.filetransfer.net.MulticastClient;
+import tech.avahe.filetransfer.net.NetworkListener;
 import tech.avahe.filetransfer.threading.ThreadSignaller;
 import tech.avahe.filetransfer.util.Buffers;
 
@@ -59,6 +60,8 @@ public class MulticastClientTest {
 				// Run the test suite.
 				System.out.println("Checking for basic connectivity (sending/receiving messages)");
 				this.checkConnectivity();
+				System.out.println("Checking connectivity of a client listening on the shared event loop");
+				this.checkEventLoop(ipAddress, port);
 			} finally {
 				this.clientB.close();
 			}
@@ -120,6 +123,78 @@ public class MulticastClientTest {
 		}
 	}
 
+	/**
+	 * Tests receiving <code>DatagramPackets</code> via a <code>MulticastClient</code> which listens on the shared event loop.
+	 * @param ipAddress The group address of the test clients.
+	 * @param port The port of the test clients.
+	 * @throws IOException Thrown if the event loop client cannot be created.
+	 */
+	private void checkEventLoop(final String ipAddress, final int port) throws IOException {
+		final PrintStream out = System.out;
+		final ArrayList<String> receivedMessages = new ArrayList<>(2);
+		final ThreadSignaller signaller = new ThreadSignaller();
+		final MulticastClient clientC = new MulticastClient(ipAddress, port);
+		try {
+			clientC.setLoopbackMode(true);
+			clientC.setEventLoop(NetworkListener.sharedEventLoop());
+			clientC.addDataListener((remoteAddress, buffer) -> {
+				synchronized (receivedMessages) {
+					receivedMessages.add(Buffers.toString(buffer));
+				}
+				signaller.signal();
+			});
+			out.print("Client started listening on the event loop: ");
+			log(clientC.startListening(1000));
+
+			final String[] messages = { "Loop message 0", "Loop message 1", "Loop message 2", "Loop message 3" };
+			signaller.reset();
+			this.clientA.send(messages[0]);
+			signaller.waitForTimeout(1000);
+			out.print("Client received a message on the event loop: ");
+			synchronized (receivedMessages) {
+				log(receivedMessages.contains(messages[0]));
+			}
+
+			out.print("Client properly stopped listening on the event loop: ");
+			log(clientC.stopListening(1000) && !clientC.isListening());
+
+			signaller.reset();
+			this.clientA.send(messages[1]);
+			signaller.waitForTimeout(1000);
+			out.print("Client properly not receiving a message on the event loop: ");
+			synchronized (receivedMessages) {
+				log(!receivedMessages.contains(messages[1]));
+			}
+
+			// Resuming keeps the channel's registration, and only restores its interest in reads.
+			out.print("Client resumed listening on the event loop: ");
+			log(clientC.startListening(1000) && clientC.isListening());
+
+			signaller.reset();
+			this.clientA.send(messages[2]);
+			signaller.waitForTimeout(1000);
+			out.print("Client received a message after resuming on the event loop: ");
+			synchronized (receivedMessages) {
+				log(receivedMessages.contains(messages[2]));
+			}
+
+			out.print("Client stopped and resumed again on the event loop: ");
+			log(clientC.stopListening(1000) && !clientC.isListening() && clientC.startListening(1000));
+
+			signaller.reset();
+			this.clientA.send(messages[3]);
+			signaller.waitForTimeout(1000);
+			out.print("Client received a message after resuming again: ");
+			synchronized (receivedMessages) {
+				log(receivedMessages.contains(messages[3]));
+			}
+		} catch (InterruptedException ex) {
+			ex.printStackTrace();
+		} finally {
+			clientC.close();
+		}
+	}
+
 	private static void log(boolean success) {
 		if (success) {
 			System.out.println("success");
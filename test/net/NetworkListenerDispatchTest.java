@@ -0,0 +1,135 @@
+package net;
+
+import tech.avahe.filetransfer.net.NetworkListener;
+import tech.avahe.filetransfer.net.OverflowPolicy;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author Avahe
+ *
+ * Tests dispatching received data to slow data listeners off the receiving thread.
+ */
+public class NetworkListenerDispatchTest {
+
+    /**
+     * Creates the test class.
+     */
+    public static void main(String[] args) {
+        try {
+            new NetworkListenerDispatchTest();
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    private static final int PACKETS = 2000;
+    private static final int CAPACITY = 64;
+
+    private final SocketAddress remoteAddress = new InetSocketAddress("localhost", 7899);
+
+    /**
+     * Runs the test suite.
+     * @throws Exception Thrown if the conditions to test the class cannot be met.
+     */
+    public NetworkListenerDispatchTest() throws Exception {
+        System.out.println("NetworkListenerDispatchTest: ");
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            for (final int capacity : new int[] { CAPACITY, 1 }) {
+                this.checkDispatch(executor, capacity, OverflowPolicy.DROP_NEWEST);
+                this.checkDispatch(executor, capacity, OverflowPolicy.DROP_OLDEST);
+                this.checkDispatch(executor, capacity, OverflowPolicy.BLOCK);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Floods a listener with numbered packets, which a slow data listener consumes on the executor.
+     * @param executor The executor to dispatch on.
+     * @param capacity The maximum number of packets waiting to be dispatched.
+     * @param overflowPolicy The overflow policy of the listener.
+     * @throws InterruptedException Thrown if the current thread is interrupted while waiting.
+     */
+    private void checkDispatch(final ExecutorService executor, final int capacity, final OverflowPolicy overflowPolicy) throws InterruptedException {
+        final PrintStream out = System.out;
+        final AtomicLong produced = new AtomicLong();
+        final AtomicLong delivered = new AtomicLong();
+        final AtomicBoolean ordered = new AtomicBoolean(true);
+        final long[] lastSequence = { -1 };
+        final long[] floodNanos = { 0 };
+        final NetworkListener networkListener = new NetworkListener() {
+            private long startNanos;
+            protected void prepare() {
+                this.startNanos = System.nanoTime();
+            }
+            protected SocketAddress read(final ByteBuffer buffer) throws IOException {
+                final long sequence = produced.get();
+                if (sequence == PACKETS) {
+                    floodNanos[0] = System.nanoTime() - this.startNanos;
+                    // The flood is over; wait to be stopped.
+                    try {
+                        Thread.sleep(Long.MAX_VALUE);
+                    } catch (InterruptedException ex) {
+                        throw new InterruptedIOException();
+                    }
+                }
+                buffer.putLong(sequence);
+                produced.incrementAndGet();
+                return NetworkListenerDispatchTest.this.remoteAddress;
+            }
+        };
+        networkListener.setDispatchExecutor(executor, capacity, overflowPolicy);
+        networkListener.addDataListener((address, buffer) -> {
+            final long sequence = buffer.getLong();
+            if (sequence <= lastSequence[0]) {
+                ordered.set(false);
+            }
+            lastSequence[0] = sequence;
+            delivered.incrementAndGet();
+            try {
+                Thread.sleep(0, 200000);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        networkListener.startListening(1000);
+        final long deadline = System.currentTimeMillis() + 30000;
+        while ((produced.get() < PACKETS || delivered.get() + networkListener.getDroppedPackets() < PACKETS)
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        networkListener.stopListening(1000);
+
+        final long dropped = networkListener.getDroppedPackets();
+        out.println("[" + overflowPolicy + ", capacity " + capacity + "] received " + PACKETS + " packets in "
+                + String.format("%.1f", floodNanos[0] / 1e6) + " ms, delivered " + delivered.get() + ", dropped " + dropped);
+        out.print("[" + overflowPolicy + ", capacity " + capacity + "] Every packet was delivered or counted as dropped: ");
+        log(delivered.get() + dropped == PACKETS);
+        out.print("[" + overflowPolicy + ", capacity " + capacity + "] Packets were delivered in order: ");
+        log(ordered.get());
+        out.print("[" + overflowPolicy + ", capacity " + capacity + "] " + (overflowPolicy == OverflowPolicy.BLOCK
+                ? "No packets were dropped: " : "The slow listener did not stall receiving: "));
+        log(overflowPolicy == OverflowPolicy.BLOCK ? dropped == 0 : dropped > 0 && floodNanos[0] < 100_000_000L);
+    }
+
+    private static void log(boolean success) {
+        if (success) {
+            System.out.println("success");
+        } else {
+            System.out.println("error");
+        }
+    }
+
+}
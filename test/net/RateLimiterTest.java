@@ -0,0 +1,114 @@
+package net;
+
+import tech.avahe.filetransfer.net.RateLimiter;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Avahe
+ *
+ * Tests that the RateLimiter class holds senders to its rate, and to the rate of its parent.
+ */
+public class RateLimiterTest {
+
+    /**
+     * Creates the test class.
+     */
+    public static void main(String[] args) {
+        try {
+            new RateLimiterTest();
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    private static final int SLICE = 64 * 1024;
+
+    /**
+     * Runs the test suite.
+     * @throws Exception Thrown if the conditions to test the class cannot be met.
+     */
+    public RateLimiterTest() throws Exception {
+        System.out.println("RateLimiterTest: ");
+
+        final RateLimiter unlimited = new RateLimiter(RateLimiter.UNLIMITED);
+        System.out.print("Unlimited limiter does not wait: ");
+        log(millisToAcquire(unlimited, 1024L * 1024 * 1024, 1) < 100);
+
+        // 2 MiB at 4 MiB/s takes half a second, less the 100 ms burst of an idle bucket.
+        final RateLimiter limiter = new RateLimiter(4L * 1024 * 1024);
+        final long limitedMillis = millisToAcquire(limiter, 2L * 1024 * 1024, 1);
+        System.out.print("Limiter holds a sender to its rate: ");
+        log(limitedMillis >= 350 && limitedMillis < 700);
+
+        final RateLimiter shared = new RateLimiter(4L * 1024 * 1024);
+        final long sharedMillis = millisToAcquire(shared, 1024L * 1024, 2);
+        System.out.print("Limiter holds concurrent senders to its rate combined: ");
+        log(sharedMillis >= 350 && sharedMillis < 700);
+
+        final RateLimiter parent = new RateLimiter(4L * 1024 * 1024);
+        final RateLimiter child = new RateLimiter(RateLimiter.UNLIMITED, parent);
+        final long childMillis = millisToAcquire(child, 2L * 1024 * 1024, 1);
+        System.out.print("Child limiter is held to its parent's rate: ");
+        log(childMillis >= 350 && childMillis < 700);
+
+        child.setRate(2L * 1024 * 1024);
+        parent.setRate(RateLimiter.UNLIMITED);
+        Thread.sleep(200);
+        final long changedMillis = millisToAcquire(child, 1024L * 1024, 1);
+        System.out.print("Changed rate applies to later bytes: ");
+        log(changedMillis >= 350 && changedMillis < 700);
+
+        final RateLimiter slow = new RateLimiter(1024);
+        final Thread waiter = new Thread(() -> {
+            try {
+                slow.acquire(1024L * 1024);
+            } catch (Exception ex) {
+                // Expected once the thread is interrupted.
+            }
+        });
+        waiter.start();
+        Thread.sleep(100);
+        waiter.interrupt();
+        waiter.join(1000);
+        System.out.print("Interrupting a waiting sender stops it: ");
+        log(!waiter.isAlive());
+    }
+
+    /**
+     * Acquires bytes in slices from a limiter, on several threads at once.
+     * @param limiter The limiter to acquire from.
+     * @param bytes The number of bytes every thread acquires.
+     * @param threads The number of threads.
+     * @return The time it took until all threads were done, in milliseconds.
+     */
+    private static long millisToAcquire(final RateLimiter limiter, final long bytes, final int threads) throws InterruptedException {
+        final Thread[] senders = new Thread[threads];
+        final long start = System.nanoTime();
+        for (int i = 0; i < threads; i++) {
+            senders[i] = new Thread(() -> {
+                try {
+                    for (long acquired = 0; acquired < bytes; acquired += SLICE) {
+                        limiter.acquire(Math.min(SLICE, bytes - acquired));
+                    }
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                }
+            });
+            senders[i].start();
+        }
+        for (final Thread sender : senders) {
+            sender.join();
+        }
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    private static void log(boolean success) {
+        if (success) {
+            System.out.println("success");
+        } else {
+            System.out.println("error");
+        }
+    }
+
+}
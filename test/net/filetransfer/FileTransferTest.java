@@ -0,0 +1,930 @@
+package net.filetransfer;
+
+import tech.avahe.filetransfer.metrics.Counter;
+import tech.avahe.filetransfer.metrics.Metrics;
+import tech.avahe.filetransfer.net.RateLimiter;
+import tech.avahe.filetransfer.net.TCPClient;
+import tech.avahe.filetransfer.net.TCPServer;
+import tech.avahe.filetransfer.net.filetransfer.ChunkMap;
+import tech.avahe.filetransfer.net.filetransfer.FileHeader;
+import tech.avahe.filetransfer.net.filetransfer.FileListener;
+import tech.avahe.filetransfer.net.filetransfer.FileReceiver;
+import tech.avahe.filetransfer.net.filetransfer.FileTransferClient;
+import tech.avahe.filetransfer.net.filetransfer.TransferListener;
+import tech.avahe.filetransfer.net.filetransfer.TransferProgress;
+import tech.avahe.filetransfer.net.filetransfer.TransferResult;
+import tech.avahe.filetransfer.net.peerdiscovery.PeerInfo;
+import tech.avahe.filetransfer.net.peerdiscovery.PeerMessage;
+import tech.avahe.filetransfer.threading.ThreadSignaller;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * @author Avahe
+ *
+ * Tests sending files with <code>FileTransferClient</code> and receiving them with <code>FileReceiver</code>.
+ */
+public class FileTransferTest {
+
+    /**
+     * Creates the test class.
+     */
+    public static void main(String[] args) {
+        try {
+            new FileTransferTest();
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    private final int port = 1339;
+
+    /**
+     * Runs the test suite.
+     * @throws Exception Thrown if the conditions to test the class cannot be met.
+     */
+    public FileTransferTest() throws Exception {
+        System.out.println("FileTransferTest: ");
+        final File directory = Files.createTempDirectory("received").toFile();
+        final File recordDirectory = Files.createTempDirectory("records").toFile();
+        final FileReceiver receiver = new FileReceiver(directory, recordDirectory);
+        final TCPServer server = new TCPServer(this.port);
+        server.setConnectionHandlerFactory(receiver);
+        server.acceptIncomingConnections();
+        try {
+            this.checkTransfer(receiver, 0, 1);
+            this.checkTransfer(receiver, 3 * 1024 * 1024 + 17, 1);
+            this.checkTransfer(receiver, 3 * (int) FileTransferClient.MIN_RANGE_SIZE + 17, 3);
+            this.checkMappedReceive(receiver);
+            this.checkResume(receiver);
+            this.checkCorruption(receiver);
+            this.checkDelta(receiver);
+            this.checkCompression(receiver);
+            this.checkDirectory(receiver, directory);
+            this.checkRateLimit(receiver);
+            this.checkThrottledPeer();
+            this.checkStalledPeer();
+            this.checkFailedRange();
+            this.checkProgress();
+            this.checkAsync();
+            this.checkFanOut(receiver);
+        } finally {
+            server.close();
+            for (final File dir : new File[] { directory, recordDirectory }) {
+                for (final File file : dir.listFiles()) {
+                    file.delete();
+                }
+                dir.delete();
+            }
+        }
+    }
+
+    /**
+     * Sends a file of random contents, and checks that the received copy is identical.
+     * @param receiver The receiver of the file.
+     * @param size The size of the file to send.
+     * @param streams The number of parallel streams to send the file over.
+     */
+    private void checkTransfer(final FileReceiver receiver, final int size, final int streams) throws IOException, InterruptedException {
+        final byte[] contents = new byte[size];
+        new Random(size).nextBytes(contents);
+        final File file = File.createTempFile("transfer", ".bin");
+        try {
+            Files.write(file.toPath(), contents);
+            System.out.print("Sent a file of " + size + " bytes over " + streams + " streams: ");
+            final File received = this.sendAndAwait(receiver, new FileTransferClient(streams), new PeerInfo("receiver", "localhost", this.port), file);
+            System.out.print("Received an identical file: ");
+            log(sameContents(contents, received));
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Receives files through memory mapped windows, including one which spans several windows.
+     * @param receiver The receiver of the files.
+     */
+    private void checkMappedReceive(final FileReceiver receiver) throws IOException, InterruptedException {
+        final long mappedThreshold = receiver.getMappedThreshold();
+        receiver.setMappedThreshold(0);
+        try {
+            System.out.println("Receiving through memory mapped windows: ");
+            this.checkTransfer(receiver, 3 * 1024 * 1024 + 17, 1);
+            this.checkTransfer(receiver, FileReceiver.MAPPED_WINDOW_SIZE + ChunkMap.CHUNK_SIZE + 17, 2);
+        } finally {
+            receiver.setMappedThreshold(mappedThreshold);
+        }
+    }
+
+    /**
+     * Interrupts a transfer after two chunks, and checks that reconnecting only requests the remaining chunks,
+     * unless the file has changed in the meantime.
+     * @param receiver The receiver of the file.
+     */
+    private void checkResume(final FileReceiver receiver) throws IOException, InterruptedException {
+        final int size = 4 * ChunkMap.CHUNK_SIZE + 5;
+        final byte[] contents = new byte[size];
+        new Random(size).nextBytes(contents);
+        final File file = File.createTempFile("resume", ".bin");
+        final PeerInfo peerInfo = new PeerInfo("receiver", "localhost", this.port);
+        try (final FileChannel fileChannel = FileChannel.open(Files.write(file.toPath(), contents), StandardOpenOption.READ)) {
+            final FileHeader header = new FileHeader(file.getName(), size).withVersion(file.lastModified());
+            final TCPClient interrupted = new TCPClient();
+            interrupted.connect(peerInfo);
+            interrupted.send(header.encode());
+            final BitSet initialChunks = readMissing(interrupted);
+            for (int chunk = 0; chunk < 2; chunk++) {
+                interrupted.send(ByteBuffer.allocate(Integer.BYTES).putInt(chunk).flip());
+                interrupted.send(fileChannel, (long) chunk * ChunkMap.CHUNK_SIZE, ChunkMap.CHUNK_SIZE);
+                interrupted.send(ByteBuffer.allocate(Integer.BYTES).putInt(checksum(contents, chunk * ChunkMap.CHUNK_SIZE, ChunkMap.CHUNK_SIZE)).flip());
+            }
+            interrupted.close();
+            Thread.sleep(500);
+
+            final TCPClient resumed = new TCPClient();
+            resumed.connect(peerInfo);
+            resumed.send(header.encode());
+            final BitSet resumedChunks = readMissing(resumed);
+            resumed.close();
+            final BitSet expectedChunks = new BitSet();
+            expectedChunks.set(2, 5);
+            System.out.print("Resumed transfer only requests the missing chunks: ");
+            log(initialChunks.cardinality() == 5 && resumedChunks.equals(expectedChunks));
+
+            // Rewrite the file with the same size, which makes the chunks received so far stale.
+            final byte[] changed = contents.clone();
+            Arrays.fill(changed, 0, 2 * ChunkMap.CHUNK_SIZE, (byte) 7);
+            Files.write(file.toPath(), changed);
+            file.setLastModified(header.getVersion() + 2000);
+            final TCPClient changedClient = new TCPClient();
+            changedClient.connect(peerInfo);
+            changedClient.send(new FileHeader(file.getName(), size).withVersion(file.lastModified()).encode());
+            final BitSet changedChunks = readMissing(changedClient);
+            changedClient.close();
+            System.out.print("Changed file of the same size requests every chunk: ");
+            log(changedChunks.cardinality() == 5);
+
+            System.out.print("Sent the changed file of " + size + " bytes: ");
+            final File received = this.sendAndAwait(receiver, new FileTransferClient(1), peerInfo, file);
+            System.out.print("Received an identical file: ");
+            log(sameContents(changed, received));
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Sends a chunk with a wrong checksum, and checks that the receiver requests it again.
+     * @param receiver The receiver of the file.
+     */
+    private void checkCorruption(final FileReceiver receiver) throws IOException, InterruptedException {
+        final int size = 1000;
+        final byte[] contents = new byte[size];
+        new Random(size).nextBytes(contents);
+        final int checksum = checksum(contents, 0, size);
+        try (final ReceivedFiles receivedFiles = new ReceivedFiles(receiver)) {
+            final TCPClient client = new TCPClient();
+            client.connect(new PeerInfo("receiver", "localhost", this.port));
+            client.send(new FileHeader("corrupted.bin", size).encode());
+            readMissing(client);
+            client.send(ByteBuffer.allocate(Integer.BYTES).putInt(0).flip());
+            client.send(ByteBuffer.wrap(contents));
+            client.send(ByteBuffer.allocate(Integer.BYTES).putInt(~checksum).flip());
+            final BitSet corruptedChunks = readMissing(client);
+            System.out.print("Corrupted chunk is requested again: ");
+            log(corruptedChunks.cardinality() == 1 && corruptedChunks.get(0) && receivedFiles.peek() == null);
+
+            client.send(ByteBuffer.allocate(Integer.BYTES).putInt(0).flip());
+            client.send(ByteBuffer.wrap(contents));
+            client.send(ByteBuffer.allocate(Integer.BYTES).putInt(checksum).flip());
+            final BitSet verifiedChunks = readMissing(client);
+            client.close();
+            final File received = receivedFiles.await();
+            System.out.print("Verified chunk completes the file: ");
+            log(verifiedChunks.isEmpty() && sameContents(contents, received));
+        }
+    }
+
+    /**
+     * Sends a file as a delta to a receiver without a copy, then changes and extends it, and sends it again.
+     * The same is done for a file whose name is too short to prefix a temporary file with.
+     * @param receiver The receiver of the file.
+     */
+    private void checkDelta(final FileReceiver receiver) throws IOException, InterruptedException {
+        final byte[] original = new byte[3 * 1024 * 1024 + 17];
+        new Random(original.length).nextBytes(original);
+        // Insert bytes, which shifts every following block, and overwrite a later region.
+        final byte[] changed = new byte[original.length + 100];
+        System.arraycopy(original, 0, changed, 0, 1024 * 1024);
+        System.arraycopy(original, 1024 * 1024, changed, 1024 * 1024 + 100, original.length - 1024 * 1024);
+        Arrays.fill(changed, 2 * 1024 * 1024, 2 * 1024 * 1024 + 5000, (byte) 7);
+
+        final File shortDirectory = Files.createTempDirectory("delta").toFile();
+        final File[] files = { File.createTempFile("delta", ".bin"), new File(shortDirectory, "ab") };
+        final PeerInfo peerInfo = new PeerInfo("receiver", "localhost", this.port);
+        final FileTransferClient client = new FileTransferClient(1, true);
+        try {
+            for (final File file : files) {
+                for (final byte[] contents : new byte[][] { original, changed }) {
+                    Files.write(file.toPath(), contents);
+                    System.out.print("Sent a delta of " + contents.length + " bytes as " + file.getName() + ": ");
+                    final File received = this.sendAndAwait(receiver, client, peerInfo, file);
+                    System.out.print("Received an identical file: ");
+                    log(sameContents(contents, received));
+                }
+            }
+        } finally {
+            for (final File file : files) {
+                file.delete();
+            }
+            shortDirectory.delete();
+        }
+    }
+
+    /**
+     * Sends compressible and incompressible files with compression, both accepted and declined by the receiver.
+     * @param receiver The receiver of the files.
+     */
+    private void checkCompression(final FileReceiver receiver) throws IOException, InterruptedException {
+        final StringBuilder log = new StringBuilder();
+        final Random random = new Random(42);
+        while (log.length() < 2 * FileTransferClient.MIN_RANGE_SIZE + 17) {
+            log.append("2026-10-16 12:00:").append(random.nextInt(60)).append(",INFO,transfer,").append(random.nextInt(1000)).append('\n');
+        }
+        final byte[] compressible = log.toString().getBytes(StandardCharsets.UTF_8);
+        final byte[] incompressible = new byte[3 * ChunkMap.CHUNK_SIZE + 17];
+        random.nextBytes(incompressible);
+
+        final File file = File.createTempFile("compression", ".csv");
+        final PeerInfo peerInfo = new PeerInfo("receiver", "localhost", this.port);
+        final FileTransferClient client = new FileTransferClient(2, false, true);
+        try {
+            for (final boolean accepted : new boolean[] { true, false }) {
+                receiver.setCompressionAccepted(accepted);
+                for (final byte[] contents : new byte[][] { compressible, incompressible }) {
+                    Files.write(file.toPath(), contents);
+                    System.out.print("Sent " + (contents == compressible ? "compressible" : "incompressible") + " file with compression "
+                            + (accepted ? "accepted" : "declined") + ": ");
+                    final File received = this.sendAndAwait(receiver, client, peerInfo, file);
+                    System.out.print("Received an identical file: ");
+                    log(sameContents(contents, received));
+                }
+            }
+        } finally {
+            receiver.setCompressionAccepted(true);
+            file.delete();
+        }
+    }
+
+    /**
+     * Sends a nested directory of many small files and one file larger than a batch,
+     * and checks that the receiver recreates an identical tree.
+     * @param receiver The receiver of the directory.
+     * @param receiverDirectory The directory the receiver writes into.
+     */
+    private void checkDirectory(final FileReceiver receiver, final File receiverDirectory) throws IOException, InterruptedException {
+        final Path root = Files.createTempDirectory("tree");
+        final Random random = new Random(7);
+        for (int i = 0; i < 2000; i++) {
+            final Path parent = root.resolve("dir" + (i % 20)).resolve("sub" + (i % 3));
+            Files.createDirectories(parent);
+            final byte[] contents = new byte[random.nextInt(2048)];
+            random.nextBytes(contents);
+            Files.write(parent.resolve("file" + i + ".txt"), contents);
+        }
+        Files.createDirectories(root.resolve("empty"));
+        final byte[] large = new byte[3 * 1024 * 1024 + 17];
+        random.nextBytes(large);
+        Files.write(root.resolve("large.bin"), large);
+
+        try {
+            System.out.print("Sent a directory of 2001 files: ");
+            final File received = this.sendAndAwait(receiver, new FileTransferClient(), new PeerInfo("receiver", "localhost", this.port), root.toFile());
+            System.out.print("Received an identical directory: ");
+            log(received != null && FileTransferTest.sameTree(root, received.toPath()));
+        } finally {
+            FileTransferTest.deleteTree(root);
+            FileTransferTest.deleteTree(new File(receiverDirectory, root.getFileName().toString()).toPath());
+        }
+    }
+
+    /**
+     * Sends a large and a small file at once to a rate limited peer, and checks that the limit holds
+     * and that the small file is not held up until the large one has been sent.
+     * @param receiver The receiver of the files.
+     */
+    private void checkRateLimit(final FileReceiver receiver) throws IOException, InterruptedException {
+        final byte[] large = new byte[6 * ChunkMap.CHUNK_SIZE];
+        final byte[] small = new byte[1024 * 1024];
+        final Random random = new Random(11);
+        random.nextBytes(large);
+        random.nextBytes(small);
+        final File largeFile = File.createTempFile("large", ".bin");
+        final File smallFile = File.createTempFile("small", ".bin");
+        final PeerInfo peerInfo = new PeerInfo("receiver", "localhost", this.port);
+        final FileTransferClient client = new FileTransferClient(2, false, false);
+        client.setPeerRateLimit(16L * 1024 * 1024);
+        try {
+            Files.write(largeFile.toPath(), large);
+            Files.write(smallFile.toPath(), small);
+            final long start = System.nanoTime();
+            final long[] largeMillis = new long[1];
+            final boolean[] largeSent = new boolean[1];
+            final Thread largeSender = new Thread(() -> {
+                largeSent[0] = client.send(peerInfo, largeFile);
+                largeMillis[0] = (System.nanoTime() - start) / 1000000;
+            });
+            largeSender.start();
+            Thread.sleep(100);
+            final boolean smallSent = client.send(peerInfo, smallFile);
+            final long smallMillis = (System.nanoTime() - start) / 1000000;
+            largeSender.join();
+
+            System.out.print("Sent a large and a small file at 16 MiB/s: ");
+            log(largeSent[0] && smallSent);
+            // 25 MiB at 16 MiB/s take well over a second.
+            System.out.print("Rate limit holds: ");
+            log(largeMillis[0] >= 1200);
+            System.out.print("Small file finishes before the large one: ");
+            log(smallMillis < largeMillis[0] / 2);
+        } finally {
+            largeFile.delete();
+            smallFile.delete();
+        }
+    }
+
+    /**
+     * Sends a large file to a throttled peer and a small file to an unthrottled one with a single scheduler slot,
+     * and checks that the throttled peer does not hold the slot while it waits for its rate limit.
+     */
+    private void checkThrottledPeer() throws Exception {
+        final byte[] large = new byte[3 * ChunkMap.CHUNK_SIZE];
+        final byte[] small = new byte[1024 * 1024];
+        final Random random = new Random(23);
+        random.nextBytes(large);
+        random.nextBytes(small);
+        final File largeFile = File.createTempFile("throttled", ".bin");
+        final File smallFile = File.createTempFile("unthrottled", ".bin");
+        // Rate limits are kept per address, so the same receiver is two peers under two names for the loopback address.
+        final PeerInfo throttled = new PeerInfo("throttled", "127.0.0.1", this.port);
+        final PeerInfo unthrottled = new PeerInfo("unthrottled", "localhost", this.port);
+        final FileTransferClient client = new FileTransferClient(1, false, false);
+        client.setPeerRateLimit(throttled, 2L * 1024 * 1024);
+        try {
+            Files.write(largeFile.toPath(), large);
+            Files.write(smallFile.toPath(), small);
+            final CompletableFuture<TransferResult> throttledFuture = client.sendAsync(throttled, largeFile);
+            Thread.sleep(300);
+            final long start = System.nanoTime();
+            final boolean smallSent = client.send(unthrottled, smallFile);
+            final long smallMillis = (System.nanoTime() - start) / 1000000;
+            // 12 MiB at 2 MiB/s take about 6 seconds.
+            final boolean throttledRunning = !throttledFuture.isDone();
+            throttledFuture.cancel(true);
+
+            System.out.print("Sent a small file to an unthrottled peer while a throttled peer waits: ");
+            log(smallSent && throttledRunning);
+            System.out.print("The throttled peer does not hold the scheduler slot while it waits: ");
+            log(smallMillis < 1000);
+        } finally {
+            largeFile.delete();
+            smallFile.delete();
+        }
+    }
+
+    /**
+     * Sends a file to a peer which stops reading, and checks that a transfer to another peer is not held up by it.
+     */
+    private void checkStalledPeer() throws Exception {
+        final int stalledPort = this.port + 9;
+        final byte[] large = new byte[6 * ChunkMap.CHUNK_SIZE];
+        final byte[] small = new byte[1024 * 1024];
+        final Random random = new Random(29);
+        random.nextBytes(large);
+        random.nextBytes(small);
+        final File largeFile = File.createTempFile("stalled", ".bin");
+        final File smallFile = File.createTempFile("not-stalled", ".bin");
+        final ServerSocket stalledServer = new ServerSocket(stalledPort);
+        // Requests every chunk of the file, and then never reads them.
+        final Thread stalledThread = new Thread(() -> {
+            try (final Socket socket = stalledServer.accept()) {
+                final DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                out.writeInt(1);
+                out.writeByte(0x3F);
+                out.flush();
+                Thread.sleep(Long.MAX_VALUE);
+            } catch (IOException | InterruptedException ex) {
+                // The peer stops with the test.
+            }
+        });
+        stalledThread.setDaemon(true);
+        stalledThread.start();
+        final FileTransferClient client = new FileTransferClient(1, false, false);
+        try {
+            Files.write(largeFile.toPath(), large);
+            Files.write(smallFile.toPath(), small);
+            final CompletableFuture<TransferResult> stalled = client.sendAsync(
+                    new PeerInfo("stalled", "127.0.0.1", stalledPort), largeFile);
+            Thread.sleep(500);
+            final long start = System.nanoTime();
+            final boolean smallSent = client.send(new PeerInfo("receiver", "localhost", this.port), smallFile);
+            final long smallMillis = (System.nanoTime() - start) / 1000000;
+            final boolean stalledRunning = !stalled.isDone();
+            stalled.cancel(true);
+
+            System.out.print("A peer which stops reading does not hold up transfers to other peers: ");
+            log(smallSent && stalledRunning && smallMillis < 1000);
+        } finally {
+            stalledServer.close();
+            stalledThread.interrupt();
+            largeFile.delete();
+            smallFile.delete();
+        }
+    }
+
+    /**
+     * Sends a file over two streams to a peer which answers the first range but not the second,
+     * and checks that the file is reported as failed instead of sent.
+     */
+    private void checkFailedRange() throws Exception {
+        final int failingPort = this.port + 10;
+        final File file = File.createTempFile("failed-range", ".bin");
+        final ServerSocket failingServer = new ServerSocket(failingPort);
+        // Requests no chunks of the first range, and an invalid request for every other range.
+        final Thread failingThread = new Thread(() -> {
+            while (!failingServer.isClosed()) {
+                try (final Socket socket = failingServer.accept()) {
+                    final DataInputStream in = new DataInputStream(socket.getInputStream());
+                    final byte[] header = new byte[in.readInt()];
+                    in.readFully(header);
+                    final DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                    out.writeInt(FileHeader.decode(ByteBuffer.wrap(header)).getOffset() == 0 ? 0 : -1);
+                    out.flush();
+                    // Waits for the client to close the connection.
+                    in.read();
+                } catch (IOException ex) {
+                    // The peer stops with the test.
+                }
+            }
+        });
+        failingThread.setDaemon(true);
+        failingThread.start();
+        try (final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.setLength(2 * FileTransferClient.MIN_RANGE_SIZE);
+        }
+        try {
+            final TransferResult result = new FileTransferClient(2, false, false)
+                    .sendAsync(new PeerInfo("failing", "localhost", failingPort), file).get(30, TimeUnit.SECONDS);
+            System.out.print("A file with a range which cannot be sent is reported as failed: ");
+            log(!result.isSent() && result.getFailure() != null);
+        } finally {
+            failingServer.close();
+            file.delete();
+        }
+    }
+
+    /**
+     * Sends a batch of two files to a rate limited peer, and checks the sampled progress of the files and the batch.
+     */
+    private void checkProgress() throws IOException, InterruptedException {
+        final byte[] large = new byte[6 * ChunkMap.CHUNK_SIZE];
+        final byte[] small = new byte[ChunkMap.CHUNK_SIZE + 17];
+        final Random random = new Random(13);
+        random.nextBytes(large);
+        random.nextBytes(small);
+        final File largeFile = File.createTempFile("progress-large", ".bin");
+        final File smallFile = File.createTempFile("progress-small", ".bin");
+        final FileTransferClient client = new FileTransferClient(1, false, false);
+        client.setPeerRateLimit(16L * 1024 * 1024);
+        client.setProgressInterval(100);
+        final List<TransferProgress> samples = new ArrayList<>();
+        final List<TransferProgress> completedFiles = new ArrayList<>();
+        final TransferProgress[] completedBatch = new TransferProgress[1];
+        final TransferListener listener = new TransferListener() {
+            @Override
+            public void onProgress(final TransferProgress file, final TransferProgress batch) {
+                samples.add(batch);
+            }
+
+            @Override
+            public void onFileCompleted(final TransferProgress file, final boolean sent) {
+                if (sent) {
+                    completedFiles.add(file);
+                }
+            }
+
+            @Override
+            public void onBatchCompleted(final TransferProgress batch, final boolean sent) {
+                completedBatch[0] = sent ? batch : null;
+            }
+        };
+        try {
+            Files.write(largeFile.toPath(), large);
+            Files.write(smallFile.toPath(), small);
+            final long start = System.nanoTime();
+            System.out.print("Sent a batch with a progress listener: ");
+            log(client.send(new PeerInfo("receiver", "localhost", this.port), listener, largeFile, smallFile));
+            final long millis = (System.nanoTime() - start) / 1000000;
+
+            final long totalBytes = large.length + small.length;
+            boolean ordered = !samples.isEmpty();
+            for (int i = 1; i < samples.size(); i++) {
+                ordered &= samples.get(i).getBytesTransferred() >= samples.get(i - 1).getBytesTransferred();
+            }
+            System.out.print("Progress is sampled, not reported per write: ");
+            log(samples.size() >= 3 && samples.size() <= millis / 100 + 1);
+            System.out.print("Batch progress only moves forward: ");
+            log(ordered && samples.stream().allMatch(sample -> sample.getTotalBytes() == totalBytes));
+            System.out.print("Rate and remaining time are estimated: ");
+            log(samples.stream().anyMatch(sample -> sample.getBytesPerSecond() > 0 && sample.getRemainingMillis() > 0));
+            System.out.print("Every file and the batch are reported complete: ");
+            log(completedFiles.size() == 2 && completedFiles.get(1).getName().equals(smallFile.getName())
+                    && completedFiles.get(1).getBytesTransferred() == small.length
+                    && completedBatch[0] != null && completedBatch[0].getBytesTransferred() == totalBytes);
+        } finally {
+            largeFile.delete();
+            smallFile.delete();
+        }
+    }
+
+    /**
+     * Sends files in the background, and checks that cancelling a transfer stops it, whether it is running or waiting.
+     */
+    private void checkAsync() throws Exception {
+        final PeerInfo peerInfo = new PeerInfo("receiver", "localhost", this.port);
+        final Random random = new Random(17);
+        final File[] files = new File[8];
+        final File largeFile = File.createTempFile("async-large", ".bin");
+        try {
+            for (int i = 0; i < files.length; i++) {
+                final byte[] contents = new byte[1024 * 1024 + i];
+                random.nextBytes(contents);
+                files[i] = File.createTempFile("async", ".bin");
+                Files.write(files[i].toPath(), contents);
+            }
+            final byte[] large = new byte[6 * ChunkMap.CHUNK_SIZE];
+            random.nextBytes(large);
+            Files.write(largeFile.toPath(), large);
+
+            final FileTransferClient client = new FileTransferClient(2);
+            final List<CompletableFuture<TransferResult>> futures = new ArrayList<>();
+            for (final File file : files) {
+                futures.add(client.sendAsync(peerInfo, file));
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(30, TimeUnit.SECONDS);
+            System.out.print("Sent " + files.length + " files at once in the background: ");
+            log(futures.stream().allMatch(future -> future.join().isSent() && future.join().getSentFiles().size() == 1));
+
+            final File missing = new File(files[0].getParentFile(), "missing-" + System.nanoTime());
+            final TransferResult batch = client.sendAsync(peerInfo, files[0], missing, files[1]).get(30, TimeUnit.SECONDS);
+            System.out.print("Batch stops at the first file which cannot be sent: ");
+            log(!batch.isSent() && batch.getSentFiles().size() == 1 && missing.equals(batch.getFailedFile()));
+
+            final FileTransferClient limitedClient = new FileTransferClient(1);
+            limitedClient.setPeerRateLimit(4L * 1024 * 1024);
+            limitedClient.setMaxConcurrentTransfers(1);
+            final ThreadSignaller stopped = new ThreadSignaller();
+            final boolean[] runningSent = { true };
+            final CompletableFuture<TransferResult> running = limitedClient.sendAsync(peerInfo, new TransferListener() {
+                @Override
+                public void onProgress(final TransferProgress file, final TransferProgress batch) {
+                }
+
+                @Override
+                public void onBatchCompleted(final TransferProgress batch, final boolean sent) {
+                    runningSent[0] = sent;
+                    stopped.signal();
+                }
+            }, largeFile);
+            final boolean[] waitingStarted = { false };
+            final CompletableFuture<TransferResult> waiting = limitedClient.sendAsync(peerInfo,
+                    (file, progress) -> waitingStarted[0] = true, largeFile);
+            Thread.sleep(500);
+            waiting.cancel(true);
+            final long cancelled = System.nanoTime();
+            running.cancel(true);
+            // 24 MiB at 4 MiB/s would take another 5 seconds if the transfer kept going.
+            System.out.print("Cancelling a running transfer stops its I/O: ");
+            log(stopped.waitForTimeout(1000) && !runningSent[0] && running.isCancelled()
+                    && (System.nanoTime() - cancelled) / 1000000 < 1000);
+            Thread.sleep(500);
+            System.out.print("Cancelling a waiting transfer keeps it from starting: ");
+            log(waiting.isCancelled() && !waitingStarted[0]);
+        } finally {
+            for (final File file : files) {
+                if (file != null) {
+                    file.delete();
+                }
+            }
+            largeFile.delete();
+        }
+    }
+
+    /**
+     * Sends a file to several peers at once, one of which is slow, and checks that every peer receives the file,
+     * that the slow peer does not hold back the others, and that the file is not read once per peer.
+     * @param receiver The receiver of the first peer.
+     */
+    private void checkFanOut(final FileReceiver receiver) throws Exception {
+        final int fastPort = this.port + 5;
+        final int slowPort = this.port + 6;
+        final int proxyPort = this.port + 7;
+        final byte[] contents = new byte[12 * ChunkMap.CHUNK_SIZE + 17];
+        new Random(19).nextBytes(contents);
+        final File file = File.createTempFile("fan-out", ".bin");
+        final File fastDirectory = Files.createTempDirectory("fan-out-fast").toFile();
+        final File slowDirectory = Files.createTempDirectory("fan-out-slow").toFile();
+        final FileReceiver fastReceiver = new FileReceiver(fastDirectory);
+        final FileReceiver slowReceiver = new FileReceiver(slowDirectory);
+        final TCPServer fastServer = new TCPServer(fastPort);
+        final TCPServer slowServer = new TCPServer(slowPort);
+        final ServerSocket proxy = new ServerSocket(proxyPort);
+        final List<File> receivedFiles = new ArrayList<>();
+        // The receivers are notified after the senders return, so the copies are only checked once all five arrived.
+        final ThreadSignaller allReceived = new ThreadSignaller();
+        final FileListener listener = received -> {
+            synchronized (receivedFiles) {
+                receivedFiles.add(received);
+                if (receivedFiles.size() == 5) {
+                    allReceived.signal();
+                }
+            }
+        };
+        receiver.addFileListener(listener);
+        fastReceiver.addFileListener(listener);
+        slowReceiver.addFileListener(listener);
+        fastServer.setConnectionHandlerFactory(fastReceiver);
+        slowServer.setConnectionHandlerFactory(slowReceiver);
+        fastServer.acceptIncomingConnections();
+        slowServer.acceptIncomingConnections();
+        // Forwards to the slow receiver, only letting 8 MiB/s through towards it.
+        final Thread proxyThread = new Thread(() -> {
+            try (final Socket inbound = proxy.accept(); final Socket outbound = new Socket("localhost", slowPort)) {
+                final Thread replies = new Thread(() -> FileTransferTest.pipe(outbound, inbound, null));
+                replies.setDaemon(true);
+                replies.start();
+                FileTransferTest.pipe(inbound, outbound, new RateLimiter(8L * 1024 * 1024));
+                replies.join();
+            } catch (IOException | InterruptedException ex) {
+                // The proxy stops with the test.
+            }
+        });
+        proxyThread.setDaemon(true);
+        proxyThread.start();
+        final Counter chunksRead = Metrics.counter("transfer.fan-out-chunks-read");
+        final int chunkCount = (contents.length + ChunkMap.CHUNK_SIZE - 1) / ChunkMap.CHUNK_SIZE;
+        try {
+            Files.write(file.toPath(), contents);
+            final FileTransferClient client = new FileTransferClient();
+            final PeerInfo first = new PeerInfo("first", "localhost", this.port);
+            final PeerInfo fast = new PeerInfo("fast", "localhost", fastPort);
+            final PeerInfo slow = new PeerInfo("slow", "localhost", proxyPort);
+            long readBefore = chunksRead.get();
+            final Map<PeerInfo, TransferResult> fastResults = client.sendToAll(Arrays.asList(first, fast), file);
+            System.out.print("Fanned a file out to two peers: ");
+            log(fastResults.size() == 2 && fastResults.values().stream().allMatch(TransferResult::isSent));
+            System.out.print("Every chunk is read once for both peers: ");
+            log(chunksRead.get() - readBefore == chunkCount);
+
+            readBefore = chunksRead.get();
+            final Map<PeerInfo, TransferResult> results = client.sendToAll(Arrays.asList(first, fast, slow), file);
+            System.out.print("Fanned a file out to two fast peers and a slow one: ");
+            log(results.size() == 3 && results.values().stream().allMatch(TransferResult::isSent));
+            System.out.print("The slow peer does not hold back the fast ones: ");
+            log(results.get(first).getElapsedMillis() < results.get(slow).getElapsedMillis() / 2
+                    && results.get(fast).getElapsedMillis() < results.get(slow).getElapsedMillis() / 2);
+            System.out.print("Chunks are not read once per peer: ");
+            log(chunksRead.get() - readBefore < 2 * chunkCount);
+            System.out.print("Every peer received an identical copy: ");
+            boolean identical = allReceived.waitForTimeout(10000);
+            final List<File> copies;
+            synchronized (receivedFiles) {
+                copies = new ArrayList<>(receivedFiles);
+            }
+            identical &= copies.size() == 5;
+            for (final File received : copies) {
+                identical &= Arrays.equals(contents, Files.readAllBytes(received.toPath()));
+            }
+            log(identical);
+
+            final PeerInfo unreachable = new PeerInfo("unreachable", "localhost", proxyPort + 1);
+            final Map<PeerInfo, TransferResult> partialResults = client.sendToAll(Arrays.asList(unreachable, fast), file);
+            System.out.print("An unreachable peer fails without failing the others: ");
+            log(!partialResults.get(unreachable).isSent() && partialResults.get(unreachable).getFailure() != null
+                    && partialResults.get(fast).isSent());
+
+            final PeerInfo legacy = new PeerInfo("legacy", "localhost", PeerMessage.UNKNOWN_PORT);
+            final Map<PeerInfo, TransferResult> legacyResults = client.sendToAll(Arrays.asList(legacy, fast), file);
+            System.out.print("A peer without a transfer port fails without being connected to: ");
+            log(!legacyResults.get(legacy).isSent() && legacyResults.get(legacy).getFailure() != null
+                    && legacyResults.get(legacy).getFailure().getMessage().contains("transfer port")
+                    && legacyResults.get(fast).isSent());
+        } finally {
+            receiver.removeFileListener(listener);
+            proxy.close();
+            fastServer.close();
+            slowServer.close();
+            file.delete();
+            for (final File dir : new File[] { fastDirectory, slowDirectory }) {
+                FileTransferTest.deleteTree(dir.toPath());
+            }
+        }
+    }
+
+    /**
+     * Sends a file, logs whether it was sent, and waits for the receiver to report it.
+     * @param receiver The receiver of the file.
+     * @param client The client to send the file with.
+     * @param peerInfo The information of the receiver.
+     * @param file The file or directory to send.
+     * @return The received file, or null if the receiver did not report one in time.
+     */
+    private File sendAndAwait(final FileReceiver receiver, final FileTransferClient client, final PeerInfo peerInfo,
+                              final File file) throws InterruptedException {
+        try (final ReceivedFiles receivedFiles = new ReceivedFiles(receiver)) {
+            log(client.send(peerInfo, file));
+            return receivedFiles.await();
+        }
+    }
+
+    /**
+     * Listens for the files a receiver reports, until it is closed.
+     */
+    private static final class ReceivedFiles implements AutoCloseable {
+
+        private final FileReceiver receiver;
+        private final ThreadSignaller signaller = new ThreadSignaller();
+        private final FileListener listener = received -> {
+            this.file = received;
+            this.signaller.signal();
+        };
+        private volatile File file;
+
+        /**
+         * Starts listening for the files a receiver reports.
+         * @param receiver The receiver of the files.
+         */
+        private ReceivedFiles(final FileReceiver receiver) {
+            this.receiver = receiver;
+            receiver.addFileListener(this.listener);
+        }
+
+        /**
+         * @return The file reported last, or null if none was reported yet.
+         */
+        private File peek() {
+            return this.file;
+        }
+
+        /**
+         * Waits up to five seconds for a file to be reported.
+         * @return The file reported last, or null if none was reported in time.
+         */
+        private File await() throws InterruptedException {
+            this.signaller.waitForTimeout(5000);
+            return this.file;
+        }
+
+        @Override
+        public void close() {
+            this.receiver.removeFileListener(this.listener);
+        }
+
+    }
+
+    /**
+     * Checks that a received file has the expected contents.
+     * @param expected The expected contents.
+     * @param received The received file, or null if no file was received.
+     * @return If the file was received and has the expected contents.
+     */
+    private static boolean sameContents(final byte[] expected, final File received) throws IOException {
+        return received != null && Arrays.equals(expected, Files.readAllBytes(received.toPath()));
+    }
+
+    /**
+     * Copies the bytes from one socket to another, until the source is closed.
+     * @param source The socket to read from.
+     * @param target The socket to write to.
+     * @param rateLimiter The limiter of the rate the bytes are copied at, or null to copy them as fast as possible.
+     */
+    private static void pipe(final Socket source, final Socket target, final RateLimiter rateLimiter) {
+        final byte[] buffer = new byte[64 * 1024];
+        try {
+            final InputStream in = source.getInputStream();
+            final OutputStream out = target.getOutputStream();
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                if (rateLimiter != null) {
+                    rateLimiter.acquire(read);
+                }
+                out.write(buffer, 0, read);
+            }
+            target.shutdownOutput();
+        } catch (IOException ex) {
+            // Either socket was closed, which ends the copy.
+        }
+    }
+
+    /**
+     * Checks that two directory trees contain the same directories and files, with the same contents.
+     * @param expected The root of the expected tree.
+     * @param actual The root of the actual tree.
+     * @return If the trees are identical.
+     */
+    private static boolean sameTree(final Path expected, final Path actual) throws IOException {
+        final List<Path> expectedPaths;
+        final List<Path> actualPaths;
+        try (final Stream<Path> paths = Files.walk(expected)) {
+            expectedPaths = paths.map(expected::relativize).sorted().collect(Collectors.toList());
+        }
+        try (final Stream<Path> paths = Files.walk(actual)) {
+            actualPaths = paths.map(actual::relativize).sorted().collect(Collectors.toList());
+        }
+        if (!expectedPaths.equals(actualPaths)) {
+            return false;
+        }
+        for (final Path path : expectedPaths) {
+            final Path expectedPath = expected.resolve(path);
+            if (Files.isRegularFile(expectedPath)
+                    && !Arrays.equals(Files.readAllBytes(expectedPath), Files.readAllBytes(actual.resolve(path)))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Deletes a directory tree, if it exists.
+     * @param root The root of the tree.
+     */
+    private static void deleteTree(final Path root) throws IOException {
+        if (!Files.exists(root)) {
+            return;
+        }
+        try (final Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    /**
+     * Computes the CRC32C checksum of a chunk, as sent after the chunk's body.
+     * @param contents The contents of the file.
+     * @param offset The offset of the chunk within the file.
+     * @param length The length of the chunk.
+     * @return The checksum of the chunk.
+     */
+    private static int checksum(final byte[] contents, final int offset, final int length) {
+        final CRC32C checksum = new CRC32C();
+        checksum.update(contents, offset, length);
+        return (int) checksum.getValue();
+    }
+
+    /**
+     * Reads the chunks a receiver is missing.
+     * @param client The client connected to the receiver.
+     * @return The missing chunks.
+     */
+    private static BitSet readMissing(final TCPClient client) throws IOException {
+        final ByteBuffer lengthBuffer = ByteBuffer.allocate(Integer.BYTES);
+        client.read(lengthBuffer);
+        final ByteBuffer bitsBuffer = ByteBuffer.allocate(lengthBuffer.getInt());
+        client.read(bitsBuffer);
+        return BitSet.valueOf(bitsBuffer);
+    }
+
+    private static void log(boolean success) {
+        if (success) {
+            System.out.println("success");
+        } else {
+            System.out.println("error");
+        }
+    }
+
+}
@@ -0,0 +1,195 @@
+package net.filetransfer;
+
+import tech.avahe.filetransfer.net.filetransfer.ChunkMap;
+import tech.avahe.filetransfer.net.filetransfer.FileHeader;
+import tech.avahe.filetransfer.net.filetransfer.FileTransferClient;
+import tech.avahe.filetransfer.net.peerdiscovery.PeerInfo;
+import tech.avahe.filetransfer.threading.ThreadSignaller;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.BitSet;
+
+/**
+ * @author Avahe
+ *
+ * Compares the throughput of <code>FileTransferClient</code> (zero-copy) against a heap-buffered stream copy on loopback.
+ * The client's transfer goes to a sink which answers the chunk offers and discards the chunks, so both transfers
+ * measure the sending side only.
+ */
+public class FileTransferThroughputTest {
+
+    public static void main(String[] args) throws Exception {
+        new FileTransferThroughputTest();
+    }
+
+    private static final long FILE_SIZE = 256L * 1024 * 1024;
+    private static final int ITERATIONS = 3;
+
+    private final int port = 1338;
+    private final ThreadSignaller receivedSignaller = new ThreadSignaller();
+    private volatile long bytesReceived;
+
+    /**
+     * Runs the throughput comparison.
+     * @throws Exception Thrown if the conditions to test the class cannot be met.
+     */
+    public FileTransferThroughputTest() throws Exception {
+        System.out.println("FileTransferThroughputTest: ");
+        final File file = File.createTempFile("throughput", ".bin");
+        file.deleteOnExit();
+        try (final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.setLength(FILE_SIZE);
+        }
+
+        try (final ServerSocketChannel server = ServerSocketChannel.open();
+             final ServerSocketChannel offerServer = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress("localhost", this.port));
+            offerServer.bind(new InetSocketAddress("localhost", this.port + 1));
+            for (final Thread sinkThread : new Thread[] {
+                    new Thread(() -> this.sink(server, false)), new Thread(() -> this.sink(offerServer, true)) }) {
+                sinkThread.setDaemon(true);
+                sinkThread.start();
+            }
+
+            final PeerInfo peerInfo = new PeerInfo("sink", "localhost", this.port + 1);
+            // A single stream without delta sync or compression, so every chunk is sent with transferTo.
+            final FileTransferClient client = new FileTransferClient(1, false, false);
+            for (int i = 0; i < ITERATIONS; i++) {
+                System.out.println("FileChannel.transferTo: " + this.measure(() -> {
+                    if (!client.send(peerInfo, file)) {
+                        throw new IOException("Transfer failed.");
+                    }
+                }) + " MB/s");
+                System.out.println("Heap-buffered stream copy: " + this.measure(() -> this.streamCopy(file)) + " MB/s");
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Sends the file through a heap buffer and a socket output stream.
+     * @param file The file to send.
+     * @throws IOException Thrown if the file cannot be sent.
+     */
+    private void streamCopy(final File file) throws IOException {
+        try (final Socket socket = new Socket("localhost", this.port);
+             final InputStream in = new FileInputStream(file)) {
+            final OutputStream out = socket.getOutputStream();
+            final byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            out.flush();
+        }
+    }
+
+    /**
+     * Times a transfer until the sink has received every byte of it.
+     * @param transfer The transfer to time.
+     * @return The throughput of the transfer in megabytes per second.
+     */
+    private long measure(final Transfer transfer) throws IOException, InterruptedException {
+        this.receivedSignaller.reset();
+        final long start = System.nanoTime();
+        transfer.run();
+        if (!this.receivedSignaller.waitForTimeout(60000)) {
+            throw new IOException("Sink did not receive the transfer.");
+        }
+        final long elapsedNanos = System.nanoTime() - start;
+        return (this.bytesReceived * 1000000000L / elapsedNanos) / (1024 * 1024);
+    }
+
+    /**
+     * Accepts connections and discards everything they send.
+     * @param server The server to accept connections from.
+     * @param answerOffers If every connection starts with a file header, whose chunks are requested and then
+     * discarded, before the connection is told that no chunks are missing anymore.
+     */
+    private void sink(final ServerSocketChannel server, final boolean answerOffers) {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+        try {
+            while (true) {
+                try (final SocketChannel channel = server.accept()) {
+                    long total = 0;
+                    if (answerOffers) {
+                        total = this.answerOffer(channel, buffer);
+                    }
+                    int read;
+                    while ((read = channel.read(buffer)) != -1) {
+                        total += read;
+                        buffer.clear();
+                    }
+                    this.bytesReceived = total;
+                    this.receivedSignaller.signal();
+                }
+            }
+        } catch (IOException ex) {
+            // The server was closed.
+        }
+    }
+
+    /**
+     * Reads a file header, requests every chunk of its range, discards the chunks,
+     * and then answers that no chunks are missing.
+     * @param channel The channel of the connection.
+     * @param buffer The buffer to discard the chunks through.
+     * @return The number of bytes of the file received.
+     */
+    private long answerOffer(final SocketChannel channel, final ByteBuffer buffer) throws IOException {
+        final ByteBuffer lengthBuffer = ByteBuffer.allocate(FileHeader.LENGTH_PREFIX_BYTES);
+        readFully(channel, lengthBuffer);
+        final ByteBuffer headerBuffer = ByteBuffer.allocate(lengthBuffer.getInt());
+        readFully(channel, headerBuffer);
+        final FileHeader header = FileHeader.decode(headerBuffer);
+        final int chunkCount = (int) ((header.getLength() + ChunkMap.CHUNK_SIZE - 1) / ChunkMap.CHUNK_SIZE);
+        final BitSet missing = new BitSet();
+        missing.set(0, chunkCount);
+        final byte[] bits = missing.toByteArray();
+        writeFully(channel, ByteBuffer.allocate(Integer.BYTES + bits.length).putInt(bits.length).put(bits).flip());
+        // Every chunk is prefixed with its index and followed by its checksum.
+        long remaining = header.getLength() + (long) chunkCount * 2 * Integer.BYTES;
+        while (remaining > 0) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), remaining));
+            if (channel.read(buffer) < 0) {
+                throw new IOException("Connection closed before every chunk was received.");
+            }
+            remaining -= buffer.position();
+        }
+        buffer.clear();
+        writeFully(channel, ByteBuffer.allocate(Integer.BYTES).putInt(0).flip());
+        return header.getLength();
+    }
+
+    private static void readFully(final SocketChannel channel, final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("Connection closed.");
+            }
+        }
+        buffer.flip();
+    }
+
+    private static void writeFully(final SocketChannel channel, final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private interface Transfer {
+        void run() throws IOException;
+    }
+
+}
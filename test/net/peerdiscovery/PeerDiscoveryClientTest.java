@@ -91,6 +91,21 @@ public class PeerDiscoveryClientTest {
         report.append(messageReceivedFlags[1]);
         report.append(lineSeparator);
 
+        final StringBuilder longNickName = new StringBuilder();
+        for (int i = 0; i < 128; i++) {
+            longNickName.append('\u00e9');
+        }
+        boolean rejected = false;
+        try {
+            clientB.setNickName(longNickName.toString());
+        } catch (IllegalArgumentException ex) {
+            // The nick name is kept, so setting it again changes nothing.
+            rejected = !clientB.setNickName("Bob");
+        }
+        report.append("Rejected a nick name too long to advertise: ");
+        report.append(rejected);
+        report.append(lineSeparator);
+
         clientB.close();
         signaller.waitForTimeout(1000);
         report.append("Received onPeerDisconnected: ");
@@ -0,0 +1,96 @@
+package net.peerdiscovery;
+
+import tech.avahe.filetransfer.net.peerdiscovery.PeerMessage;
+import tech.avahe.filetransfer.net.peerdiscovery.PeerMessage.MessageType;
+import tech.avahe.filetransfer.util.Buffers;
+
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+
+/**
+ * @author Avahe
+ *
+ * Tests the binary and legacy text formats of PeerMessage.
+ */
+public class PeerMessageTest {
+
+    /**
+     * Creates the test class.
+     */
+    public static void main(String[] args) {
+        try {
+            new PeerMessageTest();
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Runs the test suite.
+     */
+    public PeerMessageTest() {
+        System.out.println("PeerMessageTest: ");
+        final PrintStream out = System.out;
+
+        out.print("IPv4 message survives a round trip: ");
+        log(PeerMessageTest.roundTrip(new PeerMessage(MessageType.PING, "192.168.1.20", "Alice", 7900), false));
+
+        out.print("IPv6 message survives a round trip through a direct buffer: ");
+        log(PeerMessageTest.roundTrip(new PeerMessage(MessageType.DISCONNECT, "fe80:0:0:0:0:0:0:1", "B\u00f6b \u2603", 65535), true));
+
+        out.print("Legacy text message is decoded: ");
+        final PeerMessage legacy = PeerMessage.decode(Buffers.toBuffer("ping,10.0.0.5,Carol"));
+        log(legacy.getMessageType() == MessageType.PING && legacy.getIpAddress().equals("10.0.0.5")
+                && legacy.getNickName().equals("Carol") && legacy.getPort() == PeerMessage.UNKNOWN_PORT);
+
+        out.print("Truncated binary message is rejected: ");
+        final ByteBuffer truncated = new PeerMessage(MessageType.PING, "192.168.1.20", "Alice", 7900).encode();
+        truncated.limit(truncated.limit() - 3);
+        log(PeerMessageTest.isRejected(truncated));
+
+        out.print("Unknown message type is rejected: ");
+        final ByteBuffer unknown = new PeerMessage(MessageType.PING, "192.168.1.20", "Alice", 7900).encode();
+        unknown.put(2, (byte) 0x7F);
+        log(PeerMessageTest.isRejected(unknown) && PeerMessageTest.isRejected(Buffers.toBuffer("hello,10.0.0.5,Carol")));
+    }
+
+    /**
+     * Encodes and decodes a message.
+     * @param message The message to encode.
+     * @param direct If the message should be decoded from a direct buffer.
+     * @return If the decoded message equals the original message.
+     */
+    private static boolean roundTrip(final PeerMessage message, final boolean direct) {
+        ByteBuffer buffer = message.encode();
+        if (direct) {
+            buffer = Buffers.copyDirect(buffer);
+        }
+        final PeerMessage decoded = PeerMessage.decode(buffer);
+        return !buffer.hasRemaining() && decoded.getMessageType() == message.getMessageType()
+                && decoded.getIpAddress().equals(message.getIpAddress())
+                && decoded.getNickName().equals(message.getNickName())
+                && decoded.getPort() == message.getPort();
+    }
+
+    /**
+     * @param buffer The data to decode.
+     * @return If decoding the data failed.
+     */
+    private static boolean isRejected(final ByteBuffer buffer) {
+        try {
+            PeerMessage.decode(buffer);
+            return false;
+        } catch (IllegalArgumentException ex) {
+            return true;
+        }
+    }
+
+    private static void log(boolean success) {
+        if (success) {
+            System.out.println("success");
+        } else {
+            System.out.println("error");
+        }
+    }
+
+}
@@ -0,0 +1,86 @@
+package threading;
+
+import tech.avahe.filetransfer.threading.ThreadMode;
+import tech.avahe.filetransfer.threading.ThreadSignaller;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * @author Avahe
+ *
+ * Tests the ThreadSignaller class, on threads of every ThreadMode.
+ */
+public class ThreadSignallerTest {
+
+    /**
+     * Creates the test class.
+     */
+    public static void main(String[] args) {
+        try {
+            new ThreadSignallerTest();
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Runs the test suite.
+     * @throws Exception Thrown if the conditions to test the class cannot be met.
+     */
+    public ThreadSignallerTest() throws Exception {
+        System.out.println("ThreadSignallerTest: ");
+        final PrintStream out = System.out;
+        final ThreadSignaller signaller = new ThreadSignaller();
+
+        out.print("Waiting without a signal times out: ");
+        log(!signaller.waitForTimeout(50));
+
+        signaller.signal();
+        out.print("Waiting after a signal returns immediately: ");
+        log(signaller.waitForTimeout(50));
+
+        signaller.reset();
+        out.print("Waiting after a reset times out: ");
+        log(!signaller.waitForTimeout(50));
+
+        for (final ThreadMode mode : ThreadMode.values()) {
+            this.checkWakeUp(mode);
+        }
+    }
+
+    /**
+     * Tests waking up a thread of the given mode which waits on a signaller.
+     * @param mode The mode of the waiting thread.
+     * @throws InterruptedException Thrown if the current thread is interrupted while waiting.
+     */
+    private void checkWakeUp(final ThreadMode mode) throws InterruptedException {
+        final ThreadSignaller signaller = new ThreadSignaller();
+        final ThreadSignaller wokenSignaller = new ThreadSignaller();
+        final AtomicBoolean woken = new AtomicBoolean(false);
+        final Thread thread = mode.newThreadFactory("signaller-test").newThread(() -> {
+            try {
+                woken.set(signaller.waitForTimeout(5000));
+                wokenSignaller.signal();
+            } catch (InterruptedException ex) {
+                // Silently ignore the exception, as the test will fail.
+            }
+        });
+        thread.start();
+        signaller.signal();
+        wokenSignaller.waitForTimeout(5000);
+        System.out.print("Signal wakes up a " + mode.getIdentifier() + " thread"
+                + (mode.isSupported() ? "" : " (falling back to a platform thread)") + ": ");
+        log(woken.get());
+        thread.join(1000);
+    }
+
+    private static void log(boolean success) {
+        if (success) {
+            System.out.println("success");
+        } else {
+            System.out.println("error");
+        }
+    }
+
+}
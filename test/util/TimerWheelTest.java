@@ -0,0 +1,90 @@
+package util;
+
+import tech.avahe.filetransfer.util.TimerWheel;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Avahe
+ *
+ * Tests the TimerWheel class, driving it with a simulated clock.
+ */
+public class TimerWheelTest {
+
+    /**
+     * Creates the test class.
+     */
+    public static void main(String[] args) {
+        try {
+            new TimerWheelTest();
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    private static final long TICK = 100;
+    private static final int SLOTS = 8;
+
+    /**
+     * Runs the test suite.
+     */
+    public TimerWheelTest() {
+        System.out.println("TimerWheelTest: ");
+        final PrintStream out = System.out;
+        final List<String> expired = new ArrayList<>();
+        final TimerWheel<String> wheel = new TimerWheel<>(TICK, SLOTS, 0);
+
+        wheel.schedule("short", 250);
+        // Longer than a revolution of the wheel (800 ms), so it must wait for an extra round.
+        wheel.schedule("long", 1000);
+        wheel.schedule("refreshed", 250);
+        wheel.schedule("cancelled", 250);
+        wheel.cancel("cancelled");
+
+        wheel.advance(millis(200), expired::add);
+        out.print("No key expires before its deadline: ");
+        log(expired.isEmpty());
+
+        wheel.schedule("refreshed", 250);
+        wheel.advance(millis(300), expired::add);
+        out.print("Key expires on the first tick after its deadline: ");
+        log(expired.equals(List.of("short")));
+
+        wheel.advance(millis(900), expired::add);
+        out.print("Rescheduled key expires after its new deadline: ");
+        log(expired.contains("refreshed") && !expired.contains("cancelled"));
+
+        out.print("Key scheduled beyond one revolution waits for its round: ");
+        final boolean waited = !expired.contains("long");
+        wheel.advance(millis(1000), expired::add);
+        log(waited && expired.contains("long") && wheel.size() == 0);
+
+        final int keys = 100000;
+        for (int i = 0; i < keys; i++) {
+            wheel.schedule("key-" + i, 500 + i % 5000);
+        }
+        final int expiredKeys = wheel.advance(millis(1000 + 6000), key -> { });
+        out.print("Every one of " + keys + " keys expires: ");
+        log(expiredKeys == keys && wheel.size() == 0);
+    }
+
+    /**
+     * @param millis A time in milliseconds.
+     * @return The time in nanoseconds.
+     */
+    private static long millis(final long millis) {
+        return TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    private static void log(boolean success) {
+        if (success) {
+            System.out.println("success");
+        } else {
+            System.out.println("error");
+        }
+    }
+
+}